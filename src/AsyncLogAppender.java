@@ -0,0 +1,159 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncLogAppender keeps the console lock off the threads that log. Messages
+ * are put into a fixed-size ring buffer without locking, and a single daemon
+ * thread takes them out in batches and writes each batch to the stream with
+ * one flush. If the ring is full the message is dropped and counted instead
+ * of making the game or socket thread wait.
+ */
+public class AsyncLogAppender implements LogAppender, Runnable {
+
+	private static final String[] NAMES = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR" };
+
+	private final PrintStream out;
+	private final int mask;
+	private final int capacity;
+
+	// Each slot's sequence number says whether it is ready to be written to
+	// (seq == position) or ready to be read (seq == position + 1)
+	private final AtomicLongArray sequence;
+	private final int[] levels;
+	private final long[] times;
+	private final String[] threads;
+	private final String[] messages;
+	private final Throwable[] errors;
+
+	private final AtomicLong tail = new AtomicLong();	// next slot to write, shared by producers
+	private volatile long head = 0;						// next slot to read, only moved by the writer thread
+	private StringBuilder batch = new StringBuilder(4096);
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread worker;
+
+	/**
+	 * @param out the stream to write messages to
+	 * @param capacity the size of the ring, rounded up to a power of two
+	 */
+	public AsyncLogAppender(PrintStream out, int capacity) {
+		this.out = out;
+		int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.capacity = cap;
+		this.mask = cap - 1;
+		sequence = new AtomicLongArray(cap);
+		for( int i = 0; i < cap; i++ )
+			sequence.set(i, i);
+		levels = new int[cap];
+		times = new long[cap];
+		threads = new String[cap];
+		messages = new String[cap];
+		errors = new Throwable[cap];
+
+		worker = new Thread(this, "log-writer");
+		worker.setDaemon(true);
+		worker.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}));
+	}
+
+	/**
+	 * Puts a message into the ring. Never blocks.
+	 */
+	@Override
+	public boolean append(int level, String thread, String message, Throwable error) {
+		long pos = tail.get();
+		int slot;
+		while( true ) {
+			slot = (int) (pos & mask);
+			long diff = sequence.get(slot) - pos;
+			if( diff == 0 ) {
+				if( tail.compareAndSet(pos, pos + 1) )
+					break;
+				pos = tail.get();
+			}else if( diff < 0 ) {
+				// the writer hasn't caught up, don't wait for it
+				dropped.incrementAndGet();
+				return false;
+			}else {
+				pos = tail.get();
+			}
+		}
+		levels[slot] = level;
+		times[slot] = System.currentTimeMillis();
+		threads[slot] = thread;
+		messages[slot] = message;
+		errors[slot] = error;
+		sequence.lazySet(slot, pos + 1);
+		return true;
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public int getBacklog() {
+		return (int) (tail.get() - head);
+	}
+
+	/**
+	 * The writer thread. Writes whatever is in the ring, then sleeps briefly
+	 * when it is empty rather than having every producer wake it up.
+	 */
+	@Override
+	public void run() {
+		while( true ) {
+			if( drain() == 0 )
+				LockSupport.parkNanos(1000000L);
+		}
+	}
+
+	/**
+	 * Writes out every message that is ready and flushes once at the end
+	 * @return the number of messages written
+	 */
+	private synchronized int drain() {
+		int count = 0;
+		while( count < capacity ) {
+			int slot = (int) (head & mask);
+			if( sequence.get(slot) != head + 1 )
+				break;
+
+			batch.append(times[slot]).append(' ').append(NAMES[levels[slot]]).append(" [")
+				.append(threads[slot]).append("] ").append(messages[slot]).append(System.lineSeparator());
+			if( errors[slot] != null ) {
+				StringWriter trace = new StringWriter();
+				errors[slot].printStackTrace(new PrintWriter(trace));
+				batch.append(trace);
+			}
+
+			threads[slot] = null;
+			messages[slot] = null;
+			errors[slot] = null;
+			sequence.lazySet(slot, head + capacity);
+			head++;
+			count++;
+		}
+		if( count > 0 ) {
+			// one write and one flush for the whole batch
+			out.print(batch);
+			out.flush();
+			if( batch.capacity() > 65536 )
+				batch = new StringBuilder(4096);
+			else
+				batch.setLength(0);
+		}
+		return count;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * BitBoard is a compact representation of a square Gomoku board. Instead of
+ * an int[][] with one int per square, it keeps one bit plane per colour in a
+ * single flat long[] so the whole 30x30 board fits in 30 longs. A running
+ * count of placed stones is kept as pieces are added and removed, so asking
+ * whether the board is full is O(1) instead of a walk over every square.
+ *
+ * Colour key (the same as the old GameModel board[][] key):
+ * 		0 = empty space
+ * 		1 = player 1 in space
+ * 		2 = player 2 in space
+ */
+public class BitBoard {
+
+	private final int size;
+	private final int cells;
+	private final int wordsPerPlane;
+	private final long[] bits;	// plane for colour 1, followed by the plane for colour 2
+	private int stones;
+
+	/**
+	 * Constructor for an empty BitBoard
+	 * @param size the number of rows (and columns) on the board
+	 */
+	public BitBoard(int size) {
+		this.size = size;
+		this.cells = size * size;
+		this.wordsPerPlane = (cells + 63) >>> 6;
+		this.bits = new long[2 * wordsPerPlane];
+		this.stones = 0;
+	}
+
+	/**
+	 * Getter for the width (and height) of the board
+	 * @return the number of rows on the board
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds what is on a square of the board
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 * @return 0 if the square is empty, otherwise the colour of the stone on it
+	 */
+	public int get(int row, int col) {
+		int i = row * size + col;
+		int word = i >>> 6;
+		long mask = 1L << i;
+		if( (bits[word] & mask) != 0 )
+			return 1;
+		if( (bits[wordsPerPlane + word] & mask) != 0 )
+			return 2;
+		return 0;
+	}
+
+	/**
+	 * Checks whether a square has the given colour on it. Cheaper than
+	 * get() because only the one bit plane is read.
+	 * @param color 1 or 2
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 * @return true if a stone of that colour is on the square
+	 */
+	public boolean has(int color, int row, int col) {
+		int i = row * size + col;
+		return (bits[(color - 1) * wordsPerPlane + (i >>> 6)] & (1L << i)) != 0;
+	}
+
+	/**
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 * @return true if neither colour has a stone on the square
+	 */
+	public boolean isEmpty(int row, int col) {
+		int i = row * size + col;
+		int word = i >>> 6;
+		return ((bits[word] | bits[wordsPerPlane + word]) & (1L << i)) == 0;
+	}
+
+	/**
+	 * Places a stone on the board. If the square already held a stone it is
+	 * replaced and the stone count is unchanged.
+	 * @param color 1 or 2
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 */
+	public void set(int color, int row, int col) {
+		int i = row * size + col;
+		int word = i >>> 6;
+		long mask = 1L << i;
+		if( ((bits[word] | bits[wordsPerPlane + word]) & mask) == 0 ) {
+			stones++;
+		}else {
+			bits[word] &= ~mask;
+			bits[wordsPerPlane + word] &= ~mask;
+		}
+		bits[(color - 1) * wordsPerPlane + word] |= mask;
+	}
+
+	/**
+	 * Removes whatever stone is on a square
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 */
+	public void clear(int row, int col) {
+		int i = row * size + col;
+		int word = i >>> 6;
+		long mask = 1L << i;
+		if( ((bits[word] | bits[wordsPerPlane + word]) & mask) != 0 ) {
+			stones--;
+			bits[word] &= ~mask;
+			bits[wordsPerPlane + word] &= ~mask;
+		}
+	}
+
+	/**
+	 * Empties the whole board
+	 */
+	public void reset() {
+		java.util.Arrays.fill(bits, 0L);
+		stones = 0;
+	}
+
+	/**
+	 * @return the number of stones on the board
+	 */
+	public int stoneCount() {
+		return stones;
+	}
+
+	/**
+	 * @return the number of empty squares left on the board
+	 */
+	public int emptyCount() {
+		return cells - stones;
+	}
+
+	/**
+	 * @return true if there are no empty squares left (the game is a tie
+	 * unless the last move won)
+	 */
+	public boolean isFull() {
+		return stones == cells;
+	}
+}
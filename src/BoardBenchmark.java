@@ -0,0 +1,105 @@
+import java.util.Random;
+
+/**
+ * BoardBenchmark: For timing the BitBoard against the old int[][] board.
+ *
+ * Plays the same random sequence of moves onto both boards and does the
+ * tie check that GameModel does after every move. For the int[][] board
+ * that is a walk over every square, for the BitBoard it is the stone counter.
+ * There is no JMH in this project, so this is a plain main method with a
+ * warm-up round before the timed rounds.
+ *
+ * Usage: java BoardBenchmark [games]
+ */
+public class BoardBenchmark {
+
+	static final int SIZE = 30;
+
+	public static void main(String[] args) {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int[][] orders = makeOrders(games);
+
+		// warm up both paths so the JIT has compiled them before timing
+		intArrayGames(orders);
+		bitBoardGames(orders);
+
+		for( int round = 0; round < 5; round++ ) {
+			long start = System.nanoTime();
+			long a = intArrayGames(orders);
+			long intTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long b = bitBoardGames(orders);
+			long bitTime = System.nanoTime() - start;
+
+			long moves = (long) games * SIZE * SIZE;
+			System.out.printf("round %d: int[][] %.1f ns/move, BitBoard %.1f ns/move (check %d/%d)%n",
+					round, (double) intTime / moves, (double) bitTime / moves, a, b);
+		}
+	}
+
+	/**
+	 * Makes a random order of every square on the board for each game
+	 */
+	private static int[][] makeOrders(int games) {
+		Random rand = new Random(42);
+		int[][] orders = new int[games][SIZE * SIZE];
+		for( int g = 0; g < games; g++ ) {
+			int[] order = orders[g];
+			for( int i = 0; i < order.length; i++ )
+				order[i] = i;
+			for( int i = order.length - 1; i > 0; i-- ) {
+				int j = rand.nextInt(i + 1);
+				int t = order[i];
+				order[i] = order[j];
+				order[j] = t;
+			}
+		}
+		return orders;
+	}
+
+	/**
+	 * The old GameModel path: set the square, then count the empty squares
+	 */
+	private static long intArrayGames(int[][] orders) {
+		long ties = 0;
+		for( int[] order : orders ) {
+			int[][] board = new int[SIZE][SIZE];
+			int turn = 1;
+			for( int m = 0; m < order.length; m++ ) {
+				board[order[m] / SIZE][order[m] % SIZE] = turn;
+				int spaces = 0;
+				for( int i = 0; i < board.length; i++ ) {
+					for( int k = 0; k < board.length; k++ ) {
+						if( board[i][k] == 0 ) {
+							spaces += 1;
+						}
+					}
+				}
+				if( spaces == 0 )
+					ties++;
+				turn = 3 - turn;
+			}
+		}
+		return ties;
+	}
+
+	/**
+	 * The BitBoard path: set the square, then ask the stone counter
+	 */
+	private static long bitBoardGames(int[][] orders) {
+		long ties = 0;
+		BitBoard board = new BitBoard(SIZE);
+		for( int[] order : orders ) {
+			board.reset();
+			int turn = 1;
+			for( int m = 0; m < order.length; m++ ) {
+				board.set(turn, order[m] / SIZE, order[m] % SIZE);
+				if( board.isFull() )
+					ties++;
+				turn = 3 - turn;
+			}
+		}
+		return ties;
+	}
+}
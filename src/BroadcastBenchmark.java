@@ -0,0 +1,248 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BroadcastBenchmark: Measures what it costs the server to send the same
+ * burst of messages to every client, as it does when users come and go,
+ * with the messages written one by one and, in nio mode, batched
+ * (gomoku.write.batch). A thread per connection always writes them one by
+ * one.
+ *
+ * The server runs in a JVM of its own, so the clients' sockets and the
+ * server's don't share one open file limit. The clients connect to it from
+ * this JVM, on one Selector. Each round the server sends a burst of
+ * messages to every client, from a thread of its own as the PresenceService
+ * does, each message carrying the time its broadcast began; a round is over
+ * when every client has read all of them.
+ *
+ * Prints, for each server mode and way of writing, the messages per second,
+ * the system calls the server made to write them and the bytes each one
+ * wrote, and the 50th and 99th percentile and worst times from a message's
+ * broadcast beginning to a client reading it.
+ *
+ * Usage: java BroadcastBenchmark [clients] [rounds] [burst] [modes]
+ *        java BroadcastBenchmark server port (run by the benchmark)
+ * where modes is a comma separated list of server modes, by default nio,threads
+ */
+public class BroadcastBenchmark {
+
+	private static final int PORT = 54480;
+	private static final String PREFIX = Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE + Tags.USERDELTA;
+
+	/**
+	 * One client
+	 */
+	private static class Client {
+		SocketChannel ch;
+		FrameCodec frames = new FrameCodec();
+	}
+
+	private static long[] latencies;
+	private static int count;
+
+	public static void main(String[] args) throws Exception {
+		if( args.length > 0 && args[0].equals("server") ) {
+			server(Integer.parseInt(args[1]));
+			return;
+		}
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int burst = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		String[] modes = (args.length > 3 ? args[3] : "nio,threads").split(",");
+
+		System.out.printf("%,d clients, %d rounds of %d messages to each, %d cores%n",
+				clients, rounds, burst, Runtime.getRuntime().availableProcessors());
+		for( String mode : modes ) {
+			run(mode, false, clients, rounds, burst);
+			if( mode.equals("nio") )
+				run(mode, true, clients, rounds, burst);
+		}
+	}
+
+	private static void run(String mode, boolean batch, int clients, int rounds, int burst) throws Exception {
+		File dir = Files.createTempDirectory("gomoku-bcast").toFile();
+		dir.deleteOnExit();
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add("-Dgomoku.server.mode=" + mode);
+		cmd.add("-Dgomoku.write.batch=" + batch);
+		cmd.add("-Dgomoku.users.dir=" + dir.getPath());
+		cmd.add("BroadcastBenchmark");
+		cmd.add("server");
+		cmd.add(String.valueOf(PORT));
+		Process server = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		try {
+			run(server, mode, batch, clients, rounds, burst);
+		} finally {
+			server.destroyForcibly();
+			server.waitFor(10, TimeUnit.SECONDS);
+		}
+	}
+
+	private static void run(Process server, String mode, boolean batch, int clients, int rounds, int burst) throws Exception {
+		LinkedBlockingQueue<String> lines = lines(server);
+		OutputStream commands = server.getOutputStream();
+		if( await(lines, "READY", 30) == null )
+			throw new IllegalStateException("the server didn't start");
+
+		Selector selector = Selector.open();
+		Client[] cs = new Client[clients];
+		for( int i = 0; i < clients; i++ ) {
+			Client c = cs[i] = new Client();
+			c.ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+			c.ch.configureBlocking(false);
+			c.ch.register(selector, SelectionKey.OP_READ, c);
+		}
+		command(commands, "WAIT " + clients);
+		if( await(lines, "CONNECTED", 120) == null )
+			throw new IllegalStateException("the server didn't see every client connect");
+
+		latencies = new long[clients * rounds * burst];
+		count = 0;
+		long start = System.nanoTime();
+		for( int r = 0; r < rounds; r++ ) {
+			command(commands, "GO " + burst);
+			int want = clients * burst * (r + 1);
+			long deadline = System.nanoTime() + 120000000000L;
+			while( count < want ) {
+				if( System.nanoTime() > deadline )
+					throw new IllegalStateException("round " + r + ": only " + count + " of " + want + " messages arrived");
+				pump(selector);
+			}
+		}
+		long nanos = System.nanoTime() - start;
+
+		command(commands, "STOP");
+		String stats = await(lines, "STATS", 30);
+		for( Client c : cs )
+			c.ch.close();
+		selector.close();
+		if( stats == null )
+			throw new IllegalStateException("the server didn't report");
+
+		long writes = field(stats, " writes=");
+		long bytes = field(stats, " bytes=");
+		Arrays.sort(latencies, 0, count);
+		System.out.printf("%-8s %-9s %,.0f messages/s, %,d writes (%.2f per client per round), %,d bytes/write; latency ms p50 %.1f  p99 %.1f  max %.1f%n",
+				mode, batch ? "batched:" : "one by one:", count / (nanos / 1e9), writes, writes / (double) clients / rounds,
+				writes == 0 ? 0 : bytes / writes, latencies[count / 2] / 1e6, latencies[count * 99 / 100] / 1e6,
+				latencies[count - 1] / 1e6);
+	}
+
+	/**
+	 * Reads whatever has arrived and notes how long each message took
+	 */
+	private static void pump(Selector selector) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		selector.select(100);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while( keys.hasNext() ) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			Client c = (Client) key.attachment();
+			buf.clear();
+			if( c.ch.read(buf) < 0 )
+				throw new IllegalStateException("the server closed a connection");
+			long now = System.nanoTime();
+			buf.flip();
+			c.frames.feed(buf);
+			String msg;
+			while( (msg = c.frames.poll()) != null )
+				if( msg.startsWith(PREFIX) )
+					latencies[count++] = now - Long.parseLong(msg.substring(msg.lastIndexOf(' ') + 1));
+		}
+	}
+
+	/**
+	 * The server, taking its orders on stdin
+	 */
+	private static void server(int port) throws Exception {
+		ServerModel model = new ServerModel(port, null);
+		System.out.println("READY");
+		System.out.flush();
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		String line;
+		int round = 0;
+		while( (line = in.readLine()) != null ) {
+			String[] f = line.split(" ");
+			if( f[0].equals("WAIT") ) {
+				while( model.getConnectionCount() < Integer.parseInt(f[1]) )
+					Thread.sleep(10);
+				System.out.println("CONNECTED");
+			}else if( f[0].equals("GO") ) {
+				ArrayList<ClientConnection> all = model.getList();
+				for( int k = 0; k < Integer.parseInt(f[1]); k++ ) {
+					// encoded once for all, as the PresenceService does
+					byte[] frame = FrameCodec.encode(PREFIX + "+user" + round + "_" + k + " " + System.nanoTime());
+					for( ClientConnection cc : all )
+						cc.sendFrame(frame);
+				}
+				round++;
+			}else if( f[0].equals("STOP") ) {
+				String stats = "nio".equals(System.getProperty("gomoku.server.mode"))
+						? NioConnection.stats() : ClientConnection.writeStats();
+				System.out.println("STATS " + stats);
+				System.out.flush();
+				System.exit(0);
+			}
+			System.out.flush();
+		}
+	}
+
+	private static void command(OutputStream out, String line) throws Exception {
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	private static LinkedBlockingQueue<String> lines(final Process p) {
+		final LinkedBlockingQueue<String> q = new LinkedBlockingQueue<String>();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+					String line;
+					while( (line = r.readLine()) != null )
+						q.add(line);
+				} catch( Exception e ) {
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return q;
+	}
+
+	private static String await(LinkedBlockingQueue<String> q, String prefix, int seconds) throws InterruptedException {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		String line;
+		while( (line = q.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null )
+			if( line.startsWith(prefix) )
+				return line;
+		return null;
+	}
+
+	private static long field(String stats, String name) {
+		int i = stats.indexOf(name) + name.length();
+		int j = i;
+		while( j < stats.length() && Character.isDigit(stats.charAt(j)) )
+			j++;
+		return Long.parseLong(stats.substring(i, j));
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * BusPlayer is a player in a game this node hosts whose client is on
+ * another node of the cluster (see ClusterBus). The GameModel's calls are
+ * sent over the bus to the client's node, which passes them on to the
+ * client through the RemotePlayer it keeps there; the client's moves come
+ * back the same way and are handed to the GameService.
+ */
+public class BusPlayer extends RemotePlayer {
+
+	private final ClusterBus bus;
+	private final int node;		// the node the client is on
+	private final String name;
+
+	/**
+	 * @param bus the cluster
+	 * @param node the node the player's client is on
+	 * @param name the player's username
+	 * @param id the game's id
+	 * @param seat 1 for the player who moves first, 2 for the other
+	 * @param color the player's piece color
+	 */
+	public BusPlayer(ClusterBus bus, int node, String name, String id, int seat, int color) {
+		super(null, id, seat, color, -1);
+		this.bus = bus;
+		this.node = node;
+		this.name = name;
+	}
+
+	void announce(String opponentName) {
+		bus.send(node, Tags.BUS_JOIN + getId() + " " + getSeat() + " " + getColor() + " " + name + " " + opponentName);
+	}
+
+	public void startTurn() {
+		bus.send(node, Tags.START_TURN + getId() + " " + name);
+	}
+
+	public void updateBoardView(int b, int r, int c) {
+		bus.send(node, Tags.UPDATE_BOARD + getId() + " " + name + " " + b + " " + r + " " + c);
+	}
+
+	/**
+	 * Sends the result as W, L or T (a tie), for the client's node to record
+	 */
+	public void endGame(boolean victory) {
+		char result = getGameModel().getWinner() == 0 ? 'T' : victory ? 'W' : 'L';
+		bus.send(node, Tags.GAME_OVER + getId() + " " + name + " " + result);
+	}
+
+	/**
+	 * @return the node the player's client is on
+	 */
+	public int getNode() {
+		return node;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
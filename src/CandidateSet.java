@@ -0,0 +1,152 @@
+/**
+ * CandidateSet keeps the squares worth considering as moves: every empty
+ * square within a given radius of a stone. It is updated as stones are
+ * placed and taken back rather than found by scanning the board, so getting
+ * the candidates, checking one, or picking one at random costs the same on
+ * an empty board as on a full one.
+ *
+ * The squares are stored as row * size + col in a sparse set (a dense
+ * array of members plus each square's position in it), so adding and
+ * removing a square are both O(1) and there is nothing to allocate.
+ */
+public class CandidateSet {
+
+	private final int size;
+	private final int radius;
+	private final int[] near;			// how many stones are within radius of each square
+	private final boolean[] occupied;
+	private final int[] members;
+	private final int[] position;		// index of each square in members, or -1
+	private int count;
+
+	/**
+	 * @param size the number of rows (and columns) on the board
+	 * @param radius how far (in rows or columns) from a stone a candidate can be
+	 */
+	public CandidateSet(int size, int radius) {
+		this.size = size;
+		this.radius = radius;
+		int cells = size * size;
+		near = new int[cells];
+		occupied = new boolean[cells];
+		members = new int[cells];
+		position = new int[cells];
+		java.util.Arrays.fill(position, -1);
+	}
+
+	/**
+	 * A stone was placed: its square stops being a candidate and the empty
+	 * squares around it become candidates
+	 * @param row the row of the stone
+	 * @param col the column of the stone
+	 */
+	public void place(int row, int col) {
+		occupy(row, col);
+		spread(row, col, 1);
+	}
+
+	/**
+	 * Takes back a stone added with place()
+	 * @param row the row of the stone
+	 * @param col the column of the stone
+	 */
+	public void remove(int row, int col) {
+		spread(row, col, -1);
+		int i = row * size + col;
+		occupied[i] = false;
+		if( near[i] > 0 )
+			add(i);
+	}
+
+	/**
+	 * A square was filled by a stone that should not make the squares
+	 * around it candidates (for a set that only follows one colour)
+	 * @param row the row of the stone
+	 * @param col the column of the stone
+	 */
+	public void occupy(int row, int col) {
+		int i = row * size + col;
+		occupied[i] = true;
+		drop(i);
+	}
+
+	/**
+	 * Empties the set
+	 */
+	public void clear() {
+		for( int i = 0; i < count; i++ )
+			position[members[i]] = -1;
+		count = 0;
+		java.util.Arrays.fill(near, 0);
+		java.util.Arrays.fill(occupied, false);
+	}
+
+	/**
+	 * @return the number of candidate squares
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param i an index from 0 to size() - 1
+	 * @return the candidate at that index, as row * size + col
+	 */
+	public int get(int i) {
+		return members[i];
+	}
+
+	/**
+	 * @return a candidate chosen at random, as row * size + col, or -1 if
+	 * there are none
+	 */
+	public int random() {
+		if( count == 0 )
+			return -1;
+		return members[(int) (Math.random() * count)];
+	}
+
+	/**
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 * @return true if the square is a candidate
+	 */
+	public boolean contains(int row, int col) {
+		return position[row * size + col] >= 0;
+	}
+
+	private void spread(int row, int col, int delta) {
+		int r0 = Math.max(0, row - radius), r1 = Math.min(size - 1, row + radius);
+		int c0 = Math.max(0, col - radius), c1 = Math.min(size - 1, col + radius);
+		for( int r = r0; r <= r1; r++ ) {
+			for( int c = c0; c <= c1; c++ ) {
+				int i = r * size + c;
+				near[i] += delta;
+				if( occupied[i] )
+					continue;
+				if( near[i] == 0 )
+					drop(i);
+				else if( delta > 0 && near[i] == 1 )
+					add(i);
+			}
+		}
+	}
+
+	private void add(int i) {
+		if( position[i] >= 0 )
+			return;
+		position[i] = count;
+		members[count++] = i;
+	}
+
+	private void drop(int i) {
+		int p = position[i];
+		if( p < 0 )
+			return;
+		// move the last member into the hole
+		int last = members[--count];
+		members[p] = last;
+		position[last] = p;
+		position[i] = -1;
+	}
+}
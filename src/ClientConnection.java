@@ -3,7 +3,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ClientConnection manages the ServerController's interactions with the Client.
@@ -17,28 +21,61 @@ import java.util.Scanner;
  * 
  * UPDATE 4/23/18(EMW): Sends the players username back to client, most 
  *        important for anonymous usernames.
+ *
+ * When the server runs in nio mode a ClientConnection has no Socket or
+ * Thread of its own: an NioConnection reads its messages on an EventLoop
+ * and passes them to processMsg, and toClient queues on that connection.
+ *
+ * The moves of a game the server hosts (see GameService) come in here too,
+ * as [GAME] messages or GameCodec's binary ones.
+ *
+ * An invite nobody answers expires after gomoku.invite.seconds (60 by
+ * default): the invited client is told it was cancelled and the one who
+ * sent it that it was declined. A connection the client has sent nothing
+ * on for gomoku.idle.seconds is dropped; 0, the default, never drops one.
+ * Both are timeouts on the shared TimerWheel.
+ *
+ * With a thread per connection, each message to the client is written on
+ * its own, under a lock, by the thread sending it. Only nio mode gathers a
+ * burst of messages into one write (see NioConnection).
  */
 public class ClientConnection implements Runnable{
-	Socket s;
+	Socket s;		// null in nio mode
+	private NioConnection channel;	// null in thread-per-connection mode
 	private InputStream in;
 	private OutputStream out;
+	// other clients' threads write here too (invites, online updates). A lock
+	// rather than synchronized so a virtual thread blocked writing gives up its carrier
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private GameActor sends;	// writes sendLater() hands off, in order; null in nio mode
 	private Thread worker;
 	private ServerController control;
 	private ServerModel model;
-	private User user = null;
-	private ArrayList<String> invitesSent;
-	private ArrayList<String> invitesReceived;
+	private volatile User user = null;
+	private List<String> invitesSent;
+	private List<String> invitesReceived;
+	// the timer on each invite received, by sender, cancelled when it is answered or taken back
+	private final ConcurrentHashMap<String, InviteTimeout> inviteTimers = new ConcurrentHashMap<String, InviteTimeout>();
 	private String ip;
-	private boolean inGame;
+	private volatile boolean inGame;
+	private volatile boolean binaryGame;	// true once the client has asked for GameCodec's binary game messages
+	private final GameCodec game = new GameCodec();	// only used by whichever thread reads this connection
+	private volatile long lastHeard = System.nanoTime();	// when the client last sent something
 
-	private ClientConnection peer = null;
+	private static final long INVITE_MILLIS = 1000L * Integer.getInteger("gomoku.invite.seconds", 60);
+	private static final long IDLE_MILLIS = 1000L * Integer.getInteger("gomoku.idle.seconds", 0);
+
+	// metrics, for the writes to sockets (not in nio mode)
+	private static final AtomicLong messages = new AtomicLong();
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
 
 	public ClientConnection(Socket clientSock, ServerController c, ServerModel m){
 		s = clientSock;
 		control = c;
 		model = m;
-		invitesSent = new ArrayList<String>();
-		invitesReceived = new ArrayList<String>();
+		invitesSent = Collections.synchronizedList(new ArrayList<String>());
+		invitesReceived = Collections.synchronizedList(new ArrayList<String>());
 		
 		try{
 			in = s.getInputStream();
@@ -47,9 +84,28 @@ public class ClientConnection implements Runnable{
 		}catch(IOException e){
 			System.exit(1);
 		}
+		sends = new GameActor(GameActor.sharedIO(), null);
 		//in a new Thread, listen for messages from the user
 		clientListen();
+		watchIdle(IDLE_MILLIS);
+
+	}
 
+	/**
+	 * Constructor for a connection served by an NioServer. No Thread is
+	 * started; the NioConnection hands over messages as they arrive.
+	 * @param ch the client's channel
+	 * @param c the ServerController
+	 * @param m the ServerModel
+	 */
+	public ClientConnection(NioConnection ch, ServerController c, ServerModel m){
+		channel = ch;
+		control = c;
+		model = m;
+		invitesSent = Collections.synchronizedList(new ArrayList<String>());
+		invitesReceived = Collections.synchronizedList(new ArrayList<String>());
+		ip = ch.getIP();
+		watchIdle(IDLE_MILLIS);
 	}
 
 	/**
@@ -59,26 +115,79 @@ public class ClientConnection implements Runnable{
 	 * @param message the message to send to the client
 	 */
 	public void toClient(String message){
-		// Added newline char to separate messages
-		message = message + "\n";
+		// Frame the message so the client can tell where it ends
+		sendFrame(FrameCodec.encode(message));
+	}
+
+	/**
+	 * Sends a message that is already framed, e.g. one encoded once for
+	 * many clients. If writing it fails the client is disconnected.
+	 *
+	 * @param buff the frame (see FrameCodec.encode())
+	 */
+	public void sendFrame(byte[] buff){
+		if(channel != null) {
+			channel.send(buff);
+			return;
+		}
 		
+		messages.incrementAndGet();
+		boolean failed = false;
 		// Write to Socket
-		byte [] buff;
-		buff = message.getBytes();
+		writeLock.lock();
 		try{
-			out.write(buff, 0, message.length());
-			out.flush();
+			out.write(buff);
+			writes.incrementAndGet();
+			bytes.addAndGet(buff.length);
 		} catch(IOException e){
-			//TODO: if writing to the OutputStream gives an error, we should disconnect this client
+			failed = true;
+		} finally {
+			writeLock.unlock();
+		}
+		// not under the lock: disconnecting tells the other clients, and
+		// two failing together would each wait on the other's lock
+		if(failed)
 			control.disconnect(this);
+	}
+
+	/**
+	 * Sends messages that are already framed without waiting for them to
+	 * be written, after any passed here before. In nio mode that is what
+	 * sendFrame does anyway; with a thread per connection they are written
+	 * on the pool for sends, so a client that isn't reading holds up a
+	 * thread of that pool and not the caller.
+	 *
+	 * @param frames the frames, in order (see FrameCodec.encode())
+	 */
+	public void sendLater(final List<byte[]> frames){
+		if(channel != null) {
+			for(byte[] frame : frames)
+				channel.send(frame);
+			return;
 		}
+		sends.post(new Runnable() {
+			public void run() {
+				for(byte[] frame : frames)
+					sendFrame(frame);
+			}
+		});
+	}
+
+	/**
+	 * @return a one line summary of the writes to clients' sockets, when
+	 * each client has a thread
+	 */
+	public static String writeStats() {
+		long w = writes.get();
+		return "socket writes messages=" + messages.get() + " writes=" + w + " bytes=" + bytes.get()
+			+ " bytes/write=" + (w == 0 ? 0 : bytes.get() / w);
 	}
 
 	/**
 	 * Instantiates the Thread that will listen to the client for messages to send to the ServerController
 	 */
 	public void clientListen(){ //this-->ServerController-->ServerModel-->other Clients
-		worker = new Thread(this);
+		worker = control.newClientThread(this);
 		worker.start();
 	}
 
@@ -100,30 +209,32 @@ public class ClientConnection implements Runnable{
 	 * Thread that listens to the client for messages to send to the server
 	 */
 	public void run(){
-		byte [] buffer = new byte[1000];
+		FrameCodec frames = new FrameCodec();
 		boolean connected = true;
 		connected = (s.isConnected() && !s.isClosed());
-		Scanner mScan;
 		
 		while(connected) {
 			try {
-				String recMes = null;
-				//InputStream gets info from Client's OutputStream
-				int msgTemp = in.read(buffer);
-				String msg = null;
-				if (msgTemp > 0) {
-					
-					recMes = new String(buffer, 0, msgTemp);
-					mScan = new Scanner(recMes);
-					while(mScan.hasNext()) {
-						processMsg(mScan.nextLine());
-					}
-					
-					
+				//InputStream gets info from Client's OutputStream, one whole message at a time
+				int len = frames.readFrame(in);
+				if (len < 0) {
+					// the client closed the socket, stop listening
+					control.disconnect(this);
+					break;
 				}
+				processFrame(frames.buffer(), frames.frameOffset(), len);
 				connected = (s.isConnected() && !s.isClosed());
+			}catch (java.net.ProtocolException e) {
+				// not a Gomoku client, or the stream is corrupt; there's no finding the next message
+				Log.warn("Dropping client at " + ip + ": " + e.getMessage());
+				control.disconnect(this);
+				break;
 			}catch (IOException e) {
 				connected = (s.isConnected() && !s.isClosed());
+			}catch (RuntimeException e) {
+				// one bad message mustn't end this thread and leave the session behind it
+				Log.warn("Bad message from " + ip, e);
+				connected = (s.isConnected() && !s.isClosed());
 			}
 		}//while
 
@@ -131,40 +242,120 @@ public class ClientConnection implements Runnable{
 
 
 	/**
-	 * Called by the Run method of the Thread that listens 
-	 * to the Socket, processes the message and transfers 
-	 * control based on the tags sent by client.
-	 * 
-	 * @msg The messages read from the Socket
+	 * The handlers for the messages a client sends, by tag
 	 */
-	private void processMsg(String msg) {
+	static final ProtocolRegistry<ClientConnection> PROTOCOL = new ProtocolRegistry<ClientConnection>("server");
+	static {
+		//format of authentication message is [TAG]username password
+		PROTOCOL.on(Tags.REGISTER, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.register(msg);
+			}
+		});
+		PROTOCOL.on(Tags.LOGIN, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.login(msg);
+			}
+		});
+		PROTOCOL.on(Tags.ANON, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.anon(msg);
+			}
+		});
+		PROTOCOL.on(Tags.DISCONNECT, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.control.disconnect(cc);
+			}
+		});
+		PROTOCOL.on(Tags.INVITE, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.sendInvite(msg);
+			}
+		});
+		PROTOCOL.on(Tags.RESPOND, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.sendResponse(msg);
+			}
+		});
+		PROTOCOL.on(Tags.CANCELINVITE, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.model.cancelRequest(cc, msg);
+			}
+		});
+		PROTOCOL.on(Tags.GAME_FEEDBACK, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				GAME_PROTOCOL.dispatch(cc, msg, body);
+			}
+		});
+		PROTOCOL.on(Tags.PING, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.toClient(msg);
+			}
+		});
+	}
 
+	/**
+	 * The handlers for the messages about a game, by the tag that follows [GAME]
+	 */
+	static final ProtocolRegistry<ClientConnection> GAME_PROTOCOL = new ProtocolRegistry<ClientConnection>("server game");
+	static {
+		GAME_PROTOCOL.on(Tags.MOVE, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				int comma = msg.indexOf(',', body);
+				if(comma < 0) {
+					Log.warn("Move without a column from " + cc.ip + ": " + msg);
+					return;
+				}
+				int r = Integer.parseInt(msg.substring(body, comma));
+				int c = Integer.parseInt(msg.substring(comma+1, msg.length()));
+				cc.model.getGames().move(cc, r, c);
+			}
+		});
+		GAME_PROTOCOL.on(Tags.QUIT, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				cc.model.getGames().resign(cc);
+			}
+		});
+		GAME_PROTOCOL.on(Tags.PROTO, new ProtocolRegistry.Handler<ClientConnection>() {
+			public void handle(ClientConnection cc, String msg, int body) {
+				// answered every time, as the client asks again at the start of each game
+				if(msg.startsWith(Tags.BINARY, body) && PlayGameController.OFFER_BINARY) {
+					cc.toClient(Tags.GAME_FEEDBACK + Tags.PROTO + Tags.BINARY);
+					cc.binaryGame = true;
+				}
+			}
+		});
+	}
 
-		//format of authentication message is [TAG]username password
-		if(msg.startsWith(Tags.REGISTER)){
-			register(msg);
-		}else if(msg.startsWith(Tags.LOGIN)){
-			login(msg);
-		}else if(msg.startsWith(Tags.ANON)){
-			anon(msg);                    	
-		}else if(msg.startsWith(Tags.DISCONNECT)){
-			control.disconnect(this);
-		}else if(msg.startsWith(Tags.INVITE)){
-			sendInvite(msg);
-		}else if(msg.startsWith(Tags.RESPOND)) {
-			sendResponse(msg);
-		}else if(msg.startsWith(Tags.CANCELINVITE)) {
-			this.model.cancelRequest(this, msg);
-		}else if(msg.startsWith(Tags.HOST)) {
-			peer.toClient(msg + this.ip);
-		}else if(msg.startsWith(Tags.GAME_FEEDBACK)){
-			gameOver(msg.substring(Tags.GAME_FEEDBACK.length(),msg.length()));
-		}
-		else{
-			toClient("Error in authentication");
+	/**
+	 * Handles a frame read from the client: a binary game message (see
+	 * GameCodec), or any other message, which goes to processMsg
+	 * @param buf the buffer holding the frame's body
+	 * @param off where the body starts
+	 * @param len the length of the body
+	 * @throws java.net.ProtocolException if it is a binary message that can't be decoded
+	 */
+	void processFrame(byte[] buf, int off, int len) throws java.net.ProtocolException {
+		lastHeard = System.nanoTime();
+		if(len > 0 && GameCodec.isBinary(buf[off])) {
+			// only moves come this way, the server sends the rest
+			if(game.decode(buf, off, len) == GameCodec.MOVE)
+				model.getGames().move(this, game.getArg0(), game.getArg1());
+			return;
 		}
+		processMsg(new String(buf, off, len, java.nio.charset.StandardCharsets.UTF_8));
+	}
 
-
+	/**
+	 * Called by the Run method of the Thread that listens 
+	 * to the Socket (or by the NioConnection), processes the 
+	 * message and transfers control based on the tags sent by client.
+	 * A message with an unknown tag is counted by PROTOCOL and dropped.
+	 * 
+	 * @msg The messages read from the Socket
+	 */
+	void processMsg(String msg) {
+		PROTOCOL.dispatch(this, msg);
 	}// processMsg
 
 	/**
@@ -177,25 +368,64 @@ public class ClientConnection implements Runnable{
 		
 		//TODO remove constants
 		int space = recMes.indexOf(' ');
-		String userName = recMes.substring(Tags.REGISTER.length(),space);
-		String pass = recMes.substring(space+1,recMes.length());
+		final String userName = recMes.substring(Tags.REGISTER.length(),space);
+		final String pass = recMes.substring(space+1,recMes.length());
+
+		ClusterBus bus = model.getCluster();
+		if(bus == null) {
+			//the ServerController register method answers with a String message
+			control.register(userName, pass, this, registeredLater());
+			return;
+		}
+		// in a cluster the name must be claimed from the node that owns it first
+		bus.claim(userName, new ClusterBus.Claim() {
+			public void answered(boolean granted) {
+				if(granted)
+					control.register(userName, pass, ClientConnection.this, registeredLater());
+				else
+					registeredLater().registered(Tags.UN_TAKEN);
+			}
+		});
+	}//register
 
-		//the ServerController register method returns a String message
-		String servMsg = control.register(userName, pass, this);
+	/**
+	 * @return what to tell how a registration went, which passes the answer
+	 * on to registered() through later(), off the thread it comes in on (the
+	 * UserStore's writer, or the ClusterBus's)
+	 */
+	private ServerModel.Registered registeredLater(){
+		return new ServerModel.Registered() {
+			public void registered(final String servMsg) {
+				later(new Runnable() {
+					public void run() {
+						ClientConnection.this.registered(servMsg);
+					}
+				});
+			}
+		};
+	}
 
+	/**
+	 * Tells the client how its registration went
+	 * @param servMsg the ServerController's answer
+	 */
+	private void registered(String servMsg){
+		if(isClosed()) {
+			//gone while the User was being saved; disconnecting took it offline
+			return;
+		}
 		if(servMsg.equals(Tags.SUCCESS)){
 			user.setOnline(true); //success
 			toClient(Tags.AUTH_FEEDBACK + Tags.SUCCESS + this.getUser().getUN()); //tell client it was a success
 			
-			//sleep the thread to keep the messages from overlapping, then go to matchmaking
-			try{Thread.sleep(1000); }catch(InterruptedException e){e.printStackTrace();}
-			this.toMatchmaking();
+			//wait to keep the messages from overlapping, then go to matchmaking
+			toMatchmakingAfter(1000);
 		}
 		else{
-			//username already taken
-			toClient(Tags.AUTH_FEEDBACK + Tags.UN_TAKEN); //failure
+			//username already taken, or the account could not be saved
+			toClient(Tags.AUTH_FEEDBACK + servMsg); //failure
 		}
-	}//register
+	}//registered
 
 	/**
 	 * When a [LOGIN] tag is encountered by the second Thread, this method is
@@ -216,9 +446,8 @@ public class ClientConnection implements Runnable{
 			user.setOnline(true); //success
 			toClient((Tags.AUTH_FEEDBACK + Tags.SUCCESS + this.getUser().getUN()));
 			
-			//sleep the thread to keep the messages from overlapping
-			try{Thread.sleep(100); }catch(InterruptedException e){e.printStackTrace();}
-			this.toMatchmaking();
+			//wait to keep the messages from overlapping
+			toMatchmakingAfter(100);
 		}else if(servMsg.equals(Tags.UN_NOT_FOUND )){
 			//username not found
 			toClient( (Tags.AUTH_FEEDBACK + Tags.UN_NOT_FOUND) ); //failure 1
@@ -242,10 +471,103 @@ public class ClientConnection implements Runnable{
 		toClient(control.newAnon(this));
 		//send the success message directly to the client
 		user.setOnline(true);
-		//sleep the thread to keep the messages from overlapping, then goto matchmaking
-		try{Thread.sleep(100); }catch(InterruptedException e){e.printStackTrace();}
+		//wait to keep the messages from overlapping, then goto matchmaking
+		toMatchmakingAfter(100);
+	}
+
+	/**
+	 * Goes to matchmaking after a pause. The listening Thread just sleeps
+	 * (a virtual Thread gives up its carrier while it does), but an EventLoop 
+	 * serves other clients too, so in nio mode the move is scheduled on the 
+	 * loop instead. Called from any other thread, such as the pool a cluster
+	 * registration is answered on, the pause is a timeout on the TimerWheel.
+	 * @param millis how long to wait
+	 */
+	private void toMatchmakingAfter(long millis) {
+		if(channel != null) {
+			channel.getLoop().schedule(new Runnable() {
+				public void run() {
+					if(!channel.isClosed())
+						toMatchmaking();
+				}
+			}, millis);
+			return;
+		}
+		if(Thread.currentThread() != worker) {
+			TimerWheel.shared().schedule(new Runnable() {
+				public void run() {
+					later(new Runnable() {
+						public void run() {
+							if(!isClosed())
+								toMatchmaking();
+						}
+					});
+				}
+			}, millis);
+			return;
+		}
+		try{Thread.sleep(millis); }catch(InterruptedException e){Thread.currentThread().interrupt();}
 		this.toMatchmaking();
 	}
+
+	/**
+	 * Runs something off the TimerWheel's thread (or the UserStore's, or
+	 * the ClusterBus's), where it may send to the client: on the connection's EventLoop in nio mode, else on the pool
+	 * for sends that may block
+	 */
+	private void later(Runnable task) {
+		if(channel != null)
+			channel.getLoop().execute(task);
+		else
+			GameActor.sharedIO().execute(task);
+	}
+
+	/**
+	 * Drops the client if it has sent nothing for a while. One timeout per
+	 * connection: when it goes off early, because the client has been heard
+	 * from since it was set, a new one is set for the rest of the time.
+	 * @param millis how long until it may be idle for too long
+	 */
+	private void watchIdle(long millis) {
+		if(IDLE_MILLIS <= 0)
+			return;
+		TimerWheel.shared().schedule(new Runnable() {
+			public void run() {
+				if(isClosed())
+					return;
+				final long idle = (System.nanoTime() - lastHeard) / 1000000L;
+				if(idle < IDLE_MILLIS) {
+					watchIdle(IDLE_MILLIS - idle);
+					return;
+				}
+				later(new Runnable() {
+					public void run() {
+						Log.info("Dropping client at " + ip + ", idle for " + idle / 1000 + " s");
+						control.disconnect(ClientConnection.this);
+					}
+				});
+			}
+		}, millis);
+	}
+
+	/**
+	 * @return true once the connection to the client is closed
+	 */
+	private boolean isClosed() {
+		return channel != null ? channel.isClosed() : s.isClosed();
+	}
+
+	/**
+	 * Closes the connection to the client, whichever way it is served
+	 */
+	public void close() throws IOException {
+		for(String senderUN : inviteTimers.keySet())
+			stopInviteTimer(inviteTimers.remove(senderUN));
+		if(channel != null)
+			channel.close();
+		else
+			s.close();
+	}
 	
 	/**
 	 * Brings this ClientConnection to the next GameState, Sends 
@@ -281,9 +603,67 @@ public class ClientConnection implements Runnable{
 	 * 
 	 * @param senderUN the username of the player who sent the Invite to this connection
 	 */
-	public void receiveInvite(String senderUN) {
+	public void receiveInvite(final String senderUN) {
 		invitesReceived.add(senderUN);
 		this.toClient( (Tags.MATCH_FEEDBACK + Tags.INVITE  + senderUN) );
+		if(INVITE_MILLIS > 0) {
+			InviteTimeout t = new InviteTimeout(senderUN);
+			t.timeout = TimerWheel.shared().schedule(t, INVITE_MILLIS);
+			// a new invite from the same player starts its own clock
+			stopInviteTimer(inviteTimers.put(senderUN, t));
+		}
+	}
+
+	/**
+	 * The timer on one invite received
+	 */
+	private class InviteTimeout implements Runnable {
+		final String senderUN;
+		volatile TimerWheel.Timeout timeout;
+
+		InviteTimeout(String senderUN) {
+			this.senderUN = senderUN;
+		}
+
+		public void run() {
+			later(new Runnable() {
+				public void run() {
+					expireInvite(InviteTimeout.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * An invite has gone unanswered for too long: it is taken back from
+	 * this client and declined for it. Does nothing if it has been answered
+	 * or cancelled, or another invite from the same player has come since.
+	 * @param t the invite's timer
+	 */
+	private void expireInvite(InviteTimeout t) {
+		if(!inviteTimers.remove(t.senderUN, t) || !invitesReceived.remove(t.senderUN) || isClosed())
+			return;
+		this.toClient(Tags.MATCH_FEEDBACK + Tags.CANCELINVITE + t.senderUN);
+		control.respondToChallenge(this, t.senderUN, Tags.DENY);
+	}
+
+	/**
+	 * Stops the timer on an invite that has been answered or taken back
+	 * @param t its timer, or null if it has none
+	 */
+	private void stopInviteTimer(InviteTimeout t) {
+		if(t != null && t.timeout != null)
+			t.timeout.cancel();
+	}
+
+	/**
+	 * The player who sent this connection an invite has taken it back
+	 * @param senderUN that player's username
+	 */
+	public void inviteCancelled(String senderUN) {
+		invitesReceived.remove(senderUN);
+		stopInviteTimer(inviteTimers.remove(senderUN));
+		this.toClient(Tags.MATCH_FEEDBACK + Tags.CANCELINVITE + senderUN);
 	}
 
 
@@ -303,11 +683,9 @@ public class ClientConnection implements Runnable{
 		response = response.substring(Tags.RESPOND.length(), response.length());
 		String targetUN = response.substring( (Tags.CONFIRM.length()), response.length());  
 		String answer = response.substring(0, Tags.CONFIRM.length());
+		invitesReceived.remove(targetUN);
+		stopInviteTimer(inviteTimers.remove(targetUN));
 		
-		//if yes, set as peer
-		if(answer.contains(Tags.CONFIRM)) {
-			peer = model.lookUp(targetUN);
-		}
 		control.respondToChallenge(this, targetUN , answer);
 		
 
@@ -325,24 +703,6 @@ public class ClientConnection implements Runnable{
 		this.toClient( (Tags.MATCH_FEEDBACK + Tags.RESPOND + response + sender));
 	}
 
-	/**
-	 * Handles the game over message
-	 *
-	 * @param msg
-	 */
-	public void gameOver(String msg){
-			int comma = msg.indexOf(',');
-			String winner = msg.substring(0,comma);
-			String loser = msg.substring(comma+1,msg.length());
-
-			if(this.user.getUN().equals(winner)){
-				this.user.incrementWins();
-			}
-
-			//TODO: use loser to implement point system
-	}
-	
-
 	/**
 	 * Getter and Setter methods for this ClientConnection's User
 	 */
@@ -353,17 +713,6 @@ public class ClientConnection implements Runnable{
 		this.user = u;
 	}
 
-	/**
-	 * Getter and Setter methods for this ClientConnection's peer
-	 */
-	public ClientConnection getPeer() {
-		return peer;
-	}
-
-	public void setPeer(ClientConnection peer) {
-		this.peer = peer;
-	}
-	
 	/**
 	 * returns whether this user is currently playing a game
 	 * @return true if user is in game and false otherwise
@@ -373,11 +722,18 @@ public class ClientConnection implements Runnable{
 	}
 
 	/**
-	 * setter method for inGame field (called by TODO:)
+	 * setter method for inGame field (called by the GameService)
 	 */
 	public void setInGame(boolean tf){
 		inGame = tf;
 	}
 
+	/**
+	 * @return true if the client takes GameCodec's binary game messages
+	 */
+	public boolean isBinaryGame(){
+		return binaryGame;
+	}
+
 }
 
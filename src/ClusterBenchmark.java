@@ -0,0 +1,379 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClusterBenchmark: Measures how many games a cluster of servers (see
+ * ClusterBus) finishes per second as the number of nodes grows.
+ *
+ * For each cluster size from 1 up to the number given it starts that many
+ * server JVMs on localhost, in nio mode, each with its own users directory,
+ * and connects the clients to them in turn, so each pair of partners is on
+ * two different nodes whenever there is more than one. Every pair then plays
+ * game after game of random moves, as GameLoadTest's clients do, for the
+ * time given; the games are hosted wherever the HashRing puts them, so most
+ * moves cross the bus. One node runs alone, without a ClusterBus.
+ *
+ * Prints the games and moves finished per second for each size. When the
+ * nodes stop they report their GameService's metrics, and the benchmark
+ * exits with status 1 if any node rejected a move or the games the nodes
+ * finished aren't the ones the clients saw finish. The games going on when
+ * the time is up are played out first, but not counted in the rates.
+ *
+ * All the nodes share this machine's cores, so on a small machine the
+ * games per second show what the bus costs rather than what more machines
+ * would add.
+ *
+ * Usage: java ClusterBenchmark [nodes] [pairs] [seconds]
+ *        java ClusterBenchmark node port (run by the benchmark)
+ */
+public class ClusterBenchmark {
+
+	private static final int SIZE = 30;
+	private static final int CLIENT_PORT = 54460;
+	private static final int BUS_PORT = 54660;
+
+	/**
+	 * One client, and what it knows of its current game
+	 */
+	private static class Client {
+		int id;
+		Client partner;
+		SocketChannel ch;
+		FrameCodec frames = new FrameCodec();
+		GameCodec game = new GameCodec();
+		String name;
+		boolean[] taken = new boolean[SIZE * SIZE];
+		int free;
+		boolean binary, playing;
+		long games;
+		Random rand;
+	}
+
+	private static int signedIn;
+	private static long finished;	// games both players saw the end of
+	private static boolean draining;	// no new games once the time is up
+
+	public static void main(String[] args) throws Exception {
+		if( args.length > 0 && args[0].equals("node") ) {
+			node(Integer.parseInt(args[1]));
+			return;
+		}
+		int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		System.out.printf("%d pairs playing for %d s, %d cores%n", pairs, seconds, Runtime.getRuntime().availableProcessors());
+		boolean ok = true;
+		for( int n = 1; n <= maxNodes; n++ )
+			ok &= run(n, pairs, seconds);
+		if( !ok ) {
+			System.out.println("ClusterBenchmark FAILED");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the clients against a cluster of n nodes
+	 * @return false if the nodes' metrics don't add up
+	 */
+	private static boolean run(int n, int pairs, int seconds) throws Exception {
+		signedIn = 0;
+		finished = 0;
+		draining = false;
+		Process[] procs = new Process[n];
+		try {
+			return run(n, pairs, seconds, procs);
+		} finally {
+			for( Process p : procs )
+				if( p != null )
+					p.destroyForcibly();
+		}
+	}
+
+	private static boolean run(int n, int pairs, int seconds, Process[] procs) throws Exception {
+		List<LinkedBlockingQueue<String>> out = new ArrayList<LinkedBlockingQueue<String>>();
+		StringBuilder nodes = new StringBuilder();
+		for( int i = 0; i < n; i++ )
+			nodes.append(i > 0 ? "," : "").append("127.0.0.1:").append(BUS_PORT + i);
+		for( int i = 0; i < n; i++ ) {
+			File dir = Files.createTempDirectory("gomoku-node").toFile();
+			dir.deleteOnExit();
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add("-Dgomoku.server.mode=nio");
+			cmd.add("-Dgomoku.users.dir=" + dir.getPath());
+			if( n > 1 ) {
+				cmd.add("-Dgomoku.cluster.nodes=" + nodes);
+				cmd.add("-Dgomoku.cluster.node=" + i);
+			}
+			cmd.add("ClusterBenchmark");
+			cmd.add("node");
+			cmd.add(String.valueOf(CLIENT_PORT + i));
+			procs[i] = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+			out.add(lines(procs[i]));
+		}
+		for( int i = 0; i < n; i++ )
+			if( await(out.get(i), "READY", 30) == null )
+				throw new IllegalStateException("node " + i + " didn't start");
+
+		Selector selector = Selector.open();
+		Client[] clients = new Client[2 * pairs];
+		for( int i = 0; i < clients.length; i++ ) {
+			Client c = clients[i] = new Client();
+			c.id = i;
+			c.rand = new Random(i);
+			c.name = "c" + i;
+			c.ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", CLIENT_PORT + i % n));
+			c.ch.configureBlocking(false);
+			c.ch.register(selector, SelectionKey.OP_READ, c);
+			if( i % 2 == 1 ) {
+				c.partner = clients[i - 1];
+				clients[i - 1].partner = c;
+			}
+		}
+		for( Client c : clients )
+			send(c, Tags.REGISTER + c.name + " pw");
+		long deadline = System.nanoTime() + 30000000000L;
+		while( signedIn < clients.length && System.nanoTime() < deadline )
+			pump(selector);
+		// registering goes to matchmaking after a second, and then the
+		// other nodes need to hear the user is online
+		long until = System.nanoTime() + 1500000000L;
+		while( System.nanoTime() < until )
+			pump(selector);
+
+		for( int i = 0; i < clients.length; i += 2 )
+			invite(clients[i]);
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		while( System.nanoTime() < end )
+			pump(selector);
+		long games = finished;
+		long nanos = System.nanoTime() - start;
+		// let the games going on finish, so every move is counted once
+		draining = true;
+		long quiet = System.nanoTime();
+		deadline = quiet + 30000000000L;
+		while( System.nanoTime() - quiet < 500000000L && System.nanoTime() < deadline ) {
+			pump(selector);
+			for( Client c : clients )
+				if( c.playing )
+					quiet = System.nanoTime();
+		}
+
+		for( Client c : clients )
+			c.ch.close();
+		selector.close();
+		long hosted = 0, rejected = 0, moves = 0;
+		for( int i = 0; i < n; i++ ) {
+			procs[i].getOutputStream().close();
+			String stats = await(out.get(i), "STATS", 30);
+			if( stats == null )
+				throw new IllegalStateException("node " + i + " didn't report");
+			hosted += field(stats, "finished=");
+			rejected += field(stats, "rejected=");
+			moves += field(stats, "moves=");
+			procs[i].waitFor(10, TimeUnit.SECONDS);
+		}
+		double perSecond = games / (nanos / 1e9);
+		System.out.printf("%d node%s: %,d games in %.1f s, %,.0f games/s, %,.0f moves/s%n", n, n == 1 ? " " : "s",
+				games, nanos / 1e9, perSecond, perSecond * moves / Math.max(1, hosted));
+		if( rejected > 0 || hosted != finished ) {
+			System.out.println("  the clients finished " + finished + " games, the nodes " + hosted + ", rejecting " + rejected + " moves");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A server node: serves clients on the port given until its standard
+	 * input closes, then prints its GameService's metrics
+	 */
+	private static void node(int port) throws Exception {
+		ServerModel model = new ServerModel(port, null);
+		ClusterBus bus = model.getCluster();
+		while( bus != null && !bus.isConnected() )
+			Thread.sleep(20);
+		System.out.println("READY");
+		System.out.flush();
+		while( System.in.read() >= 0 )
+			;
+		String stats = model.getGames().stats();
+		model.stopServer();
+		System.out.println("STATS " + stats);
+		System.out.flush();
+		System.exit(0);
+	}
+
+	private static LinkedBlockingQueue<String> lines(final Process p) {
+		final LinkedBlockingQueue<String> q = new LinkedBlockingQueue<String>();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+					String line;
+					while( (line = r.readLine()) != null )
+						q.add(line);
+				} catch( Exception e ) {
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return q;
+	}
+
+	private static String await(LinkedBlockingQueue<String> q, String prefix, int seconds) throws InterruptedException {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		String line;
+		while( (line = q.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null )
+			if( line.startsWith(prefix) )
+				return line;
+		return null;
+	}
+
+	private static long field(String stats, String name) {
+		int i = stats.indexOf(name) + name.length();
+		int j = i;
+		while( j < stats.length() && Character.isDigit(stats.charAt(j)) )
+			j++;
+		return Long.parseLong(stats.substring(i, j));
+	}
+
+	private static void pump(Selector selector) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		if( selector.select(10) == 0 )
+			return;
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while( it.hasNext() ) {
+			SelectionKey key = it.next();
+			it.remove();
+			Client c = (Client) key.attachment();
+			buf.clear();
+			if( c.ch.read(buf) < 0 ) {
+				key.cancel();
+				continue;
+			}
+			buf.flip();
+			c.frames.feed(buf);
+			int len;
+			while( (len = c.frames.pollFrame()) >= 0 ) {
+				byte[] b = c.frames.buffer();
+				int off = c.frames.frameOffset();
+				if( len > 0 && GameCodec.isBinary(b[off]) )
+					binary(c, b, off, len);
+				else
+					text(c, new String(b, off, len, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	private static void text(Client c, String msg) throws Exception {
+		String game = Tags.GAME_FEEDBACK;
+		if( msg.startsWith(Tags.AUTH_FEEDBACK + Tags.SUCCESS) ) {
+			signedIn++;
+		}else if( msg.startsWith(Tags.MATCH_FEEDBACK + Tags.INVITE) ) {
+			send(c, Tags.RESPOND + Tags.CONFIRM + c.partner.name);
+		}else if( msg.startsWith(Tags.MATCH_FEEDBACK + Tags.FAIL) ) {
+			// the partner was still being let go from the last game
+			if( !draining )
+				invite(c);
+		}else if( msg.startsWith(game + Tags.START_GAME) ) {
+			c.playing = true;
+			c.free = SIZE * SIZE;
+			java.util.Arrays.fill(c.taken, false);
+			send(c, game + Tags.PROTO + Tags.BINARY);
+		}else if( msg.startsWith(game + Tags.PROTO) ) {
+			c.binary = true;
+		}else if( msg.startsWith(game + Tags.START_TURN) ) {
+			move(c);
+		}else if( msg.startsWith(game + Tags.UPDATE_BOARD) ) {
+			String[] ar = msg.substring((game + Tags.UPDATE_BOARD).length()).split(",");
+			take(c, Integer.parseInt(ar[1]), Integer.parseInt(ar[2]));
+		}else if( msg.startsWith(game + Tags.GAME_OVER) ) {
+			over(c);
+		}
+	}
+
+	private static void binary(Client c, byte[] b, int off, int len) throws Exception {
+		switch( c.game.decode(b, off, len) ) {
+		case GameCodec.START_TURN:
+			move(c);
+			break;
+		case GameCodec.UPDATE_BOARD:
+			take(c, c.game.getArg1(), c.game.getArg2());
+			break;
+		case GameCodec.GAME_OVER:
+			over(c);
+			break;
+		}
+	}
+
+	private static void move(Client c) throws Exception {
+		int r = -1, col = -1;
+		if( c.free > 0 ) {
+			int k;
+			do {
+				k = c.rand.nextInt(SIZE * SIZE);
+			}while( c.taken[k] );
+			take(c, k / SIZE, k % SIZE);
+			r = k / SIZE;
+			col = k % SIZE;
+		}
+		if( c.binary )
+			write(c, GameCodec.move(r, col));
+		else
+			send(c, Tags.GAME_FEEDBACK + Tags.MOVE + r + "," + col);
+	}
+
+	private static void take(Client c, int r, int col) {
+		if( !c.taken[r * SIZE + col] ) {
+			c.taken[r * SIZE + col] = true;
+			c.free--;
+		}
+	}
+
+	/**
+	 * A game is over for a client; once it is for its partner too, the
+	 * even one of the two invites the other to the next
+	 */
+	private static void over(Client c) throws Exception {
+		c.playing = false;
+		c.games++;
+		if( c.partner.playing || c.partner.games != c.games )
+			return;
+		finished++;
+		if( !draining )
+			invite(c.id % 2 == 0 ? c : c.partner);
+	}
+
+	private static void invite(Client c) throws Exception {
+		send(c, Tags.INVITE + c.partner.name);
+	}
+
+	private static void send(Client c, String msg) throws Exception {
+		write(c, FrameCodec.encode(msg));
+	}
+
+	private static void write(Client c, byte[] frame) throws Exception {
+		ByteBuffer b = ByteBuffer.wrap(frame);
+		while( b.hasRemaining() )
+			c.ch.write(b);
+	}
+}
@@ -0,0 +1,701 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClusterBus connects the servers of a cluster, so that several server
+ * processes on one host or a LAN act as one lobby. Each node still holds its
+ * own clients' connections and users; what goes over the bus is
+ *
+ *   - who is online: each node tells the others when one of its users comes
+ *     or goes, so every client's list (see PresenceService) shows the whole
+ *     cluster, and a name online anywhere can't be logged into again;
+ *   - registrations. Each name belongs, like a game, to the node the
+ *     HashRing gives for it, and a node registering a name claims it from
+ *     that node first (see claim()), so two nodes can't both register it;
+ *   - invites, answers and cancels for a user on another node, which that
+ *     node hands to its ClientConnection;
+ *   - games. Each game has an id, and belongs to the node the HashRing gives
+ *     for it, which holds the GameModel (see GameService). A player whose
+ *     client is on another node has its moves forwarded to the owning node,
+ *     and what the game tells it forwarded back.
+ *
+ * The nodes are listed, in the same order everywhere, in the system
+ * property gomoku.cluster.nodes as host:port pairs separated by commas; the
+ * port is the one the nodes talk to each other on, not the one for clients.
+ * gomoku.cluster.node is this node's index in the list. Without them the
+ * server runs alone as before. A node listens on its own address in the
+ * list, connects out from that address, and takes connections only from
+ * the addresses in the list; a connection says which node it is from
+ * before anything else it sends is heeded.
+ *
+ * A node has a connection out to every other node, written by a thread of
+ * its own from a queue, and takes a connection in from every other node,
+ * read by another thread. Messages are FrameCodec frames holding a tag from
+ * Tags and fields separated by spaces. A message to a node that isn't
+ * connected is dropped; once it connects it is sent everyone online here.
+ * When a node's connection in closes, its users go offline and its games
+ * end (see GameService.nodeLost).
+ *
+ * Accounts are still kept by the node each was registered on, in its own
+ * UserStore: a user can only log in on that node, and a name's owner only
+ * knows the names claimed from it since it started, besides its own. Names
+ * registered before the cluster was formed, or claimed from an owner that
+ * has restarted since, can still be registered again on another node.
+ */
+public class ClusterBus {
+
+	// a list of names longer than this goes in more than one frame
+	private static final int MAX_BODY = FrameCodec.MAX_FRAME / 4;
+	private static final long RETRY = 500;
+	private static final long CLAIM_MILLIS = 2000;	// how long to wait for a name's owner to answer
+
+	private final ServerModel model;
+	private final int node;
+	private final InetSocketAddress[] nodes;
+	private final HashRing ring;
+	private final Link[] links;
+	private final ConcurrentHashMap<String, Integer> remote = new ConcurrentHashMap<String, Integer>();	// username -> node
+	private final ConcurrentHashMap<String, Integer> claims = new ConcurrentHashMap<String, Integer>();	// names this node owns -> the node registering them
+	private final ConcurrentHashMap<Long, Claim> claiming = new ConcurrentHashMap<Long, Claim>();	// claims waiting on an answer, by id
+	private final AtomicLong claimIds = new AtomicLong();
+	private ServerSocket server;
+	private Thread acceptor;
+	private volatile boolean run;
+
+	// metrics
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong bad = new AtomicLong();
+
+	/**
+	 * @param m the server
+	 * @param nodes every node's address, in the same order on each node
+	 * @param node this node's index in nodes
+	 */
+	public ClusterBus(ServerModel m, InetSocketAddress[] nodes, int node) {
+		model = m;
+		this.nodes = nodes;
+		this.node = node;
+		ring = new HashRing(nodes.length);
+		links = new Link[nodes.length];
+		for( int i = 0; i < nodes.length; i++ )
+			if( i != node )
+				links[i] = new Link(i);
+	}
+
+	/**
+	 * Makes the bus described by the system properties gomoku.cluster.nodes
+	 * and gomoku.cluster.node
+	 * @param m the server
+	 * @return the bus, not yet started, or null if no cluster is configured
+	 */
+	public static ClusterBus configured(ServerModel m) {
+		String list = System.getProperty("gomoku.cluster.nodes");
+		if( list == null || list.trim().isEmpty() )
+			return null;
+		String[] parts = list.split(",");
+		InetSocketAddress[] nodes = new InetSocketAddress[parts.length];
+		for( int i = 0; i < parts.length; i++ ) {
+			String p = parts[i].trim();
+			int colon = p.lastIndexOf(':');
+			nodes[i] = new InetSocketAddress(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1)));
+		}
+		int node = Integer.getInteger("gomoku.cluster.node", 0);
+		if( node < 0 || node >= nodes.length )
+			throw new IllegalArgumentException("gomoku.cluster.node " + node + " is not in gomoku.cluster.nodes");
+		return new ClusterBus(m, nodes, node);
+	}
+
+	/**
+	 * Listens for the other nodes and starts connecting to them
+	 */
+	public void start() throws IOException {
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(nodes[node]);
+		run = true;
+		acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "bus-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Log.info("Node " + node + " of " + nodes.length + " listening for the cluster on " + nodes[node]);
+		for( Link l : links )
+			if( l != null )
+				l.start();
+	}
+
+	/**
+	 * Closes the bus's connections
+	 */
+	public void stop() {
+		run = false;
+		try {
+			if( server != null )
+				server.close();
+		} catch( IOException e ) {
+			Log.warn("Error closing the cluster socket", e);
+		}
+		for( Link l : links )
+			if( l != null )
+				l.stop();
+	}
+
+	/**
+	 * Queues a message for another node
+	 * @param to the node
+	 * @param msg the message, a tag and its fields
+	 */
+	public void send(int to, String msg) {
+		Link l = links[to];
+		if( l == null || !l.up ) {
+			dropped.incrementAndGet();
+			return;
+		}
+		sent.incrementAndGet();
+		l.queue.add(FrameCodec.encode(msg));
+	}
+
+	/**
+	 * Tells the other nodes whether a user of this node is online now.
+	 * Whether it is, is read here rather than passed in, under a lock with
+	 * the sending, so the last message sent for a name is always right
+	 * whatever order the threads reporting changes run in.
+	 * @param un the username
+	 */
+	public synchronized void presenceChanged(String un) {
+		String msg = (model.getUsers().session(un) != null ? Tags.BUS_ONLINE : Tags.BUS_OFFLINE) + un;
+		for( int i = 0; i < links.length; i++ )
+			if( i != node )
+				send(i, msg);
+	}
+
+	/**
+	 * @param un a username
+	 * @return the node the user is online on, if it is another node, or -1
+	 */
+	public int whereIs(String un) {
+		Integer n = remote.get(un);
+		return n == null ? -1 : n;
+	}
+
+	/**
+	 * What to do with the answer to a claim on a name
+	 */
+	public interface Claim {
+		/**
+		 * Called on a thread of the bus or the timer wheel, so must not block
+		 * @param granted true if the name was free and is now this node's to
+		 * register; false if it is taken, or its owner didn't answer
+		 */
+		void answered(boolean granted);
+	}
+
+	/**
+	 * Asks the node that owns a name, by the HashRing, whether it may be
+	 * registered here. The owner grants each name once, to the first node
+	 * to claim it, unless it is registered or online already. A claim on a
+	 * name this node owns is answered at once; one whose owner isn't
+	 * connected, or doesn't answer in time, is refused.
+	 * @param un the username
+	 * @param answer told the owner's answer
+	 */
+	public void claim(String un, final Claim answer) {
+		int owner = ring.owner(un);
+		if( owner == node ) {
+			answer.answered(reserve(un, node));
+			return;
+		}
+		if( !links[owner].up ) {
+			Log.warn("Can't register " + un + " while node " + owner + " is away");
+			answer.answered(false);
+			return;
+		}
+		final Long id = claimIds.incrementAndGet();
+		claiming.put(id, answer);
+		TimerWheel.shared().schedule(new Runnable() {
+			public void run() {
+				// gone if it has been answered
+				if( claiming.remove(id) != null )
+					answer.answered(false);
+			}
+		}, CLAIM_MILLIS);
+		send(owner, Tags.BUS_CLAIM + id + " " + un);
+	}
+
+	/**
+	 * Grants a name this node owns to the first node to claim it
+	 * @return true if it was free
+	 */
+	private boolean reserve(String un, int from) {
+		if( model.getUsers().get(un) != null || whereIs(un) >= 0 )
+			return false;
+		return claims.putIfAbsent(un, from) == null;
+	}
+
+	/**
+	 * @param id a game id
+	 * @return the node that hosts the game: the one the HashRing gives,
+	 * or this one if that node isn't connected
+	 */
+	public int ownerOf(String id) {
+		int owner = ring.owner(id);
+		return owner == node || links[owner].up ? owner : node;
+	}
+
+	/**
+	 * @return this node's index
+	 */
+	public int getNode() {
+		return node;
+	}
+
+	/**
+	 * @return the number of nodes in the cluster
+	 */
+	public int getNodeCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * @return true if there is a connection out to every other node
+	 */
+	public boolean isConnected() {
+		for( Link l : links )
+			if( l != null && !l.up )
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the users online on other nodes
+	 */
+	public ArrayList<String> remoteNames() {
+		return new ArrayList<String>(remote.keySet());
+	}
+
+	/**
+	 * @return the number of users online on other nodes
+	 */
+	public int getRemoteCount() {
+		return remote.size();
+	}
+
+	/**
+	 * Takes connections from the other nodes, each read on a thread of its own
+	 */
+	private void accept() {
+		while( run ) {
+			try {
+				final Socket s = server.accept();
+				if( !isNode(s.getInetAddress()) ) {
+					Log.warn("Refused a cluster connection from " + s.getRemoteSocketAddress() + ", which is not in gomoku.cluster.nodes");
+					s.close();
+					continue;
+				}
+				s.setTcpNoDelay(true);
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						read(s);
+					}
+				}, "bus-in");
+				t.setDaemon(true);
+				t.start();
+			} catch( IOException e ) {
+				if( run )
+					Log.warn("Error accepting a cluster connection");
+			}
+		}
+	}
+
+	/**
+	 * @param a an address a connection came from
+	 * @return true if a node of the cluster has that address
+	 */
+	private boolean isNode(InetAddress a) {
+		for( InetSocketAddress n : nodes )
+			if( a.equals(n.getAddress()) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reads another node's messages until its connection closes, or until
+	 * it fails to say which node it is
+	 */
+	private void read(Socket s) {
+		Inbound in = new Inbound(this, s.getInetAddress());
+		try {
+			InputStream is = new BufferedInputStream(s.getInputStream());
+			FrameCodec frames = new FrameCodec();
+			String msg;
+			while( (msg = frames.read(is)) != null ) {
+				received.incrementAndGet();
+				if( in.node < 0 && !msg.startsWith(Tags.BUS_HELLO) ) {
+					bad.incrementAndGet();
+					Log.warn("Dropped a message from " + s.getRemoteSocketAddress() + " before its hello: " + msg);
+					continue;
+				}
+				// one bad message is dropped, counted and logged by PROTOCOL;
+				// the link, and the node's users, stay up
+				PROTOCOL.dispatch(in, msg);
+				if( in.node < 0 ) {
+					Log.warn("Closing the cluster connection from " + s.getRemoteSocketAddress() + " after a bad hello");
+					break;
+				}
+			}
+		} catch( IOException e ) {
+			if( run )
+				Log.warn("Lost node " + in.node + ": " + e.getMessage());
+		}
+		try {
+			s.close();
+		} catch( IOException e ) {
+		}
+		if( in.node >= 0 )
+			lost(in.node);
+	}
+
+	/**
+	 * A node has gone: its users are offline and its games over
+	 */
+	private void lost(int from) {
+		if( !run )
+			return;
+		Log.warn("Node " + from + " left the cluster");
+		for( Map.Entry<String, Integer> e : remote.entrySet() )
+			if( e.getValue() == from && remote.remove(e.getKey(), from) )
+				model.getPresence().changed(e.getKey());
+		model.getGames().nodeLost(from);
+	}
+
+	/**
+	 * A connection in from another node, as the target of its messages
+	 */
+	static class Inbound {
+		final ClusterBus bus;
+		final InetAddress from;
+		int node = -1;	// known once it says hello
+
+		Inbound(ClusterBus bus, InetAddress from) {
+			this.bus = bus;
+			this.from = from;
+		}
+	}
+
+	/**
+	 * The connection out to another node, and the thread writing it
+	 */
+	private class Link implements Runnable {
+		final int to;
+		final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+		volatile boolean up;
+		private Thread worker;
+		private volatile Socket sock;
+
+		Link(int to) {
+			this.to = to;
+		}
+
+		void start() {
+			worker = new Thread(this, "bus-out-" + to);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		void stop() {
+			up = false;
+			worker.interrupt();
+			Socket s = sock;
+			if( s != null ) {
+				try {
+					s.close();
+				} catch( IOException e ) {
+				}
+			}
+		}
+
+		/**
+		 * Connects, and reconnects, to the node; then writes whatever is
+		 * queued, flushing once the queue is empty
+		 */
+		public void run() {
+			while( run ) {
+				try {
+					sock = new Socket();
+					sock.setTcpNoDelay(true);
+					// from this node's address, which the other node checks
+					sock.bind(new InetSocketAddress(nodes[node].getAddress(), 0));
+					sock.connect(nodes[to], (int) RETRY);
+					OutputStream out = new BufferedOutputStream(sock.getOutputStream(), 1 << 16);
+					queue.clear();
+					up = true;
+					Log.info("Connected to node " + to);
+					out.write(FrameCodec.encode(Tags.BUS_HELLO + node));
+					for( String msg : onlineHere() )
+						out.write(FrameCodec.encode(msg));
+					out.flush();
+					while( run ) {
+						byte[] frame = queue.take();
+						do {
+							out.write(frame);
+						}while( (frame = queue.poll()) != null );
+						out.flush();
+					}
+				} catch( IOException e ) {
+					if( up )
+						Log.warn("Lost the connection to node " + to + ": " + e.getMessage());
+				} catch( InterruptedException e ) {
+					break;
+				} finally {
+					up = false;
+					try {
+						sock.close();
+					} catch( IOException e ) {
+					}
+				}
+				try {
+					Thread.sleep(RETRY);
+				} catch( InterruptedException e ) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return messages saying who is online here, for a node just connected to
+	 */
+	private ArrayList<String> onlineHere() {
+		ArrayList<String> msgs = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder(Tags.BUS_ONLINE);
+		for( String un : model.getUsers().onlineNames() ) {
+			if( sb.length() + un.length() + 1 > MAX_BODY ) {
+				msgs.add(sb.toString());
+				sb.setLength(0);
+				sb.append(Tags.BUS_ONLINE);
+			}
+			if( sb.length() > Tags.BUS_ONLINE.length() )
+				sb.append(' ');
+			sb.append(un);
+		}
+		if( sb.length() > Tags.BUS_ONLINE.length() )
+			msgs.add(sb.toString());
+		return msgs;
+	}
+
+	/**
+	 * The handlers for the messages from other nodes, by tag
+	 */
+	static final ProtocolRegistry<Inbound> PROTOCOL = new ProtocolRegistry<Inbound>("cluster");
+	static {
+		PROTOCOL.on(Tags.BUS_HELLO, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				int n = Integer.parseInt(msg.substring(body));
+				if( in.node >= 0 || n < 0 || n >= in.bus.nodes.length || n == in.bus.node || !in.from.equals(in.bus.nodes[n].getAddress()) )
+					throw new IllegalArgumentException("node " + n + " can't be at " + in.from);
+				in.node = n;
+			}
+		});
+		// [ON]name name ...
+		PROTOCOL.on(Tags.BUS_ONLINE, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				for( String un : fields(msg, body) ) {
+					in.bus.remote.put(un, in.node);
+					in.bus.model.getPresence().changed(un);
+				}
+			}
+		});
+		// [OFF]name
+		PROTOCOL.on(Tags.BUS_OFFLINE, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String un = msg.substring(body);
+				if( in.bus.remote.remove(un, in.node) )
+					in.bus.model.getPresence().changed(un);
+			}
+		});
+		// [CLAIM]id name, to the name's owner
+		PROTOCOL.on(Tags.BUS_CLAIM, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				boolean granted = in.bus.reserve(f[1], in.node);
+				in.bus.send(in.node, Tags.BUS_CLAIMED + f[0] + " " + (granted ? Tags.SUCCESS : Tags.UN_TAKEN));
+			}
+		});
+		// [CLAIMED]id answer, to the node that claimed the name
+		PROTOCOL.on(Tags.BUS_CLAIMED, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				Claim c = in.bus.claiming.remove(Long.valueOf(f[0]));
+				if( c != null )
+					c.answered(f[1].equals(Tags.SUCCESS));
+			}
+		});
+		// [SENDINV]from to
+		PROTOCOL.on(Tags.INVITE, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				ClientConnection to = in.bus.model.lookUp(f[1]);
+				if( to != null )
+					to.receiveInvite(f[0]);
+			}
+		});
+		// [RSPINV]answer from to
+		PROTOCOL.on(Tags.RESPOND, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 3);
+				if( f == null )
+					return;
+				ClientConnection to = in.bus.model.lookUp(f[2]);
+				if( to != null )
+					to.receiveResponse(f[1], f[0]);
+			}
+		});
+		// [CNCLUSR]from to
+		PROTOCOL.on(Tags.CANCELINVITE, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				ClientConnection to = in.bus.model.lookUp(f[1]);
+				if( to != null )
+					to.inviteCancelled(f[0]);
+			}
+		});
+		// [START]id node1 name1 node2 name2, to the node hosting the game
+		PROTOCOL.on(Tags.START_GAME, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 5);
+				if( f == null )
+					return;
+				GameService games = in.bus.model.getGames();
+				int node1 = Integer.parseInt(f[1]), node2 = Integer.parseInt(f[3]);
+				if( !games.host(f[0], node1, f[2], node2, f[4]) ) {
+					// both were told the invite was accepted
+					games.notStarted(node1, f[2], f[4]);
+					games.notStarted(node2, f[4], f[2]);
+				}
+			}
+		});
+		// [NOGAME]name opponent, to a player's node when their game could not start
+		PROTOCOL.on(Tags.BUS_NOGAME, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				in.bus.model.getGames().notStarted(in.bus.getNode(), f[0], f[1]);
+			}
+		});
+		// [JOIN]id seat color name opponent, to a player's node from the game's
+		PROTOCOL.on(Tags.BUS_JOIN, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 5);
+				if( f == null )
+					return;
+				in.bus.model.getGames().joined(in.node, f[0], Integer.parseInt(f[1]), Integer.parseInt(f[2]), f[3], f[4]);
+			}
+		});
+		// [MOVE]id name r c, to the game's node
+		PROTOCOL.on(Tags.MOVE, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 4);
+				if( f == null )
+					return;
+				in.bus.model.getGames().visitorMove(f[0], f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]));
+			}
+		});
+		// [QUIT]id name, to the game's node
+		PROTOCOL.on(Tags.QUIT, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				in.bus.model.getGames().visitorResign(f[0], f[1]);
+			}
+		});
+		// [TURN]id name, to a player's node
+		PROTOCOL.on(Tags.START_TURN, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 2);
+				if( f == null )
+					return;
+				RemotePlayer p = in.bus.model.getGames().away(f[0], f[1]);
+				if( p != null )
+					p.startTurn();
+			}
+		});
+		// [BOARD]id name color r c, to a player's node
+		PROTOCOL.on(Tags.UPDATE_BOARD, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 5);
+				if( f == null )
+					return;
+				RemotePlayer p = in.bus.model.getGames().away(f[0], f[1]);
+				if( p != null )
+					p.updateBoardView(Integer.parseInt(f[2]), Integer.parseInt(f[3]), Integer.parseInt(f[4]));
+			}
+		});
+		// [GAMEOVER]id name result, to a player's node
+		PROTOCOL.on(Tags.GAME_OVER, new ProtocolRegistry.Handler<Inbound>() {
+			public void handle(Inbound in, String msg, int body) {
+				String[] f = fields(in, msg, body, 3);
+				if( f == null )
+					return;
+				in.bus.model.getGames().awayOver(f[0], f[1], f[2].charAt(0));
+			}
+		});
+	}
+
+	private static String[] fields(String msg, int body) {
+		return msg.substring(body).split(" ");
+	}
+
+	/**
+	 * @return the message's fields, or null, counted and logged, if it has
+	 * fewer than it should
+	 */
+	private static String[] fields(Inbound in, String msg, int body, int n) {
+		String[] f = fields(msg, body);
+		if( f.length >= n )
+			return f;
+		in.bus.bad.incrementAndGet();
+		Log.warn("Bad message from node " + in.node + ": " + msg);
+		return null;
+	}
+
+	/**
+	 * @return a one line summary of the bus's metrics
+	 */
+	public String stats() {
+		StringBuilder sb = new StringBuilder("cluster node=").append(node).append('/').append(nodes.length);
+		sb.append(" up=");
+		for( int i = 0; i < links.length; i++ )
+			if( links[i] != null && links[i].up )
+				sb.append(i).append(',');
+		sb.append(" remote users=").append(remote.size()).append(" sent=").append(sent.get())
+			.append(" received=").append(received.get()).append(" dropped=").append(dropped.get())
+			.append(" bad=").append(bad.get() + PROTOCOL.getFailedCount());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * EventLoop is one thread of an NioServer. It owns a Selector and serves
+ * every connection registered with it: reading when a channel has data,
+ * writing when a channel that was full can take more, and running tasks
+ * handed to it by other threads or scheduled to run after a delay.
+ *
+ * Everything a connection does happens on its loop's thread, so a
+ * connection's own state needs no locks. Other threads only ever talk to a
+ * loop through execute() and schedule().
+ *
+ * Connections with messages to write are noted as the loop goes and
+ * written at the end of each turn round the loop, so everything sent to a
+ * connection in one turn (a broadcast, the replies to several messages
+ * read at once) goes out in one write.
+ */
+public class EventLoop implements Runnable {
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);	// shared by this loop's connections
+	// also shared; direct, so the channel writes it without copying it first
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(NioConnection.WRITE_BUFFER);
+	private final ArrayList<NioConnection> toFlush = new ArrayList<NioConnection>();	// only touched on the loop thread
+	private final PriorityQueue<Timed> timers = new PriorityQueue<Timed>();	// only touched on the loop thread
+	private long timerSeq;
+	private volatile boolean running;
+
+	/**
+	 * @param name the name of the loop's thread
+	 */
+	public EventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * Stops the loop and closes its Selector. Channels registered with it
+	 * are not closed.
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if called on this loop's thread
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task on the loop's thread, soon
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if( !inLoop() )
+			selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop's thread once a delay has passed, without
+	 * holding up anything else the loop is doing in the meantime
+	 * @param task the task to run
+	 * @param delayMillis how long to wait first
+	 */
+	public void schedule(final Runnable task, long delayMillis) {
+		final long at = System.nanoTime() + delayMillis * 1000000L;
+		if( inLoop() ) {
+			timers.add(new Timed(at, timerSeq++, task));
+		}else {
+			execute(new Runnable() {
+				public void run() {
+					timers.add(new Timed(at, timerSeq++, task));
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the buffer connections on this loop read into. Only one
+	 * connection reads at a time, so one buffer is enough; a connection
+	 * keeps any partial message itself.
+	 */
+	ByteBuffer readBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * @return the buffer connections on this loop gather their messages in
+	 * to write them. Like the read buffer, only one uses it at a time.
+	 */
+	ByteBuffer writeBuffer() {
+		return writeBuffer;
+	}
+
+	/**
+	 * Has a connection write what it has queued at the end of this turn
+	 * round the loop. Must be called on the loop's thread.
+	 * @param con the connection
+	 */
+	void flushLater(NioConnection con) {
+		toFlush.add(con);
+	}
+
+	/**
+	 * Registers a channel with this loop's Selector. Must be called on the
+	 * loop's thread.
+	 * @param channel the channel, already non-blocking
+	 * @param ops the operations to select for
+	 * @param handler the connection that handles the channel's events
+	 * @return the channel's key
+	 */
+	public SelectionKey register(java.nio.channels.SelectableChannel channel, int ops, NioConnection handler) throws IOException {
+		return channel.register(selector, ops, handler);
+	}
+
+	public void run() {
+		while( running ) {
+			try {
+				long timeout = 0;
+				Timed next = timers.peek();
+				if( !tasks.isEmpty() )
+					timeout = -1;
+				else if( next != null )
+					timeout = Math.max(1, (next.at - System.nanoTime()) / 1000000L);
+
+				if( timeout < 0 )
+					selector.selectNow();
+				else
+					selector.select(timeout);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while( keys.hasNext() ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection con = (NioConnection) key.attachment();
+					if( !key.isValid() ) {
+						con.closed();
+						continue;
+					}
+					if( key.isWritable() )
+						con.flush();
+					if( key.isValid() && key.isReadable() )
+						con.read();
+				}
+
+				runTasks();
+				runTimers();
+				flushAll();
+			}catch( IOException e ) {
+				Log.warn("Event loop " + thread.getName() + " selector error", e);
+			}catch( RuntimeException e ) {
+				// one bad message must not take down every connection on this loop
+				Log.warn("Event loop " + thread.getName() + " task failed", e);
+			}
+		}
+		try {
+			selector.close();
+		}catch( IOException e ) {
+			Log.warn("Error closing selector", e);
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while( (task = tasks.poll()) != null )
+			task.run();
+	}
+
+	private void flushAll() {
+		try {
+			// a client lost while writing may have others sent to, which adds to the list
+			for( int i = 0; i < toFlush.size(); i++ )
+				toFlush.get(i).flushNow();
+		} finally {
+			toFlush.clear();
+		}
+	}
+
+	private void runTimers() {
+		long now = System.nanoTime();
+		while( !timers.isEmpty() && timers.peek().at - now <= 0 )
+			timers.poll().task.run();
+	}
+
+	/**
+	 * A task waiting in the timer queue, ordered by when it is due and then
+	 * by when it was scheduled
+	 */
+	private static class Timed implements Comparable<Timed> {
+		final long at;
+		final long seq;
+		final Runnable task;
+
+		Timed(long at, long seq, Runnable task) {
+			this.at = at;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		public int compareTo(Timed o) {
+			if( at != o.at )
+				return at - o.at < 0 ? -1 : 1;
+			return Long.compare(seq, o.seq);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FrameCodec marks where each message sent over a Socket starts and ends.
+ * Every message is sent as a frame: a four-byte big-endian length and then
+ * that many bytes of the message in UTF-8. A reader knows exactly how much
+ * to wait for, so a message split across two reads, or several messages
+ * arriving in one read, come out whole and in order.
+ *
+ * One FrameCodec is kept per connection for reading. It holds on to bytes
+ * that have arrived until they make up a whole frame, in a buffer that is
+ * reused from read to read and only grows for a larger message. It can
+ * read straight from an InputStream, or be fed bytes from a channel by an
+ * NioConnection.
+ *
+ * A frame's bytes need not be text: readFrame() and pollFrame() give the
+ * raw bytes of a frame, which is how the binary game messages of GameCodec
+ * are read.
+ *
+ * Writing needs no state, so encode() and write() are static.
+ */
+public class FrameCodec {
+
+	// much longer than any Tags message; a bigger length means the stream is garbage
+	public static final int MAX_FRAME = 64 * 1024;
+
+	private static final int HEADER = 4;
+	private static final int INITIAL = 256;
+
+	private byte[] buf = new byte[INITIAL];
+	private int start;		// first byte not yet handed out
+	private int end;		// one past the last byte received
+	private int frameOffset;	// where the body of the last frame returned starts
+
+	/**
+	 * @param msg a message
+	 * @return the message as a frame, ready to write
+	 */
+	public static byte[] encode(String msg) {
+		byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+		byte[] frame = new byte[HEADER + body.length];
+		putLength(frame, body.length);
+		System.arraycopy(body, 0, frame, HEADER, body.length);
+		return frame;
+	}
+
+	/**
+	 * Writes a frame's length at the start of a buffer, for building a
+	 * frame in place; the body goes from index 4
+	 * @param frame the buffer
+	 * @param bodyLength the length of the body
+	 */
+	static void putLength(byte[] frame, int bodyLength) {
+		frame[0] = (byte) (bodyLength >>> 24);
+		frame[1] = (byte) (bodyLength >>> 16);
+		frame[2] = (byte) (bodyLength >>> 8);
+		frame[3] = (byte) bodyLength;
+	}
+
+	/**
+	 * Writes a message as one frame and flushes it
+	 * @param out the stream to write to
+	 * @param msg the message
+	 */
+	public static void write(OutputStream out, String msg) throws IOException {
+		out.write(encode(msg));
+		out.flush();
+	}
+
+	/**
+	 * Reads the next message, blocking until all of it has arrived
+	 * @param in the stream to read from
+	 * @return the message, or null if the stream ended
+	 * @throws ProtocolException if the stream does not hold frames
+	 */
+	public String read(InputStream in) throws IOException {
+		int len = readFrame(in);
+		if( len < 0 )
+			return null;
+		return new String(buf, frameOffset, len, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the next frame, blocking until all of it has arrived. Its body
+	 * is left in buffer() from frameOffset(), until the next call.
+	 * @param in the stream to read from
+	 * @return the length of the frame's body, or -1 if the stream ended
+	 * @throws ProtocolException if the stream does not hold frames
+	 */
+	public int readFrame(InputStream in) throws IOException {
+		int len;
+		while( (len = pollFrame()) < 0 ) {
+			makeRoom();
+			int n = in.read(buf, end, buf.length - end);
+			if( n < 0 )
+				return -1;
+			end += n;
+		}
+		return len;
+	}
+
+	/**
+	 * Takes in bytes received on a channel
+	 * @param src the bytes, from its position to its limit
+	 */
+	public void feed(ByteBuffer src) {
+		while( src.hasRemaining() ) {
+			makeRoom();
+			int n = Math.min(src.remaining(), buf.length - end);
+			src.get(buf, end, n);
+			end += n;
+		}
+	}
+
+	/**
+	 * @return the next message if all of it has arrived, otherwise null
+	 * @throws ProtocolException if the bytes received are not a frame
+	 */
+	public String poll() throws ProtocolException {
+		int len = pollFrame();
+		if( len < 0 )
+			return null;
+		return new String(buf, frameOffset, len, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Takes the next frame if all of it has arrived. Its body is left in
+	 * buffer() from frameOffset(), until the next call.
+	 * @return the length of the frame's body, or -1 if it hasn't all arrived
+	 * @throws ProtocolException if the bytes received are not a frame
+	 */
+	public int pollFrame() throws ProtocolException {
+		if( start == end && start > 0 ) {
+			// everything has been handed out, start again at the front
+			start = 0;
+			end = 0;
+			// let go of a buffer grown for one big message
+			if( buf.length > 16 * INITIAL )
+				buf = new byte[INITIAL];
+		}
+		if( end - start < HEADER )
+			return -1;
+		int len = ((buf[start] & 0xFF) << 24) | ((buf[start + 1] & 0xFF) << 16)
+				| ((buf[start + 2] & 0xFF) << 8) | (buf[start + 3] & 0xFF);
+		if( len < 0 || len > MAX_FRAME )
+			throw new ProtocolException("bad frame length " + len);
+		if( end - start < HEADER + len )
+			return -1;
+		frameOffset = start + HEADER;
+		start += HEADER + len;
+		return len;
+	}
+
+	/**
+	 * Getters for where the body of the last frame from readFrame() or
+	 * pollFrame() is
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+	public int frameOffset() {
+		return frameOffset;
+	}
+
+	/**
+	 * @return the number of bytes received that are not yet a whole frame
+	 */
+	public int buffered() {
+		return end - start;
+	}
+
+	/**
+	 * Makes sure there is space at the end of the buffer for more bytes and
+	 * for the whole of the frame that has started arriving
+	 */
+	private void makeRoom() {
+		int need = HEADER;
+		if( end - start >= HEADER ) {
+			int len = ((buf[start] & 0xFF) << 24) | ((buf[start + 1] & 0xFF) << 16)
+					| ((buf[start + 2] & 0xFF) << 8) | (buf[start + 3] & 0xFF);
+			if( len >= 0 && len <= MAX_FRAME )
+				need = HEADER + len;
+		}
+		if( end < buf.length && start + need <= buf.length )
+			return;
+		// move what's left to the front, then grow if that's not enough
+		if( start > 0 ) {
+			System.arraycopy(buf, start, buf, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		if( end == buf.length || need > buf.length ) {
+			byte[] bigger = new byte[Math.max(buf.length * 2, need)];
+			System.arraycopy(buf, 0, bigger, 0, end);
+			buf = bigger;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * FrameFuzz: Checks FrameCodec against messages split at arbitrary places.
+ *
+ * Each round makes a random batch of messages (empty ones, Tags messages,
+ * long ones, ones with multi-byte characters), encodes them into one stream
+ * and cuts the stream into pieces at random byte positions, down to single
+ * bytes. The pieces are then read back both through an InputStream that
+ * returns one piece per read() and by feeding them to the codec as an
+ * NioConnection would, and the messages must come out exactly as they went
+ * in. Finally random garbage is fed in, which must either come out as
+ * messages or be rejected with a ProtocolException, never anything else.
+ *
+ * Exits with status 1 on the first failure.
+ *
+ * Usage: java FrameFuzz [rounds] [seed]
+ */
+public class FrameFuzz {
+
+	private static final String[] SAMPLES = {
+		Tags.PING, Tags.LOGIN + "alice secret", Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE + Tags.ADDUSER + "RedFox",
+		Tags.GAME_FEEDBACK + Tags.MOVE + "14,15", "", "caf\u00e9 \u00fcber \u4e94\u76ee\u4e26\u3079 \ud83d\ude00"
+	};
+
+	public static void main(String[] args) throws IOException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		Random rand = new Random(seed);
+		long messages = 0, pieces = 0;
+
+		for( int round = 0; round < rounds; round++ ) {
+			ArrayList<String> sent = new ArrayList<String>();
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			int count = 1 + rand.nextInt(20);
+			for( int i = 0; i < count; i++ ) {
+				String msg = randomMessage(rand);
+				sent.add(msg);
+				stream.write(FrameCodec.encode(msg));
+			}
+			byte[] bytes = stream.toByteArray();
+			ArrayList<byte[]> cut = cut(bytes, rand);
+			pieces += cut.size();
+
+			// through an InputStream, one piece per read()
+			FrameCodec codec = new FrameCodec();
+			InputStream in = new PieceStream(cut);
+			for( String expect : sent )
+				check(expect, codec.read(in), seed, round);
+			check(null, codec.read(in), seed, round);
+
+			// fed piece by piece, polling after each
+			codec = new FrameCodec();
+			int next = 0;
+			for( byte[] piece : cut ) {
+				codec.feed(ByteBuffer.wrap(piece));
+				String msg;
+				while( (msg = codec.poll()) != null )
+					check(sent.get(next++), msg, seed, round);
+			}
+			if( next != sent.size() || codec.buffered() != 0 )
+				fail("only " + next + " of " + sent.size() + " messages came out", seed, round);
+			messages += sent.size();
+
+			// garbage must be rejected cleanly
+			byte[] junk = new byte[1 + rand.nextInt(64)];
+			rand.nextBytes(junk);
+			codec = new FrameCodec();
+			codec.feed(ByteBuffer.wrap(junk));
+			try {
+				while( codec.poll() != null ) {
+					// a lucky junk frame is fine
+				}
+			}catch( ProtocolException e ) {
+				// expected for most junk
+			}
+		}
+		System.out.printf("FrameFuzz: %,d rounds, %,d messages in %,d pieces, all intact (seed %d)%n",
+				rounds, messages, pieces, seed);
+	}
+
+	private static String randomMessage(Random rand) {
+		int kind = rand.nextInt(10);
+		if( kind < 6 )
+			return SAMPLES[rand.nextInt(SAMPLES.length)];
+		StringBuilder sb = new StringBuilder();
+		int len = (kind == 9) ? rand.nextInt(FrameCodec.MAX_FRAME / 4) : rand.nextInt(64);
+		for( int i = 0; i < len; i++ ) {
+			if( rand.nextInt(8) == 0 )
+				sb.append((char) (0xA0 + rand.nextInt(0x2000)));	// two and three byte characters
+			else
+				sb.append((char) (' ' + rand.nextInt(95)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Cuts bytes into pieces of random length, often very short
+	 */
+	private static ArrayList<byte[]> cut(byte[] bytes, Random rand) {
+		ArrayList<byte[]> pieces = new ArrayList<byte[]>();
+		int pos = 0;
+		while( pos < bytes.length ) {
+			int max = rand.nextBoolean() ? 8 : 4096;
+			int len = Math.min(bytes.length - pos, 1 + rand.nextInt(max));
+			byte[] piece = new byte[len];
+			System.arraycopy(bytes, pos, piece, 0, len);
+			pieces.add(piece);
+			pos += len;
+		}
+		return pieces;
+	}
+
+	private static void check(String expect, String got, long seed, int round) {
+		if( expect == null ? got != null : !expect.equals(got) )
+			fail("expected " + summary(expect) + " but read " + summary(got), seed, round);
+	}
+
+	private static String summary(String s) {
+		if( s == null )
+			return "end of stream";
+		return s.length() > 40 ? "\"" + s.substring(0, 40) + "...\" (" + s.length() + " chars)" : "\"" + s + "\"";
+	}
+
+	private static void fail(String why, long seed, int round) {
+		System.out.println("FrameFuzz FAILED in round " + round + " (seed " + seed + "): " + why);
+		System.exit(1);
+	}
+
+	/**
+	 * An InputStream that returns at most one piece per read()
+	 */
+	private static class PieceStream extends InputStream {
+		private final ArrayList<byte[]> pieces;
+		private int piece, pos;
+
+		PieceStream(ArrayList<byte[]> pieces) {
+			this.pieces = pieces;
+		}
+
+		public int read() {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if( piece == pieces.size() )
+				return -1;
+			byte[] p = pieces.get(piece);
+			int n = Math.min(len, p.length - pos);
+			System.arraycopy(p, pos, b, off, n);
+			pos += n;
+			if( pos == p.length ) {
+				piece++;
+				pos = 0;
+			}
+			return n;
+		}
+	}
+}
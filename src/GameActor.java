@@ -0,0 +1,200 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GameActor runs everything that happens to one game, one thing at a time,
+ * on a pool of threads shared by all games.
+ *
+ * Whatever delivers a move (a ClientConnection's thread, an EventLoop, the
+ * Swing event thread, a Gomobot) posts it to the game's mailbox and goes
+ * back to what it was doing. The mailbox is run on the pool by at most one
+ * thread at a time, in the order things were posted, so a game's events
+ * never overlap and the GameModel needs no lock. A game with nothing to do
+ * takes no thread.
+ *
+ * Sending to a player doesn't belong inside the game's logic. A player's
+ * sends made during an event are handed to defer(), and run once the event
+ * is over. Where a send can block, as a write to a client that isn't
+ * reading does when each client has a thread, they are passed on instead,
+ * in order, to a second mailbox run on a pool of its own; a slow client
+ * then holds up a thread of that pool and its own game's sends, not the
+ * threads running the other games. GameService always does this;
+ * GameLatencyBenchmark compares the two.
+ *
+ * The shared pool has gomoku.games.threads threads, by default one per
+ * core; the one for sends has gomoku.games.ioThreads, by default four per
+ * core.
+ */
+public class GameActor implements Runnable {
+
+	// events run in one go before the thread is given to other games
+	private static final int BATCH = 32;
+
+	private static ExecutorService shared;
+	private static ExecutorService sharedIO;
+
+	private final Executor pool;
+	private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private ArrayList<Runnable> outbox = new ArrayList<Runnable>();	// only touched by the running thread
+	private final GameActor io;	// runs the sends, or null if this is the one running them
+	private volatile Thread runner;
+
+	// metrics, for all games
+	private static final AtomicLong events = new AtomicLong();
+	private static final AtomicLong runs = new AtomicLong();
+	private static final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Makes an actor on the shared pool, whose sends may block
+	 */
+	public GameActor() {
+		this(true);
+	}
+
+	/**
+	 * Makes an actor on the shared pool
+	 * @param blockingSends true if the players' sends can block, so should
+	 * run on the pool for sends
+	 */
+	public GameActor(boolean blockingSends) {
+		this(shared(), blockingSends ? new GameActor(sharedIO(), null) : null);
+	}
+
+	/**
+	 * @param pool what to run the mailbox on
+	 * @param io the actor to run the sends on, or null to run them on pool
+	 * as soon as each event is over
+	 */
+	public GameActor(Executor pool, GameActor io) {
+		this.pool = pool;
+		this.io = io;
+	}
+
+	/**
+	 * @return the pool shared by games, made on first use
+	 */
+	public static synchronized ExecutorService shared() {
+		if( shared == null )
+			shared = pool("game", Integer.getInteger("gomoku.games.threads", Runtime.getRuntime().availableProcessors()));
+		return shared;
+	}
+
+	/**
+	 * @return the pool the games' sends run on, made on first use
+	 */
+	public static synchronized ExecutorService sharedIO() {
+		if( sharedIO == null )
+			sharedIO = pool("game-io", Integer.getInteger("gomoku.games.ioThreads", 4 * Runtime.getRuntime().availableProcessors()));
+		return sharedIO;
+	}
+
+	private static ExecutorService pool(final String name, int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Adds an event to the game's mailbox. It runs after the ones posted
+	 * before it, on the pool. Can be called from any thread, including from
+	 * an event of this game.
+	 * @param event the event
+	 */
+	public void post(Runnable event) {
+		mailbox.add(event);
+		if( scheduled.compareAndSet(false, true) )
+			pool.execute(this);
+	}
+
+	/**
+	 * Puts off something that can block, such as a write to a socket, until
+	 * the event running now is over. Run at once if no event of this game
+	 * is running on this thread.
+	 * @param io what to do
+	 */
+	public void defer(Runnable io) {
+		if( runner == Thread.currentThread() )
+			outbox.add(io);
+		else
+			io.run();
+	}
+
+	/**
+	 * Runs the events in the mailbox, up to a batch of them; called on the pool
+	 */
+	public void run() {
+		runner = Thread.currentThread();
+		runs.incrementAndGet();
+		try {
+			for( int i = 0; i < BATCH; i++ ) {
+				Runnable event = mailbox.poll();
+				if( event == null )
+					break;
+				events.incrementAndGet();
+				try {
+					event.run();
+				} catch( RuntimeException e ) {
+					failures.incrementAndGet();
+					Log.error("Error in a game event", e);
+				}
+				flush();
+			}
+		} finally {
+			runner = null;
+			scheduled.set(false);
+		}
+		// posted after the last poll, or left over from a full batch
+		if( !mailbox.isEmpty() && scheduled.compareAndSet(false, true) )
+			pool.execute(this);
+	}
+
+	private void flush() {
+		if( outbox.isEmpty() )
+			return;
+		if( io != null ) {
+			final ArrayList<Runnable> sends = outbox;
+			outbox = new ArrayList<Runnable>(4);
+			io.post(new Runnable() {
+				public void run() {
+					send(sends);
+				}
+			});
+			return;
+		}
+		send(outbox);
+		outbox.clear();
+	}
+
+	private static void send(ArrayList<Runnable> sends) {
+		for( int i = 0; i < sends.size(); i++ ) {
+			try {
+				sends.get(i).run();
+			} catch( RuntimeException e ) {
+				failures.incrementAndGet();
+				Log.error("Error sending from a game", e);
+			}
+		}
+	}
+
+	/**
+	 * @return a one line summary of the metrics of all games' actors
+	 */
+	public static String stats() {
+		long r = runs.get();
+		return "game actors events=" + events.get() + " runs=" + r
+			+ " events/run=" + (r == 0 ? 0 : events.get() * 10 / r / 10.0) + " failures=" + failures.get();
+	}
+}
@@ -0,0 +1,256 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * GameLatencyBenchmark: Measures how long a move takes to reach the other
+ * player with many games going at once, with the games' events run the way
+ * GameService used to (on the thread that read the move, holding the
+ * GameModel, writing to the players as it goes) and on GameActors, with
+ * the sends run on the games' pool after each event or on the pool for
+ * sends.
+ *
+ * There are no sockets, so 10,000 games fit in one process: a few reader
+ * threads stand in for the server's connection threads or EventLoops, each
+ * with a queue standing in for its clients' sockets. A player's turn
+ * starting is "written" to its reader's queue; the reader takes it, picks a
+ * random free square and makes the move. The latency is from making a move
+ * to the other player's reader taking its turn.
+ *
+ * A write to a slow client (one in every slowEvery players) blocks for a
+ * while, as it would when the client isn't reading and its socket is full.
+ *
+ * Prints the 50th, 90th, 99th and 99.9th percentile and worst latencies and
+ * the moves per second for each way.
+ *
+ * Usage: java GameLatencyBenchmark [games] [readers] [slowEvery] [slowMicros]
+ */
+public class GameLatencyBenchmark {
+
+	private static final int SIZE = 30;
+
+	/**
+	 * One player, who is "connected" to one reader
+	 */
+	private static class Seat implements Player {
+		Table table;
+		int color;
+		Reader reader;
+		boolean slow;
+		GameModel game;
+
+		public void setGameModel(GameModel gameModel) {
+			game = gameModel;
+		}
+
+		public void startTurn() {
+			write(new Runnable() {
+				public void run() {
+					reader.inbox.add(Seat.this);
+				}
+			});
+		}
+
+		public void updateBoardView(int b, int r, int c) {
+			// the board is kept in the Table
+		}
+
+		public void endGame(boolean victory) {
+			if( victory || table.game.getWinner() == 0 && color == 1 )
+				write(new Runnable() {
+					public void run() {
+						table.done.countDown();
+					}
+				});
+		}
+
+		private void write(Runnable deliver) {
+			if( table.actor == null ) {
+				send(deliver);
+				return;
+			}
+			final Runnable d = deliver;
+			table.actor.defer(new Runnable() {
+				public void run() {
+					send(d);
+				}
+			});
+		}
+
+		private void send(Runnable deliver) {
+			if( slow )
+				LockSupport.parkNanos(slowNanos);
+			deliver.run();
+		}
+	}
+
+	/**
+	 * One game, and what its players know of it
+	 */
+	private static class Table {
+		GameModel game;
+		GameActor actor;	// null when moves are made the old way
+		boolean[] taken = new boolean[SIZE * SIZE];
+		int free = SIZE * SIZE;
+		long sentAt;		// when the last move was made
+		Random rand;
+		CountDownLatch done;
+	}
+
+	/**
+	 * A thread reading "sockets", standing in for a connection thread or EventLoop
+	 */
+	private static class Reader extends Thread {
+		final LinkedBlockingQueue<Seat> inbox = new LinkedBlockingQueue<Seat>();
+		long[] latencies = new long[1 << 16];
+		int count;
+
+		public void run() {
+			try {
+				while( true ) {
+					Seat s = inbox.take();
+					if( s.table == null )
+						return;
+					long now = System.nanoTime();
+					if( s.table.sentAt != 0 ) {
+						if( count == latencies.length )
+							latencies = Arrays.copyOf(latencies, count * 2);
+						latencies[count++] = now - s.table.sentAt;
+					}
+					move(s);
+				}
+			} catch( InterruptedException e ) {
+			}
+		}
+	}
+
+	private static long slowNanos;
+
+	public static void main(String[] args) throws Exception {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int slowEvery = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		slowNanos = (args.length > 3 ? Long.parseLong(args[3]) : 2000) * 1000L;
+
+		System.out.printf("%,d games, %d readers, a slow client in every %,d blocking %,d us per write, %d cores, %s game threads%n",
+				games, readers, slowEvery, slowNanos / 1000, Runtime.getRuntime().availableProcessors(),
+				System.getProperty("gomoku.games.threads", "" + Runtime.getRuntime().availableProcessors()));
+		// the first run of each warms up
+		for( int round = 0; round < 2; round++ )
+			for( int way = 0; way < 3; way++ )
+				run(way, games, readers, slowEvery, round == 1);
+		System.out.println(GameActor.stats());
+	}
+
+	private static final String[] WAYS = { "inline:", "actors:", "actors, sends on their own pool:" };
+
+	/**
+	 * @param way 0 the old way, 1 on actors, 2 on actors with a pool for sends
+	 */
+	private static void run(int way, int games, int readers, int slowEvery, boolean print) throws Exception {
+		Reader[] rs = new Reader[readers];
+		for( int i = 0; i < readers; i++ ) {
+			rs[i] = new Reader();
+			rs[i].setDaemon(true);
+			rs[i].start();
+		}
+		CountDownLatch done = new CountDownLatch(games);
+		Table[] tables = new Table[games];
+		Random rand = new Random(42);
+		for( int g = 0; g < games; g++ ) {
+			Table t = tables[g] = new Table();
+			t.rand = new Random(g);
+			t.done = done;
+			Seat a = seat(t, 1, rs[rand.nextInt(readers)], rand.nextInt(slowEvery) == 0);
+			Seat b = seat(t, 2, rs[rand.nextInt(readers)], rand.nextInt(slowEvery) == 0);
+			t.game = new GameModel(a, b);
+			if( way > 0 )
+				t.actor = new GameActor(way == 2);
+		}
+
+		long start = System.nanoTime();
+		for( final Table t : tables ) {
+			if( t.actor == null ) {
+				synchronized( t.game ) {
+					t.game.startGame();
+				}
+			}else {
+				t.actor.post(new Runnable() {
+					public void run() {
+						t.game.startGame();
+					}
+				});
+			}
+		}
+		if( !done.await(10, TimeUnit.MINUTES) )
+			throw new IllegalStateException(done.getCount() + " games didn't finish");
+		long nanos = System.nanoTime() - start;
+
+		int n = 0;
+		for( Reader r : rs ) {
+			Seat stop = new Seat();
+			r.inbox.add(stop);
+			r.join();
+			n += r.count;
+		}
+		long[] all = new long[n];
+		n = 0;
+		for( Reader r : rs ) {
+			System.arraycopy(r.latencies, 0, all, n, r.count);
+			n += r.count;
+		}
+		Arrays.sort(all);
+		if( print )
+			System.out.printf("%-33s %,d moves in %,d ms (%,.0f/s); latency us p50 %,d  p90 %,d  p99 %,d  p99.9 %,d  max %,d%n",
+					WAYS[way], n, nanos / 1000000L, n / (nanos / 1e9),
+					pct(all, 0.5), pct(all, 0.9), pct(all, 0.99), pct(all, 0.999), all[n - 1] / 1000);
+	}
+
+	private static Seat seat(Table t, int color, Reader r, boolean slow) {
+		Seat s = new Seat();
+		s.table = t;
+		s.color = color;
+		s.reader = r;
+		s.slow = slow;
+		return s;
+	}
+
+	private static long pct(long[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.round(p * sorted.length))] / 1000;
+	}
+
+	/**
+	 * A reader makes a move for a player whose turn it is, either straight
+	 * away on its own thread or by posting it to the game's actor
+	 */
+	private static void move(final Seat s) {
+		final Table t = s.table;
+		int r = -1, c = -1;
+		if( t.free > 0 ) {
+			int k;
+			do {
+				k = t.rand.nextInt(SIZE * SIZE);
+			}while( t.taken[k] );
+			t.taken[k] = true;
+			t.free--;
+			r = k / SIZE;
+			c = k % SIZE;
+		}
+		t.sentAt = System.nanoTime();
+		if( t.actor == null ) {
+			synchronized( t.game ) {
+				t.game.updateBoard(s.color, r, c);
+			}
+			return;
+		}
+		final int row = r, col = c;
+		t.actor.post(new Runnable() {
+			public void run() {
+				t.game.updateBoard(s.color, row, col);
+			}
+		});
+	}
+}
@@ -0,0 +1,291 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * GameLoadTest: Has a server host a large number of games at once and
+ * checks that every one of them is played to the end.
+ *
+ * It starts a ServerModel in one of the server modes and connects two
+ * clients per game, which sign in anonymously. Every other client invites
+ * the next one, which accepts, so the server starts all the games together
+ * (see GameService). From then on each client plays like a PlayGameController
+ * would, putting a stone on a random free square whenever its turn starts,
+ * until the server tells it the game is over. The clients ask for binary
+ * game messages unless "text" is given.
+ *
+ * Prints how long the games took, the moves per second, how many games were
+ * going at once and the server's thread count. Before that it measures what
+ * a hosted game keeps on the heap while nobody moves: the growth of the
+ * heap over many idle games, each a GameModel with a RemotePlayer in each
+ * seat and the GameActor the GameService gives it. Exits with status 1 if a game
+ * doesn't finish, a move is rejected, or the wins don't add up.
+ *
+ * The clients all run on one Selector in this JVM. Each uses a socket at
+ * both ends, so the open file limit (ulimit -n) must be over four times the
+ * number of games.
+ *
+ * Usage: java GameLoadTest [threads|virtual|nio] [games] [binary|text]
+ */
+public class GameLoadTest {
+
+	private static final int SIZE = 30;
+
+	/**
+	 * One client, and what it knows of its game
+	 */
+	private static class Client {
+		int id;
+		SocketChannel ch;
+		FrameCodec frames = new FrameCodec();
+		GameCodec game = new GameCodec();
+		String name;
+		boolean[] taken = new boolean[SIZE * SIZE];
+		int free = SIZE * SIZE;
+		boolean binary;
+		boolean started, over, won;
+		Random rand;
+	}
+
+	private static int names, starts, overs;
+	private static boolean useBinary;
+
+	public static void main(final String[] args) throws Exception {
+		TempUsers.run(new TempUsers.Body() {
+			public void run(File dir) throws Exception {
+				GameLoadTest.run(args);
+			}
+		});
+	}
+
+	private static void run(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "nio";
+		int games = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		useBinary = !(args.length > 2 && args[2].equals("text"));
+
+		retained(10000);
+
+		System.setProperty("gomoku.server.mode", mode);
+		int port = 54450;
+		ServerModel model = new ServerModel(port, null);
+
+		int count = 2 * games;
+		Selector selector = Selector.open();
+		Client[] clients = new Client[count];
+		for( int i = 0; i < count; i++ ) {
+			Client c = clients[i] = new Client();
+			c.id = i;
+			c.rand = new Random(i);
+			c.ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			c.ch.configureBlocking(false);
+			c.ch.register(selector, SelectionKey.OP_READ, c);
+		}
+		while( model.getConnectionCount() < count )
+			Thread.sleep(10);
+
+		for( Client c : clients )
+			send(c, Tags.ANON);
+		if( !pump(selector, clients, 0) )
+			fail("only " + names + " of " + count + " clients signed in");
+		for( int i = 0; i < count; i += 2 )
+			send(clients[i], Tags.INVITE + clients[i + 1].name);
+
+		long start = System.nanoTime();
+		int peak = 0;
+		if( !pump(selector, clients, 1) )
+			fail("only " + starts + " of " + count + " players were put in a game");
+		peak = model.getGames().getActiveCount();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		if( !pump(selector, clients, 2) )
+			fail("only " + overs / 2 + " of " + games + " games finished");
+		long nanos = System.nanoTime() - start;
+
+		GameService service = model.getGames();
+		long moves = service.getMoveCount();
+		int won = 0;
+		for( Client c : clients )
+			if( c.won )
+				won++;
+		System.out.printf("%s, %s messages: %,d games in %,d ms, %,d moves (%,.0f/s, %.0f per game), %,d games at once, %d threads%n",
+				mode, useBinary ? "binary" : "text", games, nanos / 1000000L, moves, moves / (nanos / 1e9),
+				moves / (double) games, peak, threads);
+		System.out.println("  " + service.stats());
+		if( service.getFinishedCount() != games )
+			fail(service.getFinishedCount() + " games finished on the server, expected " + games);
+		if( service.stats().indexOf("rejected=0") < 0 )
+			fail("the server rejected moves");
+		if( won > games )
+			fail(won + " winners in " + games + " games");
+
+		for( Client c : clients )
+			c.ch.close();
+		selector.close();
+		model.stopServer();
+	}
+
+	/**
+	 * Prints the heap a hosted game takes, per game and per player, measured
+	 * over a number of idle games
+	 */
+	private static void retained(int games) {
+		Object[] keep = new Object[games];
+		long before = used();
+		for( int i = 0; i < games; i++ ) {
+			RemotePlayer p1 = new RemotePlayer(null, "0." + i, 1, 2, -1);
+			RemotePlayer p2 = new RemotePlayer(null, "0." + i, 2, 1, -1);
+			p1.setOpponent(p2);
+			p2.setOpponent(p1);
+			keep[i] = new GameModel(p1, p2);
+			GameActor actor = new GameActor();
+			p1.setActor(actor);
+			p2.setActor(actor);
+		}
+		long bytes = used() - before;
+		System.out.printf("retained: %,d bytes per hosted game, %,d per player (%,d idle games)%n",
+				bytes / games, bytes / games / 2, keep.length);
+	}
+
+	private static long used() {
+		Runtime rt = Runtime.getRuntime();
+		for( int i = 0; i < 3; i++ )
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Reads and answers messages until every client has reached a stage:
+	 * 0 signed in, 1 in a game, 2 game over. Gives up after a minute of
+	 * nothing happening.
+	 */
+	private static boolean pump(Selector selector, Client[] clients, int stage) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		long quiet = System.nanoTime();
+		while( System.nanoTime() - quiet < 60000000000L ) {
+			int done = stage == 0 ? names : stage == 1 ? starts : overs;
+			if( done == clients.length )
+				return true;
+			if( selector.select(100) > 0 )
+				quiet = System.nanoTime();
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while( it.hasNext() ) {
+				SelectionKey key = it.next();
+				it.remove();
+				Client c = (Client) key.attachment();
+				buf.clear();
+				if( c.ch.read(buf) < 0 ) {
+					key.cancel();
+					continue;
+				}
+				buf.flip();
+				c.frames.feed(buf);
+				int len;
+				while( (len = c.frames.pollFrame()) >= 0 ) {
+					byte[] b = c.frames.buffer();
+					int off = c.frames.frameOffset();
+					if( len > 0 && GameCodec.isBinary(b[off]) )
+						binary(c, b, off, len, clients);
+					else
+						text(c, new String(b, off, len, StandardCharsets.UTF_8), clients);
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void text(Client c, String msg, Client[] clients) throws Exception {
+		String auth = Tags.AUTH_FEEDBACK + Tags.SUCCESS;
+		String invite = Tags.MATCH_FEEDBACK + Tags.INVITE;
+		String game = Tags.GAME_FEEDBACK;
+		if( msg.startsWith(auth) ) {
+			c.name = msg.substring(auth.length());
+			names++;
+		}else if( msg.startsWith(invite) ) {
+			send(c, Tags.RESPOND + Tags.CONFIRM + msg.substring(invite.length()));
+		}else if( msg.startsWith(game + Tags.START_GAME) ) {
+			c.started = true;
+			starts++;
+			if( useBinary )
+				send(c, Tags.GAME_FEEDBACK + Tags.PROTO + Tags.BINARY);
+		}else if( msg.startsWith(game + Tags.PROTO) ) {
+			c.binary = true;
+		}else if( msg.startsWith(game + Tags.START_TURN) ) {
+			move(c);
+		}else if( msg.startsWith(game + Tags.UPDATE_BOARD) ) {
+			String[] ar = msg.substring((game + Tags.UPDATE_BOARD).length()).split(",");
+			take(c, Integer.parseInt(ar[1]), Integer.parseInt(ar[2]));
+		}else if( msg.startsWith(game + Tags.GAME_OVER) ) {
+			over(c, msg.endsWith(Tags.SUCCESS));
+		}
+	}
+
+	private static void binary(Client c, byte[] b, int off, int len, Client[] clients) throws Exception {
+		switch( c.game.decode(b, off, len) ) {
+		case GameCodec.START_TURN:
+			move(c);
+			break;
+		case GameCodec.UPDATE_BOARD:
+			take(c, c.game.getArg1(), c.game.getArg2());
+			break;
+		case GameCodec.GAME_OVER:
+			over(c, c.game.getArg0() == 1);
+			break;
+		}
+	}
+
+	/**
+	 * Plays a random free square, or passes if there is none
+	 */
+	private static void move(Client c) throws Exception {
+		int r = -1, col = -1;
+		if( c.free > 0 ) {
+			int k;
+			do {
+				k = c.rand.nextInt(SIZE * SIZE);
+			}while( c.taken[k] );
+			take(c, k / SIZE, k % SIZE);
+			r = k / SIZE;
+			col = k % SIZE;
+		}
+		if( c.binary )
+			write(c, GameCodec.move(r, col));
+		else
+			send(c, Tags.GAME_FEEDBACK + Tags.MOVE + r + "," + col);
+	}
+
+	private static void take(Client c, int r, int col) {
+		if( !c.taken[r * SIZE + col] ) {
+			c.taken[r * SIZE + col] = true;
+			c.free--;
+		}
+	}
+
+	private static void over(Client c, boolean won) {
+		if( c.over )
+			fail("client " + c.id + " was told its game was over twice");
+		c.over = true;
+		c.won = won;
+		overs++;
+	}
+
+	private static void send(Client c, String msg) throws Exception {
+		write(c, FrameCodec.encode(msg));
+	}
+
+	private static void write(Client c, byte[] frame) throws Exception {
+		ByteBuffer b = ByteBuffer.wrap(frame);
+		while( b.hasRemaining() )
+			c.ch.write(b);
+	}
+
+	private static void fail(String why) {
+		System.out.println("GameLoadTest FAILED: " + why);
+		System.exit(1);
+	}
+}
@@ -10,32 +10,43 @@
 
 public class GameModel {
 
-	private PlayGameController player1;
-	private PlayGameController player2;
-	private int[][] board;
+	private Player player1;
+	private Player player2;
+	private BitBoard board;
 	private final int SIZE = 30;
 	private int turn;
 	private int moves;
-	private int pieces;	
+	private WinDetector winDetector;
 	private boolean gameover = false;
 	private boolean tie = false;
+	private int winner;
 	
 	/*
-	 * @param: plr1		playGameController object
-	 * @paramL plr2 	playGameController object
-	 * board[][] key:
+	 * @param: plr1		the Player who moves first, with piece color 1
+	 * @paramL plr2 	the Player who moves second, with piece color 2
+	 * board key (see BitBoard):
 	 * 		0 = empty space
 	 * 		1 = player 1 in space
 	 * 		2 = player 2 in space
 	 */
-	public GameModel( PlayGameController plr1, PlayGameController plr2) {
+	public GameModel( Player plr1, Player plr2) {
+		this(plr1, plr2, WinDetector.freestyle());
+	}
+
+	/*
+	 * @param: plr1		the Player who moves first, with piece color 1
+	 * @param: plr2 	the Player who moves second, with piece color 2
+	 * @param: rules	the WinDetector for this room's rules (freestyle or standard)
+	 */
+	public GameModel( Player plr1, Player plr2, WinDetector rules) {
+		winDetector = rules;
 		player1 = plr1;
 		player2 = plr2;
 		
 		player1.setGameModel(this);
 		player2.setGameModel(this);
 		
-		board = new int[SIZE][SIZE];
+		board = new BitBoard(SIZE);
 	}
 	
 	/**
@@ -43,7 +54,7 @@ public class GameModel {
 	 */
 	public void startGame() {
 		
-		System.out.println("GameModel.startGame");
+		Log.debug("GameModel.startGame");
 		
 		turn = 1;
 		moves = 0;
@@ -59,13 +70,15 @@ public class GameModel {
 	 */
 	public void updateBoard(int c, int x, int y ) {
 		
-		System.out.println("in GameMod.updateBoard with:"+c+","+x+","+y);
+		if(Log.isDebugEnabled()) Log.debug("in GameMod.updateBoard with:"+c+","+x+","+y);
 		// update board to include the tile 
 		if(x >= 0 && y >= 0) {
 			// This means a move was made
-			board[x][y] = turn;
+			board.set(turn, x, y);
 			if( checkGameOver(x, y) ) {
 				gameover = true;
+				if( !tie )
+					winner = turn;
 				if( turn == 1 )
 					boadcastEndGame( player2 );
 				if( turn == 2 )
@@ -81,12 +94,43 @@ public class GameModel {
 			updateTurn();
 	}
 	
-	private void boadcastEndGame(PlayGameController player12) {
-		if( !tie ) {
+	/**
+	 * Checks a move before it is made, for a host that can't trust its
+	 * players to keep to the rules (see GameService)
+	 * @param player 1 or 2, the player wanting to move
+	 * @param x the row of the move, or -1 to pass when time ran out
+	 * @param y the column of the move, or -1
+	 * @return true if it is that player's turn and the square is on the
+	 * board and empty
+	 */
+	public boolean isLegal(int player, int x, int y) {
+		if( gameover || player != turn )
+			return false;
+		if( x == -1 && y == -1 )
+			return true;
+		return x >= 0 && y >= 0 && x < SIZE && y < SIZE && board.isEmpty(x, y);
+	}
+
+	/**
+	 * Ends the game with a player giving up, e.g. by leaving it
+	 * @param player 1 or 2, the player giving up
+	 */
+	public void resign(int player) {
+		if( gameover )
+			return;
+		gameover = true;
+		winner = 3 - player;
+		boadcastEndGame( player == 1 ? player1 : player2 );
+	}
+
+	private void boadcastEndGame(Player player12) {
+		if( tie ) {
+			// nobody won, the board filled up
 			player1.endGame(false);
 			player2.endGame(false);
+			return;
 		}
-		System.out.println("THE GAME HAS BEEN WON");
+		Log.debug("THE GAME HAS BEEN WON");
 		if( player12 == player1 ) {
 			player1.endGame(false);
 			player2.endGame(true);
@@ -103,10 +147,10 @@ public class GameModel {
 	private void broadcastMove(int c, int x, int y) {
 	
 		if(turn==1) {
-			System.out.println("Broadcasting move to Player2");
+			Log.debug("Broadcasting move to Player2");
 			player2.updateBoardView(c, x, y);
 		}else if(turn==2) {
-			System.out.println("Broadcasting move to Player1");
+			Log.debug("Broadcasting move to Player1");
 			player1.updateBoardView(c, x, y);
 		}
 			
@@ -122,262 +166,70 @@ public class GameModel {
 	private void updateTurn() {
 		if( turn == 1 ) {
 			turn = 2;
-			System.out.println("telling player2 to start turn");
+			Log.debug("telling player2 to start turn");
 			player2.startTurn();
 		} else if( turn == 2 ) {
 			turn = 1;
-			System.out.println("telling player1 to start turn");
+			Log.debug("telling player1 to start turn");
 			player1.startTurn();
 			++moves;
 		}
 	}
 	
 	/*
-	 * @param: x
-	 * @param: y
-	 * @param: win
+	 * Checks whether the move at x,y ended the game, either by making a
+	 * winning line through that square or by filling the last empty space.
+	 * @param: x	the row of the move
+	 * @param: y	the column of the move
 	 */
-	private boolean checkGameOver( int x, int y) {	
-		int spaces = 0;
-		for( int i = 0; i < board.length; i++ ) {
-			for( int k = 0; k < board.length; k++ ) {
-				if( board[i][k] == 0 ) {
-					spaces += 1;
-				}
-			}
-		}
-		if( spaces > 0 ) {
-			System.out.println("Checking Gameover..."); 
-			pieces = 0;
-			if (checkHorizontal( x, y) )
-				return true;
-			else if( checkVertical( x, y) )
-				return true;
-			else if( checkDiagonalLeftRight( x, y) )
-				return true;
-			else if( checkDiagonalRightLeft( x, y) )
-				return true;
-			else 
-				return false;
-		}
-		else {
+	private boolean checkGameOver( int x, int y) {
+		if( winDetector.check(board, turn, x, y) != WinDetector.NONE )
+			return true;
+		// the board keeps its own count of stones, so no need to walk it
+		if( board.isFull() ) {
 			tie = true;
-			return false;
+			return true;
 		}
-		
-		
-		
+		return false;
 	}
-	
-	//Check Rows
-	private boolean checkHorizontal( int x, int y) {
-		boolean r = false;
-		if( board[x][y] == turn ) {
-			pieces++;
-			// Search the board horizontally right:
-			if( y+1 < SIZE && board[x][y+1] == turn) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( y+2 < SIZE && board[x][y+2] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( y+3 < SIZE && board[x][y+3] == turn) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if(y+4 < SIZE && board[x][y+4] == turn) {
-							pieces++;
-							if( checkPieces() )
-								r = true;
-			} } } }
-			// Search the board horizontally left:
-			if( y-1 >= 0 && board[x][y-1] == turn ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( y-2 >= 0 && board[x][y-2] == turn) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( y-3 >= 0 && board[x][y-3] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if( y-4 >= 0 && board[x][y-4] == turn ) {
-							pieces++;
-							if( checkPieces() ) 
-								r = true;
-			} } } }	System.out.println("Checking horz, p="+pieces); 
-		}else {
-			pieces = 0;
-			r = false;
-		}
-		pieces = 0;
-		return r;
+
+	/**
+	 * Getter for the detector, which after a win holds the winning line
+	 * @return the WinDetector used by this game
+	 */
+	public WinDetector getWinDetector() {
+		return winDetector;
 	}
-	
-	//Check Columns 
-	private boolean checkVertical( int x, int y) {
-		boolean r = false;
-		
-		if( board[x][y] == turn ) {
-			pieces++;
-			// Search the board vertically up:
-			if( x-1 >= 0 && board[x-1][y] == turn ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( x-2 >= 0 && board[x-2][y] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( x-3 >= 0 && board[x-3][y] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if( x-4 >= 0 && board[x-4][y] == turn ) {
-							pieces++;
-							if( checkPieces() )
-								r = true;
-			} } } }
-			// Search the board vertically down:
-			if( x+1 < SIZE && board[x+1][y] == turn ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( x+2 < SIZE && board[x+2][y] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( x+3 < SIZE && board[x+3][y] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if( x+4 < SIZE && board[x+4][y] == turn ) {
-							pieces++;
-							if( checkPieces() ) 
-								r = true;
-			} } } } System.out.println("Checking Vert, p="+pieces); 
-		}else {
-			pieces = 0;
-			r = false;
-		}
-		
-		pieces = 0;
-		return r;
+
+	/**
+	 * Getters for the outcome of the game
+	 */
+	public boolean isGameOver() {
+		return gameover;
 	}
-	
-	//Check Diagonal left to right
-	private boolean checkDiagonalLeftRight( int x, int y) {
-		boolean r = false;
-		if( board[x][y] == turn ) {
-			//increment number of pieces in a row 
-			pieces++;
-			// searches the board up to the left == check for 5 pieces in a row after each new piece found
-			 if( x-1 >= 0 && y-1 >= 0 && board[x-1][y-1] == turn   ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( x-2 >= 0 && y-2 >= 0 && board[x-2][y-2] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( x-3 >= 0 && y-3 >= 0 && board[x-3][y-3] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if( x-4 >= 0 && y-4 >= 0 && board[x-4][y-4] == turn ) {
-							pieces++;
-							if( checkPieces() )
-								r = true;
-			} } } } // searches the board down to the right
-			if( x+1 < SIZE && y+1 < SIZE  && board[x+1][y+1] == turn ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( x+2 < SIZE && y+2 < SIZE && board[x+2][y+2] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( x+3 < SIZE && y+3 < SIZE && board[x+3][y+3] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if( x+4 < SIZE && y+4 < SIZE && board[x+4][y+4] == turn ) {
-							pieces++;
-							if( checkPieces() )
-								r = true;
-			} } } } System.out.println("Checking Diag LR, p="+pieces); 
-		} else {
-			pieces = 0;
-			r = false;
-		}
-		pieces = 0;
-		return r;
+	public boolean isTie() {
+		return tie;
 	}
-	
-	//Check Diagonal right to left
-	private boolean checkDiagonalRightLeft( int x, int y) {
-		boolean r = false;
-		if( board[x][y] == turn ) {
-			//increment number of pieces in a row 
-			pieces++;
-			// searches the board up to the right == check for 5 pieces in a row after each new piece found
-			if( x-1 >= 0 && y+1 < SIZE && board[x-1][y+1] == turn ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( x-2 >= 0 && y+2 < SIZE && board[x-2][y+2] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if(x-3 >= 0 && y+3 < SIZE && board[x-3][y+3] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if(x-4 >= 0 && y+4 < SIZE && board[x-4][y+4] == turn ) {
-							pieces++;
-							if( checkPieces() )
-								r = true;
-			} } } } // searches the board down to the left
-			if( x+1 < SIZE && y-1 >= 0 && board[x+1][y-1] == turn ) {
-				pieces++;
-				if( checkPieces() )
-					r = true;
-				if( x+2 < SIZE && y-2 >= 0 && board[x+2][y-2] == turn ) {
-					pieces++;
-					if( checkPieces() )
-						r = true;
-					if( x+3 < SIZE && y-3 >= 0 && board[x+3][y-3] == turn ) {
-						pieces++;
-						if( checkPieces() )
-							r = true;
-						if( x+4 < SIZE && y-4 >= 0 && board[x+4][y-4] == turn ) {
-							pieces++;
-							if( checkPieces() )
-								r = true;
-			} } } } System.out.println("Checking Diag RL, p="+pieces); 
-		} else{
-			pieces = 0;
-			r = false;
-		}
-		pieces = 0;
-		return r;
+
+	/**
+	 * @return 1 or 2 for the player who won, or 0 if the game is still going
+	 * or was a tie
+	 */
+	public int getWinner() {
+		return winner;
 	}
-	
-	
-	private boolean checkPieces() {
-		System.out.print(" "+pieces);
-		if( pieces == 5 ) {
-			System.out.println("GameModel.checkPieces = TRUE---");
-			return true;
-		}else {
-			return false;
-		}
-			
-		
-			
+
+	/**
+	 * @return 1 or 2 for the player whose turn it is
+	 */
+	public int getTurn() {
+		return turn;
+	}
+
+	/**
+	 * @return the number of stones that have been placed
+	 */
+	public int getStoneCount() {
+		return board.stoneCount();
 	}
 }
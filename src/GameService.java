@@ -0,0 +1,465 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GameService hosts games on the server. When an invite is accepted the
+ * server makes the GameModel, with a RemotePlayer for each of the two
+ * clients, and the moves go back and forth over the connections the
+ * clients already have to the lobby. Before this, the client accepting an
+ * invite hosted the game on a ServerSocket of its own, on a fixed port, and
+ * the other client connected to it directly: one game per machine, nothing
+ * behind NAT, and the server never saw the games.
+ *
+ * The server now decides what happened. A move is only made if it is that
+ * player's turn and the square is free, and the wins and losses are
+ * recorded when the GameModel says the game is over, rather than when the
+ * clients report it. A player who leaves the game, or whose connection
+ * drops, loses it.
+ *
+ * The server keeps the turn clock too. When a player's turn starts a
+ * timeout is set on the TimerWheel, for gomoku.turn.seconds (125 by
+ * default: the clients' own 120 and time for their pass to arrive); if it
+ * is still that player's turn when it goes off, the game takes the same
+ * path as a client whose time ran out, updateBoard with -1,-1, and the turn
+ * passes. 0 leaves the clock to the clients.
+ *
+ * A game has no thread of its own. Each has a GameActor, and the thread
+ * that read a move (a ClientConnection's thread, an EventLoop in nio mode,
+ * or the ClusterBus) posts it there and goes back to reading. The game's
+ * events run one at a time on the pool shared by all games, so the two
+ * players' moves can't cross, and what the game sends its players is only
+ * written once the move has been made (see RemotePlayer). By then the
+ * players of a game that is over have been let go, so they can be invited
+ * again as soon as they hear of the end.
+ *
+ * In a cluster (see ClusterBus) each game gets an id, and is hosted by the
+ * node the HashRing gives for the id, which may not be either player's.
+ * That node's GameService makes the GameModel, with a BusPlayer for each
+ * player whose client is on another node, and tells that node with a
+ * [JOIN]. There the client gets a RemotePlayer with no GameModel: its moves
+ * are forwarded to the game's node, what the game says comes back over the
+ * bus, and its result is recorded when the game's [GAMEOVER] arrives, as its
+ * User is only known there. A player who is found to be in another game
+ * when the [JOIN] arrives leaves the new one at once, as if it had quit.
+ */
+public class GameService {
+
+	private final ServerModel model;
+	// this node's clients in a game, hosted here or not
+	private final ConcurrentHashMap<ClientConnection, RemotePlayer> players = new ConcurrentHashMap<ClientConnection, RemotePlayer>();
+	// players of the games hosted here whose clients are on other nodes, by id and name
+	private final ConcurrentHashMap<String, BusPlayer> visitors = new ConcurrentHashMap<String, BusPlayer>();
+	// this node's clients in a game hosted on another node, by id and name
+	private final ConcurrentHashMap<String, RemotePlayer> away = new ConcurrentHashMap<String, RemotePlayer>();
+	private final AtomicLong ids = new AtomicLong();
+	private final long turnMillis = 1000L * Integer.getInteger("gomoku.turn.seconds", 125);
+
+	// metrics
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+	private final AtomicLong moves = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong forwarded = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * @param model the server, for recording results
+	 */
+	public GameService(ServerModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * Starts a game between two clients of this node, unless one of them is
+	 * already in one
+	 * @param first the client who moves first (the one who accepted the invite)
+	 * @param second the other client
+	 * @return true if the game started, or was sent to the node hosting it
+	 */
+	public boolean start(ClientConnection first, ClientConnection second) {
+		if( first == second || second.getUser() == null )
+			return false;
+		return start(first, second.getUser().getUN(), here());
+	}
+
+	/**
+	 * Starts a game between a client of this node and a user on this node
+	 * or another one
+	 * @param first the client who moves first (the one who accepted the invite)
+	 * @param second the other user's name
+	 * @param node the node the other user is on
+	 * @return true if the game started, or was sent to the node hosting it
+	 */
+	public boolean start(ClientConnection first, String second, int node) {
+		User u = first.getUser();
+		if( u == null || players.containsKey(first) )
+			return false;
+		String id = here() + "." + ids.incrementAndGet();
+		ClusterBus bus = model.getCluster();
+		int owner = bus == null ? here() : bus.ownerOf(id);
+		if( owner == here() )
+			return host(id, here(), u.getUN(), node, second);
+		bus.send(owner, Tags.START_GAME + id + " " + here() + " " + u.getUN() + " " + node + " " + second);
+		return true;
+	}
+
+	/**
+	 * Starts a game hosted on this node
+	 * @param id the game's id
+	 * @param node1 the node of the player who moves first
+	 * @param name1 that player's username
+	 * @param node2 the node of the other player
+	 * @param name2 that player's username
+	 * @return false if a player on this node is gone or already in a game
+	 */
+	boolean host(String id, int node1, String name1, int node2, String name2) {
+		// the colors are the ones the two clients had when the accepting one hosted
+		RemotePlayer p1 = seat(id, node1, name1, 1, 2);
+		RemotePlayer p2 = seat(id, node2, name2, 2, 1);
+		if( p1 == null || p2 == null )
+			return false;
+		p1.setOpponent(p2);
+		p2.setOpponent(p1);
+		final GameModel game = new GameModel(p1, p2);
+		GameActor actor = new GameActor();
+		p1.setActor(actor);
+		p2.setActor(actor);
+		if( !claim(p1) )
+			return false;
+		if( !claim(p2) ) {
+			release(p1);
+			return false;
+		}
+		started.incrementAndGet();
+		final RemotePlayer first = p1, second = p2;
+		actor.post(new Runnable() {
+			public void run() {
+				first.announce(second.getName());
+				second.announce(first.getName());
+				// a player may have left before the game got going
+				if( !game.isGameOver() ) {
+					game.startGame();
+					startClock(first);
+				}
+			}
+		});
+		if( Log.isDebugEnabled() ) Log.debug("Started game " + id + " between " + name1 + " and " + name2);
+		return true;
+	}
+
+	/**
+	 * Tells a player whose invite was accepted, or who accepted one, that
+	 * the game could not start after all
+	 * @param node the node the player is on
+	 * @param name the player's username
+	 * @param opponent the other player's username
+	 */
+	void notStarted(int node, String name, String opponent) {
+		if( node != here() ) {
+			model.getCluster().send(node, Tags.BUS_NOGAME + name + " " + opponent);
+			return;
+		}
+		ClientConnection cc = model.lookUp(name);
+		if( cc != null )
+			cc.toClient(Tags.MATCH_FEEDBACK + Tags.FAIL + opponent);
+	}
+
+	private RemotePlayer seat(String id, int node, String name, int seat, int color) {
+		if( node != here() )
+			return new BusPlayer(model.getCluster(), node, name, id, seat, color);
+		ClientConnection cc = model.lookUp(name);
+		return cc == null ? null : new RemotePlayer(cc, id, seat, color, -1);
+	}
+
+	private boolean claim(RemotePlayer p) {
+		if( p instanceof BusPlayer )
+			return visitors.putIfAbsent(key(p.getId(), p.getName()), (BusPlayer) p) == null;
+		if( players.putIfAbsent(p.getConnection(), p) != null )
+			return false;
+		p.getConnection().setInGame(true);
+		return true;
+	}
+
+	private void release(RemotePlayer p) {
+		if( p instanceof BusPlayer ) {
+			visitors.remove(key(p.getId(), p.getName()), p);
+			return;
+		}
+		players.remove(p.getConnection(), p);
+		p.getConnection().setInGame(false);
+	}
+
+	private static String key(String id, String name) {
+		return id + " " + name;
+	}
+
+	private int here() {
+		ClusterBus bus = model.getCluster();
+		return bus == null ? 0 : bus.getNode();
+	}
+
+	/**
+	 * Makes a client's move in its game, or sends it to the node hosting it
+	 * @param cc the client
+	 * @param r the row, or -1 when its time ran out
+	 * @param c the column, or -1
+	 */
+	public void move(ClientConnection cc, int r, int c) {
+		RemotePlayer p = players.get(cc);
+		if( p == null ) {
+			rejected.incrementAndGet();
+			return;
+		}
+		if( p.getHost() >= 0 ) {
+			forwarded.incrementAndGet();
+			model.getCluster().send(p.getHost(), Tags.MOVE + p.getId() + " " + p.getName() + " " + r + " " + c);
+			return;
+		}
+		play(p, r, c);
+	}
+
+	/**
+	 * Makes a move sent by the node of a player in a game hosted here
+	 */
+	void visitorMove(String id, String name, int r, int c) {
+		BusPlayer p = visitors.get(key(id, name));
+		if( p == null ) {
+			rejected.incrementAndGet();
+			return;
+		}
+		play(p, r, c);
+	}
+
+	private void play(final RemotePlayer p, final int r, final int c) {
+		final GameModel game = p.getGameModel();
+		p.getActor().post(new Runnable() {
+			public void run() {
+				if( !game.isLegal(p.getSeat(), r, c) ) {
+					rejected.incrementAndGet();
+					if( Log.isDebugEnabled() ) Log.debug("Rejected move " + r + "," + c + " by " + p.getName());
+					return;
+				}
+				moves.incrementAndGet();
+				turn(p, r, c);
+			}
+		});
+	}
+
+	/**
+	 * Makes a move that has been checked, and starts the other player's
+	 * clock. Called in one of the game's events.
+	 */
+	private void turn(RemotePlayer p, int r, int c) {
+		stopClock(p);
+		p.getGameModel().updateBoard(p.getColor(), r, c);
+		if( p.getGameModel().isGameOver() )
+			finish(p);
+		else
+			startClock(p.getOpponent());
+	}
+
+	/**
+	 * Sets the deadline for a player's turn, which has just started
+	 */
+	private void startClock(final RemotePlayer p) {
+		if( turnMillis <= 0 )
+			return;
+		p.setClock(TimerWheel.shared().schedule(new Runnable() {
+			public void run() {
+				// on the wheel's thread; the pass is the game's business
+				p.getActor().post(new Runnable() {
+					public void run() {
+						// it may have moved, and have a new clock, while this was on its way
+						TimerWheel.Timeout t = p.getClock();
+						if( t == null || !t.isExpired() || !p.getGameModel().isLegal(p.getSeat(), -1, -1) )
+							return;
+						timeouts.incrementAndGet();
+						if( Log.isDebugEnabled() ) Log.debug("Time ran out for " + p.getName() + " in game " + p.getId());
+						turn(p, -1, -1);
+					}
+				});
+			}
+		}, turnMillis));
+	}
+
+	private static void stopClock(RemotePlayer p) {
+		TimerWheel.Timeout t = p.getClock();
+		if( t != null ) {
+			t.cancel();
+			p.setClock(null);
+		}
+	}
+
+	/**
+	 * A client leaves its game, losing it. Does nothing if it isn't in one.
+	 * @param cc the client
+	 */
+	public void resign(ClientConnection cc) {
+		RemotePlayer p = players.get(cc);
+		if( p == null )
+			return;
+		if( p.getHost() >= 0 ) {
+			model.getCluster().send(p.getHost(), Tags.QUIT + p.getId() + " " + p.getName());
+			return;
+		}
+		resign(p);
+	}
+
+	/**
+	 * A player in a game hosted here, whose client is on another node, leaves it
+	 */
+	void visitorResign(String id, String name) {
+		BusPlayer p = visitors.get(key(id, name));
+		if( p != null )
+			resign(p);
+	}
+
+	private void resign(final RemotePlayer p) {
+		final GameModel game = p.getGameModel();
+		p.getActor().post(new Runnable() {
+			public void run() {
+				if( game.isGameOver() )
+					return;
+				game.resign(p.getSeat());
+				finish(p);
+			}
+		});
+	}
+
+	/**
+	 * Records the result of a game that has just ended and frees its
+	 * players. Called in one of the game's events.
+	 */
+	private void finish(RemotePlayer p) {
+		RemotePlayer q = p.getOpponent();
+		stopClock(p);
+		stopClock(q);
+		release(p);
+		release(q);
+		finished.incrementAndGet();
+
+		int winner = p.getGameModel().getWinner();
+		if( winner == 0 )
+			return;		// a tie
+		// the nodes of players elsewhere record theirs when the [GAMEOVER] gets there
+		if( !(p instanceof BusPlayer) )
+			record(p.getConnection().getUser(), p.getSeat() == winner);
+		if( !(q instanceof BusPlayer) )
+			record(q.getConnection().getUser(), q.getSeat() == winner);
+	}
+
+	private void record(User u, boolean win) {
+		if( u == null )
+			return;
+		synchronized( u ) {
+			if( win )
+				u.incrementWins();
+			else
+				u.incrementLosses();
+			model.recordResult(u);
+		}
+	}
+
+	/**
+	 * A client of this node has been put in a game hosted on another node
+	 * @param from the node hosting it
+	 * @param id the game's id
+	 * @param seat 1 if the client moves first, else 2
+	 * @param color its piece color
+	 * @param name its username
+	 * @param opponent the other player's username
+	 */
+	void joined(int from, String id, int seat, int color, String name, String opponent) {
+		ClientConnection cc = model.lookUp(name);
+		RemotePlayer p = cc == null ? null : new RemotePlayer(cc, id, seat, color, from);
+		if( p == null || players.putIfAbsent(cc, p) != null ) {
+			// gone, or in another game: it leaves this one straight away
+			model.getCluster().send(from, Tags.QUIT + id + " " + name);
+			return;
+		}
+		away.put(key(id, name), p);
+		cc.setInGame(true);
+		p.announce(opponent);
+	}
+
+	/**
+	 * @param id a game hosted on another node
+	 * @param name a player in it
+	 * @return the player, if its client is on this node, or null
+	 */
+	RemotePlayer away(String id, String name) {
+		return away.get(key(id, name));
+	}
+
+	/**
+	 * A game hosted on another node is over for a client of this node
+	 * @param result W if it won, L if it lost, T for a tie
+	 */
+	void awayOver(String id, String name, char result) {
+		RemotePlayer p = away.remove(key(id, name));
+		if( p == null )
+			return;
+		players.remove(p.getConnection(), p);
+		p.getConnection().setInGame(false);
+		p.endGame(result == 'W');
+		if( result != 'T' )
+			record(p.getConnection().getUser(), result == 'W');
+	}
+
+	/**
+	 * Another node has left the cluster. Its players lose the games hosted
+	 * here, and the games it hosted are over, with no result, for the
+	 * players here.
+	 * @param node the node
+	 */
+	void nodeLost(int node) {
+		for( BusPlayer p : visitors.values() )
+			if( p.getNode() == node )
+				resign(p);
+		for( RemotePlayer p : away.values() ) {
+			if( p.getHost() == node && away.remove(key(p.getId(), p.getName()), p) ) {
+				players.remove(p.getConnection(), p);
+				p.getConnection().setInGame(false);
+				p.endGame(false);
+			}
+		}
+	}
+
+	/**
+	 * @param cc a client
+	 * @return its game, or null if it isn't in one or the game is hosted on
+	 * another node
+	 */
+	public GameModel getGame(ClientConnection cc) {
+		RemotePlayer p = players.get(cc);
+		return p == null ? null : p.getGameModel();
+	}
+
+	/*
+	 * Metrics, for the games hosted on this node
+	 */
+	public int getActiveCount() {
+		return (int) (started.get() - finished.get());
+	}
+	public long getStartedCount() {
+		return started.get();
+	}
+	public long getFinishedCount() {
+		return finished.get();
+	}
+	public long getMoveCount() {
+		return moves.get();
+	}
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * @return a one line summary of the service's metrics
+	 */
+	public String stats() {
+		return "games started=" + started.get() + " finished=" + finished.get() + " active=" + getActiveCount()
+			+ " moves=" + moves.get() + " rejected=" + rejected.get() + " forwarded=" + forwarded.get()
+			+ " timeouts=" + timeouts.get();
+	}
+}
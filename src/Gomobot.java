@@ -5,27 +5,58 @@
  *
  */
 
-import java.util.Random; 
-public class Gomobot{
+public class Gomobot implements Player{
 
 	final int BOARDSIZE = 30;
 	final int SEARCH_RADIUS = 3;
+	// PlayGameView gives each turn 120 seconds, stay well inside that
+	static final long TURN_LIMIT_MS = 110000;
+	static final long HARD_TIME_MS = Math.min(TURN_LIMIT_MS,
+			Math.max(50, Long.getLong("gomoku.bot.timeMs", 2000)));
 	private int[][] board;
 	private PlayGameController controller; 
+	private GameModel gameModel;	// set when the Gomobot plays a GameModel itself, without a controller
 	private String difficulty; 
 	private int pieceColor;
 	private int numMoves;
+	private ParallelSearch search;
+	private Zobrist zobrist;
+	private long hash;		// Zobrist hash of board, kept up to date move by move
+	private CandidateSet candidates;	// open places within SEARCH_RADIUS of any piece
+	private CandidateSet nextToMine;	// open places right next to this Gomobot's pieces
+	private long totalNodes;
+	private long turnStart;
+	private long thinkNanos;	// time spent choosing moves, summed over the game
+	private long totalSearchMillis;
+	private int lastDepth;		// depth reached by the last HARD search
+	private long lastNodes;		// nodes it searched
 
 	//constructor for AI
 	public Gomobot(PlayGameController p, String diff){
-		difficulty = diff;
+		this(p.getPieceColor(), diff);
 		controller = p; 
+	}
+
+	/**
+	 * Constructor for a Gomobot that is a Player on its own, for games
+	 * with no PlayGameController on its side
+	 * @param color the piece color of the Gomobot, 1 or 2
+	 * @param diff the difficulty of the Gomobot
+	 */
+	public Gomobot(int color, String diff){
+		difficulty = diff;
 		board = new int[BOARDSIZE][BOARDSIZE];
-		pieceColor = controller.getPieceColor();
+		zobrist = Zobrist.forSize(BOARDSIZE);
+		hash = 0;
+		candidates = new CandidateSet(BOARDSIZE, SEARCH_RADIUS);
+		nextToMine = new CandidateSet(BOARDSIZE, 1);
+		pieceColor = color;
 	}
 	
-	//called by the controller, telling it to make a move
+	//called by the controller or the GameModel, telling it to make a move
+	@Override
 	public void startTurn(){
+		turnStart = System.nanoTime();
 		if(this.difficulty.equals("EASY")){
 			makeMoveEasy(); 
 		}
@@ -41,138 +72,153 @@ public class Gomobot{
 	
 	/**
 	 * The move generator for the EASY Gomobot. Randomly selects 
-	 * a place on the board to move and checks if it is clear. 
-	 * If so, it send the move to the controller.
+	 * an open place near the stones already on the board and 
+	 * sends the move to the controller. On an empty board any 
+	 * place is open.
 	 */
 	private void makeMoveEasy(){
-		
-		//something like this
-		boolean done = false; 
-		int r = -2,c = -2;
-		while(!done){
+		int move = candidates.random();
+		int r, c;
+		if(move >= 0) {
+			r = move / BOARDSIZE;
+			c = move % BOARDSIZE;
+		}else {
 			r = (int) Math.floor(Math.random()*BOARDSIZE);
 			c = (int) Math.floor(Math.random()*BOARDSIZE);
-			done = isOpen(r, c);
 		}
-		System.out.println("Gomobot Making Easy move: "+r+","+c);
-		numMoves++;
-		controller.makeMove(r,c); 
-		board[r][c] = pieceColor;
-	}
-
-	private boolean isOpen(int r, int c){
-		boolean ret = false;
-		if(board[r][c] == 0)
-			ret = true;
-		return ret;
+		if(Log.isDebugEnabled()) Log.debug("Gomobot Making Easy move: "+r+","+c);
+		playMove(r, c);
 	}
 
+	/**
+	 * The move generator for the MEDIUM Gomobot. Plays next to one 
+	 * of its own pieces, chosen at random. If none of its pieces 
+	 * has an open place next to it, it moves like the EASY Gomobot.
+	 */
 	private void makeMoveMedium(){
-
-		// choose a random location
-		int startC = (int) Math.floor(Math.random()*BOARDSIZE); 
-		int startR = (int) Math.floor(Math.random()*BOARDSIZE); 
+		int move = nextToMine.random();
 		
-		if(numMoves == 0) {
-			numMoves++;
-			controller.makeMove(3, 3);
-			board[startR][startC] = pieceColor;
+		if(move >= 0) {
+			if(Log.isDebugEnabled()) Log.debug("Gomobot Making Medium move: "+(move / BOARDSIZE)+","+(move % BOARDSIZE));
+			playMove(move / BOARDSIZE, move % BOARDSIZE);
 		}else {
-			int[] move = findPiece(startR, startC);
-			
-			if(move != null) {
-				System.out.println("Gomobot Making Medium move: "+move[0]+","+move[1]);
-				numMoves++;
-				controller.makeMove(move[0], move[1]);
-				board[move[0]][move[1]] = pieceColor;
-			}else {
-				makeMoveEasy();
-			}
-			
-		}	
+			makeMoveEasy();
+		}
 	}
-	
-	
-	private int[] findPiece(int startR, int startC) {
-		
-		int[] arr = new int[]{0,0};
-		int r = (startR+1)%BOARDSIZE, c = 0;
-		boolean doneSearching = false, done = false;
-		int row,col;
-		while(!doneSearching) {
-			
-			// Find a piece of my color
-			while(!done) {
-				while(!done && c < BOARDSIZE && r < BOARDSIZE) {
-					System.out.println("GomoBot: "+r+","+c+": "+board[r][c]);
-					if(board[r][c] == pieceColor){
-						arr[0] = r;
-						arr[1] = c;
-						done = true;
-						System.out.println("GomoBot found a piece");
-					}else {
-						c++;
-					}
-				}
-				c = 0;
-				r = (r+1)%BOARDSIZE;
-			}
-			
-			System.out.println("Gomobot seaching for empty spot");
-			// Find an empty spot around it
-			row = arr[0];
-			col = arr[1];
-			if(row>0 && col>0 && board[row-1][col-1]==0) {
-				arr[0] = row-1;
-				arr[1] = col-1;
-				doneSearching = true;
-			}else if(col>0 && board[row][col-1]==0)  {
-				arr[0] = row;
-				arr[1] = col-1;
-				doneSearching = true;
-			}else if(row<BOARDSIZE && col>0 && board[row+1][col-1]==0) {
-				arr[0] = row+1;
-				arr[1] = col-1;
-				doneSearching = true;
-			}else if(row>0 && board[row-1][col]==0) {
-				arr[0] = row-1;
-				arr[1] = col;
-				doneSearching = true;
-			}else if(row<BOARDSIZE && board[row+1][col]==0) {
-				arr[0] = row+1;
-				arr[1] = col;
-				doneSearching = true;
-			}else if(row>0 && col<BOARDSIZE && board[row-1][col+1]==0) {
-				arr[0] = row-1;
-				arr[1] = col+1;
-				doneSearching = true;
-			}else if(col<BOARDSIZE && board[row][col+1]==0) {
-				arr[0] = row;
-				arr[1] = col+1;
-				doneSearching = true;
-			}else if(col<BOARDSIZE && row<BOARDSIZE && board[row+1][col+1]==0) {
-				arr[0] = row+1;
-				arr[1] = col+1;
-				doneSearching = true;
-			}
-			System.out.println("didnt find one this time");
-			if(!doneSearching) {
-				doneSearching = true;
-				done = false;
-			}
+
+	/**
+	 * The move generator for the HARD Gomobot. Runs an alpha-beta search
+	 * for as long as the time budget allows and plays the best move found.
+	 */
+	private void makeMoveHard(){
+		if(search == null)
+			search = ParallelSearch.fromProperties(BOARDSIZE);
+
+		int[] move = search.findMove(board, hash, pieceColor, HARD_TIME_MS);
+		lastDepth = search.getDepthReached();
+		lastNodes = search.getNodes();
+		totalNodes += lastNodes;
+		totalSearchMillis += search.getElapsedMillis();
+		if(Log.isDebugEnabled())
+			Log.debug("Gomobot HARD move " + (move == null ? "none" : move[0] + "," + move[1]) + ": depth " + search.getDepthReached() +
+					", " + search.getNodes() + " nodes in " + search.getElapsedMillis() + "ms (" + search.getNodesPerSecond() + " nodes/s)");
+
+		if(move != null) {
+			playMove(move[0], move[1]);
+		}else {
+			makeMoveEasy();
 		}
-		if(!done)
-			return null;
+	}
+
+	/**
+	 * Records a move on this Gomobot's board and then sends it to the
+	 * controller. The board is updated first because the controller may not
+	 * return until the opponent has moved too.
+	 */
+	private void playMove(int r, int c) {
+		numMoves++;
+		thinkNanos += System.nanoTime() - turnStart;
+		setSquare(pieceColor, r, c);
+		if(controller != null)
+			controller.makeMove(r, c);
 		else
-			return arr;
+			gameModel.updateBoard(pieceColor, r, c);
 	}
 
-	private void makeMoveHard(){
-		//blahblahblah
+	/**
+	 * Getters for the search statistics of the HARD Gomobot, summed over
+	 * every move it has made, for sizing how many bot games a host can run
+	 */
+	public long getTotalNodes() {
+		return totalNodes;
+	}
+	public long getTotalSearchMillis() {
+		return totalSearchMillis;
+	}
+
+	/**
+	 * Getters for the depth reached and the nodes searched by the HARD
+	 * Gomobot's last move
+	 */
+	public int getLastDepth() {
+		return lastDepth;
+	}
+	public long getLastNodes() {
+		return lastNodes;
+	}
+
+	/**
+	 * Getters for how many moves this Gomobot has made and how long it 
+	 * spent choosing them
+	 */
+	public int getNumMoves() {
+		return numMoves;
+	}
+	public long getThinkNanos() {
+		return thinkNanos;
 	}
 
 	public void updateBoard(int b, int r, int c) {
+		setSquare(b, r, c);
+	}
+
+	@Override
+	public void updateBoardView(int b, int r, int c) {
+		setSquare(b, r, c);
+	}
+
+	@Override
+	public void setGameModel(GameModel gameModel) {
+		this.gameModel = gameModel;
+	}
+
+	@Override
+	public void endGame(boolean victory) {
+		// nothing to show, the next game gets a new Gomobot
+	}
+
+	/**
+	 * @return the piece color this Gomobot plays
+	 */
+	public int getPieceColor() {
+		return pieceColor;
+	}
+
+	/**
+	 * Puts a stone on this Gomobot's board and updates the hash and the
+	 * candidate moves to match. Stones are never taken off the board in a
+	 * game, so a square that already has one is left alone.
+	 */
+	private void setSquare(int b, int r, int c) {
+		if(board[r][c] != 0 || b == 0)
+			return;
 		board[r][c] = b;
+		hash ^= zobrist.key(b, r, c);
+		candidates.place(r, c);
+		if(b == pieceColor)
+			nextToMine.place(r, c);
+		else
+			nextToMine.occupy(r, c);
 	}
 
 
@@ -0,0 +1,433 @@
+/**
+ * GomobotSearch is the search engine behind the HARD Gomobot. It runs an
+ * iterative-deepening alpha-beta (negamax) search over the moves near the
+ * stones already on the board, trying the most threatening moves first
+ * (fives, open fours, fours, open threes, for either colour), and stops when
+ * the time budget for the move runs out. The best move from the deepest
+ * search that finished is played.
+ *
+ * Leaves are scored by a PatternEvaluator, which is updated along with the
+ * board as moves are made and taken back.
+ *
+ * Positions are hashed with Zobrist keys, updated as moves are made and
+ * taken back, and looked up in a TranspositionTable so that a position
+ * reached through a different move order is not searched twice.
+ *
+ * After each search the number of nodes visited, the depth reached and the
+ * nodes per second can be read with the getters.
+ */
+public class GomobotSearch {
+
+	static final int WIN = 1000000;
+	private static final int WIN_BOUND = WIN - 1000;	// scores past this are forced wins or losses
+	static final int MAX_DEPTH = 20;
+	private static final int NEAR = 2;			// how far from a stone a candidate move can be
+	private static final int MAX_WIDTH = 16;	// moves searched at each node below the root
+	private static final int CHECK_TIME = 1023;	// check the clock every 1024 nodes
+
+	// threat pattern scores used to order moves
+	static final int FIVE = 100000;
+	static final int OPEN_FOUR = 10000;
+	static final int FOUR = 1000;
+	static final int OPEN_THREE = 500;
+	static final int THREE = 50;
+	static final int OPEN_TWO = 20;
+	static final int TWO = 5;
+
+	private static final int[] DROW = { 0, 1, 1, 1 };
+	private static final int[] DCOL = { 1, 0, 1, -1 };
+
+	private final int size;
+	private final BitBoard board;
+	private final WinDetector detector = WinDetector.freestyle();
+	private final CandidateSet candidates;	// empty squares within NEAR of a stone
+	private final PatternEvaluator evaluator;
+	private final Zobrist zobrist;
+	private final TranspositionTable tt;
+	private long hash;
+	private int age;	// the table's age for the search going on
+	private int maxDepth = MAX_DEPTH;
+
+	// move lists for each ply, kept so that the search allocates nothing
+	private final int[][] moves;
+	private final int[][] scores;
+
+	private long nodes;
+	private int rootScore;
+	private int depthReached;
+	private long elapsedNanos;
+	private long deadline;
+	private boolean stopped;
+	private volatile boolean abort;		// set by another thread to end the search early
+
+	/**
+	 * @param size the number of rows (and columns) on the board
+	 * @param tt the transposition table to use, or null to search without one
+	 */
+	public GomobotSearch(int size, TranspositionTable tt) {
+		this.size = size;
+		this.tt = tt;
+		zobrist = Zobrist.forSize(size);
+		board = new BitBoard(size);
+		candidates = new CandidateSet(size, NEAR);
+		evaluator = new PatternEvaluator(size);
+		// the root searches every candidate, the plies below it MAX_WIDTH
+		moves = new int[MAX_DEPTH + 1][];
+		scores = new int[MAX_DEPTH + 1][];
+		for( int ply = 0; ply <= MAX_DEPTH; ply++ ) {
+			moves[ply] = new int[ply == 0 ? size * size : MAX_WIDTH];
+			scores[ply] = new int[ply == 0 ? size * size : MAX_WIDTH];
+		}
+	}
+
+	/**
+	 * Finds the best move for a colour in a position
+	 * @param position the board, with 0 for empty and 1 or 2 for a stone
+	 * @param positionHash the Zobrist hash of the board
+	 * @param color the colour to move
+	 * @param timeMillis how long the search may take
+	 * @return the move as {row, col}, or null if the board is full
+	 */
+	public int[] findMove(int[][] position, long positionHash, int color, long timeMillis) {
+		if( tt == null )
+			return findMove(position, positionHash, color, timeMillis, 1, 0);
+		int searchAge = tt.newSearch();
+		try {
+			return findMove(position, positionHash, color, timeMillis, 1, searchAge);
+		} finally {
+			tt.endSearch(searchAge);
+		}
+	}
+
+	/**
+	 * Finds the best move for a colour in a position, starting the iterative
+	 * deepening at a given depth. Helper threads in a ParallelSearch start
+	 * at different depths so they don't all search the same tree. The
+	 * caller starts the table's new search, once for all the threads.
+	 * @param startDepth the first depth to search
+	 * @param searchAge the table's age for the search, from newSearch()
+	 */
+	int[] findMove(int[][] position, long positionHash, int color, long timeMillis, int startDepth, int searchAge) {
+		age = searchAge;
+		load(position);
+		hash = positionHash;
+		long start = System.nanoTime();
+		deadline = start + timeMillis * 1000000L;
+		nodes = 0;
+		depthReached = 0;
+		stopped = false;
+
+		int best = -1;
+		if( board.stoneCount() == 0 ) {
+			best = (size / 2) * size + size / 2;
+		}else {
+			int count = generate(0, color, size * size, TranspositionTable.NO_MOVE);
+			if( count > 0 ) {
+				best = moves[0][0];
+				// making five, or blocking the opponent's five, needs no search
+				if( scores[0][0] < FIVE ) {
+					for( int depth = Math.min(startDepth, maxDepth); depth <= maxDepth && !stopped; depth++ ) {
+						int move = searchRoot(count, depth, color);
+						if( stopped )
+							break;
+						best = move;
+						depthReached = depth;
+						// a forced win or loss was found, searching deeper won't change it
+						if( Math.abs(rootScore) >= WIN - MAX_DEPTH )
+							break;
+					}
+				}
+			}
+		}
+		elapsedNanos = System.nanoTime() - start;
+
+		if( best < 0 )
+			return null;
+		return new int[] { best / size, best % size };
+	}
+
+	/**
+	 * Searches every root move to the given depth. The best move so far is
+	 * moved to the front of the list so the next depth tries it first.
+	 */
+	private int searchRoot(int count, int depth, int color) {
+		int[] list = moves[0];
+		int alpha = -WIN - 1;
+		int bestIndex = 0;
+		for( int i = 0; i < count; i++ ) {
+			int m = list[i];
+			int r = m / size, c = m % size;
+			place(color, r, c);
+			int score;
+			if( detector.check(board, color, r, c) != WinDetector.NONE )
+				score = WIN;
+			else
+				score = -negamax(depth - 1, 1, -WIN - 1, -alpha, 3 - color);
+			remove(r, c);
+			if( stopped )
+				break;
+			if( score > alpha ) {
+				alpha = score;
+				bestIndex = i;
+			}
+		}
+		rootScore = alpha;
+		int best = list[bestIndex];
+		System.arraycopy(list, 0, list, 1, bestIndex);
+		list[0] = best;
+		return best;
+	}
+
+	private int negamax(int depth, int ply, int alpha, int beta, int color) {
+		nodes++;
+		if( (nodes & CHECK_TIME) == 0 && (abort || System.nanoTime() > deadline) ) {
+			stopped = true;
+		}
+		if( stopped )
+			return 0;
+
+		long key = hash ^ zobrist.side(color);
+		int ttMove = TranspositionTable.NO_MOVE;
+		int alphaIn = alpha;
+		// a leaf is evaluated incrementally, cheaper than a probe into a
+		// big table, and its entries would only crowd out deeper ones
+		if( tt != null && depth > 0 ) {
+			long entry = tt.probe(key);
+			if( entry != 0 ) {
+				ttMove = TranspositionTable.move(entry);
+				if( TranspositionTable.depth(entry) >= depth ) {
+					int score = fromTable(TranspositionTable.score(entry), ply);
+					int bound = TranspositionTable.bound(entry);
+					if( bound == TranspositionTable.EXACT )
+						return score;
+					if( bound == TranspositionTable.LOWER && score > alpha )
+						alpha = score;
+					else if( bound == TranspositionTable.UPPER && score < beta )
+						beta = score;
+					if( alpha >= beta )
+						return score;
+				}
+			}
+		}
+
+		if( depth == 0 || ply >= MAX_DEPTH ) {
+			return evaluator.evaluate(color);
+		}
+
+		int count = generate(ply, color, MAX_WIDTH, ttMove);
+		if( count == 0 )
+			return 0;	// board is full, a tie
+		int[] list = moves[ply];
+
+		int best = -WIN - 1;
+		int bestMove = TranspositionTable.NO_MOVE;
+		for( int i = 0; i < count; i++ ) {
+			int m = list[i];
+			int r = m / size, c = m % size;
+			place(color, r, c);
+			int score;
+			if( detector.check(board, color, r, c) != WinDetector.NONE )
+				score = WIN - ply;	// win sooner rather than later
+			else
+				score = -negamax(depth - 1, ply + 1, -beta, -alpha, 3 - color);
+			remove(r, c);
+			if( stopped )
+				return 0;
+			if( score > best ) {
+				best = score;
+				bestMove = m;
+				if( score > alpha ) {
+					alpha = score;
+					if( alpha >= beta )
+						break;
+				}
+			}
+		}
+
+		if( tt != null ) {
+			int bound = best >= beta ? TranspositionTable.LOWER
+					: best > alphaIn ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+			tt.store(key, depth, bound, toTable(best, ply), bestMove, age);
+		}
+		return best;
+	}
+
+	/*
+	 * Win and loss scores depend on how far from the root they were found,
+	 * so they are stored relative to the position instead
+	 */
+	private static int toTable(int score, int ply) {
+		if( score > WIN_BOUND )
+			return score + ply;
+		if( score < -WIN_BOUND )
+			return score - ply;
+		return score;
+	}
+	private static int fromTable(int score, int ply) {
+		if( score > WIN_BOUND )
+			return score - ply;
+		if( score < -WIN_BOUND )
+			return score + ply;
+		return score;
+	}
+
+	/**
+	 * Fills moves[ply] with the empty squares near stones that are most
+	 * threatening (for either side), most threatening first. Only the best
+	 * width of them are kept, by insertion into a list that long, so a node
+	 * that searches a few moves doesn't sort every candidate.
+	 * @param width how many moves to keep
+	 * @param first a move to put first if it is a candidate, such as the
+	 * transposition table's best move, or NO_MOVE
+	 * @return the number of moves
+	 */
+	private int generate(int ply, int color, int width, int first) {
+		int[] list = moves[ply];
+		int[] score = scores[ply];
+		int kept = 0;
+		int firstScore = Integer.MIN_VALUE;	// stays so unless first is a candidate
+		int count = candidates.size();
+		for( int k = 0; k < count; k++ ) {
+			int i = candidates.get(k);
+			int r = i / size, c = i % size;
+			// attacking is worth a little more than blocking the same threat
+			int s = threat(color, r, c) * 2 + threat(3 - color, r, c);
+			if( i == first ) {
+				firstScore = s;
+				continue;
+			}
+			if( kept == width && score[kept - 1] >= s )
+				continue;	// not among the best
+			int j = kept < width ? kept++ : kept - 1;
+			while( j > 0 && score[j - 1] < s ) {
+				list[j] = list[j - 1];
+				score[j] = score[j - 1];
+				j--;
+			}
+			list[j] = i;
+			score[j] = s;
+		}
+		if( firstScore != Integer.MIN_VALUE ) {
+			// in front, with the last of the others making room
+			if( kept == width )
+				kept--;
+			System.arraycopy(list, 0, list, 1, kept);
+			System.arraycopy(score, 0, score, 1, kept);
+			list[0] = first;
+			score[0] = firstScore;
+			kept++;
+		}
+		return kept;
+	}
+
+	/**
+	 * Scores the threats a colour would make by playing on an empty square,
+	 * by looking at the unbroken run it would join in each direction and
+	 * whether the ends of that run are open.
+	 */
+	int threat(int color, int row, int col) {
+		int total = 0;
+		for( int d = 0; d < 4; d++ ) {
+			int dr = DROW[d], dc = DCOL[d];
+			int run = 1;
+			int open = 0;
+
+			int r = row + dr, c = col + dc;
+			while( inside(r, c) && board.has(color, r, c) ) {
+				run++;
+				r += dr;
+				c += dc;
+			}
+			if( inside(r, c) && board.isEmpty(r, c) )
+				open++;
+
+			r = row - dr;
+			c = col - dc;
+			while( inside(r, c) && board.has(color, r, c) ) {
+				run++;
+				r -= dr;
+				c -= dc;
+			}
+			if( inside(r, c) && board.isEmpty(r, c) )
+				open++;
+
+			if( run >= 5 )
+				total += FIVE;
+			else if( open == 0 )
+				continue;
+			else if( run == 4 )
+				total += open == 2 ? OPEN_FOUR : FOUR;
+			else if( run == 3 )
+				total += open == 2 ? OPEN_THREE : THREE;
+			else if( run == 2 )
+				total += open == 2 ? OPEN_TWO : TWO;
+		}
+		return total;
+	}
+
+	private boolean inside(int r, int c) {
+		return r >= 0 && r < size && c >= 0 && c < size;
+	}
+
+	private void load(int[][] position) {
+		board.reset();
+		candidates.clear();
+		evaluator.clear();
+		for( int r = 0; r < size; r++ ) {
+			for( int c = 0; c < size; c++ ) {
+				if( position[r][c] != 0 )
+					place(position[r][c], r, c);
+			}
+		}
+	}
+
+	private void place(int color, int row, int col) {
+		board.set(color, row, col);
+		hash ^= zobrist.key(color, row, col);
+		candidates.place(row, col);
+		evaluator.place(color, row, col);
+	}
+
+	private void remove(int row, int col) {
+		hash ^= zobrist.key(board.get(row, col), row, col);
+		board.clear(row, col);
+		candidates.remove(row, col);
+		evaluator.remove(row, col);
+	}
+
+	/**
+	 * Tells a search running on another thread to stop as soon as it next
+	 * checks the clock. It stays stopped until resume() is called.
+	 */
+	void stop() {
+		abort = true;
+	}
+	void resume() {
+		abort = false;
+	}
+
+	/**
+	 * Limits how deep the iterative deepening goes, for benchmarking with a
+	 * fixed depth instead of a fixed time
+	 * @param depth the deepest search to run, at most MAX_DEPTH
+	 */
+	public void setMaxDepth(int depth) {
+		maxDepth = Math.max(1, Math.min(MAX_DEPTH, depth));
+	}
+
+	/**
+	 * Getters for the statistics of the last search
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+	public int getDepthReached() {
+		return depthReached;
+	}
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+	public long getNodesPerSecond() {
+		return elapsedNanos == 0 ? 0 : nodes * 1000000000L / elapsedNanos;
+	}
+}
@@ -0,0 +1,44 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * HashRing assigns keys to nodes by consistent hashing. Each node is put
+ * on a ring of hash values at a number of points, and a key belongs to the
+ * first node point at or after the key's own hash. Adding or taking away a
+ * node only moves the keys next to its points, about 1/n of them, instead
+ * of nearly all of them as hash % n would.
+ *
+ * The ring is built once and never changed, so it can be read from any
+ * thread.
+ */
+public class HashRing {
+
+	// enough points per node for the shares to come out within a few percent
+	private static final int POINTS = 128;
+
+	private final TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+
+	/**
+	 * @param nodes the number of nodes, numbered from 0
+	 */
+	public HashRing(int nodes) {
+		for( int n = 0; n < nodes; n++ )
+			for( int i = 0; i < POINTS; i++ )
+				ring.put(hash("node" + n + "#" + i), n);
+	}
+
+	/**
+	 * @param key a key, such as a game id
+	 * @return the node the key belongs to
+	 */
+	public int owner(String key) {
+		Map.Entry<Integer, Integer> e = ring.ceilingEntry(hash(key));
+		return e != null ? e.getValue() : ring.firstEntry().getValue();
+	}
+
+	private static int hash(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		return UserSnapshot.hash(b, 0, b.length);
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log is the logging facade used by both the client and the server in place
+ * of System.out. Messages below the level set at startup with the system
+ * property gomoku.log.level (TRACE, DEBUG, INFO, WARN, ERROR or OFF; default
+ * INFO) are thrown away. The level is a static final, so once the JIT has
+ * compiled a call site a disabled level check costs nothing. Messages that
+ * are built by concatenation should be guarded so the String isn't built
+ * either:
+ *
+ * 		if(Log.isDebugEnabled()) Log.debug("move " + r + "," + c);
+ *
+ * Messages that pass are handed to the current LogAppender, by default an
+ * AsyncLogAppender writing to the console on its own thread. The number of
+ * messages logged at each level and the number dropped are kept as metrics.
+ */
+public final class Log {
+
+	public static final int TRACE = 0;
+	public static final int DEBUG = 1;
+	public static final int INFO = 2;
+	public static final int WARN = 3;
+	public static final int ERROR = 4;
+	public static final int OFF = 5;
+
+	private static final String[] NAMES = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "OFF" };
+
+	private static final int LEVEL = parseLevel(System.getProperty("gomoku.log.level", "INFO"));
+
+	private static final LongAdder[] counts = new LongAdder[OFF];
+	static {
+		for( int i = 0; i < counts.length; i++ )
+			counts[i] = new LongAdder();
+	}
+
+	private static volatile LogAppender appender = new AsyncLogAppender(System.out, 8192);
+
+	private Log() {
+	}
+
+	private static int parseLevel(String name) {
+		for( int i = 0; i < NAMES.length; i++ ) {
+			if( NAMES[i].equalsIgnoreCase(name.trim()) )
+				return i;
+		}
+		return INFO;
+	}
+
+	/*
+	 * Level checks, for guarding messages that take work to build
+	 */
+	public static boolean isTraceEnabled() {
+		return LEVEL <= TRACE;
+	}
+	public static boolean isDebugEnabled() {
+		return LEVEL <= DEBUG;
+	}
+	public static boolean isInfoEnabled() {
+		return LEVEL <= INFO;
+	}
+
+	/*
+	 * Logging methods, one per level
+	 */
+	public static void trace(String msg) {
+		if( LEVEL <= TRACE )
+			log(TRACE, msg, null);
+	}
+	public static void debug(String msg) {
+		if( LEVEL <= DEBUG )
+			log(DEBUG, msg, null);
+	}
+	public static void info(String msg) {
+		if( LEVEL <= INFO )
+			log(INFO, msg, null);
+	}
+	public static void warn(String msg) {
+		if( LEVEL <= WARN )
+			log(WARN, msg, null);
+	}
+	public static void warn(String msg, Throwable e) {
+		if( LEVEL <= WARN )
+			log(WARN, msg, e);
+	}
+	public static void error(String msg, Throwable e) {
+		if( LEVEL <= ERROR )
+			log(ERROR, msg, e);
+	}
+
+	private static void log(int level, String msg, Throwable e) {
+		counts[level].increment();
+		appender.append(level, Thread.currentThread().getName(), msg, e);
+	}
+
+	/**
+	 * Replaces the appender that messages are sent to
+	 * @param a the new LogAppender
+	 */
+	public static void setAppender(LogAppender a) {
+		appender = a;
+	}
+
+	/**
+	 * @return the level set at startup
+	 */
+	public static int getLevel() {
+		return LEVEL;
+	}
+
+	/**
+	 * @param level one of TRACE, DEBUG, INFO, WARN or ERROR
+	 * @return the number of messages logged at that level since startup
+	 */
+	public static long getMessageCount(int level) {
+		return counts[level].sum();
+	}
+
+	/**
+	 * @return the number of messages the current appender has dropped
+	 */
+	public static long getDroppedCount() {
+		return appender.getDroppedCount();
+	}
+
+	/**
+	 * @return a one line summary of the log metrics
+	 */
+	public static String stats() {
+		StringBuilder sb = new StringBuilder("log level=").append(NAMES[LEVEL]);
+		for( int i = 0; i < counts.length; i++ )
+			sb.append(' ').append(NAMES[i].toLowerCase()).append('=').append(counts[i].sum());
+		sb.append(" dropped=").append(getDroppedCount());
+		return sb.toString();
+	}
+}
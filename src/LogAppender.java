@@ -0,0 +1,23 @@
+/**
+ * A LogAppender is where Log sends the messages that pass its level check.
+ * The default is an AsyncLogAppender writing to the console, but any
+ * appender can be plugged in with Log.setAppender.
+ */
+public interface LogAppender {
+
+	/**
+	 * Takes one log message. Called on the thread that logged it, so this
+	 * should not block.
+	 * @param level the level of the message (Log.TRACE ... Log.ERROR)
+	 * @param thread the name of the thread that logged it
+	 * @param message the message text
+	 * @param error an exception to go along with the message, or null
+	 * @return false if the message had to be dropped
+	 */
+	boolean append(int level, String thread, String message, Throwable error);
+
+	/**
+	 * @return the number of messages this appender has dropped
+	 */
+	long getDroppedCount();
+}
@@ -0,0 +1,128 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * LoginBenchmark: Times the ServerModel's user lookups with a large number
+ * of registered users.
+ *
+ * It writes a users.txt of that many users in a scratch directory, starts a
+ * ServerModel on it (which imports it into a UserStore) and then, through
+ * one client connection, logs every user in, looks every one
+ * up as an invite would, signs in anonymous users and registers new ones,
+ * printing the time per operation. For comparison it also times finding
+ * users by going through a list of them, the way logins used to.
+ *
+ * Usage: java LoginBenchmark [users] [anonymous] [registering]
+ */
+public class LoginBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int anons = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		final int registering = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		TempUsers.run(new TempUsers.Body() {
+			public void run(File dir) throws Exception {
+				File file = new File(dir, "users.txt");
+				BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+				for( int i = 0; i < count; i++ )
+					bw.write("bench" + i + "\npw" + i + "\n0\n");
+				bw.close();
+
+				LoginBenchmark.run(count, anons, registering);
+			}
+		});
+	}
+
+	private static void run(int count, int anons, int registering) throws Exception {
+		System.setProperty("gomoku.server.mode", "nio");
+		int port = 54420;
+		long start = System.nanoTime();
+		ServerModel model = new ServerModel(port, null);
+		System.out.printf("loaded %,d users in %,d ms%n", model.getUsers().size(), (System.nanoTime() - start) / 1000000L);
+
+		// every user logs in at this one connection
+		SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+		while( model.getConnectionCount() < 1 )
+			Thread.sleep(10);
+		ClientConnection con = model.getList().get(0);
+
+		// in a random order, so nothing is helped by the order of the file
+		int[] order = new int[count];
+		Random rand = new Random(1);
+		for( int i = 0; i < count; i++ ) {
+			int j = rand.nextInt(i + 1);
+			order[i] = order[j];
+			order[j] = i;
+		}
+
+		start = System.nanoTime();
+		int ok = 0;
+		for( int i : order )
+			if( model.authenticate("bench" + i, "pw" + i, con).equals(Tags.SUCCESS) )
+				ok++;
+		report("login", count, start);
+		if( ok != count )
+			throw new IllegalStateException("only " + ok + " of " + count + " logins succeeded");
+
+		start = System.nanoTime();
+		int found = 0;
+		for( int i : order )
+			if( model.lookUp("bench" + i) != null )
+				found++;
+		report("lookUp", count, start);
+		if( found != count )
+			throw new IllegalStateException("only " + found + " of " + count + " users found online");
+
+		start = System.nanoTime();
+		for( int i = 0; i < anons; i++ )
+			model.newAnon(con);
+		report("newAnon", anons, start);
+
+		// timed until the last one is on disk
+		start = System.nanoTime();
+		final CountDownLatch saved = new CountDownLatch(registering);
+		ServerModel.Registered done = new ServerModel.Registered() {
+			public void registered(String servMsg) {
+				saved.countDown();
+			}
+		};
+		for( int i = 0; i < registering; i++ )
+			model.register("new" + i, "pw", con, done);
+		saved.await();
+		report("register", registering, start);
+		System.out.printf("  %,d users known, %,d online%n", model.getUsers().size(), model.getUsers().onlineCount());
+
+		// what the same logins cost going through a list
+		ArrayList<User> list = new ArrayList<User>(model.getUsers().all());
+		int sample = Math.min(count, 1000);
+		start = System.nanoTime();
+		found = 0;
+		for( int s = 0; s < sample; s++ ) {
+			String un = "bench" + order[s];
+			for( User u : list ) {
+				if( u.getUN().equals(un) ) {
+					found++;
+					break;
+				}
+			}
+		}
+		long scanNanos = (System.nanoTime() - start) / sample;
+		System.out.printf("%-9s %,10d ns each, %,d ms for all %,d (list of %,d, found %d of %d)%n", "list scan",
+				scanNanos, scanNanos * count / 1000000L, count, list.size(), found, sample);
+
+		ch.close();
+		model.stopServer();
+	}
+
+	private static void report(String what, int n, long start) {
+		long nanos = System.nanoTime() - start;
+		System.out.printf("%-9s %,10d ns each, %,d ms for all %,d%n", what, nanos / Math.max(n, 1), nanos / 1000000L, n);
+	}
+}
@@ -101,6 +101,8 @@ public class LoginController {
 			loginView.updateMessage("Error: incorrect password");
 		}else if(s.startsWith(Tags.UN_TAKEN)){
 			loginView.updateMessage("Error: Someone has already taken that username.");
+		}else if(s.startsWith(Tags.FAIL)){
+			loginView.updateMessage("Error: the server could not save your account, try again.");
 		}else if(s.startsWith(Tags.UPDATEONLINE)) {
 			loginView.updateMessage("Error: That user is already logged in.");
 		}else {
@@ -115,7 +117,7 @@ public class LoginController {
 	 */
 	public void processMessage(String s){
 		
-		System.out.println("do i get here?");
+		Log.debug("do i get here?");
 		if(s.startsWith(Tags.SUCCESS)) {
 			String un = s.substring(Tags.SUCCESS.length(), s.length());
 			masterCon.setUsername(un);
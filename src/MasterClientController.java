@@ -1,6 +1,5 @@
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
 /**
  * Object that hold master control of the processes of the client 
  * side of Gomoku.  All communication with the Server must go through 
@@ -13,6 +12,9 @@ import java.util.Scanner;
  * @author Emily Shane
  * @author Ethan Wiederspan
  * 
+ * Games against other players are hosted by the server: once an invite is
+ * accepted the server sends [GAME][START] to both players, and the game's
+ * messages go over the connection to the server like everything else.
  */
 public class MasterClientController implements Runnable{
 	private Thread worker;
@@ -63,13 +65,20 @@ public class MasterClientController implements Runnable{
 	 * Sends Message to server
 	 */
 	public boolean sendMessage( String msg ) {
-		String message = msg+"\n";
-		
-		byte[] buff;
-		buff = message.getBytes();
-		
 		try {
-			dout.write(buff, 0, message.length() );
+			FrameCodec.write(dout, msg);
+			return true;
+		} catch ( Exception e ) {
+			return false;
+		}
+	}
+
+	/*
+	 * Sends a message that is already a frame (see GameCodec) to the server
+	 */
+	public boolean sendFrame( byte[] frame ) {
+		try {
+			dout.write(frame);
 			dout.flush();
 			return true;
 		} catch ( Exception e ) {
@@ -77,6 +86,33 @@ public class MasterClientController implements Runnable{
 		}
 	}
 	
+	/**
+	 * The handlers for the messages from the server, by tag. Each passes 
+	 * the rest of the message on to the controller for the current view.
+	 */
+	static final ProtocolRegistry<MasterClientController> PROTOCOL = new ProtocolRegistry<MasterClientController>("client");
+	static {
+		PROTOCOL.on(Tags.AUTH_FEEDBACK, new ProtocolRegistry.Handler<MasterClientController>() {
+			public void handle(MasterClientController mc, String msg, int body) {
+				mc.logCon.processMessage(msg.substring(body, msg.length()));
+			}
+		});
+		PROTOCOL.on(Tags.MATCH_FEEDBACK, new ProtocolRegistry.Handler<MasterClientController>() {
+			public void handle(MasterClientController mc, String msg, int body) {
+				mc.matchCon.processMessage(msg.substring(body, msg.length()));
+			}
+		});
+		PROTOCOL.on(Tags.GAME_FEEDBACK, new ProtocolRegistry.Handler<MasterClientController>() {
+			public void handle(MasterClientController mc, String msg, int body) {
+				if(msg.startsWith(Tags.START_GAME, body)) {
+					mc.startGame(msg.substring(body + Tags.START_GAME.length(), msg.length()));
+				}else if(mc.gameCon != null) {
+					mc.gameCon.processMessage(msg);
+				}
+			}
+		});
+	}
+
 	/*
 	 * Starts a second thread to receive messages from Server
 	 * To be called in Main method
@@ -92,33 +128,35 @@ public class MasterClientController implements Runnable{
 	 * the message further onto the correct controller for the current view 
 	 */
 	public void run() {
-		byte [] buffer = new byte[1000];
-		Scanner mScan;
+		FrameCodec frames = new FrameCodec();
 		
 		
 		while( true ) {
 			try {
-				String fullMessage = "";
-				String msg = "";
-				int msgTemp = in.read(buffer);
-				if( msgTemp > 0 ) {
-					fullMessage = new String(buffer, 0, msgTemp);
-					
-					mScan = new Scanner(fullMessage);
-					while(mScan.hasNext()) {
-						msg = mScan.nextLine();
-						if( msg.startsWith(Tags.AUTH_FEEDBACK) ) {
-							logCon.processMessage(msg.substring(Tags.AUTH_FEEDBACK.length(), msg.length()));
-						}
-						else if(msg.startsWith(Tags.MATCH_FEEDBACK))
-							matchCon.processMessage(msg.substring(Tags.MATCH_FEEDBACK.length(), msg.length()));
-						else if(msg.startsWith(Tags.HOST))
-							this.joinGame(msg.substring(Tags.HOST.length(), msg.length()));
-					}
+				int len = frames.readFrame(in);
+				if( len < 0 ) {
+					Log.warn("Lost connection to the server");
+					Log.info(PROTOCOL.stats());
+					Log.info(MatchmakingController.PROTOCOL.stats());
+					break;
+				}
+				byte[] buf = frames.buffer();
+				int off = frames.frameOffset();
+				if( len > 0 && GameCodec.isBinary(buf[off]) ) {
+					// a binary game message
+					if( gameCon != null )
+						gameCon.processFrame(buf, off, len);
+					continue;
 				}
+				PROTOCOL.dispatch(this, new String(buf, off, len, java.nio.charset.StandardCharsets.UTF_8));
 				
+			} catch (java.net.ProtocolException e) {
+				Log.warn("Bad message from the server: " + e.getMessage());
+				break;
 			} catch (Exception e) {
-				System.out.println( "Error receiving messages: " + e.toString());
+				Log.warn("Error receiving messages: " + e.toString());
+				if( sock.isClosed() )
+					break;
 			}
 		}
 	}
@@ -137,40 +175,15 @@ public class MasterClientController implements Runnable{
 	}
 	
 	/**
-	* called when invite has been accepted and this Controller needs
-	* to connect to the new serversocket via the gameCon
-	*/
-	public void joinGame(String info){
-		int gamePort = Integer.parseInt(info.substring(0,4));
-		String gameIP = info.substring(4,info.length());
-		gameCon = new PlayGameController("opponent",gameIP,gamePort);
-		gameCon.setMaster(this);
-	}
-	
-	/**
-	 * called when accepting an invite
+	 * called when the server starts a game between this player and another
+	 * @param info the piece color this player draws its moves in and the 
+	 * opponent's username: color,username
 	 */
-	public void hostGame(int port) {
-		
-		// Make Player1, a local controller
-		gameCon = new PlayGameController("opponent");
-		
-		// Make Player2, the local representation of the remote player
-		// This will act as the Server that the Client player will connect to
-		
-		PlayGameController player2 = new PlayGameController("opponent", port);
-		this.sendMessage(Tags.HOST+port);
-		
-		// took out loop
-		
-		System.out.println("Both players connected, starting game");
-		
-		gameCon.setMaster(this);
-		player2.setMaster(this);
-		
-		// Make the Game Model
-		GameModel board = new GameModel(gameCon, player2);	
-		board.startGame();
+	public void startGame(String info){
+		int comma = info.indexOf(',');
+		int color = Integer.parseInt(info.substring(0,comma));
+		String opponent = info.substring(comma+1,info.length());
+		gameCon = new PlayGameController(opponent, this, color);
 	}
 	
 	public void offlineGame(String difficulty) {
@@ -178,14 +191,21 @@ public class MasterClientController implements Runnable{
 		gameCon = new PlayGameController("opponent");
 		PlayGameController player2 = new PlayGameController("opponent", difficulty);
 		
-		System.out.println("Both players connected, starting game");
+		Log.debug("Both players connected, starting game");
 		
 		gameCon.setMaster(this);
 		player2.setMaster(this);
 		
-		// Make the Game Model
-		GameModel board = new GameModel(gameCon, player2);	
-		board.startGame();
+		// Make the Game Model, run on its own GameActor
+		final GameModel board = new GameModel(gameCon, player2);	
+		GameActor actor = new GameActor();
+		gameCon.setActor(actor);
+		player2.setActor(actor);
+		actor.post(new Runnable() {
+			public void run() {
+				board.startGame();
+			}
+		});
 		
 	}
 
@@ -231,12 +251,14 @@ public class MasterClientController implements Runnable{
 
 	public void disconnect(int status){
 
-		System.out.println("in masterCon.disconnect with status: "+status);
+		if(Log.isDebugEnabled()) Log.debug("in masterCon.disconnect with status: "+status);
 
-		System.out.println("gameCon: "+gameCon + "  \nMatchCon:" + matchCon);
+		if(Log.isDebugEnabled()) Log.debug("gameCon: "+gameCon + "  \nMatchCon:" + matchCon);
 		
 		if(status==1) {// from Matchmaking
 			this.sendMessage(Tags.DISCONNECT);
+			Log.info(PROTOCOL.stats());
+			Log.info(MatchmakingController.PROTOCOL.stats());
 			System.exit(0);
 		}if(status==2) {
 			// the View will be disposed and only matchmaking will remain. 
@@ -20,7 +20,6 @@ public class MatchmakingController {
 	private MatchmakingView matchView;
 	ArrayList<String> requestsSent; 
 	ArrayList<String> requestsReceived; 
-	public static final int HOSTPORT = 5432; 
 
 	/**
 	 * constructor for the MatchmakerController
@@ -53,27 +52,44 @@ public class MatchmakingController {
 		//when i respond to invite, i data=RESPOND[confirmdeny]username(mine)
 		//when they respond to me, data= RESPOND[confirmdeny]username(theirs)
 		
-		
-		if(data.startsWith(Tags.INVITE)){
-			this.processRequest(data.substring(Tags.INVITE.length(), data.length())); 			matchView.updateRequests();
-		}
-		else if(data.startsWith(Tags.RESPOND)){
-			this.processResponse(data.substring(Tags.RESPOND.length(), data.length())); 
-			matchView.updateRequests();
-		}
-		else if(data.startsWith(Tags.UPDATEONLINE)){
-				this.updateOnlineUsers(data.substring(Tags.UPDATEONLINE.length(), data.length())); 
-				matchView.updateRequests();
+		PROTOCOL.dispatch(this, data);
+	}
+
+	/**
+	 * The handlers for the matchmaking messages, by tag
+	 */
+	static final ProtocolRegistry<MatchmakingController> PROTOCOL = new ProtocolRegistry<MatchmakingController>("matchmaking");
+	static {
+		PROTOCOL.on(Tags.INVITE, new ProtocolRegistry.Handler<MatchmakingController>() {
+			public void handle(MatchmakingController mc, String data, int body) {
+				mc.processRequest(data.substring(body, data.length()));
+				mc.matchView.updateRequests();
 			}
-		else if(data.startsWith(Tags.CANCELINVITE)){
-			
-			String name = data.substring(Tags.CANCELINVITE.length(), data.length());
-			requestsReceived.remove(name); 
-			matchView.updateRequests();
-		}
-		else if (data.startsWith(Tags.FAIL)){
-			matchView.updateChat(data.substring(Tags.FAIL.length(),data.length()) + " is currently in-game and cannot play at this time.");
-		}
+		});
+		PROTOCOL.on(Tags.RESPOND, new ProtocolRegistry.Handler<MatchmakingController>() {
+			public void handle(MatchmakingController mc, String data, int body) {
+				mc.processResponse(data.substring(body, data.length()));
+				mc.matchView.updateRequests();
+			}
+		});
+		PROTOCOL.on(Tags.UPDATEONLINE, new ProtocolRegistry.Handler<MatchmakingController>() {
+			public void handle(MatchmakingController mc, String data, int body) {
+				mc.updateOnlineUsers(data.substring(body, data.length()));
+				mc.matchView.updateRequests();
+			}
+		});
+		PROTOCOL.on(Tags.CANCELINVITE, new ProtocolRegistry.Handler<MatchmakingController>() {
+			public void handle(MatchmakingController mc, String data, int body) {
+				String name = data.substring(body, data.length());
+				mc.requestsReceived.remove(name);
+				mc.matchView.updateRequests();
+			}
+		});
+		PROTOCOL.on(Tags.FAIL, new ProtocolRegistry.Handler<MatchmakingController>() {
+			public void handle(MatchmakingController mc, String data, int body) {
+				mc.matchView.updateChat(data.substring(body, data.length()) + " is currently in-game and cannot play at this time.");
+			}
+		});
 	}
 	
 	/**
@@ -103,12 +119,10 @@ public class MatchmakingController {
 	 * "Look, received RSVP!"
 	 * processResponse processes another user's 
 	 * response to this user's invitation to play a game. 
-	 * If the invited user answers affirmative, then it
-	 * opens a Socket in preparation for peer-to-peer gameplay.
-	 * @param info, an String array containing the prospective
-	 * opponent's response at element 0, and the prospective
-	 * opponent's IP address at element 1, if the opponent 
-	 * desires to play. 
+	 * If the invited user answers affirmative, the server
+	 * starts the game and tells both players.
+	 * @param info, the prospective opponent's response tag
+	 * followed by their username
 	 * */
 	public void processResponse(String info){
 		
@@ -151,8 +165,7 @@ public class MatchmakingController {
 	 * sendResponse relays this user's response to a received 
 	 * invitation to the MasterClientController, which in turn
 	 * sends the message over the Server. If this user answers
-	 * affirmative, it opens a ServerSocket in preparation for
-	 * peer-to-peer gameplay.
+	 * affirmative, the server starts a game between the two.
 	 * @param answer String representing the user's affirmative/
 	 * negative response to given invitation.
 	 * */
@@ -164,9 +177,7 @@ public class MatchmakingController {
 		masterCon.sendMessage(s); 
 		matchView.updateRequests();
 		
-		if(array[0].equals(Tags.CONFIRM))    
-			masterCon.hostGame(HOSTPORT);
-		    
+		// if it was accepted, the server starts the game
 	}
 	
 	
@@ -174,7 +185,10 @@ public class MatchmakingController {
 	* updateOnlineUsers informs the matchmakingView to update the lobby
 	* which users are on or offline.
 	* @param data a String consisting of tag followed by username.
-	* Tags.ADDUSER/Tags.REMOVEUSERusername
+	* Tags.ADDUSER/Tags.REMOVEUSERusername, or a batch from the server's
+	* PresenceService: Tags.USERLIST followed by everyone online, or
+	* Tags.USERDELTA followed by +username and -username for each change,
+	* separated by spaces
 	*
 	*/
 	public void updateOnlineUsers(String data){
@@ -190,8 +204,37 @@ public class MatchmakingController {
 			matchView.updateChat(data.substring(Tags.REMOVEUSER.length(), data.length())+
 								 " logged off.\n");
 	    }
+	    else if(data.startsWith(Tags.USERLIST)){
+	    	matchView.clearOnline();
+	    	for(String name : names(data, Tags.USERLIST.length())){
+	    		if(!name.equals(masterCon.getUsername()))
+	    			matchView.updateOnline(name);
+	    	}
+	    }
+	    else if(data.startsWith(Tags.USERDELTA)){
+	    	for(String change : names(data, Tags.USERDELTA.length())){
+	    		String name = change.substring(1);
+	    		if(name.equals(masterCon.getUsername()))
+	    			continue;
+	    		if(change.charAt(0) == '+'){
+	    			matchView.updateChat(name + " logged on.\n");
+	    			matchView.updateOnline(name);
+	    		}else{
+	    			matchView.removeOnline(name);
+	    			matchView.updateChat(name + " logged off.\n");
+	    		}
+	    	}
+	    }
 	    
 	}
+
+	/**
+	 * Splits the space separated names after a tag
+	 */
+	private static String[] names(String data, int from){
+		String list = data.substring(from).trim();
+		return list.isEmpty() ? new String[0] : list.split(" ");
+	}
 	/**
 	* cancelRequest sends a message to other users that a previously
 	* sent invite is to be canceled. 
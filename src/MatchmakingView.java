@@ -186,7 +186,15 @@ public class MatchmakingView extends JFrame {
 	 * @param online
 	 */
 	public void updateOnline( String online ) {
-		dlmOnline.addElement( online );
+		if( !dlmOnline.contains(online) )
+			dlmOnline.addElement( online );
+	}
+
+	/**
+	 * Empties the list of online users, before the server sends it whole
+	 */
+	public void clearOnline() {
+		dlmOnline.clear();
 	}
 	
 	/**
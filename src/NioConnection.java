@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioConnection is the socket side of a ClientConnection run by an
+ * NioServer. It reads whatever the client has sent, splits it into
+ * messages with a FrameCodec and hands each one to the ClientConnection,
+ * just as the ClientConnection's own thread does in the thread-per-connection
+ * server. Messages to the
+ * client are queued and written as the channel takes them.
+ *
+ * Reading and writing only happen on the connection's EventLoop. send() can
+ * be called from any thread: off the loop it only queues the message and
+ * asks the loop to write it.
+ *
+ * Messages aren't written one by one. What is queued is copied into the
+ * loop's direct write buffer and written together at the end of the loop's
+ * turn (see EventLoop), so a burst of messages to a client costs one
+ * system call and goes out in as few packets as it fits in. Once a buffer's
+ * worth is queued it is written straight away instead, so a big burst
+ * doesn't wait or pile up. Whatever the channel doesn't take is kept until
+ * the loop says it can take more. Setting gomoku.write.batch to false
+ * writes each message on its own, as before.
+ *
+ * A client that doesn't read what it is sent would have the queue grow
+ * without end. Once more than gomoku.write.maxQueued bytes (1 MB by
+ * default) are waiting for it, the client is dropped.
+ */
+public class NioConnection {
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final ServerController control;
+	private final String ip;
+	private ClientConnection owner;
+	private SelectionKey key;
+
+	private final FrameCodec frames = new FrameCodec();
+
+	// holds the biggest frame with room to spare
+	static final int WRITE_BUFFER = 2 * (FrameCodec.MAX_FRAME + 4);
+	private static final boolean BATCH = !"false".equalsIgnoreCase(System.getProperty("gomoku.write.batch"));
+	private static final int MAX_QUEUED = Integer.getInteger("gomoku.write.maxQueued", 1 << 20);
+
+	private final ConcurrentLinkedQueue<byte[]> out = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger queued = new AtomicInteger();	// bytes in out
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+	private final AtomicBoolean overflowed = new AtomicBoolean();
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushQueued.set(false);
+			flushSoon();
+		}
+	};
+	// only touched on the loop
+	private ByteBuffer unwritten;	// what the channel didn't take last time, or null
+	private boolean flushPending;	// on the loop's list to flush
+	private volatile boolean closed;
+
+	// metrics, for all connections
+	private static final AtomicLong writes = new AtomicLong();
+	private static final AtomicLong bytes = new AtomicLong();
+	private static final AtomicLong messages = new AtomicLong();
+	private static final AtomicLong slow = new AtomicLong();	// clients dropped for not reading
+
+	/**
+	 * @param ch a connected channel, already non-blocking
+	 * @param l the loop that will serve it
+	 * @param c the server's ServerController, told when the client goes away
+	 */
+	public NioConnection(SocketChannel ch, EventLoop l, ServerController c) throws IOException {
+		channel = ch;
+		loop = l;
+		control = c;
+		ip = ((InetSocketAddress) ch.getRemoteAddress()).getAddress().getHostAddress();
+	}
+
+	/**
+	 * Starts reading from the channel. Called once the ClientConnection that
+	 * owns this connection has been made.
+	 * @param cc the ClientConnection to hand messages to
+	 */
+	public void start(ClientConnection cc) {
+		owner = cc;
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = loop.register(channel, SelectionKey.OP_READ, NioConnection.this);
+					if( !out.isEmpty() )
+						flushSoon();
+				}catch( IOException e ) {
+					lost();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the IP address of the client
+	 */
+	public String getIP() {
+		return ip;
+	}
+
+	/**
+	 * @return the loop serving this connection
+	 */
+	public EventLoop getLoop() {
+		return loop;
+	}
+
+	/**
+	 * Queues a message to be written to the client. Drops the client
+	 * instead if too much is queued for it already.
+	 * @param msg the message as a frame (see FrameCodec.encode())
+	 */
+	public void send(byte[] msg) {
+		if( closed )
+			return;
+		if( msg.length > WRITE_BUFFER ) {
+			// the client couldn't read it anyway (see FrameCodec.MAX_FRAME)
+			Log.warn("Not sending a " + msg.length + " byte message to " + ip);
+			return;
+		}
+		if( queued.get() + msg.length > MAX_QUEUED ) {
+			if( overflowed.compareAndSet(false, true) ) {
+				slow.incrementAndGet();
+				Log.warn("Dropping client at " + ip + ": " + queued.get() + " bytes waiting to be written");
+				loop.execute(new Runnable() {
+					public void run() {
+						lost();
+					}
+				});
+			}
+			return;
+		}
+		out.add(msg);
+		messages.incrementAndGet();
+		int now = queued.addAndGet(msg.length);
+		if( !loop.inLoop() ) {
+			if( flushQueued.compareAndSet(false, true) )
+				loop.execute(flushTask);
+		}else if( !BATCH || now >= WRITE_BUFFER / 2 ) {
+			if( unwritten == null )
+				write();
+		}else {
+			flushSoon();
+		}
+	}
+
+	/**
+	 * Has the loop write the queue at the end of its turn. On the loop only.
+	 */
+	private void flushSoon() {
+		if( !BATCH ) {
+			if( unwritten == null )
+				write();
+		}else if( !flushPending ) {
+			flushPending = true;
+			loop.flushLater(this);
+		}
+	}
+
+	/**
+	 * Writes the queue, unless the channel is still full from last time.
+	 * On the loop only.
+	 */
+	void flushNow() {
+		flushPending = false;
+		if( unwritten == null )
+			write();
+	}
+
+	/**
+	 * Called by the loop once the channel, which was full, can take more
+	 */
+	void flush() {
+		write();
+	}
+
+	/**
+	 * Writes as much of the queue as the channel will take, a buffer full at
+	 * a time. If it fills up, what is left of the buffer is kept and the
+	 * loop is asked to call again once it can take more.
+	 */
+	private void write() {
+		if( key == null || closed )
+			return;
+		ByteBuffer buf = loop.writeBuffer();
+		try {
+			while( true ) {
+				buf.clear();
+				if( unwritten != null ) {
+					buf.put(unwritten);
+					unwritten = null;
+				}
+				byte[] head;
+				// a frame always fits in an empty buffer
+				while( (head = out.peek()) != null && head.length <= buf.remaining() ) {
+					buf.put(head);
+					out.poll();
+					queued.addAndGet(-head.length);
+					if( !BATCH )
+						break;
+				}
+				buf.flip();
+				if( !buf.hasRemaining() )
+					break;
+				bytes.addAndGet(channel.write(buf));
+				writes.incrementAndGet();
+				if( buf.hasRemaining() ) {
+					// the buffer is the loop's, the rest is kept here
+					unwritten = ByteBuffer.allocate(buf.remaining());
+					unwritten.put(buf);
+					unwritten.flip();
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if( (key.interestOps() & SelectionKey.OP_WRITE) != 0 )
+				key.interestOps(SelectionKey.OP_READ);
+		}catch( IOException e ) {
+			lost();
+		}catch( CancelledKeyException e ) {
+			// closed by another thread since the check above
+			lost();
+		}
+	}
+
+	/**
+	 * Reads what the client has sent and passes each complete message on
+	 */
+	void read() {
+		ByteBuffer in = loop.readBuffer();
+		in.clear();
+		int n;
+		try {
+			n = channel.read(in);
+		}catch( IOException e ) {
+			n = -1;
+		}
+		if( n < 0 ) {
+			lost();
+			return;
+		}
+		in.flip();
+		frames.feed(in);
+		try {
+			int len;
+			while( !closed && (len = frames.pollFrame()) >= 0 )
+				deliver(len);
+		}catch( java.net.ProtocolException e ) {
+			Log.warn("Dropping client at " + ip + ": " + e.getMessage());
+			lost();
+		}
+	}
+
+	private void deliver(int len) throws java.net.ProtocolException {
+		try {
+			owner.processFrame(frames.buffer(), frames.frameOffset(), len);
+		}catch( RuntimeException e ) {
+			// the thread-per-connection server would lose this client's thread here
+			Log.warn("Bad message from " + ip + ": " + new String(frames.buffer(), frames.frameOffset(), len,
+					java.nio.charset.StandardCharsets.UTF_8), e);
+		}
+	}
+
+	/**
+	 * The client went away or the channel failed: tell the server, which
+	 * closes the connection
+	 */
+	private void lost() {
+		if( closed )
+			return;
+		control.disconnect(owner);
+		close();
+	}
+
+	/**
+	 * Called by the loop when the channel's key has been cancelled
+	 */
+	void closed() {
+		close();
+	}
+
+	/**
+	 * Closes the channel. Can be called from any thread.
+	 */
+	public void close() {
+		if( closed )
+			return;
+		closed = true;
+		out.clear();
+		queued.set(0);
+		try {
+			channel.close();
+		}catch( IOException e ) {
+			Log.warn("Error closing client channel", e);
+		}
+	}
+
+	/**
+	 * @return true once the connection has been closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return a one line summary of the writes to all clients, and the
+	 * number dropped for not reading them
+	 */
+	public static String stats() {
+		long w = writes.get();
+		return "nio writes messages=" + messages.get() + " writes=" + w + " bytes=" + bytes.get()
+			+ " bytes/write=" + (w == 0 ? 0 : bytes.get() / w) + " slow=" + slow.get();
+	}
+}
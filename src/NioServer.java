@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * NioServer is the non-blocking way of running the lobby server. Instead of
+ * a Thread per ClientConnection blocked in read(), a small fixed number of
+ * EventLoops each serve many connections through a Selector, so the number
+ * of clients the server can hold is limited by sockets and memory rather
+ * than by threads.
+ *
+ * One thread accepts connections and hands each to a loop in turn. The
+ * clients see no difference: messages are the same Tags lines, and each
+ * one is handled by the same ClientConnection and ServerModel code as in
+ * the thread-per-connection server.
+ *
+ * ServerController uses this server when the system property
+ * gomoku.server.mode is "nio"; gomoku.server.loops sets the number of
+ * loops (default one per core).
+ */
+public class NioServer implements Runnable {
+
+	private final ServerController control;
+	private final ServerModel model;
+	private final ServerSocketChannel server;
+	private final EventLoop[] loops;
+	private Thread acceptor;
+	private int next;
+	private volatile boolean run;
+
+	/**
+	 * Opens the server's port
+	 * @param c the ServerController
+	 * @param m the ServerModel
+	 * @param port the port to listen on
+	 * @param loopCount the number of event loops
+	 */
+	public NioServer(ServerController c, ServerModel m, int port, int loopCount) throws IOException {
+		control = c;
+		model = m;
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 1024);
+		loops = new EventLoop[Math.max(1, loopCount)];
+		for( int i = 0; i < loops.length; i++ )
+			loops[i] = new EventLoop("nio-loop-" + i);
+	}
+
+	/**
+	 * Starts the loops and the thread that accepts connections
+	 */
+	public void start() {
+		run = true;
+		for( EventLoop loop : loops )
+			loop.start();
+		acceptor = new Thread(this, "nio-accept");
+		acceptor.start();
+	}
+
+	/**
+	 * Accepts connections and gives each one to the next loop
+	 */
+	public void run() {
+		while( run ) {
+			try {
+				SocketChannel ch = server.accept();
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+
+				NioConnection con = new NioConnection(ch, loop, control);
+				ClientConnection cliCon = new ClientConnection(con, control, model);
+				InetSocketAddress addr = (InetSocketAddress) ch.getRemoteAddress();
+				String info = "Client at " + addr.getAddress().getHostAddress() + " on port " + addr.getPort();
+				model.newConnection(cliCon, info);
+				con.start(cliCon);
+			}catch( IOException e ) {
+				if( run )
+					Log.warn("Error accepting connection");
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections and stops the loops
+	 */
+	public void stop() {
+		run = false;
+		try {
+			server.close();
+		}catch( IOException e ) {
+			Log.warn("Error closing server socket", e);
+		}
+		for( EventLoop loop : loops )
+			loop.shutdown();
+	}
+
+	/**
+	 * @return the number of event loops
+	 */
+	public int getLoopCount() {
+		return loops.length;
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * ParallelSearch runs the Gomobot search on several cores at once using
+ * Lazy SMP: every thread runs its own iterative-deepening search of the
+ * same position, and they share one TranspositionTable. Whatever one
+ * thread finds out is picked up by the others through the table, so
+ * together they reach a given depth sooner than one thread would. Half of
+ * the helper threads start one ply deeper so they don't all walk the same
+ * tree in step.
+ *
+ * The calling thread runs the main search; helpers run on a ForkJoinPool
+ * shared by every ParallelSearch in the JVM. When the main search finishes
+ * (or runs out of time) the helpers are told to stop and are joined before
+ * the results are read, so each search's own state is only ever touched by
+ * one thread at a time. The table is the only shared state and needs no locks.
+ *
+ * With one thread no pool is used at all.
+ */
+public class ParallelSearch {
+
+	private static ForkJoinPool pool;
+
+	private final GomobotSearch[] workers;
+	private final TranspositionTable tt;
+
+	private long nodes;
+	private int depthReached;
+	private long elapsedNanos;
+
+	/**
+	 * @param size the number of rows (and columns) on the board
+	 * @param threads the number of threads to search with
+	 * @param tt the table the threads share, or null for none
+	 */
+	public ParallelSearch(int size, int threads, TranspositionTable tt) {
+		this.tt = tt;
+		workers = new GomobotSearch[Math.max(1, threads)];
+		for( int i = 0; i < workers.length; i++ )
+			workers[i] = new GomobotSearch(size, tt);
+	}
+
+	/**
+	 * Makes a search configured from the system properties: the thread
+	 * count from gomoku.bot.threads (default 1), searching with the table
+	 * every such search shares, TranspositionTable.shared()
+	 * @param size the number of rows (and columns) on the board
+	 */
+	public static ParallelSearch fromProperties(int size) {
+		int threads = Integer.getInteger("gomoku.bot.threads", 1);
+		return new ParallelSearch(size, threads, TranspositionTable.shared());
+	}
+
+	private static synchronized ForkJoinPool pool() {
+		if( pool == null )
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Finds the best move for a colour in a position
+	 * @param position the board, with 0 for empty and 1 or 2 for a stone
+	 * @param positionHash the Zobrist hash of the board
+	 * @param color the colour to move
+	 * @param timeMillis how long the search may take
+	 * @return the move as {row, col}, or null if the board is full
+	 */
+	public int[] findMove(final int[][] position, final long positionHash, final int color, final long timeMillis) {
+		long start = System.nanoTime();
+		int helpers = workers.length - 1;
+		// one new search for all the threads, before any of them starts
+		final int age = tt == null ? 0 : tt.newSearch();
+		try {
+			@SuppressWarnings("unchecked")
+			ForkJoinTask<int[]>[] tasks = (ForkJoinTask<int[]>[]) new ForkJoinTask<?>[helpers];
+			for( int i = 0; i < helpers; i++ ) {
+				final GomobotSearch helper = workers[i + 1];
+				final int startDepth = 1 + (i + 1) % 2;
+				helper.resume();
+				tasks[i] = pool().submit(new java.util.concurrent.Callable<int[]>() {
+					@Override
+					public int[] call() {
+						return helper.findMove(position, positionHash, color, timeMillis, startDepth, age);
+					}
+				});
+			}
+
+			int[] best = workers[0].findMove(position, positionHash, color, timeMillis, 1, age);
+			int bestDepth = workers[0].getDepthReached();
+			nodes = workers[0].getNodes();
+
+			for( int i = 0; i < helpers; i++ )
+				workers[i + 1].stop();
+			for( int i = 0; i < helpers; i++ ) {
+				int[] move = tasks[i].join();
+				GomobotSearch helper = workers[i + 1];
+				nodes += helper.getNodes();
+				// a helper that finished a deeper search has the better move
+				if( move != null && helper.getDepthReached() > bestDepth ) {
+					best = move;
+					bestDepth = helper.getDepthReached();
+				}
+			}
+
+			depthReached = bestDepth;
+			elapsedNanos = System.nanoTime() - start;
+			return best;
+		} finally {
+			if( tt != null )
+				tt.endSearch(age);
+		}
+	}
+
+	/**
+	 * Limits how deep every thread searches, for benchmarking
+	 * @param depth the deepest search to run
+	 */
+	public void setMaxDepth(int depth) {
+		for( GomobotSearch w : workers )
+			w.setMaxDepth(depth);
+	}
+
+	/**
+	 * @return the number of threads this search uses
+	 */
+	public int getThreads() {
+		return workers.length;
+	}
+
+	/**
+	 * Getters for the statistics of the last search, summed over all threads
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+	public int getDepthReached() {
+		return depthReached;
+	}
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+	public long getNodesPerSecond() {
+		return elapsedNanos == 0 ? 0 : nodes * 1000000000L / elapsedNanos;
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * PatternEvaluator is the static evaluation for the HARD Gomobot search.
+ * It scores the shapes each colour has on the board (fives, open fours,
+ * fours, open and broken threes, twos) and keeps those scores up to date as
+ * stones are placed and taken back, instead of re-reading the whole board
+ * at every node of the search.
+ *
+ * Every row, column and diagonal is kept as one long, two bits per square
+ * (0 empty, 1 or 2 for a stone, 3 for the edge of the board), with an edge
+ * square at each end. A line's score is the sum of the scores of every
+ * window of six squares along it. A window's six squares are twelve bits,
+ * so its score for each colour is read from a table built once when the
+ * class is loaded. When a square changes only the windows of the four
+ * lines through it that cover that square (at most 24) are looked up again.
+ */
+public class PatternEvaluator {
+
+	static final int FIVE = 100000;
+	static final int OPEN_FOUR = 15000;
+	static final int FOUR = 1500;
+	static final int OPEN_THREE = 1200;
+	static final int THREE = 150;
+	static final int OPEN_TWO = 100;
+	static final int TWO = 10;
+	static final int ONE = 1;
+
+	private static final int WINDOW = 6;
+	private static final int EDGE = 3;
+
+	// SCORE[color - 1][window] for every possible six-square window
+	private static final int[][] SCORE = new int[2][1 << (2 * WINDOW)];
+	static {
+		for( int code = 0; code < SCORE[0].length; code++ ) {
+			SCORE[0][code] = scoreWindow(code, 1);
+			SCORE[1][code] = scoreWindow(code, 2);
+		}
+	}
+
+	private final int size;
+	private final long[] lines;			// rows, then columns, then diagonals, then anti-diagonals
+	private final int[] lengths;		// the number of board squares on each line
+	private final int[] total = new int[2];
+	private long evaluations;
+
+	/**
+	 * @param size the number of rows (and columns) on the board, at most 30
+	 * so a line with its two edge squares fits in a long
+	 */
+	public PatternEvaluator(int size) {
+		if( size > 30 )
+			throw new IllegalArgumentException("board too large for PatternEvaluator: " + size);
+		this.size = size;
+		int diagonals = 2 * size - 1;
+		lines = new long[2 * size + 2 * diagonals];
+		lengths = new int[lines.length];
+		for( int i = 0; i < size; i++ ) {
+			lengths[i] = size;
+			lengths[size + i] = size;
+		}
+		for( int d = 0; d < diagonals; d++ ) {
+			int len = size - Math.abs(d - (size - 1));
+			lengths[2 * size + d] = len;
+			lengths[2 * size + diagonals + d] = len;
+		}
+		clear();
+	}
+
+	/**
+	 * Empties the board
+	 */
+	public void clear() {
+		for( int i = 0; i < lines.length; i++ ) {
+			// every square past the end of the line is edge
+			lines[i] = -1L << (2 * (lengths[i] + 1));
+			lines[i] |= EDGE;
+		}
+		total[0] = 0;
+		total[1] = 0;
+	}
+
+	/**
+	 * Puts a stone on an empty square
+	 * @param color 1 or 2
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 */
+	public void place(int color, int row, int col) {
+		update(row, col, color);
+	}
+
+	/**
+	 * Takes a stone off a square
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 */
+	public void remove(int row, int col) {
+		update(row, col, 0);
+	}
+
+	/**
+	 * @param color the colour to move
+	 * @return how much better the position is for that colour than for the other
+	 */
+	public int evaluate(int color) {
+		evaluations++;
+		return total[color - 1] - total[2 - color];
+	}
+
+	/**
+	 * @param color 1 or 2
+	 * @return the sum of the pattern scores for that colour
+	 */
+	public int score(int color) {
+		return total[color - 1];
+	}
+
+	/**
+	 * @return the number of times evaluate() has been called
+	 */
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	private void update(int row, int col, int value) {
+		int diagonals = 2 * size - 1;
+		// each square is on one row, one column and two diagonals;
+		// positions along the line start at 1 because 0 is the edge
+		change(row, col + 1, value);
+		change(size + col, row + 1, value);
+		change(2 * size + (row - col + size - 1), Math.min(row, col) + 1, value);
+		int anti = row + col;
+		change(2 * size + diagonals + anti, row - Math.max(0, anti - (size - 1)) + 1, value);
+	}
+
+	private void change(int line, int pos, int value) {
+		long bits = lines[line];
+		int len = lengths[line];
+		// windows that cover pos, within the line and its two edge squares
+		int first = Math.max(0, pos - (WINDOW - 1));
+		int last = Math.min(pos, len + 2 - WINDOW);
+
+		int before0 = 0, before1 = 0;
+		for( int s = first; s <= last; s++ ) {
+			int code = (int) (bits >>> (2 * s)) & 0xFFF;
+			before0 += SCORE[0][code];
+			before1 += SCORE[1][code];
+		}
+
+		bits = (bits & ~(3L << (2 * pos))) | ((long) value << (2 * pos));
+		lines[line] = bits;
+
+		int after0 = 0, after1 = 0;
+		for( int s = first; s <= last; s++ ) {
+			int code = (int) (bits >>> (2 * s)) & 0xFFF;
+			after0 += SCORE[0][code];
+			after1 += SCORE[1][code];
+		}
+		total[0] += after0 - before0;
+		total[1] += after1 - before1;
+	}
+
+	/**
+	 * Scores one six-square window for one colour. Squares of the other
+	 * colour and edge squares both block.
+	 */
+	private static int scoreWindow(int code, int color) {
+		int[] cell = new int[WINDOW];
+		for( int i = 0; i < WINDOW; i++ )
+			cell[i] = (code >>> (2 * i)) & 3;
+
+		int best = 0;
+		// the two runs of five squares in the window
+		for( int off = 0; off <= 1; off++ ) {
+			int own = 0;
+			boolean blocked = false;
+			for( int i = off; i < off + 5; i++ ) {
+				if( cell[i] == color )
+					own++;
+				else if( cell[i] != 0 )
+					blocked = true;
+			}
+			if( blocked )
+				continue;
+			if( own == 5 )
+				best = Math.max(best, FIVE);
+			else if( own == 4 )
+				best = Math.max(best, FOUR);
+			else if( own == 3 )
+				best = Math.max(best, THREE);
+			else if( own == 2 )
+				best = Math.max(best, TWO);
+			else if( own == 1 )
+				best = Math.max(best, ONE);
+		}
+
+		// open shapes: both ends of the window empty
+		if( cell[0] == 0 && cell[WINDOW - 1] == 0 ) {
+			int own = 0, empty = 0;
+			for( int i = 1; i < WINDOW - 1; i++ ) {
+				if( cell[i] == color )
+					own++;
+				else if( cell[i] == 0 )
+					empty++;
+			}
+			if( own == 4 )
+				best = Math.max(best, OPEN_FOUR);
+			else if( own == 3 && empty == 1 )
+				best = Math.max(best, OPEN_THREE);	// _xxx_ or broken _xx_x_
+			else if( own == 2 && empty == 2 )
+				best = Math.max(best, OPEN_TWO);
+		}
+		return best;
+	}
+}
@@ -1,47 +1,44 @@
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket; 
-import java.net.Socket;
-import java.util.Scanner;
-
+import javax.swing.SwingUtilities;
 import javax.swing.plaf.OptionPaneUI; 
 
 /**
  * @author NatalieStephenson
  * @author EthanWiederspan
- * Controller for the GamePlay of the Gomoku game. Acts as three 
- * versions of the same Class. One version represents the local 
- * player on the Host's machine. It has reference to the Host 
- * player's View and the Game Model. The second is a local 
- * representation of the client player, it has reference to the 
- * client player's view and the Socket to send data to the client 
- * player.  The Last version is the remote representation of the 
- * client player. This version exists on the host side and receives 
- * data through the Socket and sends it to the Game Model.
+ * Controller for the GamePlay of the Gomoku game. Acts as two 
+ * versions of the same Class. One version represents a local 
+ * player, with reference to the player's View. The other is an 
+ * AI player, with a Gomobot choosing its moves.
+ *
+ * Every game against another person is hosted by the server (see
+ * GameService), with the GameModel on the server: the moves are sent to
+ * the server over the MasterClientController's connection, and the
+ * server's messages come back the same way. An offline game against a
+ * Gomobot has its GameModel here.
  *
+ * In a game against a Gomobot the GameModel runs on a GameActor, so the
+ * bot thinks on the games' pool rather than on the Swing thread the
+ * player's click came in on. Whatever thread the game's events arrive on,
+ * the player's view is only changed on the Swing thread.
  */
-public class PlayGameController implements Runnable{
+public class PlayGameController implements Player{
 
-	private ServerSocket servSock; 
-	private Socket sock; 
-	private Thread clientThread;
-	static final int SSPORT = 5432; 
-	
-	private InputStream in;
-	private OutputStream out;
+	// offer GameCodec's binary messages to the opponent unless gomoku.game.protocol is "text"
+	static final boolean OFFER_BINARY = !"text".equalsIgnoreCase(System.getProperty("gomoku.game.protocol", "binary"));
 	
 	private MasterClientController masterCon;
 	private PlayGameView gameView;
 	private GameModel gameModel;
+	private GameActor actor;	// runs the GameModel's events, if set
 	private Gomobot bot;
 	
 	private int pieceColor; // 1 for white, 2 for black
 	
-	private boolean connected;
-	private Thread worker;
 	private String opponent;
 	private boolean victory = false;
+	private volatile boolean binary = false;	// true once both sides have agreed on binary messages
+	private boolean lobby = false;	// true in a game the server hosts
+	private volatile boolean over = false;
+	private final GameCodec game = new GameCodec();
 
 
 	
@@ -54,7 +51,7 @@ public class PlayGameController implements Runnable{
 	 * @param opp the Username of your opponent
 	 */
 	public PlayGameController(String opp){
-		System.out.println("Making Local Player 1");
+		Log.debug("Making Local Player 1");
 		
 		opponent = opp;
 		pieceColor = 2;
@@ -70,7 +67,7 @@ public class PlayGameController implements Runnable{
 	 * @param b a Gomobot of any difficulty
 	 */
 	public PlayGameController(String opp, String diff) {
-		System.out.println("Making AI Player 2");
+		Log.debug("Making AI Player 2");
 		
 		pieceColor = 1;
 		bot = new Gomobot(this, diff); 
@@ -79,66 +76,26 @@ public class PlayGameController implements Runnable{
 
 	
 	/**
-	 * Constructor for the local controller that receives data from 
-	 * the remote player, gets inputs from the remote player via the
-	 * Socket, sends move to the PlayGameModel which is on this local 
-	 * machine.  Acts as host of the server.
+	 * Constructor for a local player in a game the server hosts. Its 
+	 * moves go to the server, which sends back the other player's.
 	 * 
 	 * @param opp the Username of your opponent
-	 * @param port the port to host the Server on
-	 */
-	public PlayGameController(String opp, int port){
-		System.out.println("Making Local Player 2(Server Host)");
-		opponent = opp;
-		pieceColor = 1;
-		connected = false;
-		
-		//establish ServerSocket
-		try{
-			servSock = new ServerSocket(SSPORT);
-			System.out.println("Made server on "+SSPORT);
-		}catch(IOException e){
-			System.out.println((e.getMessage())); 
-			System.exit(1);
-		}
-		
-		//start Thread to listen for connections and then start listening for messages
-		startListening();
-		
-	}
-	
-	/**
-	 * The Constructor for the remote player, gets input from the 
-	 * remote player's PlayGameView, sends move to the socket, which 
-	 * is read on the by the Host and send to the board.  Acts as the 
-	 * client of the server.
-	 * @param opp the Username of your opponent
-	 * @param ip a String containing the IP Address of the game's host
-	 * @param pt the port of the host Server
+	 * @param m the MasterClientController connected to the server
+	 * @param color the piece color the server gave this player
 	 */
-	public PlayGameController(String opp, String ip, int port){
-		System.out.println("Making Remote Player 2 (Client Player)");
+	public PlayGameController(String opp, MasterClientController m, int color){
+		Log.debug("Making Local Player (server hosted game)");
 		
 		opponent = opp;
-		pieceColor = 1;
-		connected = false;
+		pieceColor = color;
+		masterCon = m;
+		lobby = true;
 		
-		Socket cliSock = null;
-		try{
-			System.out.println("Connecting to "+ ip + " " + port);
-			cliSock = new Socket( ip, port ) ;
-			System.out.println("Connected, sending ..." ) ;
-		}catch(IOException ex){
-			System.out.println("Error: unable to connect to server." );
-			System.out.println((ex.getMessage()));
-		}
 		gameView = new PlayGameView( this );
-		
-		// Start Thread to listen for connections and then start listening for messages
-		// Set connected as true to skip attempting to listen for a client's connection
-		makeConnection(cliSock);
-		startListening();
-		
+		if(OFFER_BINARY) {
+			// a server that doesn't know binary messages ignores this and we keep sending Tags
+			sendMessage(Tags.GAME_FEEDBACK + Tags.PROTO + Tags.BINARY);
+		}
 	}
 	
 	public void setMaster(MasterClientController m) {
@@ -146,118 +103,110 @@ public class PlayGameController implements Runnable{
 	}
 
 	/**
-	 * The method to start the Host's thread to listen for connections 
-	 * to the ServerSocket
+	 * The handlers for the game messages, by the tag that follows [GAME]
 	 */
-	public void startListening(){
-
-		worker = new Thread(this);
-		worker.start();
+	static final ProtocolRegistry<PlayGameController> PROTOCOL = new ProtocolRegistry<PlayGameController>("game");
+	static {
+		PROTOCOL.on(Tags.PROTO, new ProtocolRegistry.Handler<PlayGameController>() {
+			public void handle(PlayGameController pc, String msg, int body) {
+				pc.processProtocol(msg.substring(body, msg.length()));
+			}
+		});
+		PROTOCOL.on(Tags.START_TURN, new ProtocolRegistry.Handler<PlayGameController>() {
+			public void handle(PlayGameController pc, String msg, int body) {
+				pc.startTurn();
+			}
+		});
+		PROTOCOL.on(Tags.MOVE, new ProtocolRegistry.Handler<PlayGameController>() {
+			public void handle(PlayGameController pc, String msg, int body) {
+				pc.processMove(msg.substring(body, msg.length()));
+			}
+		});
+		PROTOCOL.on(Tags.UPDATE_BOARD, new ProtocolRegistry.Handler<PlayGameController>() {
+			public void handle(PlayGameController pc, String msg, int body) {
+				pc.processUpdate(msg.substring(body, msg.length()));
+			}
+		});
+		PROTOCOL.on(Tags.GAME_OVER, new ProtocolRegistry.Handler<PlayGameController>() {
+			public void handle(PlayGameController pc, String msg, int body) {
+				pc.endGame(msg.startsWith(Tags.SUCCESS, body));
+			}
+		});
 	}
-	
+
 	/**
-	 * Thread that waits for a connection from the opponent, called by 
-	 * listenForOpponent, ends Thread after a connection has been made 
-	 * and starts listening to that socket for messages.
+	 * Handles a frame read from the server, either a 
+	 * binary message or a Tags one
+	 * @param buf the buffer holding the frame's body
+	 * @param off where the body starts
+	 * @param len the length of the body
+	 * @throws java.net.ProtocolException if it is a binary message that can't be decoded
 	 */
-	public void run(){
-		Socket cliSock;
-		while(!connected) {
-			try {
-				cliSock = servSock.accept();
-				System.out.println(cliSock);
-				//String info = "Client at " + sock.getInetAddress().getHostAddress() + " on port " +
-					//	sock.getPort();
-				//System.out.println(info);
-				makeConnection(cliSock);
-			} catch (Exception e) {
-				System.out.println("Error accepting connection");
-			}
+	void processFrame(byte[] buf, int off, int len) throws java.net.ProtocolException {
+		if( len > 0 && GameCodec.isBinary(buf[off]) ) {
+			game.decode(buf, off, len);
+			processBinary(game);
+		}else {
+			processMessage(new String(buf, off, len, java.nio.charset.StandardCharsets.UTF_8));
 		}
-		
-		startCommunication();
 	}
-	
-	
+
 	/**
-	 * Creates Streams to communicate through the Socket with the client player
-	 * @param cliSock the Socket of the client
+	 * Processes messages read in from the server and sends the 
+	 * data to the correct functions.
+	 * @param msg the message read from the server
 	 */
-	private void makeConnection(Socket cliSock) {
-		System.out.println("Making Connection..." ) ;
-		connected = true;
-		sock = cliSock;
+	void processMessage(String msg) {
 		
-		try{
-			in = sock.getInputStream();
-			out = sock.getOutputStream();
-			connected = true;
-		}catch(IOException e){
-			System.out.println(e.getMessage());
-		}
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" processing: "+msg);
+		
+		int from = msg.startsWith(Tags.GAME_FEEDBACK) ? Tags.GAME_FEEDBACK.length() : 0;
+		PROTOCOL.dispatch(this, msg, from);
 	}
 
-
 	/**
-	 * Starts listening for messages from the socket
+	 * Handles a binary message, the same way processMessage handles 
+	 * the Tags message it stands for
+	 * @param game the codec holding the decoded message
 	 */
-	public void startCommunication() {	
-		System.out.println("Connected, begining communication..." ) ;
-		byte [] buffer = new byte[1000];
-		Scanner mScan;
-
-		while( true ) {
-			try {
-				String fullMessage = "";
-				String msg = "";
-				int msgTemp = in.read(buffer);
-				if( msgTemp > 0 ) {
-					fullMessage = new String(buffer, 0, msgTemp);
-					mScan = new Scanner(fullMessage);
-					while(mScan.hasNext()) {
-						msg = mScan.nextLine();
-						processMessage(msg);
-					}
-				}
-
-			} catch (Exception e) {
-				if(e.toString().equals("java.net.SocketException: Socket closed") )
-					break;
-				System.out.println( "Error receiving messages: " + e.toString());
-			}
+	private void processBinary(GameCodec game) {
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" processing binary opcode "+game.getOpcode());
+		
+		switch(game.getOpcode()) {
+		case GameCodec.START_TURN:
+			startTurn();
+			break;
+		case GameCodec.MOVE:
+			makeMove(game.getArg0(), game.getArg1());
+			break;
+		case GameCodec.UPDATE_BOARD:
+			updateBoardView(game.getArg0(), game.getArg1(), game.getArg2());
+			break;
+		case GameCodec.GAME_OVER:
+			endGame(game.getArg0() == 1);
+			break;
 		}
 	}
 
-
 	/**
-	 * Processes messages read in from the Socket and sends the 
-	 * data to the correct functions.
-	 * @param msg the message read from the Socket
+	 * Handles [GAME][PROTO]BIN, the server's answer to this player's 
+	 * offer of binary messages: from then on they are used.
+	 * @param proto the protocol named in the message
 	 */
-	private void processMessage(String msg) {
-		
-		System.out.println("Color:"+pieceColor+" processing: "+msg);
-		
-		if(msg.contains(Tags.START_TURN)) {
-			startTurn();
-		}else if( msg.contains(Tags.MOVE)) {
-			processMove( msg.substring(Tags.GAME_FEEDBACK.length(), msg.length()) );
-		}else if( msg.contains(Tags.UPDATE_BOARD) ) {
-			processUpdate( msg.substring(Tags.GAME_FEEDBACK.length(), msg.length()) );
-		}else if(msg.contains(Tags.GAME_OVER)) {
-			if(msg.contains(Tags.SUCCESS)) {endGame(true);}
-			else {endGame(false);}
-		}
+	private void processProtocol(String proto) {
+		if(!OFFER_BINARY || binary || !proto.equals(Tags.BINARY))
+			return;
+		binary = true;
+		Log.debug("Switched to binary game messages");
 	}
 
 	/**
 	 * Extracts the data from a move messages sent to this controller
-	 * @param msg the message containing the move information
+	 * @param msg the move information, row,column
 	 */
 	private void processMove(String msg) {
-		System.out.println("Color:"+pieceColor+" processing Move: "+msg);
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" processing Move: "+msg);
 		
-		msg = msg.substring( Tags.MOVE.length(), msg.length() );
 		String[] ar = msg.split(",");
 		
 		int r = Integer.parseInt(ar[0]);
@@ -268,12 +217,11 @@ public class PlayGameController implements Runnable{
 	
 	/**
 	 * Extracts the data from an update board messages sent to this controller
-	 * @param msg the message containing the update information
+	 * @param msg the update information, color,row,column
 	 */
 	private void processUpdate(String msg) {
-		System.out.println("Color:"+pieceColor+" processing Update: "+msg);
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" processing Update: "+msg);
 	
-		msg = msg.substring( Tags.UPDATE_BOARD.length(), msg.length() );
 		String[] ar = msg.split(",");
 		
 		int b = Integer.parseInt(ar[0]);
@@ -285,25 +233,23 @@ public class PlayGameController implements Runnable{
 	}
 
 	/**
-	 * Sends a message to the Socket to get read from the other PlayerContoller
-	 * @param msg the Message to send to the Socket
+	 * Sends a message to the server over the lobby connection
+	 * @param msg the Message to send
 	 * @return a boolean descibing the success of the send
 	 */
 	private boolean sendMessage(String msg) {
-		System.out.println("Color:"+pieceColor+" sending Message: "+msg);
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" sending Message: "+msg);
 		
-		String message = msg+"\n";
-
-		byte[] buff;
-		buff = message.getBytes();
+		return masterCon.sendMessage(msg);
+	}
 
-		try {
-			out.write(buff, 0, message.length() );
-			out.flush();
-			return true;
-		} catch ( Exception e ) {
-			return false;
-		}
+	/**
+	 * Sends a binary message (see GameCodec) to the server
+	 * @param frame the message as a whole frame
+	 * @return a boolean descibing the success of the send
+	 */
+	private boolean sendFrame(byte[] frame) {
+		return masterCon.sendFrame(frame);
 	}
 
 	/**
@@ -311,27 +257,20 @@ public class PlayGameController implements Runnable{
 	 * based on what type of playerController this is.  
 	 */
 	public void startTurn() {
-		System.out.println("Color:"+pieceColor+" starting turn");
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" starting turn");
 				
 		
-		if(this.gameView != null && this.bot == null) {
-			// If a view exists for this controller, then the player is local.
-			gameView.startTurn();
-		}else if(this.gameView == null && this.bot != null) {
-			// If view doesn't exist but Gomobot does, ask it to take the turn
+		if(this.bot != null) {
+			// If a Gomobot plays for this controller, ask it to take the turn
 			bot.startTurn();
 		}else {
-			// If remote, send signal to socket to start remote turn
-			startRemoteTurn();
-		}		
-	}
-	
-	/**
-	 * Helper method to tell the remote player that their turn has started
-	 */
-	private void startRemoteTurn() {
-		System.out.println("Color:"+pieceColor+" starting turn remotely.");
-		sendMessage(Tags.GAME_FEEDBACK + Tags.START_TURN);
+			// Otherwise a view exists for this controller, and the player is local.
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					gameView.startTurn();
+				}
+			});
+		}
 	}
 
 
@@ -343,45 +282,41 @@ public class PlayGameController implements Runnable{
 	 * @param r the row where the user wants to place a piece
 	 * @param c the column where the user places a piece
 	 */
-	public void updateBoardView(int b, int r, int c) {
-		System.out.println("in GameCon.updatedateBoardView (Color: "+pieceColor+") with:"+b+","+r+","+c);
+	public void updateBoardView(final int b, final int r, final int c) {
+		if(Log.isDebugEnabled()) Log.debug("in GameCon.updatedateBoardView (Color: "+pieceColor+") with:"+b+","+r+","+c);
 		
 		
-		if(this.gameView != null && bot == null) {
-			// If a view exists and there is not bot for this controller, then the player is local.
-			gameView.updateBoard(b,r,c);
-		}else if(this.gameView == null && this.bot != null) {
-			// If there is not gameView and a bot, update the bot's board"view"
+		if(this.bot != null) {
+			// If there is a bot, update the bot's board"view"
 			bot.updateBoard(b,r,c);
 		}else {
-			// If remote, send signal to socket to update their view
-			updateRemoteView(b, r, c);
+			// Otherwise a view exists for this controller, and the player is local.
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					gameView.updateBoard(b,r,c);
+				}
+			});
 		}
 		
 	}
 	
-	/**
-	 * Helper method to tell the remote player how to update their board
-	 * @param b indicates whether to place a black or white game piece. 
-	 * 			1=white, 2=black
-	 * @param r the row where the user wants to place a piece
-	 * @param c the column where the user places a piece
-	 */
-	private void updateRemoteView(int b, int r, int c) {
-		System.out.println("Color:"+pieceColor+" updating view remotely with:"+b+","+r+","+c);
-		sendMessage(Tags.GAME_FEEDBACK+Tags.UPDATE_BOARD+b+","+r+","+c);
-	}
-	
 	/**
 	 * Sends a move to the Game Model
 	 * @param r the row where the user wants to place a piece
 	 * @param c the column where the user places a piece
 	 */
 	public void makeMove(int r, int c) {
-		System.out.println("in GameCon.makeMove (Color: "+pieceColor+") with:"+r+","+c);
+		if(Log.isDebugEnabled()) Log.debug("in GameCon.makeMove (Color: "+pieceColor+") with:"+r+","+c);
 		
 		// If a model exists for this controller, it is the local player
-		if(this.gameModel != null) {
+		if(this.gameModel != null && actor != null) {
+			final int row = r, col = c;
+			actor.post(new Runnable() {
+				public void run() {
+					gameModel.updateBoard(pieceColor,row,col);
+				}
+			});
+		}else if(this.gameModel != null) {
 			gameModel.updateBoard(pieceColor,r,c);
 		}else {
 			// It's the remote controller, send the move over the socket
@@ -395,8 +330,11 @@ public class PlayGameController implements Runnable{
 	 * @param c the column where the user places a piece
 	 */
 	private void makeRemoteMove(int r, int c) {
-		System.out.println("Color:"+pieceColor+" makingMove remotely with:"+r+","+c);
-		sendMessage(Tags.GAME_FEEDBACK+Tags.MOVE+r+","+c);		
+		if(Log.isDebugEnabled()) Log.debug("Color:"+pieceColor+" makingMove remotely with:"+r+","+c);
+		if(binary)
+			sendFrame(GameCodec.move(r, c));
+		else
+			sendMessage(Tags.GAME_FEEDBACK+Tags.MOVE+r+","+c);		
 	}
 
 
@@ -419,15 +357,13 @@ public class PlayGameController implements Runnable{
 	public void setGameModel(GameModel gameModel) {
 		this.gameModel = gameModel;
 	}
-	
+
 	/**
-	 * A method to determine if this PlayGameController has 
-	 * connected to a game.  If so, the game is ready to 
-	 * start.
-	 * @return a boolean describing this Controller's conection status
+	 * Setter for the GameActor the moves are posted to
+	 * @param a the game's actor
 	 */
-	public boolean isConnected() {
-		return this.connected;
+	public void setActor(GameActor a) {
+		this.actor = a;
 	}
 	
 	/**
@@ -435,63 +371,41 @@ public class PlayGameController implements Runnable{
 	 * @param vict a boolean referring to whether or not the player won the game
 	 */
 	public void endGame(boolean vict) {
-		System.out.println("ending game..."+vict);
+		if(Log.isDebugEnabled()) Log.debug("ending game..."+vict);
 		
 		this.victory = vict;
+		this.over = true;
 		//only do this if its the local player, not the remote
-		System.out.println("gameV: "+gameView);
+		if(Log.isDebugEnabled()) Log.debug("gameV: "+gameView);
 		
 		
 		// If a view exists for this controller, then the player is local.
 		if(this.gameView != null) {
 			disconnect();
-			gameView.endGame(this.victory);
-		}else {
-			// If remote, send signal to socket to update their view
-			endRemoteGame(this.victory);
-		}
-	}
-
-
-	/**
-	 * Helper method to tell the remote player to end the Game.
-	 * @param vict a boolean referring to whether or not the player won the game
-	 */
-	private void endRemoteGame(boolean vict) {
-		System.out.println("ending remote game win? "+vict);
-		
-		if(vict) {
-			sendMessage(Tags.GAME_FEEDBACK+Tags.GAME_OVER+Tags.SUCCESS);
-		}else {
-			sendMessage(Tags.GAME_FEEDBACK+Tags.GAME_OVER+Tags.FAIL);
+			final boolean won = this.victory;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					gameView.endGame(won);
+				}
+			});
 		}
-			
 	}
 
 
 	/**
-	 * Ends the program and notifies the Server who was the winner.
-	 * If a player disconnected before the game was over, it 
-	 * counts as a loss.
+	 * Ends the game. In a game the server hosts, the server keeps the
+	 * score and is only told if the player is leaving early, which counts
+	 * as a loss. A game against a Gomobot isn't scored, so the server
+	 * isn't told about it.
 	 */
 	public void disconnect() {
 
-		if(victory) { // You won!
-			masterCon.sendMessage(Tags.GAME_FEEDBACK+masterCon.getUsername()+","+opponent);
-		}else {		  // You lost, or you quit
-			masterCon.sendMessage(Tags.GAME_FEEDBACK+opponent+","+masterCon.getUsername());
+		if(lobby && !over) {
+			// leaving before the end loses the game
+			over = true;
+			sendMessage(Tags.GAME_FEEDBACK + Tags.QUIT);
 		}
 		masterCon.disconnect(2);
-		
-		try {
-			if(this.servSock != null) {
-				servSock.close();
-			}else if(this.sock != null){
-				sock.close();
-			}
-		}catch (Exception e) {
-			System.out.println("error closing socket");
-		}
 	}
 
 }
\ No newline at end of file
@@ -125,8 +125,7 @@ public class PlayGameView extends JFrame {
 			whiteTile = ImageIO.read(new File(WHITETILE));
 			blackTile = ImageIO.read(new File(BLACKTILE));
 		}catch(IOException ex){
-			System.out.println("Error: cannot load texture image.\n" +
-					"PlayGameView buildview");
+			Log.warn("Error: cannot load texture image. PlayGameView buildview", ex);
 		}
 		for(int i = 0; i<30; i++){
 			for(int j=0; j<30; j++){
@@ -195,7 +194,7 @@ public class PlayGameView extends JFrame {
 		this.getContentPane().add(panelMain);
 
 		
-		System.out.println("done building view");
+		Log.debug("done building view");
 
 	}
 	/**
@@ -269,7 +268,7 @@ public class PlayGameView extends JFrame {
 	}
 
 	protected void startTurn(){
-		System.out.println("in GameView.startTurn, r: "+currentRow+","+currentCol);
+		if(Log.isDebugEnabled()) Log.debug("in GameView.startTurn, r: "+currentRow+","+currentCol);
 		turnArea.setText(" Whose turn is it?\n MY TURN");
 		if(currentRow != -2 && currentCol != -2 && boardImages[currentRow][currentCol] == myColor ){
 			updateBoard(0, currentRow, currentCol);
@@ -314,7 +313,7 @@ public class PlayGameView extends JFrame {
 	
 
 	protected void endTurn() {
-		System.out.println("in GameView.endTurn");
+		Log.debug("in GameView.endTurn");
 		turnArea.setText(" Whose turn is it?\n OPPONENT'S TURN");
 		timerThread.interrupt();
 		myTurn = false;
@@ -325,7 +324,7 @@ public class PlayGameView extends JFrame {
 	//@param: s, a string given by the Controller representing
 	//what should be displayed about whose turn it is
 	public void updateTurn(String s){
-		System.out.println("in GameView.updateTurn");
+		Log.debug("in GameView.updateTurn");
 		turnArea.setText(s);
 	}
 
@@ -453,7 +452,7 @@ public class PlayGameView extends JFrame {
 	}
 	
 	public void endGame(boolean victory) {
-		System.out.println("in gameView endgame");
+		Log.debug("in gameView endgame");
 		myTurn = false;
 		if(victory) {
 			turnArea.setText(" CONGRATULATIONS!!\n YOU WIN.\n Close window to\n return to lobby");
@@ -465,7 +464,7 @@ public class PlayGameView extends JFrame {
 
 	protected void exitProcedure() {
 	
-		System.out.println("in playgame exit");
+		Log.debug("in playgame exit");
 		// Disconnect the Controller
 		gameCon.disconnect();
 		
@@ -0,0 +1,39 @@
+/**
+ * Player is what a GameModel needs from each side of a game: to be told
+ * when its turn starts, to be shown the other player's moves, and to be
+ * told how the game ended. A player makes its moves by calling
+ * GameModel.updateBoard() with its own piece color.
+ *
+ * A player can be a person at a PlayGameView, a person on the other end of
+ * a socket, or a Gomobot. GameModel does not need to know which, so a game
+ * between two Gomobots, or one hosted for two remote players, carries no
+ * views, sockets or threads it doesn't use.
+ */
+public interface Player {
+
+	/**
+	 * Called by the GameModel when it takes this player on, so the player
+	 * can send its moves to it
+	 * @param gameModel the game this player is in
+	 */
+	void setGameModel(GameModel gameModel);
+
+	/**
+	 * Called when it is this player's turn to move
+	 */
+	void startTurn();
+
+	/**
+	 * Called when the other player has made a move
+	 * @param b the piece color of the move, 1 or 2
+	 * @param r the row of the move
+	 * @param c the column of the move
+	 */
+	void updateBoardView(int b, int r, int c);
+
+	/**
+	 * Called when the game is over
+	 * @param victory true if this player won
+	 */
+	void endGame(boolean victory);
+}
@@ -0,0 +1,185 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * PresenceBenchmark: Measures what a storm of logins costs in presence
+ * messages, with the PresenceService batching them and without.
+ *
+ * For each presence window it starts a ServerModel in nio mode, connects a
+ * number of clients, and has all of them sign in anonymously at once. Each
+ * client keeps the list of who is online from the messages it gets, and
+ * once every list holds everyone else the messages and bytes the clients
+ * got for it are printed; every message is a separate write by the server.
+ * Then half the clients leave at once and the same is printed for the
+ * other half being told.
+ *
+ * A window of 0 sends every change as it happens, as the server did before
+ * the PresenceService. Exits with status 1 if the lists never come right.
+ *
+ * Usage: java PresenceBenchmark [clients] [window ms ...]
+ */
+public class PresenceBenchmark {
+
+	private static final String PREFIX = Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE;
+
+	/**
+	 * One client: its name and its list of who else is online
+	 */
+	private static class Client {
+		SocketChannel ch;
+		FrameCodec frames = new FrameCodec();
+		String name;
+		HashSet<String> online = new HashSet<String>();
+		long messages, bytes;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		System.setProperty("gomoku.server.mode", "nio");
+		TempUsers.run(new TempUsers.Body() {
+			public void run(File dir) throws Exception {
+				int port = 54440;
+				if( args.length > 1 ) {
+					for( int i = 1; i < args.length; i++ )
+						PresenceBenchmark.run(count, Long.parseLong(args[i]), port++);
+				}else {
+					PresenceBenchmark.run(count, 0, port++);
+					PresenceBenchmark.run(count, 50, port++);
+				}
+			}
+		});
+	}
+
+	private static void run(int count, long window, int port) throws Exception {
+		System.setProperty("gomoku.presence.window", Long.toString(window));
+		ServerModel model = new ServerModel(port, null);
+		Selector selector = Selector.open();
+		Client[] clients = new Client[count];
+		for( int i = 0; i < count; i++ ) {
+			clients[i] = new Client();
+			clients[i].ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			clients[i].ch.configureBlocking(false);
+			clients[i].ch.register(selector, SelectionKey.OP_READ, clients[i]);
+		}
+		while( model.getConnectionCount() < count )
+			Thread.sleep(10);
+
+		// the storm
+		long start = System.nanoTime();
+		byte[] anon = FrameCodec.encode(Tags.ANON);
+		for( Client c : clients )
+			c.ch.write(ByteBuffer.wrap(anon));
+		if( !settle(selector, clients, count, count - 1) )
+			fail("window " + window + ": the lists never held everyone");
+		report("login", window, count, clients, start);
+
+		// half of them leave
+		int left = count / 2;
+		for( int i = left; i < count; i++ ) {
+			clients[i].ch.keyFor(selector).cancel();
+			clients[i].ch.close();
+		}
+		for( Client c : clients )
+			c.messages = c.bytes = 0;
+		start = System.nanoTime();
+		if( !settle(selector, clients, left, left - 1) )
+			fail("window " + window + ": the lists never lost the clients that left");
+		report("logout", window, left, clients, start);
+
+		for( int i = 0; i < left; i++ )
+			clients[i].ch.close();
+		selector.close();
+		model.stopServer();
+	}
+
+	/**
+	 * Reads until the first n clients each list the number of others given,
+	 * or for 60 seconds
+	 */
+	private static boolean settle(Selector selector, Client[] clients, int n, int others) throws Exception {
+		long end = System.nanoTime() + 60000000000L;
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		while( System.nanoTime() < end ) {
+			selector.select(100);
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while( it.hasNext() ) {
+				SelectionKey key = it.next();
+				it.remove();
+				Client c = (Client) key.attachment();
+				buf.clear();
+				if( c.ch.read(buf) < 0 ) {
+					key.cancel();
+					continue;
+				}
+				buf.flip();
+				c.frames.feed(buf);
+				String msg;
+				while( (msg = c.frames.poll()) != null )
+					apply(c, msg);
+			}
+			boolean done = true;
+			for( int i = 0; i < n && done; i++ )
+				done = clients[i].online.size() == others;
+			if( done )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Does with a message what MatchmakingController does
+	 */
+	private static void apply(Client c, String msg) {
+		String auth = Tags.AUTH_FEEDBACK + Tags.SUCCESS;
+		if( msg.startsWith(auth) ) {
+			c.name = msg.substring(auth.length());
+			return;
+		}
+		if( !msg.startsWith(PREFIX) )
+			return;
+		c.messages++;
+		c.bytes += 4 + msg.getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+		String data = msg.substring(PREFIX.length());
+		if( data.startsWith(Tags.ADDUSER) ) {
+			c.online.add(data.substring(Tags.ADDUSER.length()));
+		}else if( data.startsWith(Tags.REMOVEUSER) ) {
+			c.online.remove(data.substring(Tags.REMOVEUSER.length()));
+		}else if( data.startsWith(Tags.USERLIST) ) {
+			c.online.clear();
+			for( String un : data.substring(Tags.USERLIST.length()).split(" ") )
+				if( !un.isEmpty() )
+					c.online.add(un);
+		}else if( data.startsWith(Tags.USERDELTA) ) {
+			for( String change : data.substring(Tags.USERDELTA.length()).split(" ") ) {
+				if( change.isEmpty() )
+					continue;
+				if( change.charAt(0) == '+' )
+					c.online.add(change.substring(1));
+				else
+					c.online.remove(change.substring(1));
+			}
+		}
+		c.online.remove(c.name);
+	}
+
+	private static void report(String what, long window, int n, Client[] clients, long start) {
+		long messages = 0, bytes = 0;
+		for( int i = 0; i < n; i++ ) {
+			messages += clients[i].messages;
+			bytes += clients[i].bytes;
+		}
+		System.out.printf("window %3d ms, %,d clients %-6s: %,9d messages (%,7.1f per client), %,11d bytes, settled in %,d ms%n",
+				window, clients.length, what, messages, messages / (double) n, bytes, (System.nanoTime() - start) / 1000000L);
+	}
+
+	private static void fail(String why) {
+		System.out.println("PresenceBenchmark FAILED: " + why);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,293 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PresenceService tells the clients in matchmaking who is online.
+ *
+ * A client arriving in matchmaking is sent the whole list in one message,
+ *   [MATCH][UPDTUSERSONLINE][USERLIST]name name ...
+ * and from then on gets the changes. Users coming online and going offline
+ * are not sent as they happen: the names are collected for a short window
+ * (gomoku.presence.window, 50 ms by default) and then every client gets the
+ * same one message for all of them,
+ *   [MATCH][UPDTUSERSONLINE][USERDELTA]+name -name ...
+ * A user who comes and goes within one window is not sent at all. A storm of
+ * logins costs each client one message per window instead of one per login,
+ * and the message is encoded once for all of them.
+ *
+ * The list sent to a new client is what has been announced so far, not
+ * what the UserRegistry says now, so the changes that follow it always
+ * apply on top of it. Whether a name is online is read from the
+ * UserRegistry when the window closes, so the order the changes were
+ * reported in doesn't matter. A list too long for one frame is sent as a
+ * [USERLIST] and then [USERDELTA]s adding the rest. Clients leave their own
+ * name out.
+ *
+ * Nothing is sent under the service's lock, and the changes are handed to
+ * each client to send without waiting for the write (see
+ * ClientConnection.sendLater), so a slow client doesn't hold up the
+ * changes to everyone else. A new client is a subscriber from the
+ * moment its list is taken, but the changes for it are queued until the
+ * list has been sent, and then sent after it.
+ *
+ * In a cluster the users online on the other nodes are listed too, as the
+ * ClusterBus reports them.
+ *
+ * A window of 0 sends each change to every client as it happens, and the
+ * list as one [NEWUSER] message per name, as the server did before.
+ */
+public class PresenceService {
+
+	private static final String PREFIX = Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE;
+	// names are ASCII in practice; leaves room for those that aren't
+	private static final int MAX_BODY = FrameCodec.MAX_FRAME / 4;
+
+	private final UserRegistry users;
+	private final long window;
+	private final Set<ClientConnection> subscribers = ConcurrentHashMap.newKeySet();
+	// changes held back from new subscribers until their list has gone out
+	private final ConcurrentHashMap<ClientConnection, ArrayList<byte[]>> behind = new ConcurrentHashMap<ClientConnection, ArrayList<byte[]>>();
+	private final Set<String> changed = ConcurrentHashMap.newKeySet();
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+	private final Set<String> announced = new HashSet<String>();	// guarded by this
+	private final ScheduledThreadPoolExecutor timer;
+	private volatile ClusterBus cluster;
+
+	// metrics
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong events = new AtomicLong();
+
+	/**
+	 * @param users the registry saying who is online
+	 */
+	public PresenceService(UserRegistry users) {
+		this.users = users;
+		window = Long.getLong("gomoku.presence.window", 50);
+		timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "presence");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sends a client arriving in matchmaking the list of who is online, and
+	 * the changes from then on
+	 * @param cc the client
+	 */
+	public void subscribe(ClientConnection cc) {
+		String me = cc.getUser() == null ? null : cc.getUser().getUN();
+		if( window == 0 ) {
+			subscribers.add(cc);
+			for( String un : online() )
+				if( !un.equals(me) )
+					send(cc, FrameCodec.encode(PREFIX + Tags.ADDUSER + un));
+			return;
+		}
+		ArrayList<byte[]> list;
+		ArrayList<byte[]> held = new ArrayList<byte[]>();
+		synchronized( this ) {
+			list = encode(Tags.USERLIST, announced, null, me);
+			behind.put(cc, held);
+			subscribers.add(cc);
+		}
+		for( byte[] frame : list )
+			send(cc, frame);
+		// then the changes since, until none are left to hold back
+		while( true ) {
+			ArrayList<byte[]> next;
+			synchronized( held ) {
+				if( held.isEmpty() ) {
+					behind.remove(cc, held);
+					return;
+				}
+				next = new ArrayList<byte[]>(held);
+				held.clear();
+			}
+			for( byte[] frame : next )
+				send(cc, frame);
+		}
+	}
+
+	/**
+	 * Stops sending a client changes
+	 * @param cc the client, gone or leaving matchmaking
+	 */
+	public void unsubscribe(ClientConnection cc) {
+		subscribers.remove(cc);
+		behind.remove(cc);
+	}
+
+	/**
+	 * Notes that a user came online or went offline
+	 * @param un the username
+	 */
+	public void changed(String un) {
+		events.incrementAndGet();
+		if( window == 0 ) {
+			ClientConnection at = users.session(un);
+			byte[] frame = FrameCodec.encode(PREFIX + (isOnline(un) ? Tags.ADDUSER : Tags.REMOVEUSER) + un);
+			for( ClientConnection cc : subscribers )
+				if( cc != at )
+					send(cc, frame);
+			return;
+		}
+		changed.add(un);
+		if( flushQueued.compareAndSet(false, true) ) {
+			timer.schedule(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends every client what changed in the last window. Runs on the timer.
+	 */
+	private void flush() {
+		flushQueued.set(false);
+		ArrayList<String> added = new ArrayList<String>(), removed = new ArrayList<String>();
+		ArrayList<byte[]> delta;
+		ArrayList<ClientConnection> to;
+		synchronized( this ) {
+			for( String un : changed ) {
+				changed.remove(un);
+				boolean online = isOnline(un);
+				if( online && announced.add(un) )
+					added.add(un);
+				else if( !online && announced.remove(un) )
+					removed.add(un);
+			}
+			if( added.isEmpty() && removed.isEmpty() )
+				return;
+			delta = encode(Tags.USERDELTA, added, removed, null);
+			to = new ArrayList<ClientConnection>(subscribers);
+		}
+		flushes.incrementAndGet();
+		for( ClientConnection cc : to ) {
+			if( holdBack(cc, delta) )
+				continue;
+			for( byte[] frame : delta ) {
+				frames.incrementAndGet();
+				bytes.addAndGet(frame.length);
+			}
+			cc.sendLater(delta);
+		}
+	}
+
+	/**
+	 * Queues changes for a subscriber whose list is still being sent
+	 * @return true if they were queued, false if they can be sent now
+	 */
+	private boolean holdBack(ClientConnection cc, ArrayList<byte[]> delta) {
+		ArrayList<byte[]> held = behind.get(cc);
+		if( held == null )
+			return false;
+		synchronized( held ) {
+			// the subscriber may have caught up since
+			if( behind.get(cc) != held )
+				return false;
+			held.addAll(delta);
+			return true;
+		}
+	}
+
+	/**
+	 * Lists the users on the other nodes of a cluster too
+	 * @param bus the cluster
+	 */
+	public void setCluster(ClusterBus bus) {
+		cluster = bus;
+	}
+
+	private boolean isOnline(String un) {
+		ClusterBus bus = cluster;
+		return users.session(un) != null || (bus != null && bus.whereIs(un) >= 0);
+	}
+
+	private ArrayList<String> online() {
+		ArrayList<String> names = users.onlineNames();
+		ClusterBus bus = cluster;
+		if( bus != null )
+			names.addAll(bus.remoteNames());
+		return names;
+	}
+
+	/**
+	 * Encodes names into as few frames as fit them. The first frame has the
+	 * tag given, any more are [USERDELTA]s. Added names are written with a
+	 * + in a delta, removed ones with a -.
+	 */
+	private static ArrayList<byte[]> encode(String tag, Iterable<String> added, Iterable<String> removed, String skip) {
+		boolean delta = tag.equals(Tags.USERDELTA);
+		ArrayList<byte[]> frames = new ArrayList<byte[]>();
+		StringBuilder sb = new StringBuilder(PREFIX).append(tag);
+		int start = sb.length();
+		for( int pass = 0; pass < 2; pass++ ) {
+			Iterable<String> names = pass == 0 ? added : removed;
+			if( names == null )
+				continue;
+			for( String un : names ) {
+				if( un.equals(skip) )
+					continue;
+				if( sb.length() - start + un.length() + 2 > MAX_BODY ) {
+					frames.add(FrameCodec.encode(sb.toString()));
+					sb.setLength(0);
+					sb.append(PREFIX).append(Tags.USERDELTA);
+					start = sb.length();
+					delta = true;
+				}
+				if( sb.length() > start )
+					sb.append(' ');
+				if( delta )
+					sb.append(pass == 0 ? '+' : '-');
+				sb.append(un);
+			}
+		}
+		frames.add(FrameCodec.encode(sb.toString()));
+		return frames;
+	}
+
+	private void send(ClientConnection cc, byte[] frame) {
+		frames.incrementAndGet();
+		bytes.addAndGet(frame.length);
+		cc.sendFrame(frame);
+	}
+
+	/**
+	 * Stops the timer; changes still waiting are not sent
+	 */
+	public void stop() {
+		timer.shutdownNow();
+	}
+
+	/*
+	 * Metrics
+	 */
+	public long getFrameCount() {
+		return frames.get();
+	}
+	public long getByteCount() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return a one line summary of the service's metrics
+	 */
+	public String stats() {
+		return "presence changes=" + events.get() + " flushes=" + flushes.get()
+			+ " frames=" + frames.get() + " bytes=" + bytes.get() + " window=" + window + "ms";
+	}
+}
@@ -0,0 +1,120 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * ProtocolBenchmark: Compares the Tags game messages with GameCodec's
+ * binary ones, in bytes on the wire and in time to parse.
+ *
+ * It builds the messages of a number of random games (each move is a MOVE
+ * from the player, an UPDATE_BOARD to each side and a START_TURN) in both
+ * encodings and prints the average frame size of each kind. It then parses
+ * them over and over: the Tags messages the way PlayGameController does
+ * (decode the UTF-8, find the tag, cut and split the arguments, parse the
+ * numbers) and the binary ones with GameCodec.decode(). A few rounds are run
+ * to warm up before the measured ones, and every result goes into a sum that
+ * is printed so none of the work can be skipped.
+ *
+ * Usage: java ProtocolBenchmark [rounds] [messages]
+ */
+public class ProtocolBenchmark {
+
+	private static final int WARMUP = 5;
+	private static final int HEADER = 4;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 400000;
+
+		// the same messages in both encodings, as frames
+		Random rand = new Random(42);
+		byte[][] text = new byte[count][];
+		byte[][] bin = new byte[count][];
+		long[] textBytes = new long[5], binBytes = new long[5], kinds = new long[5];
+		for( int i = 0; i < count; i++ ) {
+			int r = rand.nextInt(30), c = rand.nextInt(30), b = 1 + rand.nextInt(2);
+			int kind;
+			switch( i % 4 ) {
+			case 0:
+				kind = GameCodec.MOVE;
+				text[i] = FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.MOVE + r + "," + c);
+				bin[i] = GameCodec.move(r, c);
+				break;
+			case 1:
+			case 2:
+				kind = GameCodec.UPDATE_BOARD;
+				text[i] = FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.UPDATE_BOARD + b + "," + r + "," + c);
+				bin[i] = GameCodec.updateBoard(b, r, c);
+				break;
+			default:
+				kind = GameCodec.START_TURN;
+				text[i] = FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.START_TURN);
+				bin[i] = GameCodec.startTurn();
+			}
+			kinds[kind]++;
+			textBytes[kind] += text[i].length;
+			binBytes[kind] += bin[i].length;
+		}
+
+		System.out.println("bytes per message, framed (Tags vs binary):");
+		String[] names = { null, "START_TURN", "MOVE", "UPDATE_BOARD" };
+		long allText = 0, allBin = 0;
+		for( int k = GameCodec.START_TURN; k <= GameCodec.UPDATE_BOARD; k++ ) {
+			System.out.printf("  %-13s %5.1f vs %4.1f%n", names[k],
+					textBytes[k] / (double) kinds[k], binBytes[k] / (double) kinds[k]);
+			allText += textBytes[k];
+			allBin += binBytes[k];
+		}
+		System.out.printf("  %-13s %5.1f vs %4.1f (%.1fx smaller)%n", "all",
+				allText / (double) count, allBin / (double) count, allText / (double) allBin);
+		byte[] over = GameCodec.gameOver(true);
+		System.out.printf("  %-13s %5d vs %4d%n", "GAME_OVER",
+				FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.GAME_OVER + Tags.SUCCESS).length, over.length);
+
+		long sum = 0;
+		double bestText = Double.MAX_VALUE, bestBin = Double.MAX_VALUE;
+		GameCodec codec = new GameCodec();
+		for( int round = 0; round < WARMUP + rounds; round++ ) {
+			long start = System.nanoTime();
+			for( byte[] f : text )
+				sum += parseText(f);
+			double t = (System.nanoTime() - start) / (double) count;
+
+			start = System.nanoTime();
+			for( byte[] f : bin ) {
+				codec.decode(f, HEADER, f.length - HEADER);
+				sum += codec.getOpcode() + codec.getArg0() + codec.getArg1() + codec.getArg2();
+			}
+			double bt = (System.nanoTime() - start) / (double) count;
+
+			if( round >= WARMUP ) {
+				bestText = Math.min(bestText, t);
+				bestBin = Math.min(bestBin, bt);
+			}
+		}
+		System.out.printf("parse ns per message (best of %d rounds): Tags %.1f, binary %.1f (%.1fx faster)%n",
+				rounds, bestText, bestBin, bestText / bestBin);
+		System.out.println("(checksum " + sum + ")");
+	}
+
+	/**
+	 * Parses a Tags game message the way PlayGameController.processMessage does
+	 * @return the arguments summed, standing in for acting on them
+	 */
+	private static int parseText(byte[] f) {
+		String msg = new String(f, HEADER, f.length - HEADER, StandardCharsets.UTF_8);
+		if( msg.contains(Tags.PROTO) ) {
+			return 0;
+		}else if( msg.contains(Tags.START_TURN) ) {
+			return GameCodec.START_TURN;
+		}else if( msg.contains(Tags.MOVE) ) {
+			String[] ar = msg.substring(Tags.GAME_FEEDBACK.length() + Tags.MOVE.length()).split(",");
+			return GameCodec.MOVE + Integer.parseInt(ar[0]) + Integer.parseInt(ar[1]);
+		}else if( msg.contains(Tags.UPDATE_BOARD) ) {
+			String[] ar = msg.substring(Tags.GAME_FEEDBACK.length() + Tags.UPDATE_BOARD.length()).split(",");
+			return GameCodec.UPDATE_BOARD + Integer.parseInt(ar[0]) + Integer.parseInt(ar[1]) + Integer.parseInt(ar[2]);
+		}else if( msg.contains(Tags.GAME_OVER) ) {
+			return GameCodec.GAME_OVER + (msg.contains(Tags.SUCCESS) ? 1 : 0);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ProtocolRegistry routes Tags messages to the code that handles them.
+ * Instead of testing a message against each tag in turn, it reads the tag
+ * at the front of the message once (everything up to and including the
+ * first ']') and looks it up in a hash table built when the handlers are
+ * registered, without copying the tag out of the message. A few answers,
+ * like FAILURE, are plain words with no brackets; those are matched by
+ * prefix.
+ *
+ * Each class that reads messages keeps one static registry of anonymous
+ * Handlers, which are given the object the message is for:
+ *
+ * 		PROTOCOL.on(Tags.LOGIN, new ProtocolRegistry.Handler<ClientConnection>() {
+ * 			public void handle(ClientConnection cc, String msg, int body) {
+ * 				cc.login(msg);
+ * 			}
+ * 		});
+ *
+ * A message with a tag nobody registered is counted and otherwise dropped,
+ * as is one whose handler throws a RuntimeException (a client sending
+ * "[GAME][MOVE]abc", say): that is logged, and the thread reading the
+ * messages goes on to the next one.
+ * For each tag the registry counts messages and keeps a histogram of how
+ * long the handler took, in power-of-two buckets of nanoseconds; stats()
+ * sums them up on one line for the log.
+ */
+public class ProtocolRegistry<T> {
+
+	/**
+	 * The code that handles one tag
+	 */
+	public interface Handler<T> {
+		/**
+		 * @param target the object the message is for
+		 * @param msg the whole message
+		 * @param body the index in msg just past the tag
+		 */
+		void handle(T target, String msg, int body);
+	}
+
+	// bucket i counts handler calls that took under 2^i nanoseconds
+	private static final int BUCKETS = 40;
+
+	private final String name;
+	private Entry<T>[] table;
+	private int size;
+	private final ArrayList<Entry<T>> plain = new ArrayList<Entry<T>>();
+	private final ArrayList<Entry<T>> all = new ArrayList<Entry<T>>();
+	private final LongAdder unknown = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	private static class Entry<T> {
+		final String tag;
+		final int hash;
+		final Handler<T> handler;
+		final LongAdder count = new LongAdder();
+		final AtomicLongArray nanos = new AtomicLongArray(BUCKETS);
+
+		Entry(String tag, int hash, Handler<T> handler) {
+			this.tag = tag;
+			this.hash = hash;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * @param name what stats() calls this registry
+	 */
+	public ProtocolRegistry(String name) {
+		this.name = name;
+		table = newTable(16);
+	}
+
+	/**
+	 * Registers the handler for a tag. Registering is not thread-safe, so
+	 * all the handlers should be registered before the first dispatch.
+	 * @param tag a bracketed tag such as Tags.LOGIN, or a plain word
+	 * @param handler the handler
+	 * @return this registry, for chaining
+	 */
+	public ProtocolRegistry<T> on(String tag, Handler<T> handler) {
+		Entry<T> e = new Entry<T>(tag, hash(tag, 0, tag.length()), handler);
+		all.add(e);
+		if( tag.isEmpty() || tag.charAt(0) != '[' || tag.indexOf(']') != tag.length() - 1 ) {
+			plain.add(e);
+			return this;
+		}
+		if( (size + 1) * 2 > table.length )
+			grow();
+		insert(e);
+		size++;
+		return this;
+	}
+
+	/**
+	 * Hands a message to the handler for its tag
+	 * @param target the object the message is for
+	 * @param msg the message
+	 * @return true if there was a handler for the message's tag
+	 */
+	public boolean dispatch(T target, String msg) {
+		return dispatch(target, msg, 0);
+	}
+
+	/**
+	 * Hands a message to the handler for the tag starting at from, for
+	 * messages that come inside another tag such as [GAME]
+	 * @param target the object the message is for
+	 * @param msg the message
+	 * @param from where the tag starts
+	 * @return true if there was a handler for the tag
+	 */
+	public boolean dispatch(T target, String msg, int from) {
+		Entry<T> e = find(msg, from);
+		if( e == null ) {
+			unknown.increment();
+			if( Log.isDebugEnabled() ) Log.debug(name + ": no handler for message " + msg);
+			return false;
+		}
+		long start = System.nanoTime();
+		try {
+			e.handler.handle(target, msg, from + e.tag.length());
+		} catch( RuntimeException ex ) {
+			failed.increment();
+			Log.warn(name + ": bad message " + msg, ex);
+		} finally {
+			long took = System.nanoTime() - start;
+			e.count.increment();
+			e.nanos.incrementAndGet(bucket(took));
+		}
+		return true;
+	}
+
+	private Entry<T> find(String msg, int from) {
+		if( from < msg.length() && msg.charAt(from) == '[' ) {
+			int close = msg.indexOf(']', from);
+			if( close < 0 )
+				return null;
+			int len = close + 1 - from;
+			int h = hash(msg, from, len);
+			Entry<T>[] t = table;
+			for( int i = h & (t.length - 1); t[i] != null; i = (i + 1) & (t.length - 1) ) {
+				Entry<T> e = t[i];
+				if( e.hash == h && e.tag.length() == len && msg.startsWith(e.tag, from) )
+					return e;
+			}
+			return null;
+		}
+		for( int i = 0; i < plain.size(); i++ ) {
+			Entry<T> e = plain.get(i);
+			if( msg.startsWith(e.tag, from) )
+				return e;
+		}
+		return null;
+	}
+
+	private static int hash(String s, int from, int len) {
+		int h = 0;
+		for( int i = from; i < from + len; i++ )
+			h = 31 * h + s.charAt(i);
+		return h ^ (h >>> 16);
+	}
+
+	private static int bucket(long nanos) {
+		int b = 64 - Long.numberOfLeadingZeros(nanos);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	private void insert(Entry<T> e) {
+		int i = e.hash & (table.length - 1);
+		while( table[i] != null ) {
+			if( table[i].tag.equals(e.tag) ) {
+				table[i] = e;	// registered again, the new handler wins
+				size--;
+				return;
+			}
+			i = (i + 1) & (table.length - 1);
+		}
+		table[i] = e;
+	}
+
+	private void grow() {
+		Entry<T>[] old = table;
+		table = newTable(old.length * 2);
+		for( Entry<T> e : old )
+			if( e != null )
+				insert(e);
+	}
+
+	private static <T> Entry<T>[] newTable(int n) {
+		@SuppressWarnings("unchecked")
+		Entry<T>[] t = (Entry<T>[]) new Entry<?>[n];
+		return t;
+	}
+
+	/**
+	 * @param tag a registered tag
+	 * @return the number of messages handled with that tag
+	 */
+	public long getCount(String tag) {
+		Entry<T> e = entry(tag);
+		return e == null ? 0 : e.count.sum();
+	}
+
+	/**
+	 * @return the number of messages dropped for having no handler
+	 */
+	public long getUnknownCount() {
+		return unknown.sum();
+	}
+
+	/**
+	 * @return the number of messages whose handler threw
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	/**
+	 * @param tag a registered tag
+	 * @return the handler latency histogram for that tag: element i is the
+	 * number of calls that took under 2^i nanoseconds (and at least 2^(i-1))
+	 */
+	public long[] getHistogram(String tag) {
+		long[] h = new long[BUCKETS];
+		Entry<T> e = entry(tag);
+		if( e != null )
+			for( int i = 0; i < BUCKETS; i++ )
+				h[i] = e.nanos.get(i);
+		return h;
+	}
+
+	/**
+	 * @param tag a registered tag
+	 * @param p a fraction, such as 0.99
+	 * @return the bound under which that fraction of the tag's handler calls
+	 * finished, in nanoseconds, to within a factor of two; 0 if there were none
+	 */
+	public long getPercentile(String tag, double p) {
+		long[] h = getHistogram(tag);
+		long total = 0;
+		for( long n : h )
+			total += n;
+		if( total == 0 )
+			return 0;
+		long seen = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			seen += h[i];
+			if( seen >= p * total )
+				return 1L << i;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	private Entry<T> entry(String tag) {
+		for( int i = all.size() - 1; i >= 0; i-- )
+			if( all.get(i).tag.equals(tag) )
+				return all.get(i);
+		return null;
+	}
+
+	/**
+	 * @return a one line summary: for each tag that has had messages, the
+	 * count and the p50 and p99 handler times; then the unknown and failed counts
+	 */
+	public String stats() {
+		StringBuilder sb = new StringBuilder("protocol ").append(name);
+		for( Entry<T> e : all ) {
+			long n = e.count.sum();
+			if( n == 0 )
+				continue;
+			sb.append(' ').append(e.tag).append(" n=").append(n)
+				.append(" p50<").append(micros(getPercentile(e.tag, 0.5)))
+				.append(" p99<").append(micros(getPercentile(e.tag, 0.99)));
+		}
+		sb.append(" unknown=").append(unknown.sum()).append(" failed=").append(failed.sum());
+		return sb.toString();
+	}
+
+	private static String micros(long nanos) {
+		if( nanos < 1000 )
+			return nanos + "ns";
+		return (nanos / 1000) + "us";
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * RemotePlayer is a player in a game the server hosts (see GameService),
+ * reached over the connection it has to the lobby. The GameModel's calls
+ * become [GAME] messages to the client, or GameCodec's binary ones once the
+ * client has asked for them with [GAME][PROTO]BIN; the client's moves come
+ * back over the same connection and are handed to the GameService.
+ *
+ * The client is told which color it plays and who against when the game
+ * starts, with [GAME][START]color,opponent.
+ *
+ * The game's sends to the client are put off until the event making them
+ * is over (see GameActor), so game logic never waits on a socket.
+ *
+ * In a cluster (see ClusterBus) the game may be hosted by another node. The
+ * client's node still keeps a RemotePlayer for it, with no GameModel, which
+ * the ClusterBus hands what the game's node says (startTurn() and so on);
+ * the GameService forwards the client's moves to the game's node, where a
+ * BusPlayer stands in for it. Its sends are handed to the connection
+ * without waiting for the write (see ClientConnection.sendLater), so one
+ * slow client doesn't hold up the bus.
+ */
+public class RemotePlayer implements Player {
+
+	private final ClientConnection con;	// null for a BusPlayer
+	private final String id;	// the game's id
+	private final int seat;		// 1 moves first, 2 second
+	private final int color;	// the piece color the client draws its moves in
+	private final int host;		// the node hosting the game, if not this one, else -1
+	private GameModel game;
+	private GameActor actor;	// null for a client whose game is hosted on another node
+	private RemotePlayer opponent;
+	private TimerWheel.Timeout clock;	// its turn's deadline, touched in the game's events
+
+	/**
+	 * @param con the player's connection
+	 * @param id the game's id
+	 * @param seat 1 for the player who moves first, 2 for the other
+	 * @param color the player's piece color
+	 * @param host the node hosting the game if it isn't this one, else -1
+	 */
+	public RemotePlayer(ClientConnection con, String id, int seat, int color, int host) {
+		this.con = con;
+		this.id = id;
+		this.seat = seat;
+		this.color = color;
+		this.host = host;
+	}
+
+	/**
+	 * Tells the client a game has started
+	 * @param opponentName who it is against
+	 */
+	void announce(String opponentName) {
+		send(FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.START_GAME + color + "," + opponentName));
+	}
+
+	/**
+	 * Sends a frame to the client once the game's event is over
+	 */
+	private void send(final byte[] frame) {
+		if( actor == null ) {
+			// called on the bus's reader, which mustn't wait on this client
+			con.sendLater(java.util.Collections.singletonList(frame));
+			return;
+		}
+		actor.defer(new Runnable() {
+			public void run() {
+				con.sendFrame(frame);
+			}
+		});
+	}
+
+	public void setGameModel(GameModel gameModel) {
+		game = gameModel;
+	}
+
+	public void startTurn() {
+		if( con.isBinaryGame() )
+			send(GameCodec.startTurn());
+		else
+			send(FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.START_TURN));
+	}
+
+	public void updateBoardView(int b, int r, int c) {
+		if( con.isBinaryGame() )
+			send(GameCodec.updateBoard(b, r, c));
+		else
+			send(FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.UPDATE_BOARD + b + "," + r + "," + c));
+	}
+
+	public void endGame(boolean victory) {
+		if( con.isBinaryGame() )
+			send(GameCodec.gameOver(victory));
+		else
+			send(FrameCodec.encode(Tags.GAME_FEEDBACK + Tags.GAME_OVER + (victory ? Tags.SUCCESS : Tags.FAIL)));
+	}
+
+	/*
+	 * Getters and Setters
+	 */
+	public ClientConnection getConnection() {
+		return con;
+	}
+	public String getId() {
+		return id;
+	}
+	public int getHost() {
+		return host;
+	}
+	public int getSeat() {
+		return seat;
+	}
+	public int getColor() {
+		return color;
+	}
+	public GameModel getGameModel() {
+		return game;
+	}
+	public GameActor getActor() {
+		return actor;
+	}
+	void setActor(GameActor a) {
+		actor = a;
+	}
+	public RemotePlayer getOpponent() {
+		return opponent;
+	}
+	void setOpponent(RemotePlayer p) {
+		opponent = p;
+	}
+	TimerWheel.Timeout getClock() {
+		return clock;
+	}
+	void setClock(TimerWheel.Timeout t) {
+		clock = t;
+	}
+
+	/**
+	 * @return the player's username
+	 */
+	public String getName() {
+		User u = con.getUser();
+		return u == null ? "?" : u.getUN();
+	}
+}
@@ -0,0 +1,172 @@
+import java.util.Random;
+
+/**
+ * SearchBenchmark: For measuring the HARD Gomobot's search.
+ *
+ * Searches the same set of positions to a fixed depth without a
+ * transposition table and with one under each replacement policy, and
+ * prints the nodes searched, the time taken and nodes per second.
+ *
+ * Don't expect much from the table here: on 20 positions it saves nothing
+ * at depth 3 (+0.7% nodes, a transposition needs at least four plies),
+ * 2.5% at depth 4, 4.6% at depth 5 and 9.6% at depth 6. Threat-first move
+ * ordering already gets most cutoffs on the first move, so what the table
+ * adds is mostly its move at deeper searches. Times at low depth are
+ * dominated by JIT warm-up, so compare the node counts.
+ *
+ * In smp mode it instead searches the positions to a fixed depth with
+ * ParallelSearch on 1, 2, ... up to maxThreads threads and prints the time
+ * to depth and the speedup over one thread.
+ *
+ * In eval mode it times the PatternEvaluator alone: a random walk of
+ * placing and taking back stones with an evaluation after every move,
+ * printed as evaluations per second. Afterwards the incremental scores are
+ * checked against an evaluator rebuilt from scratch.
+ *
+ * Usage: java SearchBenchmark [depth] [positions] [tableMB]
+ *        java SearchBenchmark smp [depth] [positions] [maxThreads]
+ *        java SearchBenchmark eval [moves]
+ */
+public class SearchBenchmark {
+
+	static final int SIZE = 30;
+
+	public static void main(String[] args) {
+		if( args.length > 0 && args[0].equals("smp") ) {
+			int depth = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+			int count = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+			int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			speedup(depth, count, maxThreads);
+			return;
+		}
+		if( args.length > 0 && args[0].equals("eval") ) {
+			evaluations(args.length > 1 ? Long.parseLong(args[1]) : 20000000L);
+			return;
+		}
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int mb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+		int[][][] positions = makePositions(count, 12, 7);
+
+		long base = run("no table", null, positions, depth, 0);
+		run("ALWAYS", new TranspositionTable(mb, TranspositionTable.Replacement.ALWAYS), positions, depth, base);
+		run("DEPTH_PREFERRED", new TranspositionTable(mb, TranspositionTable.Replacement.DEPTH_PREFERRED), positions, depth, base);
+	}
+
+	/**
+	 * @param base the nodes searched without a table, to compare with, or 0
+	 * @return the nodes searched
+	 */
+	private static long run(String name, TranspositionTable tt, int[][][] positions, int depth, long base) {
+		GomobotSearch search = new GomobotSearch(SIZE, tt);
+		search.setMaxDepth(depth);
+		Zobrist zobrist = Zobrist.forSize(SIZE);
+
+		long nodes = 0, millis = 0;
+		for( int[][] position : positions ) {
+			if( tt != null )
+				tt.clear();
+			search.findMove(position, zobrist.hash(position), 1, 600000);
+			nodes += search.getNodes();
+			millis += search.getElapsedMillis();
+		}
+		System.out.printf("%-16s depth %d: %,d nodes%s, %,d ms, %,d nodes/s%n",
+				name, depth, nodes, base == 0 ? "" : String.format(" (%+.1f%%)", 100.0 * (nodes - base) / base),
+				millis, millis == 0 ? 0 : nodes * 1000 / millis);
+		return nodes;
+	}
+
+	/**
+	 * Times ParallelSearch to a fixed depth for each thread count
+	 */
+	private static void speedup(int depth, int count, int maxThreads) {
+		int[][][] positions = makePositions(count, 12, 7);
+		Zobrist zobrist = Zobrist.forSize(SIZE);
+		long base = 0;
+		for( int threads = 1; threads <= maxThreads; threads++ ) {
+			ParallelSearch search = new ParallelSearch(SIZE, threads, new TranspositionTable(64, TranspositionTable.Replacement.DEPTH_PREFERRED));
+			search.setMaxDepth(depth);
+			long nodes = 0;
+			long start = System.nanoTime();
+			for( int[][] position : positions ) {
+				search.findMove(position, zobrist.hash(position), 1, 600000);
+				nodes += search.getNodes();
+			}
+			long millis = (System.nanoTime() - start) / 1000000L;
+			if( threads == 1 )
+				base = millis;
+			System.out.printf("threads %2d: depth %d in %,d ms, %,d nodes, %,d nodes/s, speedup %.2f%n",
+					threads, depth, millis, nodes, millis == 0 ? 0 : nodes * 1000 / millis,
+					millis == 0 ? 0.0 : (double) base / millis);
+		}
+	}
+
+	/**
+	 * Times make, evaluate and unmake on the PatternEvaluator
+	 */
+	private static void evaluations(long moves) {
+		Random rand = new Random(3);
+		PatternEvaluator eval = new PatternEvaluator(SIZE);
+		int[][] board = new int[SIZE][SIZE];
+		int[] stack = new int[SIZE * SIZE];
+
+		for( int round = 0; round < 3; round++ ) {
+			int depth = 0;
+			long sum = 0;
+			long start = System.nanoTime();
+			for( long m = 0; m < moves; m++ ) {
+				if( depth > 0 && (depth > 200 || rand.nextInt(8) < 3) ) {
+					int i = stack[--depth];
+					board[i / SIZE][i % SIZE] = 0;
+					eval.remove(i / SIZE, i % SIZE);
+				}else {
+					int i = rand.nextInt(SIZE * SIZE);
+					if( board[i / SIZE][i % SIZE] != 0 )
+						continue;
+					int color = 1 + (depth & 1);
+					board[i / SIZE][i % SIZE] = color;
+					eval.place(color, i / SIZE, i % SIZE);
+					stack[depth++] = i;
+					sum += eval.evaluate(color);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			System.out.printf("round %d: %,d evaluations/s (with make and unmake), checksum %d%n",
+					round, eval.getEvaluations() * 1000000000L / Math.max(1, nanos), sum);
+
+			PatternEvaluator fresh = new PatternEvaluator(SIZE);
+			for( int r = 0; r < SIZE; r++ )
+				for( int c = 0; c < SIZE; c++ )
+					if( board[r][c] != 0 )
+						fresh.place(board[r][c], r, c);
+			if( fresh.score(1) != eval.score(1) || fresh.score(2) != eval.score(2) )
+				throw new IllegalStateException("incremental scores don't match a fresh evaluator");
+			eval = fresh;
+		}
+	}
+
+	/**
+	 * Makes positions by playing random moves near the centre of the board,
+	 * with a fixed seed so every run searches the same positions
+	 */
+	static int[][][] makePositions(int count, int stones, long seed) {
+		Random rand = new Random(seed);
+		int[][][] positions = new int[count][][];
+		for( int p = 0; p < count; p++ ) {
+			int[][] board = new int[SIZE][SIZE];
+			int color = 1;
+			for( int i = 0; i < stones; ) {
+				int r = SIZE / 2 - 4 + rand.nextInt(9);
+				int c = SIZE / 2 - 4 + rand.nextInt(9);
+				if( board[r][c] == 0 ) {
+					board[r][c] = color;
+					color = 3 - color;
+					i++;
+				}
+			}
+			positions[p] = board;
+		}
+		return positions;
+	}
+}
@@ -0,0 +1,193 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SelfPlayRunner: Plays Gomobots against each other without any GUI.
+ *
+ * Each game is a GameModel with a Gomobot in each seat, so no views,
+ * controllers or sockets are made. The runner takes the turns in a loop:
+ * a seat told its turn has started only notes it, and the loop then has
+ * its bot move, so a game doesn't nest one move's call inside the last.
+ * Games run in parallel, one per core by default. Bot A plays first in even
+ * games and bot B in odd games.
+ *
+ * Every game is written to the results file as a fixed 14-byte record:
+ *   byte   winner (0 tie, 1 bot A, 2 bot B)
+ *   byte   who moved first (1 bot A, 2 bot B)
+ *   short  number of stones placed
+ *   int    bot A's average time per move in microseconds
+ *   int    bot B's average time per move in microseconds
+ * after a header of the int MAGIC, the two difficulties as UTF strings,
+ * and the int number of games.
+ *
+ * A summary with games per second, wins and average move times is printed
+ * at the end. If minWinRate is given the runner exits with status 1 when
+ * bot A wins less than that fraction of the games, so it can be used as a
+ * check that a change hasn't made the bot weaker.
+ *
+ * Usage: java SelfPlayRunner botA botB games [threads] [outFile] [minWinRate]
+ *   e.g. java SelfPlayRunner MEDIUM EASY 1000 4 results.bin 0.9
+ */
+public class SelfPlayRunner {
+
+	static final int MAGIC = 0x474D5350;	// "GMSP"
+
+	private final String botA;
+	private final String botB;
+
+	public SelfPlayRunner(String botA, String botB) {
+		this.botA = botA;
+		this.botB = botB;
+	}
+
+	/**
+	 * A Gomobot's seat at a game, which leaves its turns to the runner's loop
+	 */
+	private static class Seat implements Player {
+		final Gomobot bot;
+		boolean toMove;
+
+		Seat(Gomobot bot) {
+			this.bot = bot;
+		}
+
+		public void setGameModel(GameModel gameModel) {
+			bot.setGameModel(gameModel);
+		}
+
+		public void startTurn() {
+			toMove = true;
+		}
+
+		public void updateBoardView(int b, int r, int c) {
+			bot.updateBoardView(b, r, c);
+		}
+
+		public void endGame(boolean victory) {
+			bot.endGame(victory);
+		}
+	}
+
+	/**
+	 * Plays one game
+	 * @param aFirst true if bot A moves first
+	 * @return the game's record, as written to the results file
+	 */
+	public long[] playGame(boolean aFirst) {
+		Gomobot first = new Gomobot(1, aFirst ? botA : botB);
+		Gomobot second = new Gomobot(2, aFirst ? botB : botA);
+		Seat[] seats = { new Seat(first), new Seat(second) };
+		GameModel game = new GameModel(seats[0], seats[1]);
+		game.startGame();
+		while( !game.isGameOver() ) {
+			Seat s = seats[0].toMove ? seats[0] : seats[1].toMove ? seats[1] : null;
+			if( s == null )
+				break;
+			s.toMove = false;
+			s.bot.startTurn();
+		}
+
+		Gomobot a = aFirst ? first : second;
+		Gomobot b = aFirst ? second : first;
+		int winner = 0;
+		if( game.getWinner() != 0 )
+			winner = (game.getWinner() == a.getPieceColor()) ? 1 : 2;
+		return new long[] { winner, aFirst ? 1 : 2, game.getStoneCount(),
+				averageMicros(a), averageMicros(b) };
+	}
+
+	private static long averageMicros(Gomobot bot) {
+		if( bot.getNumMoves() == 0 )
+			return 0;
+		return bot.getThinkNanos() / bot.getNumMoves() / 1000L;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if( args.length < 3 ) {
+			System.err.println("Usage: java SelfPlayRunner botA botB games [threads] [outFile] [minWinRate]");
+			System.exit(2);
+		}
+		String botA = args[0].toUpperCase();
+		String botB = args[1].toUpperCase();
+		int games = Integer.parseInt(args[2]);
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		String outFile = args.length > 4 ? args[4] : "selfplay.bin";
+		double minWinRate = args.length > 5 ? Double.parseDouble(args[5]) : -1;
+
+		final SelfPlayRunner runner = new SelfPlayRunner(botA, botB);
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "selfplay-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long start = System.nanoTime();
+		ArrayList<Future<long[]>> results = new ArrayList<Future<long[]>>(games);
+		for( int g = 0; g < games; g++ ) {
+			final boolean aFirst = (g % 2 == 0);
+			results.add(pool.submit(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					return runner.playGame(aFirst);
+				}
+			}));
+		}
+
+		int winsA = 0, winsB = 0, ties = 0;
+		long stones = 0, microsA = 0, microsB = 0;
+		try( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile))) ) {
+			out.writeInt(MAGIC);
+			out.writeUTF(botA);
+			out.writeUTF(botB);
+			out.writeInt(games);
+			for( int g = 0; g < games; g++ ) {
+				long[] r = results.get(g).get();
+				out.writeByte((int) r[0]);
+				out.writeByte((int) r[1]);
+				out.writeShort((int) r[2]);
+				out.writeInt((int) r[3]);
+				out.writeInt((int) r[4]);
+				if( r[0] == 1 )
+					winsA++;
+				else if( r[0] == 2 )
+					winsB++;
+				else
+					ties++;
+				stones += r[2];
+				microsA += r[3];
+				microsB += r[4];
+			}
+		}catch( IOException e ) {
+			Log.error("SelfPlayRunner could not write " + outFile, e);
+			System.exit(2);
+		}
+		pool.shutdown();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%s vs %s: %,d games on %d threads in %.1f s (%.1f games/s)%n",
+				botA, botB, games, threads, seconds, games / seconds);
+		System.out.printf("  %s (A) wins %d, %s (B) wins %d, ties %d, A win rate %.3f%n",
+				botA, winsA, botB, winsB, ties, (double) winsA / games);
+		System.out.printf("  average %.1f stones per game, A %,d us/move, B %,d us/move%n",
+				(double) stones / games, microsA / games, microsB / games);
+		System.out.println("  results written to " + outFile);
+
+		if( minWinRate >= 0 && (double) winsA / games < minWinRate ) {
+			System.out.printf("FAIL: A win rate below %.3f%n", minWinRate);
+			System.exit(1);
+		}
+	}
+}
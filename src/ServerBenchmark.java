@@ -0,0 +1,121 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * ServerBenchmark: For comparing the ways the server can serve clients:
+ * a platform thread per client, a virtual thread per client, or nio.
+ *
+ * For each mode it starts a ServerModel with no ServerView, opens a number
+ * of client connections to it and waits until the server holds all of them,
+ * then prints the server's thread count and heap. It then has every client
+ * keep a window of [PING] messages in flight for a number of seconds, sending
+ * a new one each time one comes back, and prints the messages per second.
+ *
+ * The clients all run on one Selector in this JVM, so only the server's
+ * threads grow with the number of connections.
+ *
+ * Usage: java ServerBenchmark [threads|virtual|nio|all] [connections] [seconds] [window]
+ */
+public class ServerBenchmark {
+
+	private static final byte[] PING = FrameCodec.encode(Tags.PING);
+
+	public static void main(String[] args) throws Exception {
+		final String mode = args.length > 0 ? args[0] : "all";
+		final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		final int window = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+		TempUsers.run(new TempUsers.Body() {
+			public void run(File dir) throws Exception {
+				int port = 54400;
+				for( String m : new String[] { "threads", "virtual", "nio" } )
+					if( mode.equals(m) || mode.equals("all") )
+						ServerBenchmark.run(m, port++, connections, seconds, window);
+			}
+		});
+	}
+
+	private static void run(String mode, int port, int connections, int seconds, int window) throws Exception {
+		System.setProperty("gomoku.server.mode", mode);
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heapBefore = usedHeap();
+		ServerModel model = new ServerModel(port, null);
+
+		Selector selector = Selector.open();
+		SocketChannel[] clients = new SocketChannel[connections];
+		long start = System.nanoTime();
+		for( int i = 0; i < connections; i++ ) {
+			clients[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			clients[i].configureBlocking(false);
+			clients[i].register(selector, SelectionKey.OP_READ, new FrameCodec());
+		}
+		while( model.getConnectionCount() < connections )
+			Thread.sleep(10);
+		long connectMillis = (System.nanoTime() - start) / 1000000L;
+
+		System.out.printf("%-7s %,d connections held in %,d ms: %d server threads, %,d KB heap (%,d bytes per connection)%n",
+				mode, connections, connectMillis,
+				ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore,
+				(usedHeap() - heapBefore) / 1024, (usedHeap() - heapBefore) / connections);
+
+		// fill every client's window, then send one more each time a reply comes back
+		for( SocketChannel ch : clients )
+			for( int w = 0; w < window; w++ )
+				write(ch, PING);
+
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		long replies = 0;
+		long end = System.nanoTime() + seconds * 1000000000L;
+		start = System.nanoTime();
+		while( System.nanoTime() < end ) {
+			selector.select(100);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while( keys.hasNext() ) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				SocketChannel ch = (SocketChannel) key.channel();
+				buf.clear();
+				if( ch.read(buf) < 0 ) {
+					key.cancel();
+					continue;
+				}
+				buf.flip();
+				FrameCodec frames = (FrameCodec) key.attachment();
+				frames.feed(buf);
+				while( frames.poll() != null ) {
+					replies++;
+					write(ch, PING);
+				}
+			}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-7s %,d round trips in %.1f s: %,.0f messages/s%n", mode, replies, elapsed, replies / elapsed);
+
+		for( SocketChannel ch : clients )
+			ch.close();
+		selector.close();
+		model.stopServer();
+		System.gc();
+		Thread.sleep(500);
+	}
+
+	private static void write(SocketChannel ch, byte[] msg) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(msg);
+		while( b.hasRemaining() )
+			ch.write(b);
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
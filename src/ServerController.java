@@ -11,25 +11,43 @@ import java.util.ArrayList;
  * 
  * UPDATE 4/23/18 (EMW): Moved newAnon method to ServerModel
  *
+ * Invites and answers for a user on another node of a cluster are sent to
+ * that node over the ClusterBus.
  */
 public class ServerController implements Runnable {
 	private ServerModel servModel;
 	private ServerSocket ss;
+	private NioServer nio;		// used instead of ss when gomoku.server.mode is "nio"
+	private ServerThreads threads;	// what the accept loop and each ClientConnection run on
 	private Thread worker;
 	private int anonIndex;
 	private boolean run;
 
 	/**
-	 * Constructor for ServerController
+	 * Constructor for ServerController. The system property
+	 * gomoku.server.mode picks how clients are served: "threads" (the 
+	 * default) for a Thread per ClientConnection, "virtual" for a virtual
+	 * Thread per ClientConnection (see ServerThreads), or "nio" for an 
+	 * NioServer with gomoku.server.loops event loops.
 	 * @param m the ServerModel to assign to this ServerController
 	 */
 	public ServerController(ServerModel m){
 
 		servModel = m;
+		String mode = System.getProperty("gomoku.server.mode", "threads");
+		threads = new ServerThreads("virtual".equalsIgnoreCase(mode));
 		try {
-			ss = new ServerSocket(m.getPortNumber());
+			if("nio".equalsIgnoreCase(mode)) {
+				int loops = Integer.getInteger("gomoku.server.loops", Runtime.getRuntime().availableProcessors());
+				nio = new NioServer(this, m, m.getPortNumber(), loops);
+				Log.info("Serving clients with " + loops + " event loops");
+			}else {
+				ss = new ServerSocket(m.getPortNumber(), 1024);
+				if(threads.isVirtual())
+					Log.info("Serving clients on virtual threads");
+			}
 		}catch(IOException e){
-			System.out.println(e.getMessage());
+			Log.warn(e.getMessage());
 			System.exit(1);
 		}
 		anonIndex = 0;
@@ -40,11 +58,24 @@ public class ServerController implements Runnable {
 	 * The method to start the second Thread, which listens for new connections
 	 */
 	public void startListening(){
+		if(nio != null) {
+			nio.start();
+			return;
+		}
 
-		worker = new Thread(this);
+		worker = threads.newThread(this);
 		worker.start();
 	}
 
+	/**
+	 * Makes the Thread a ClientConnection listens to its client on
+	 * @param task the ClientConnection
+	 * @return a new Thread, not yet started
+	 */
+	public Thread newClientThread(Runnable task) {
+		return threads.newThread(task);
+	}
+
 
 	/**
 	 * Sends message to output stream (to the specified client)
@@ -67,7 +98,8 @@ public class ServerController implements Runnable {
 						clientSock.getPort();
 				servModel.newConnection(new ClientConnection(clientSock, this,  this.servModel),info);
 			} catch (IOException e) {
-				System.out.println("Error accepting connection");
+				if(run)
+					Log.warn("Error accepting connection");
 			}
 		}
 	}
@@ -86,22 +118,26 @@ public class ServerController implements Runnable {
 	 */
 	public void stopServer(){
 		run = false;
+		if(nio != null) {
+			nio.stop();
+			return;
+		}
 		try {
 			ss.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.warn("Error closing server socket", e);
 		} 
 
 	}
 
 	/**
 	 * Called by the ClientConnection. Calls the ServerModel's register
-	 * @return the String message that the ServerModel returns to tell the 
-	 * user the result of their registration attempt
+	 * @param done told the String message that the ServerModel returns to
+	 * tell the user the result of their registration attempt, once the
+	 * User is on disk
 	 */
-	public String register(String user, String pass, ClientConnection con){
-		return servModel.register(user, pass, con);
+	public void register(String user, String pass, ClientConnection con, ServerModel.Registered done){
+		servModel.register(user, pass, con, done);
 	}
 
 	/**
@@ -140,7 +176,11 @@ public class ServerController implements Runnable {
 
 		// Return usernameNotFound if unable to find user
 		if(receiverConn == null) {
-			return Tags.UN_NOT_FOUND;
+			int node = servModel.whereIs(receiver);
+			if(node < 0)
+				return Tags.UN_NOT_FOUND;
+			servModel.getCluster().send(node, Tags.INVITE + sender.getUser().getUN() + " " + receiver);
+			return Tags.SUCCESS;
 		}
 		
 		// Call receive function of the receiver
@@ -167,13 +207,22 @@ public class ServerController implements Runnable {
 
 		// Return usernameNotFound if unable to find user
 		if(receiverConn == null) {
-			return Tags.UN_NOT_FOUND;
+			int node = servModel.whereIs(receiver);
+			if(node < 0)
+				return Tags.UN_NOT_FOUND;
+			return respondAcross(sender, receiver, answer, node);
 		}
 
 		ClientConnection target = servModel.lookUp(receiver);
 		if(answer.contains(Tags.CONFIRM)) {
-			if (!target.isInGame()) {
+			if (!target.isInGame() && !sender.isInGame()) {
 				receiverConn.receiveResponse(sender.getUser().getUN(), answer);
+				// the server hosts the game, the one accepting moves first
+				if(!servModel.getGames().start(sender, target)) {
+					sender.toClient(Tags.MATCH_FEEDBACK + Tags.FAIL + receiver);
+					// the inviter was already told it was accepted
+					receiverConn.toClient(Tags.MATCH_FEEDBACK + Tags.FAIL + sender.getUser().getUN());
+				}
 			}
 			else{
 				sender.toClient(Tags.MATCH_FEEDBACK + Tags.FAIL + receiver);
@@ -186,5 +235,23 @@ public class ServerController implements Runnable {
 		return Tags.SUCCESS;
 	}
 
+	/**
+	 * Sends a response to a challenge from a player on another node, and 
+	 * starts the game if it was accepted
+	 */
+	private String respondAcross(ClientConnection sender, String receiver, String answer, int node) {
+		if(answer.contains(Tags.CONFIRM) && sender.isInGame()) {
+			sender.toClient(Tags.MATCH_FEEDBACK + Tags.FAIL + receiver);
+			return Tags.SUCCESS;
+		}
+		servModel.getCluster().send(node, Tags.RESPOND + answer + " " + sender.getUser().getUN() + " " + receiver);
+		if(answer.contains(Tags.CONFIRM) && !servModel.getGames().start(sender, receiver, node)) {
+			sender.toClient(Tags.MATCH_FEEDBACK + Tags.FAIL + receiver);
+			// the inviter was already told it was accepted
+			servModel.getGames().notStarted(node, receiver, sender.getUser().getUN());
+		}
+		return Tags.SUCCESS;
+	}
+
 
 }
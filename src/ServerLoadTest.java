@@ -0,0 +1,149 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * ServerLoadTest: Opens a large number of simulated clients against a
+ * server running in one of the server modes and checks that it holds them
+ * all and stays responsive while clients log in.
+ *
+ * Once every client is connected, some of them register at the same time.
+ * Each registration makes its ClientConnection wait a second before going
+ * to matchmaking, so the test also shows whether those waits hold up other
+ * clients: while they are going on, other clients keep sending [PING]s and
+ * the round-trip times are printed as percentiles.
+ *
+ * The registered users go into a UserStore in a temporary directory (see
+ * TempUsers), which is deleted afterwards, so nothing is left behind in the
+ * working directory.
+ * Each client uses a socket at both ends, so the open file limit (ulimit -n)
+ * must be over twice the number of clients.
+ *
+ * Usage: java ServerLoadTest [threads|virtual|nio] [clients] [registering]
+ */
+public class ServerLoadTest {
+
+	private static final byte[] PING = FrameCodec.encode(Tags.PING);
+	private static final int PINGERS = 200;
+
+	public static void main(final String[] args) throws Exception {
+		TempUsers.run(new TempUsers.Body() {
+			public void run(File dir) throws Exception {
+				ServerLoadTest.run(args);
+			}
+		});
+	}
+
+	private static void run(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "virtual";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+		int registering = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		registering = Math.min(registering, clients - PINGERS);
+
+		System.setProperty("gomoku.server.mode", mode);
+		int port = 54410;
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		ServerModel model = new ServerModel(port, null);
+
+		Selector selector = Selector.open();
+		SocketChannel[] ch = new SocketChannel[clients];
+		long start = System.nanoTime();
+		for( int i = 0; i < clients; i++ ) {
+			ch[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			ch[i].configureBlocking(false);
+			ch[i].register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+			if( (i + 1) % 10000 == 0 )
+				System.out.printf("  %,d connected%n", i + 1);
+		}
+		while( model.getConnectionCount() < clients )
+			Thread.sleep(10);
+		Runtime rt = Runtime.getRuntime();
+		System.gc();
+		System.out.printf("%s: %,d clients held after %,d ms, %d server threads, %,d MB heap in use%n",
+				mode, clients, (System.nanoTime() - start) / 1000000L,
+				ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore,
+				(rt.totalMemory() - rt.freeMemory()) >> 20);
+
+		// the first clients register, the last PINGERS clients ping throughout
+		String prefix = "load" + Long.toString(System.currentTimeMillis() % 1000000, 36) + "_";
+		start = System.nanoTime();
+		for( int i = 0; i < registering; i++ )
+			send(ch[i], FrameCodec.encode(Tags.REGISTER + prefix + i + " pw"));
+
+		long[] pingSent = new long[clients];
+		FrameCodec[] frames = new FrameCodec[clients];
+		for( int i = 0; i < clients; i++ )
+			frames[i] = new FrameCodec();
+		long[] rtts = new long[1 << 20];
+		int rttCount = 0;
+		int auths = 0;
+		long matchLines = 0;
+		long authMillis = -1;
+		long lastMatch = System.nanoTime();
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+		// run until every registration is answered and matchmaking messages have stopped
+		while( auths < registering || System.nanoTime() - lastMatch < 1500000000L ) {
+			long now = System.nanoTime();
+			for( int i = clients - PINGERS; i < clients; i++ ) {
+				if( pingSent[i] == 0 ) {
+					pingSent[i] = now;
+					send(ch[i], PING);
+				}
+			}
+			selector.select(5);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while( keys.hasNext() ) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				int i = (Integer) key.attachment();
+				buf.clear();
+				if( ((SocketChannel) key.channel()).read(buf) < 0 ) {
+					key.cancel();
+					continue;
+				}
+				buf.flip();
+				frames[i].feed(buf);
+				String line;
+				while( (line = frames[i].poll()) != null ) {
+					if( line.startsWith(Tags.AUTH_FEEDBACK) ) {
+						if( ++auths == registering )
+							authMillis = (System.nanoTime() - start) / 1000000L;
+					}else if( line.startsWith(Tags.MATCH_FEEDBACK) ) {
+						matchLines++;
+						lastMatch = System.nanoTime();
+					}else if( line.startsWith(Tags.PING) && pingSent[i] != 0 ) {
+						if( rttCount < rtts.length )
+							rtts[rttCount++] = System.nanoTime() - pingSent[i];
+						pingSent[i] = 0;
+					}
+				}
+			}
+		}
+		long totalMillis = (lastMatch - start) / 1000000L;
+
+		System.out.printf("%,d registrations answered in %,d ms, matchmaking done after %,d ms (%,d online updates)%n",
+				registering, authMillis, totalMillis, matchLines);
+		Arrays.sort(rtts, 0, rttCount);
+		if( rttCount > 0 )
+			System.out.printf("ping round trips meanwhile: %,d, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+					rttCount, rtts[rttCount / 2] / 1e6, rtts[(int) (rttCount * 0.99)] / 1e6, rtts[rttCount - 1] / 1e6);
+
+		for( SocketChannel c : ch )
+			c.close();
+		selector.close();
+		model.stopServer();
+	}
+
+	private static void send(SocketChannel ch, byte[] msg) throws java.io.IOException {
+		ByteBuffer b = ByteBuffer.wrap(msg);
+		while( b.hasRemaining() )
+			ch.write(b);
+	}
+}
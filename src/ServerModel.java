@@ -1,12 +1,10 @@
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.attribute.UserPrincipalLookupService;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ServerModel keeps track of the information for each specific run
@@ -23,25 +21,68 @@ import java.util.Scanner;
  * 
  * UPDATE 4/23/18(EMW): Added Anonymous name generation and fixed authentication 
  *        to tell user if a player is still online.
+ *
+ * Users are found through a UserRegistry, by username, rather than by
+ * going through the lists of users and connections.
+ *
+ * Every ClientConnection calls into the ServerModel from its own thread,
+ * as do the thread accepting connections and the ServerView. There is no
+ * lock around the model as a whole: the UserRegistry and the set of
+ * connections are concurrent maps, which only lock the one bin being
+ * changed, so logins and disconnects on different threads go ahead side by
+ * side. Going through the connections works on a copy (getList()), so a
+ * broadcast never sees the set change under it.
+ *
+ * Registered users, and their wins and losses, are kept on disk by a
+ * UserStore in the directory named by gomoku.users.dir (default: the working
+ * directory).
+ *
+ * Who is online is sent to the clients in matchmaking by a PresenceService,
+ * which batches the changes instead of sending one message per login to
+ * every client.
+ *
+ * Games are hosted here too, by a GameService, with the moves going over
+ * the clients' connections to the server.
+ *
+ * Several servers can run as one lobby, each with its own clients and
+ * users, joined by a ClusterBus (see there for the system properties
+ * setting one up). Who is online on the other nodes is then listed too, and
+ * invites and games reach users there through the bus.
  */
 public class ServerModel {
-	private ArrayList<ClientConnection> connections;
-	private ArrayList<User> allUsers;
+	private Set<ClientConnection> connections;
+	private UserRegistry users;
 	private ArrayList<String> animals;
 	private ArrayList<String> colors;
 	private ServerController control;
 	private int portNumber;
 	private ServerView servView;
+	private UserStore store;
+	private PresenceService presence;
+	private GameService games;
+	private ClusterBus cluster;		// null when the server runs alone
 
 	public ServerModel(int port, ServerView view){
 		this.servView = view;
 		portNumber = port;
-		connections = new ArrayList<>();
-		allUsers = loadUsers();
+		connections = ConcurrentHashMap.newKeySet();
+		users = loadUsers();
+		presence = new PresenceService(users);
+		games = new GameService(this);
+		cluster = ClusterBus.configured(this);
+		presence.setCluster(cluster);
 		loadAnon();
 		control = new ServerController(this);
 		//start the thread in ServerController that listens for new connections
 		control.startListening(); 
+		if(cluster != null) {
+			try {
+				cluster.start();
+			}catch(IOException e) {
+				Log.error("Could not join the cluster", e);
+				System.exit(1);
+			}
+		}
 	}
 
 	/**
@@ -69,7 +110,7 @@ public class ServerModel {
 			
 			fileScan.close();
 		}catch (FileNotFoundException e) {
-			e.printStackTrace();
+			Log.warn("Could not load anonymous name lists", e);
 		}		
 		
 		
@@ -81,7 +122,8 @@ public class ServerModel {
 	 * @param c the new ClientConnection to add to the list
 	 */
 	public void newConnection(ClientConnection c, String info){
-		servView.connectionInfo(info+"\n");
+		if(servView != null)
+			servView.connectionInfo(info+"\n");
 		connections.add(c);
 	}
 
@@ -97,10 +139,17 @@ public class ServerModel {
 
 	/**
 	 * get method for the list of active ClientConnections
-	 * @return the ArrayList of active ClientConnections
+	 * @return a copy of the list of active ClientConnections
 	 */
 	public ArrayList<ClientConnection> getList(){
-		return connections;
+		return new ArrayList<ClientConnection>(connections);
+	}
+
+	/**
+	 * @return the number of active ClientConnections
+	 */
+	public int getConnectionCount(){
+		return connections.size();
 	}
 
 	/**
@@ -115,71 +164,84 @@ public class ServerModel {
 	 */
 	public String authenticate(String user, String pass, ClientConnection con){
 
-		boolean found = false;
-		int i = 0;
-		User temp;
-		
-		System.out.println(allUsers.size());
-		if(allUsers.size() == 0) {
+		User temp = users.get(user);
+		if(temp == null) {
 			return Tags.UN_NOT_FOUND;
 		}
-		while(!found && i < allUsers.size()){
-			temp = allUsers.get(i);
-			if(temp.getUN().equals(user)){
-				//normal games don't allow you to be online in multiple places
-				//if we want to implement that, do a !temp.isOnline()
-				if(temp.getPass() != null && temp.getPass().equals(pass) && !temp.isOnline()){
-					found = true;
-					temp.setOnline(true);
-					con.setUser(temp);
-					return Tags.SUCCESS;
-				}else if(temp.isOnline()) {
-					return Tags.UPDATEONLINE;
-				}else{
-					found = true;
-					return Tags.WRONG_PASS;
-				}//If password incorrect
-			}//If username found
-			else{
-				i++;
-			}//If not correct username
+		if(whereIs(user) >= 0) {
+			//online on another node of the cluster
+			return Tags.UPDATEONLINE;
+		}
+		//normal games don't allow you to be online in multiple places
+		if(temp.getPass() != null && temp.getPass().equals(pass)) {
+			if(users.goOnline(temp, con)) {
+				con.setUser(temp);
+				return Tags.SUCCESS;
+			}
+			return Tags.UPDATEONLINE;
+		}else if(temp.isOnline()) {
+			return Tags.UPDATEONLINE;
 		}
-		return Tags.UN_NOT_FOUND;
+		return Tags.WRONG_PASS;
 
 	}
 
+	/**
+	 * Told how a registration went
+	 */
+	public interface Registered {
+		/**
+		 * @param servMsg the String message for the ClientConnection to pass
+		 * on to the user
+		 */
+		void registered(String servMsg);
+	}
+
 	/**
 	 * Called by the ServerController; registers a new user. If the username
 	 * is already associated with an account, an error message is sent back
 	 * to the client. If the username is good, a new User is created and added
 	 * to the list of all users, this new User is set to online and added to 
 	 * the file of non-anonymous Users, and a success message is sent off to 
-	 * the client via the ServerController/ClientConnection
-	 * @return the String message for the ClientConnection to pass on to the
-	 * user
+	 * the client via the ServerController/ClientConnection once the User is
+	 * on disk. If it can't be saved the registration is undone and a failure
+	 * message is sent instead. In a cluster the
+	 * ClientConnection has claimed the name from the node that owns it (see
+	 * ClusterBus.claim) before this is called.
+	 *
+	 * Nothing waits for the disk: done is told on the UserStore's writer
+	 * thread once the User's record is saved, or straight away if the name
+	 * is taken.
+	 * @param done told the String message for the ClientConnection to pass
+	 * on to the user
 	 */
-	public String register(String user, String pass, ClientConnection con){
-
-		boolean found = false;
-		int i = 0;
-		User temp;
-		while(!found && i < allUsers.size()){
-			temp = allUsers.get(i);
-			if(temp.getUN().equals(user)){
-				found = true;
-				return Tags.UN_TAKEN;
-			}
-			i++;
-		}
-		
+	public void register(String user, String pass, final ClientConnection con, final Registered done){
+
 		// Successful Registration, add them as an online use and bring them to Matchmaking
-		User add = new User(user,pass,"0");
-		add.setOnline(true);
+		final User add = new User(user,pass,"0");
+		// kept out of snapshots until its record is on disk
+		add.setUnsaved(true);
+		if(whereIs(user) >= 0 || !users.add(add)) {
+			done.registered(Tags.UN_TAKEN);
+			return;
+		}
+		users.goOnline(add, con);
 		con.setUser(add);
-		allUsers.add(add);
-		writeFile(add);
 
-		return Tags.SUCCESS;
+		// don't confirm an account that is not on disk yet; registrations
+		// arriving together still share one fsync
+		store.register(add, new UserStore.Saved() {
+			public void saved(boolean ok) {
+				if(!ok) {
+					users.goOffline(add, con);
+					users.remove(add);
+					con.setUser(null);
+					done.registered(Tags.FAIL);
+					return;
+				}
+				done.registered(Tags.SUCCESS);
+			}
+		});
 	}
 
 	/**
@@ -188,73 +250,68 @@ public class ServerModel {
 	 * @return the success message
 	 */
 	public String newAnon(ClientConnection con){
-		boolean done = false;
 		String anonName = "";
+		User add = null;
+		int tries = 0;
 		
-		while(!done) {
-			// Try to make a new name, if it is taken, try again.
+		// Try to make a new name, if it is taken, try again. After a few 
+		// tries add a number, from a range big enough that it is probably free
+		do {
 			anonName = this.generateAnonName();
-			if(lookUp(anonName) == null) {
-				User add = new User(anonName);
-				add.setOnline(true);
-				con.setUser(add);
-				allUsers.add(add);
-				done = true;
-			}else {
-				// Stay in the loop till we make a valid username
+			if(++tries > 3) {
+				anonName += (int) (Math.random() * (4L * users.size() + 16));
 			}
-		}
+			add = new User(anonName);
+		}while(whereIs(anonName) >= 0 || !users.add(add));
+		users.goOnline(add, con);
+		con.setUser(add);
 		
 		return (Tags.AUTH_FEEDBACK + Tags.SUCCESS + anonName);
 	}
 
 	/**
-	 * Writes a new User to the file of User info
-	 * @param newUser the User whose info to write to the file of User info
+	 * This method is called upon instantiation of the ServerModel to load from
+	 * the UserStore the Users that have already registered
+	 * @return a UserRegistry of the Users that have already registered in a 
+	 * previous run of the server
 	 */
-	private void writeFile(User newUser){
-		BufferedWriter bw = null;
-
+	private UserRegistry loadUsers(){
+		long start = System.nanoTime();
+		store = new UserStore(new File(System.getProperty("gomoku.users.dir", ".")));
+		UserRegistry list = new UserRegistry(store.expectedUsers());
 		try {
-			bw = new BufferedWriter(new FileWriter("users.txt", true));
-			bw.write(newUser.getUN() + "\n");
-			bw.write(newUser.getPass() + "\n");
-			bw.write(newUser.getWins() + "\n");
-			bw.flush();
+			store.load(list);
 		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {     
-			if (bw != null) try {
-				bw.close();
-			} catch (IOException e2) {
-				// just ignore it
-			}
+			// starting without them would lose them at the next compaction
+			Log.error("Could not load the registered users", e);
+			System.exit(1);
 		}
+		if(Log.isInfoEnabled()) Log.info("Loaded " + list.size() + " users in " + (System.nanoTime() - start) / 1000000L + " ms");
+		return list;
+	}
 
+	/**
+	 * @return the index of Users
+	 */
+	public UserRegistry getUsers(){
+		return users;
 	}
 
 	/**
-	 * This method is called upon instantiation of the ServerModel to load from
-	 * the file a list of already registered Users
-	 * @return an ArrayList of Users that have already registered in a previous
-	 * run of the server
+	 * @return the store the registered Users are kept in
 	 */
-	private ArrayList<User> loadUsers(){
-		ArrayList<User> list = new ArrayList<User>();
-		File file = new File("users.txt");
-		Scanner fileScan;
-		try {
-			fileScan = new Scanner(file);
-			User temp;
-			while(fileScan.hasNextLine()){
-				temp = new User(fileScan.nextLine(), fileScan.nextLine(), fileScan.nextLine());
-				list.add(temp);
-			}
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	public UserStore getStore(){
+		return store;
+	}
+
+	/**
+	 * Saves a change to a User's wins or losses. Anonymous Users aren't saved.
+	 * @param u the User
+	 */
+	public void recordResult(User u){
+		if(u.getPass() != null) {
+			store.update(u);
 		}
-		return list;
 	}
 
 	/**
@@ -262,22 +319,38 @@ public class ServerModel {
 	 * the ServerController's stopServer method
 	 */
 	public void stopServer(){
-		ClientConnection temp;
-		for(int i = 0; i < connections.size(); i++){
-			temp = connections.get(i);
+		for(ClientConnection temp : getList()){
 			disconnect(temp);
 		}
 		control.stopServer();
+		if(cluster != null) {
+			cluster.stop();
+			Log.info(cluster.stats());
+			Log.info(ClusterBus.PROTOCOL.stats());
+		}
+		presence.stop();
+		store.close();
+		Log.info(store.stats());
+		Log.info(presence.stats());
+		Log.info(games.stats());
+		Log.info(GameActor.stats());
+		Log.info(TimerWheel.shared().stats());
+		Log.info(ClientConnection.writeStats());
+		Log.info(NioConnection.stats());
+		Log.info(ClientConnection.PROTOCOL.stats());
+		Log.info(ClientConnection.GAME_PROTOCOL.stats());
+		Log.info(Log.stats());
 
 	}
 
 	/**
 	 * removes the ClientConnection from the list of active connections
-	 * @param index the index of the ClientConnection to remove from the list
+	 * @param c the ClientConnection to remove from the list
 	 */
-	public void removeConnection(int index, String info){
-		servView.connectionInfo(info+"\n");
-		connections.remove(index);
+	public void removeConnection(ClientConnection c, String info){
+		if(servView != null)
+			servView.connectionInfo(info+"\n");
+		connections.remove(c);
 	}
 
 	/**
@@ -288,21 +361,25 @@ public class ServerModel {
 	 */
 	public void disconnect(ClientConnection cliCon) {
 		
-        connections.remove(cliCon);
-		if(cliCon.getUser() != null) {
-			cliCon.getUser().setOnline(false);
-			broadcastOnline(cliCon);
-			if(cliCon.getUser().getPass() == null) {
+		// a client can be disconnected twice (by [DISCON] and then by the
+		// socket closing), only the first one counts
+		User u = cliCon.getUser();
+		if(connections.remove(cliCon) && u != null) {
+			// leaving in the middle of a game loses it
+			games.resign(cliCon);
+			users.goOffline(u, cliCon);
+			if(u.getPass() == null) {
 				//this means it is anon
-				allUsers.remove(cliCon.getUser());
+				users.remove(u);
 			}
+			presence.unsubscribe(cliCon);
+			broadcastOnline(cliCon);
 		}
 		
 		try {
-			cliCon.s.close();
+			cliCon.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.warn("Error closing client socket", e);
 		}
 
 	}
@@ -315,17 +392,10 @@ public class ServerModel {
 	 */
 	public ClientConnection lookUp(String target) {
 
-		ClientConnection found = null;
-		
-		// Go through list of Connections and find user
-		for(int i = 0; i < connections.size();i++) {
-			if(connections.get(i).getUser() != null && connections.get(i).getUser().getUN().equals(target)) {
-				found = connections.get(i);
-			}
-		}
+		ClientConnection found = users.session(target);
 
 		// Return ClientConnection only if it was found
-		if(found != null && found.getUser().isOnline()) {
+		if(found != null && found.getUser() != null && found.getUser().isOnline()) {
 			return found;
 		}else {
 			return null;
@@ -336,52 +406,59 @@ public class ServerModel {
 
 
 	/**
-	 * Connects two players to give them reference to each other.  Achieved by
-	 * setting peer values of both ClientConnections to the other connection
+	 * Finds which other node of the cluster a user is online on
 	 * 
-	 * @param con1 the first connection
-	 * @param con2 the second connection
+	 * @param target the username
+	 * @return the node, or -1 if the user isn't online on another node
 	 */
-	public void connect(ClientConnection con1, ClientConnection con2) {
-
-		con1.setPeer(con2);
-		con2.setPeer(con1);
+	public int whereIs(String target) {
+		return cluster == null ? -1 : cluster.whereIs(target);
 	}
 
 	/**
-	 * Sends a message to this ClientConnection for every user that is
-	 *  currently online
+	 * Sends this ClientConnection the list of users that are currently
+	 * online, and from then on the changes to it
 	 * 
 	 * @param newCon a newly online connection.
 	 */
 	public void whoseOnline(ClientConnection newCon) {
-		
-		for(User u: allUsers) {
-			if(u.isOnline() && !(u.equals(newCon.getUser())) ) {
-				newCon.toClient(Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE + Tags.ADDUSER + u.getUN());
-			}
-		}
+		presence.subscribe(newCon);
 	}
 
 	/**
-	 * Tells all other users that this player is online
+	 * Tells all other users that this player came online or went offline
+	 * (in the PresenceService's next batch of changes)
 	 * 
 	 * @param newCon the ClientConnection of the player that came online
 	 */
 	public void broadcastOnline(ClientConnection newCon) {
-		
-		for(ClientConnection con: connections) {
-			if(con.getUser().isOnline() && !(con.equals(newCon)) ) {
-				
-				if(newCon.getUser().isOnline()) {
-					con.toClient(Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE + Tags.ADDUSER + newCon.getUser().getUN());
-				}else {
-					con.toClient(Tags.MATCH_FEEDBACK + Tags.UPDATEONLINE + Tags.REMOVEUSER + newCon.getUser().getUN());
-				}
-				
-			}
+		User u = newCon.getUser();
+		if(u != null) {
+			presence.changed(u.getUN());
+			if(cluster != null)
+				cluster.presenceChanged(u.getUN());
 		}
-		
+	}
+
+	/**
+	 * @return the service hosting games
+	 */
+	public GameService getGames(){
+		return games;
+	}
+
+	/**
+	 * @return the bus to the other nodes of the cluster, or null
+	 */
+	public ClusterBus getCluster(){
+		return cluster;
+	}
+
+	/**
+	 * @return the service telling clients who is online
+	 */
+	public PresenceService getPresence(){
+		return presence;
 	}
 
 	/**
@@ -395,8 +472,13 @@ public class ServerModel {
 		 String target = info.substring(Tags.CANCELINVITE.length(), info.length());
 		 
 		 ClientConnection targetCon = this.lookUp(target);
+		 int node = whereIs(target);
+		 if(targetCon == null && node >= 0) {
+			 cluster.send(node, Tags.CANCELINVITE + canceled.getUser().getUN() + " " + target);
+			 return;
+		 }
 		 try {
-			 targetCon.toClient(Tags.MATCH_FEEDBACK + Tags.CANCELINVITE + canceled.getUser().getUN());
+			 targetCon.inviteCancelled(canceled.getUser().getUN());
 		 }catch (NullPointerException e) {
 			 
 		 }
@@ -406,6 +488,10 @@ public class ServerModel {
 	}
 
 	public String generateAnonName() {
+		if(animals.isEmpty() || colors.isEmpty()) {
+			// no name lists to pick from, the number is added by newAnon
+			return "Guest";
+		}
 		int anmInd = (int) Math.floor(Math.random()*animals.size());
 		int clrInd = (int) Math.floor(Math.random()*colors.size());
 		
@@ -0,0 +1,211 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ServerModelStress: Hammers a ServerModel from many threads at once and
+ * checks that its state comes out consistent.
+ *
+ * Each worker thread has its own ClientConnections and, over and over,
+ * brings one online (registering a new user, logging back in as one of its
+ * earlier users, or signing in anonymously), looks it up, has it list and
+ * announce who is online, and disconnects it again. Meanwhile another
+ * thread opens and drops real connections, so the accept thread and the
+ * event loops add and remove connections too, and another keeps going
+ * through the list of connections the way the ServerView does.
+ *
+ * Afterwards every registration must be in the UserRegistry and, once the
+ * server has stopped, in its UserStore on disk. Nobody may be left online, no anonymous user may be left
+ * behind, and no thread may have hit an exception (the lists this replaced
+ * threw ConcurrentModificationException in broadcastOnline and lost
+ * registrations). Exits with status 1 if anything is off.
+ *
+ * Usage: java ServerModelStress [threads] [seconds] [connections per thread]
+ */
+public class ServerModelStress {
+
+	private static final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		TempUsers.run(new TempUsers.Body() {
+			public void run(File dir) throws Exception {
+				ServerModelStress.run(threads, seconds, perThread, dir);
+			}
+		});
+		if( !failures.isEmpty() ) {
+			System.out.println("ServerModelStress FAILED:");
+			for( int i = 0; i < Math.min(20, failures.size()); i++ )
+				System.out.println("  " + failures.get(i));
+			System.exit(1);
+		}
+		System.out.println("ServerModelStress: consistent");
+	}
+
+	private static void run(int threads, int seconds, int perThread, File dir) throws Exception {
+		System.setProperty("gomoku.server.mode", "nio");
+		if( System.getProperty("gomoku.server.loops") == null )
+			System.setProperty("gomoku.server.loops", "2");
+		final int port = 54430;
+		final ServerModel model = new ServerModel(port, null);
+
+		// the ClientConnections the workers use, one real channel each
+		int total = threads * perThread;
+		SocketChannel[] clients = new SocketChannel[total];
+		for( int i = 0; i < total; i++ )
+			clients[i] = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+		while( model.getConnectionCount() < total )
+			Thread.sleep(10);
+		ArrayList<ClientConnection> cons = model.getList();
+
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong registered = new AtomicLong();
+		final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(threads + 2);
+
+		for( int t = 0; t < threads; t++ ) {
+			final List<ClientConnection> mine = new ArrayList<ClientConnection>(cons.subList(t * perThread, (t + 1) * perThread));
+			final int id = t;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						work(model, id, mine, end, ops, registered, names);
+					}catch( Throwable e ) {
+						failures.add("worker " + id + ": " + e);
+					}finally {
+						done.countDown();
+					}
+				}
+			}, "stress-" + t).start();
+		}
+
+		// real connections coming and going
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					while( System.nanoTime() < end ) {
+						SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+						ch.close();
+						ops.incrementAndGet();
+					}
+				}catch( Throwable e ) {
+					failures.add("churn: " + e);
+				}finally {
+					done.countDown();
+				}
+			}
+		}, "stress-churn").start();
+
+		// the ServerView's view of things
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					while( System.nanoTime() < end ) {
+						for( ClientConnection cc : model.getList() ) {
+							User u = cc.getUser();
+							if( u != null )
+								u.getUN();
+						}
+						model.getUsers().onlineNames();
+						ops.incrementAndGet();
+					}
+				}catch( Throwable e ) {
+					failures.add("viewer: " + e);
+				}finally {
+					done.countDown();
+				}
+			}
+		}, "stress-viewer").start();
+
+		done.await();
+		double secs = seconds;
+		System.out.printf("%d threads, %,d operations in %d s (%,.0f/s), %,d users registered%n",
+				threads, ops.get(), seconds, ops.get() / secs, registered.get());
+
+		for( SocketChannel ch : clients )
+			ch.close();
+		// the churned connections are dropped on the event loops, give them a moment
+		for( int i = 0; i < 500 && model.getConnectionCount() > 0; i++ )
+			Thread.sleep(10);
+
+		UserRegistry users = model.getUsers();
+		if( model.getConnectionCount() != 0 )
+			failures.add(model.getConnectionCount() + " connections left after everyone went away");
+		if( users.onlineCount() != 0 )
+			failures.add(users.onlineCount() + " users still online: " + users.onlineNames());
+		int anons = 0;
+		for( User u : users.all() )
+			if( u.getPass() == null )
+				anons++;
+		if( anons != 0 )
+			failures.add(anons + " anonymous users left behind");
+		int missing = 0;
+		for( String un : names )
+			if( users.get(un) == null )
+				missing++;
+		if( missing != 0 )
+			failures.add(missing + " of " + names.size() + " registered users lost");
+
+		model.stopServer();
+		UserRegistry reloaded = new UserRegistry(names.size());
+		UserStore store = new UserStore(dir);
+		store.load(reloaded);
+		store.close();
+		missing = 0;
+		for( String un : names )
+			if( reloaded.get(un) == null )
+				missing++;
+		if( missing != 0 || reloaded.size() != names.size() )
+			failures.add("the store has " + reloaded.size() + " users, " + missing + " of the " + names.size() + " registered are missing");
+	}
+
+	/**
+	 * One worker: brings its connections online and offline again until the end
+	 */
+	private static void work(ServerModel model, int id, List<ClientConnection> mine, long end,
+			AtomicLong ops, AtomicLong registered, List<String> names) {
+		ArrayList<String> own = new ArrayList<String>();	// this worker's users, all offline between rounds
+		int round = 0;
+		while( System.nanoTime() < end ) {
+			ClientConnection cc = mine.get(round % mine.size());
+			model.newConnection(cc, "stress");
+
+			String un;
+			int kind = round % 3;
+			if( kind == 0 || own.isEmpty() ) {
+				un = "s" + id + "_" + round;
+				cc.processMsg(Tags.REGISTER + un + " pw");
+				own.add(un);
+				names.add(un);
+				registered.incrementAndGet();
+			}else if( kind == 1 ) {
+				un = own.get(round % own.size());
+				cc.processMsg(Tags.LOGIN + un + " pw");
+			}else {
+				cc.processMsg(Tags.ANON);
+				un = cc.getUser() == null ? "?" : cc.getUser().getUN();
+			}
+			if( cc.getUser() == null || !cc.getUser().getUN().equals(un) || !cc.getUser().isOnline() )
+				failures.add("worker " + id + " could not bring " + un + " online");
+			else if( model.lookUp(un) != cc )
+				failures.add("worker " + id + ": lookUp(" + un + ") did not find its connection");
+
+			model.whoseOnline(cc);
+			model.broadcastOnline(cc);
+			model.disconnect(cc);
+			if( model.lookUp(un) == cc )
+				failures.add("worker " + id + ": " + un + " still online after disconnecting");
+			round++;
+			ops.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ServerThreads makes the threads the thread-per-connection server runs on:
+ * the one that accepts connections and one per ClientConnection.
+ *
+ * In virtual mode they are virtual threads, which cost a few hundred bytes
+ * rather than a stack each and let go of their carrier thread while they
+ * block in read() or sleep(), so tens of thousands of idle clients don't
+ * need tens of thousands of OS threads. Virtual threads need Java 21; they
+ * are looked up by reflection so the server still builds and runs on older
+ * JVMs, where it falls back to platform threads with a small stack.
+ */
+public class ServerThreads {
+
+	// stack for platform threads; a client thread only reads a line and dispatches it
+	private static final long PLATFORM_STACK = 256 * 1024;
+
+	private final ThreadFactory factory;
+	private final boolean virtual;
+
+	/**
+	 * @param wantVirtual true to use virtual threads if the JVM has them
+	 */
+	public ServerThreads(boolean wantVirtual) {
+		ThreadFactory f = wantVirtual ? virtualFactory() : null;
+		virtual = (f != null);
+		if( f == null ) {
+			if( wantVirtual )
+				Log.warn("Virtual threads need Java 21, using platform threads");
+			f = new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(null, r, "client-" + count.incrementAndGet(), PLATFORM_STACK);
+					t.setDaemon(true);
+					return t;
+				}
+			};
+		}
+		factory = f;
+	}
+
+	/**
+	 * @return a factory for named virtual threads, or null if this JVM
+	 * can't make them
+	 */
+	private static ThreadFactory virtualFactory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "client-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}catch( ReflectiveOperationException | RuntimeException e ) {
+			// not there before Java 19, and only behind --enable-preview before 21
+			return null;
+		}
+	}
+
+	/**
+	 * Makes a thread, not yet started
+	 * @param task what the thread runs
+	 */
+	public Thread newThread(Runnable task) {
+		return factory.newThread(task);
+	}
+
+	/**
+	 * @return true if the threads made are virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * SnapshotBenchmark: Compares starting the server from the mapped user
+ * snapshot with reading users.txt the way the server first did.
+ *
+ * It writes a users.txt of that many users in a scratch directory and has
+ * a UserStore import it, which leaves a snapshot. Then, from each, it times
+ * getting to the point where users can log in, and the heap that takes: the
+ * UserStore mapping the snapshot, and a Scanner reading users.txt into a
+ * list of Users. After the mapped start it times the first logins of a
+ * number of random users, which are what make their Users, and checks that
+ * each one's password and wins came back right.
+ *
+ * The files were just written so are in the page cache; from a cold disk
+ * the Scanner has to read all of users.txt, and the mapped start only the
+ * pages the logins touch.
+ *
+ * Exits with status 1 if a user comes back wrong.
+ *
+ * Usage: java SnapshotBenchmark [users] [logins]
+ */
+public class SnapshotBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int logins = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		File dir = Files.createTempDirectory("gomoku-snap").toFile();
+		try {
+			run(dir, count, logins);
+		} finally {
+			for( File f : dir.listFiles() )
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	private static void run(File dir, int count, int logins) throws Exception {
+		File text = new File(dir, "users.txt");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(text));
+		for( int i = 0; i < count; i++ )
+			bw.write("user" + i + "\npw" + i + "\n" + (i % 100) + "\n");
+		bw.close();
+		Files.copy(text.toPath(), new File(dir, "copy.txt").toPath());
+
+		UserStore store = new UserStore(dir);
+		store.load(new UserRegistry(count));
+		store.close();
+		text = new File(dir, "copy.txt");
+		System.out.printf("%,d users: users.txt %,d KB, users.snap %,d KB%n", count,
+				text.length() / 1024, new File(dir, "users.snap").length() / 1024);
+
+		// mapped
+		long base = heap();
+		long start = System.nanoTime();
+		store = new UserStore(dir);
+		UserRegistry users = new UserRegistry(store.expectedUsers());
+		store.load(users);
+		long nanos = System.nanoTime() - start;
+		System.out.printf("%-8s %,8.1f ms to start, %,7d KB of heap, %,d users%n", "mapped",
+				nanos / 1e6, (heap() - base) / 1024, users.size());
+
+		Random rand = new Random(1);
+		int[] who = new int[logins];
+		for( int i = 0; i < logins; i++ )
+			who[i] = rand.nextInt(count);
+		start = System.nanoTime();
+		int ok = 0;
+		for( int i : who ) {
+			User u = users.get("user" + i);
+			if( u != null && u.getPass().equals("pw" + i) && u.getWins() == i % 100 )
+				ok++;
+		}
+		nanos = System.nanoTime() - start;
+		if( ok != logins )
+			fail("only " + ok + " of " + logins + " users came back right");
+		if( users.get("nobody") != null )
+			fail("found a user who was never registered");
+		System.out.printf("%-8s %,8.1f ms for the first %,d logins (%,d ns each), %,7d KB of heap now%n", "",
+				nanos / 1e6, logins, nanos / logins, (heap() - base) / 1024);
+		store.close();
+		users = null;
+		store = null;
+
+		// users.txt, as ServerModel used to read it
+		base = heap();
+		start = System.nanoTime();
+		ArrayList<User> list = scan(text);
+		nanos = System.nanoTime() - start;
+		System.out.printf("%-8s %,8.1f ms to start, %,7d KB of heap, %,d users%n", "Scanner",
+				nanos / 1e6, (heap() - base) / 1024, list.size());
+	}
+
+	/**
+	 * The loader ServerModel had before the UserStore
+	 */
+	private static ArrayList<User> scan(File file) throws FileNotFoundException {
+		ArrayList<User> list = new ArrayList<User>();
+		Scanner fileScan = new Scanner(file);
+		User temp;
+		while( fileScan.hasNextLine() ) {
+			temp = new User(fileScan.nextLine(), fileScan.nextLine(), fileScan.nextLine());
+			list.add(temp);
+		}
+		fileScan.close();
+		return list;
+	}
+
+	private static long heap() {
+		Runtime rt = Runtime.getRuntime();
+		for( int i = 0; i < 3; i++ )
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static void fail(String why) {
+		System.out.println("SnapshotBenchmark FAILED: " + why);
+		System.exit(1);
+	}
+}
@@ -21,8 +21,10 @@ public class Tags {
 	public static final String UPDATEONLINE = "[UPDTUSERSONLINE]";
 	public static final String ADDUSER = "[NEWUSER]";
 	public static final String REMOVEUSER = "[RMVUSER]";
+	public static final String USERLIST = "[USERLIST]";	// everyone online, space separated (see PresenceService)
+	public static final String USERDELTA = "[USERDELTA]";	// +name came online, -name went offline
 	public static final String INGAME = "[INGAME]";
-	public static final String HOST = "[HOST]";
+	public static final String PING = "[PING]";	// echoed straight back, for measuring round trips
 	
 	
 	//tags that show the user what the server is doing
@@ -41,9 +43,22 @@ public class Tags {
 	public static final String CANCELINVITE = "[CNCLUSR]";
 	
 	//gameplay tags
+	public static final String START_GAME = "[START]";	// [GAME][START]color,opponent from a game the server hosts
 	public static final String START_TURN = "[TURN]";
 	public static final String MOVE = "[MOVE]";
 	public static final String UPDATE_BOARD = "[BOARD]";
 	public static final String GAME_OVER = "[GAMEOVER]";
+	public static final String PROTO = "[PROTO]";	// [GAME][PROTO]BIN offers (and accepts) GameCodec's binary messages
+	public static final String BINARY = "BIN";
+	
+	//tags the servers of a cluster send each other (see ClusterBus), besides
+	//the ones above for invites, moves and the like
+	public static final String BUS_HELLO = "[HELLO]";	// the sending node's index
+	public static final String BUS_ONLINE = "[ON]";		// users online on the sending node
+	public static final String BUS_OFFLINE = "[OFF]";	// a user gone offline there
+	public static final String BUS_JOIN = "[JOIN]";		// a player on the receiving node is in a game the sender hosts
+	public static final String BUS_CLAIM = "[CLAIM]";	// asks a name's owner for it, to register on the sending node
+	public static final String BUS_CLAIMED = "[CLAIMED]";	// the owner's answer, SUCCESS or USERTAKEN
+	public static final String BUS_NOGAME = "[NOGAME]";	// a game a player on the receiving node accepted could not start
 	
 }
@@ -0,0 +1,39 @@
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * TempUsers runs a load test or benchmark with the server's UserStore in a
+ * temporary directory (gomoku.users.dir), deleted again afterwards, so it
+ * neither writes into the working directory nor collides with the store of
+ * a server running there.
+ */
+public class TempUsers {
+
+	/**
+	 * What runs with the store in the temporary directory
+	 */
+	public interface Body {
+		/**
+		 * @param dir the directory, e.g. for a users.txt to import or to
+		 * open the store again afterwards
+		 */
+		void run(File dir) throws Exception;
+	}
+
+	/**
+	 * Makes a temporary directory, points gomoku.users.dir at it, runs the
+	 * body and deletes the directory, however the body ends
+	 * @param body what to run
+	 */
+	public static void run(Body body) throws Exception {
+		File dir = Files.createTempDirectory("gomoku-users").toFile();
+		System.setProperty("gomoku.users.dir", dir.getPath());
+		try {
+			body.run(dir);
+		} finally {
+			for( File f : dir.listFiles() )
+				f.delete();
+			dir.delete();
+		}
+	}
+}
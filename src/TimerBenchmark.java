@@ -0,0 +1,124 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimerBenchmark: Sets a large number of timeouts at once, as a busy server
+ * would with a turn clock for every game and an idle timeout for every
+ * client, and cancels half of them, as moves made in time do.
+ *
+ * Runs the same timers on a TimerWheel and on a ScheduledThreadPoolExecutor
+ * with one thread (which keeps them in a heap, and is set to take cancelled
+ * ones out of it). Prints the cost of setting and cancelling a timer, the
+ * memory the timers take, and how late the ones left go off. Exits with
+ * status 1 if a cancelled timer goes off or one left doesn't.
+ *
+ * Usage: java TimerBenchmark [timers] [maxDelayMillis] [tickMillis]
+ */
+public class TimerBenchmark {
+
+	/**
+	 * A timer's task, which notes how late it went off
+	 */
+	private static class Task implements Runnable {
+		long due;
+		long late = -1;
+		boolean keep;
+		boolean cancelled;
+		CountDownLatch left;
+
+		public void run() {
+			late = System.nanoTime() - due;
+			if( keep )
+				left.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int maxDelay = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		long tick = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+		System.out.printf("%,d timers, due in 1 to %,d ms, half cancelled, %d ms ticks%n", n, maxDelay, tick);
+		// the first run of each warms up
+		for( int round = 0; round < 2; round++ ) {
+			run(true, n, maxDelay, tick, round == 1);
+			run(false, n, maxDelay, tick, round == 1);
+		}
+	}
+
+	private static void run(boolean wheel, int n, int maxDelay, long tick, boolean print) throws Exception {
+		TimerWheel w = wheel ? new TimerWheel("bench-wheel", tick) : null;
+		ScheduledThreadPoolExecutor ex = null;
+		if( !wheel ) {
+			ex = new ScheduledThreadPoolExecutor(1);
+			ex.setRemoveOnCancelPolicy(true);
+		}
+		Random rand = new Random(42);
+		Task[] tasks = new Task[n];
+		long[] delays = new long[n];
+		CountDownLatch left = new CountDownLatch(n - n / 2);
+		for( int i = 0; i < n; i++ ) {
+			tasks[i] = new Task();
+			tasks[i].keep = i % 2 == 1;
+			tasks[i].left = left;
+			delays[i] = 1 + rand.nextInt(maxDelay);
+		}
+		Object[] timers = new Object[n];
+
+		System.gc();
+		long heap = used();
+		long t0 = System.nanoTime();
+		for( int i = 0; i < n; i++ ) {
+			tasks[i].due = System.nanoTime() + delays[i] * 1000000L;
+			if( wheel )
+				timers[i] = w.schedule(tasks[i], delays[i]);
+			else
+				timers[i] = ex.schedule(tasks[i], delays[i], TimeUnit.MILLISECONDS);
+		}
+		long t1 = System.nanoTime();
+		long bytes = used() - heap;
+		for( int i = 0; i < n; i += 2 ) {
+			// one due in the first few ms may have gone off already
+			if( wheel )
+				tasks[i].cancelled = ((TimerWheel.Timeout) timers[i]).cancel();
+			else
+				tasks[i].cancelled = ((ScheduledFuture<?>) timers[i]).cancel(false);
+		}
+		long t2 = System.nanoTime();
+
+		if( !left.await(maxDelay + 10000, TimeUnit.MILLISECONDS) )
+			fail(left.getCount() + " timers didn't go off");
+		if( wheel )
+			w.stop();
+		else
+			ex.shutdownNow();
+
+		long[] late = new long[n - n / 2];
+		int k = 0;
+		for( int i = 0; i < n; i++ ) {
+			if( tasks[i].cancelled && tasks[i].late >= 0 )
+				fail("a cancelled timer went off");
+			if( tasks[i].keep )
+				late[k++] = tasks[i].late;
+		}
+		Arrays.sort(late);
+		if( print )
+			System.out.printf("%-18s set %,d ns, cancel %,d ns, %,d bytes per timer; late ms p50 %,d  p99 %,d  max %,d%n",
+					wheel ? "TimerWheel:" : "ScheduledExecutor:", (t1 - t0) / n, (t2 - t1) / (n / 2), bytes / n,
+					late[late.length / 2] / 1000000L, late[late.length * 99 / 100] / 1000000L, late[late.length - 1] / 1000000L);
+	}
+
+	private static long used() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static void fail(String why) {
+		System.out.println("FAIL: " + why);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,234 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimerWheel runs tasks after a delay, for the server's timeouts: turn
+ * clocks, invites nobody answered and connections gone quiet. There can be
+ * one for every game and every client, most of them cancelled long before
+ * they are due, so scheduling and cancelling must be cheap and the timers
+ * must take no thread while they wait.
+ *
+ * The wheel is a ring of slots, one per tick (gomoku.timer.tick, 100 ms by
+ * default). A timer goes in the slot its deadline falls in, with the number
+ * of times round the ring still to go. One thread ticks the wheel: every
+ * tick it runs the timers in the next slot whose rounds are up and takes
+ * one round off the others. Scheduling and cancelling are O(1), as are the
+ * ticks, whatever the number of timers, at the cost of firing up to a tick
+ * late. Other threads never touch the slots; they queue new and cancelled
+ * timers for the ticking thread to pick up.
+ *
+ * Tasks run on the ticking thread and must be quick; anything that may
+ * block, such as a write to a client, or that belongs to a game, is handed
+ * on to where it belongs (a GameActor, an EventLoop).
+ */
+public class TimerWheel {
+
+	private static final int SLOTS = 512;		// 51.2 s round at 100 ms ticks
+	private static final int MAX_ADDS = 100000;	// new timers placed in one tick, so a flood can't stall the ticks
+
+	private static TimerWheel shared;
+
+	/**
+	 * A task waiting on the wheel
+	 */
+	public static final class Timeout {
+		private static final int WAITING = 0, CANCELLED = 1, FIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final TimerWheel wheel;
+		private final Runnable task;
+		private final long deadline;	// in ticks from the wheel's start
+		private volatile int state;
+		// only touched by the ticking thread
+		private long rounds;
+		private int slot = -1;		// -1 until placed
+		private Timeout prev, next;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running, if it hasn't yet
+		 * @return true if it was stopped, false if it has run or was
+		 * cancelled already
+		 */
+		public boolean cancel() {
+			if( !STATE.compareAndSet(this, WAITING, CANCELLED) )
+				return false;
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == FIRED;
+		}
+	}
+
+	private final String name;
+	private final long tickNanos;
+	private final Timeout[] slots = new Timeout[SLOTS];	// heads of each slot's list
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final long start = System.nanoTime();
+	private volatile long tick;		// the next tick to run
+	private volatile boolean stopped;
+	private final Thread ticker;
+
+	// metrics
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong cancels = new AtomicLong();
+	private final AtomicLong fired = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Makes a wheel and starts its thread
+	 * @param name the thread's name
+	 * @param tickMillis how often it ticks, and how late a timer can fire
+	 */
+	public TimerWheel(String name, long tickMillis) {
+		this.name = name;
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		ticker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, name);
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * @return the wheel shared by the server's timeouts, made on first use
+	 */
+	public static synchronized TimerWheel shared() {
+		if( shared == null )
+			shared = new TimerWheel("timers", Long.getLong("gomoku.timer.tick", 100));
+		return shared;
+	}
+
+	/**
+	 * Runs a task after a delay, on the wheel's thread
+	 * @param task what to run; must not block
+	 * @param delayMillis how long from now
+	 * @return the Timeout, for cancelling it
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		long due = System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		// rounded up, so it never fires early
+		Timeout t = new Timeout(this, task, (due + tickNanos - 1) / tickNanos);
+		scheduled.incrementAndGet();
+		added.add(t);
+		return t;
+	}
+
+	/**
+	 * Stops the wheel's thread; the timers still waiting never run
+	 */
+	public void stop() {
+		stopped = true;
+		ticker.interrupt();
+	}
+
+	/**
+	 * Runs on the ticking thread until stopped
+	 */
+	private void work() {
+		while( !stopped ) {
+			// tick k runs k ticks after the start, the timers due by then in its slot
+			long wait = start + tick * tickNanos - System.nanoTime();
+			if( wait > 0 ) {
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+			unlinkCancelled();
+			place();
+			expire(slots[(int) (tick & (SLOTS - 1))]);
+			tick++;
+		}
+	}
+
+	private void unlinkCancelled() {
+		Timeout t;
+		while( (t = cancelled.poll()) != null ) {
+			cancels.incrementAndGet();
+			if( t.slot >= 0 )
+				unlink(t);
+		}
+	}
+
+	private void place() {
+		for( int i = 0; i < MAX_ADDS; i++ ) {
+			Timeout t = added.poll();
+			if( t == null )
+				return;
+			if( t.state != Timeout.WAITING )
+				continue;	// cancelled before it was placed
+			// one already due goes in this tick's slot
+			long at = Math.max(t.deadline, tick);
+			t.rounds = (at - tick) / SLOTS;
+			t.slot = (int) (at & (SLOTS - 1));
+			t.next = slots[t.slot];
+			if( t.next != null )
+				t.next.prev = t;
+			slots[t.slot] = t;
+		}
+	}
+
+	private void expire(Timeout t) {
+		while( t != null ) {
+			Timeout next = t.next;
+			if( t.rounds > 0 ) {
+				t.rounds--;
+			}else {
+				unlink(t);
+				if( Timeout.STATE.compareAndSet(t, Timeout.WAITING, Timeout.FIRED) ) {
+					fired.incrementAndGet();
+					try {
+						t.task.run();
+					} catch( RuntimeException e ) {
+						failures.incrementAndGet();
+						Log.error("Error in a timer task", e);
+					}
+				}
+			}
+			t = next;
+		}
+	}
+
+	private void unlink(Timeout t) {
+		if( t.prev != null )
+			t.prev.next = t.next;
+		else
+			slots[t.slot] = t.next;
+		if( t.next != null )
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.slot = -1;
+	}
+
+	/**
+	 * @return how many timers are waiting, roughly
+	 */
+	public long getPendingCount() {
+		return scheduled.get() - fired.get() - cancels.get() - cancelled.size();
+	}
+
+	/**
+	 * @return a one line summary of the wheel's metrics
+	 */
+	public String stats() {
+		return name + " scheduled=" + scheduled.get() + " fired=" + fired.get() + " cancelled=" + (cancels.get() + cancelled.size())
+			+ " pending=" + getPendingCount() + " failures=" + failures.get();
+	}
+}
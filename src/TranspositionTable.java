@@ -0,0 +1,183 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * TranspositionTable remembers what the Gomobot search found out about a
+ * position (the depth it was searched to, the score, whether that score is
+ * exact or only a bound, and the best move) so that reaching the same
+ * position again through a different move order does not mean searching it
+ * again.
+ *
+ * The table is a fixed number of entries chosen from a memory size at
+ * construction, so it never grows with the length of the game. It takes no
+ * locks: each entry is two longs, the data and the key XOR the data. A
+ * reader only trusts an entry whose two halves agree, so an entry torn by
+ * two threads writing at once reads as a miss rather than as wrong data.
+ *
+ * The HARD Gomobots of a process all search with one table (see shared()).
+ * A position's Zobrist key, side to move included, is the same in every
+ * game, so what one bot finds out is as good to another. Each search gets
+ * its own age from newSearch() and stores with it; an entry is only stale
+ * once the search that stored it has ended, so one bot starting a search
+ * doesn't let shallower results overwrite another's that is still going.
+ */
+public class TranspositionTable {
+
+	public static final int EXACT = 1;
+	public static final int LOWER = 2;	// the score is at least this (search failed high)
+	public static final int UPPER = 3;	// the score is at most this (search failed low)
+
+	public static final int NO_MOVE = 0x7FF;
+
+	/**
+	 * How a new entry decides whether to overwrite the one in its slot
+	 */
+	public enum Replacement {
+		/** always overwrite */
+		ALWAYS,
+		/** keep an entry from this search that was searched deeper than the new one */
+		DEPTH_PREFERRED
+	}
+
+	// data layout: move 11 bits | depth 7 bits | bound 2 bits | age 8 bits | score 32 bits
+	private static final int MOVE_SHIFT = 53;
+	private static final int DEPTH_SHIFT = 46;
+	private static final int BOUND_SHIFT = 44;
+	private static final int AGE_SHIFT = 36;
+
+	private static TranspositionTable shared;
+
+	private final long[] table;		// key ^ data, data, key ^ data, data, ...
+	private final int mask;
+	private final Replacement policy;
+	private final AtomicInteger ages = new AtomicInteger();
+	private final AtomicIntegerArray running = new AtomicIntegerArray(256);	// searches going on, by age
+
+	/**
+	 * @param megabytes the most memory the table may use
+	 * @param policy the replacement policy
+	 */
+	public TranspositionTable(int megabytes, Replacement policy) {
+		long bytes = Math.max(1, megabytes) * 1024L * 1024L;
+		long entries = Long.highestOneBit(bytes / 16);
+		if( entries > (1 << 28) )
+			entries = 1 << 28;
+		table = new long[(int) entries * 2];
+		mask = (int) entries - 1;
+		this.policy = policy;
+	}
+
+	/**
+	 * Makes a table sized and configured from the system properties
+	 * gomoku.bot.ttMB (default 16) and gomoku.bot.ttPolicy (ALWAYS or
+	 * DEPTH_PREFERRED, the default)
+	 */
+	public static TranspositionTable fromProperties() {
+		int mb = Integer.getInteger("gomoku.bot.ttMB", 16);
+		Replacement policy = Replacement.valueOf(System.getProperty("gomoku.bot.ttPolicy", "DEPTH_PREFERRED"));
+		return new TranspositionTable(mb, policy);
+	}
+
+	/**
+	 * @return the table shared by the process's HARD Gomobots, made as in
+	 * fromProperties() on first use, so the process holds gomoku.bot.ttMB
+	 * of table however many bots there are
+	 */
+	public static synchronized TranspositionTable shared() {
+		if( shared == null )
+			shared = fromProperties();
+		return shared;
+	}
+
+	/**
+	 * Called at the start of every search so that entries from earlier
+	 * moves can be told apart and replaced first. Every call must be
+	 * followed by an endSearch() with the age it returns.
+	 * @return the search's age, to store its entries with
+	 */
+	public int newSearch() {
+		int age = ages.incrementAndGet() & 0xFF;
+		running.incrementAndGet(age);
+		return age;
+	}
+
+	/**
+	 * Called when a search is over; its entries are then the first to go
+	 * @param age the search's age, from newSearch()
+	 */
+	public void endSearch(int age) {
+		running.decrementAndGet(age);
+	}
+
+	/**
+	 * Looks up a position
+	 * @param key the position's hash
+	 * @return the entry's data, or 0 if the position isn't in the table
+	 */
+	public long probe(long key) {
+		int i = ((int) key & mask) << 1;
+		long data = table[i + 1];
+		if( (table[i] ^ data) != key || data == 0 )
+			return 0;
+		return data;
+	}
+
+	/**
+	 * Stores what was found out about a position
+	 * @param key the position's hash
+	 * @param depth the depth it was searched to
+	 * @param bound EXACT, LOWER or UPPER
+	 * @param score the score
+	 * @param move the best move as row * size + col, or NO_MOVE
+	 * @param age the age of the search storing it, from newSearch()
+	 */
+	public void store(long key, int depth, int bound, int score, int move, int age) {
+		int i = ((int) key & mask) << 1;
+		long old = table[i + 1];
+		if( policy == Replacement.DEPTH_PREFERRED && old != 0
+				&& (table[i] ^ old) != key && depth(old) > depth
+				&& (age(old) == age || running.get(age(old)) > 0) ) {
+			return;
+		}
+		long data = ((long) (move & 0x7FF) << MOVE_SHIFT)
+				| ((long) (depth & 0x7F) << DEPTH_SHIFT)
+				| ((long) bound << BOUND_SHIFT)
+				| ((long) (age & 0xFF) << AGE_SHIFT)
+				| (score & 0xFFFFFFFFL);
+		table[i] = key ^ data;
+		table[i + 1] = data;
+	}
+
+	/**
+	 * Empties the table
+	 */
+	public void clear() {
+		java.util.Arrays.fill(table, 0L);
+	}
+
+	/**
+	 * @return the number of entries the table can hold
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/*
+	 * Getters for the fields of an entry's data
+	 */
+	public static int move(long data) {
+		return (int) (data >>> MOVE_SHIFT) & 0x7FF;
+	}
+	public static int depth(long data) {
+		return (int) (data >>> DEPTH_SHIFT) & 0x7F;
+	}
+	public static int bound(long data) {
+		return (int) (data >>> BOUND_SHIFT) & 0x3;
+	}
+	public static int score(long data) {
+		return (int) data;
+	}
+	private static int age(long data) {
+		return (int) (data >>> AGE_SHIFT) & 0xFF;
+	}
+}
@@ -11,7 +11,9 @@ public class User {
 	private String username;
 	private String password;
 	private int wins;
-	private boolean online;
+	private int losses;
+	private volatile boolean online;
+	private volatile boolean unsaved;	// registered, but not on disk yet
 	private int gameState;	//0 = offline, 2 = in matchmaking, 3 = in game
 	
 	/**
@@ -26,6 +28,20 @@ public class User {
 		setGameState(0);
 	}
 	
+	/**
+	 * Constructor for a registered User loaded from the UserStore
+	 * @param un the User's username
+	 * @param pass the User's password
+	 * @param winCount the number of games they have won
+	 * @param lossCount the number of games they have lost
+	 */
+	public User(String un, String pass, int winCount, int lossCount){
+		username = un;
+		password = pass;
+		wins = winCount;
+		losses = lossCount;
+	}
+	
 	/**
 	 * Constructor for User with no known password (anonymous)
 	 * @param un the User's username (generated by the ServerController)
@@ -50,6 +66,22 @@ public class User {
 		return password;
 	}
 	
+	/**
+	 * Marks a new registration as not yet on disk, so that a compaction of
+	 * the UserStore leaves it out of the snapshot until it is. Set before
+	 * the User is added to the UserRegistry; the UserStore clears it.
+	 */
+	public void setUnsaved(boolean u){
+		unsaved = u;
+	}
+
+	/**
+	 * @return true if this User has registered but is not on disk yet
+	 */
+	public boolean isUnsaved(){
+		return unsaved;
+	}
+
 	/**
 	 * Setter for this User's online status
 	 */
@@ -103,4 +135,27 @@ public class User {
 	public void incrementWins(){
 		wins++;
 	}
+
+	/**
+	 * Setter for this User's losses field (the number of games they have lost)
+	 * @param lossCount the number to set as the loss count
+	 */
+	public void setLosses(int lossCount){
+		losses = lossCount;
+	}
+
+	/**
+	 * Getter for the losses field (the number of games they have lost)
+	 * @return losses
+	 */
+	public int getLosses(){
+		return losses;
+	}
+
+	/**
+	 * Adds one to this User's loss count. Called when a player loses a game.
+	 */
+	public void incrementLosses(){
+		losses++;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * UserRegistry is the ServerModel's index of Users by username. It keeps
+ * two maps: every known User (registered ones, and anonymous ones while
+ * they are online), and the ClientConnection of each User that is online.
+ * Finding a User to log in, checking that a name is free and finding an
+ * online player to send an invite to are all single hash lookups, however
+ * many users there are.
+ *
+ * Both maps are ConcurrentHashMaps, so ClientConnections on different
+ * threads use them without a lock. Claiming a name (add) and going online
+ * (goOnline) are each one atomic putIfAbsent, so two clients racing for the
+ * same name or the same account cannot both win.
+ *
+ * Users can also come from a UserSnapshot mapped at startup. The registry
+ * then starts out empty and a User is made from the snapshot the first time
+ * its name is asked for, so only the users who actually turn up cost any
+ * memory.
+ */
+public class UserRegistry {
+
+	private final ConcurrentHashMap<String, User> users;
+	private final ConcurrentHashMap<String, ClientConnection> sessions;
+	private volatile UserSnapshot snapshot;
+	private final AtomicInteger fromSnapshot = new AtomicInteger();	// Users made from the snapshot so far
+
+	/**
+	 * @param expected about how many users there will be, to size the maps
+	 */
+	public UserRegistry(int expected) {
+		users = new ConcurrentHashMap<String, User>(Math.max(16, expected * 4 / 3));
+		sessions = new ConcurrentHashMap<String, ClientConnection>();
+	}
+
+	/**
+	 * @param un a username
+	 * @return the User with that username, or null if there is none
+	 */
+	public User get(String un) {
+		User u = users.get(un);
+		UserSnapshot snap = snapshot;
+		if( u != null || snap == null )
+			return u;
+		int off = snap.find(un);
+		if( off < 0 )
+			return null;
+		u = snap.load(off);
+		User had = users.putIfAbsent(un, u);
+		if( had != null )
+			return had;
+		fromSnapshot.incrementAndGet();
+		return u;
+	}
+
+	/**
+	 * Adds a User if nobody has its username yet
+	 * @param u the User
+	 * @return true if it was added, false if the username is taken
+	 */
+	public boolean add(User u) {
+		if( snapshot != null && get(u.getUN()) != null )
+			return false;
+		return users.putIfAbsent(u.getUN(), u) == null;
+	}
+
+	/**
+	 * Sets the snapshot Users are made from when they are first asked for.
+	 * Only before the registry is used.
+	 * @param snap the snapshot
+	 */
+	public void setSnapshot(UserSnapshot snap) {
+		snapshot = snap;
+	}
+
+	/**
+	 * @return the snapshot Users are made from, or null
+	 */
+	public UserSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Forgets a User, e.g. an anonymous one that has gone offline
+	 * @param u the User
+	 */
+	public void remove(User u) {
+		users.remove(u.getUN(), u);
+	}
+
+	/**
+	 * Marks a User as online at a connection, unless it already is
+	 * @param u the User
+	 * @param con its connection
+	 * @return true if the User is now online at con, false if it was
+	 * already online somewhere
+	 */
+	public boolean goOnline(User u, ClientConnection con) {
+		if( sessions.putIfAbsent(u.getUN(), con) != null )
+			return false;
+		u.setOnline(true);
+		return true;
+	}
+
+	/**
+	 * Marks a User as offline, if it is online at this connection
+	 * @param u the User
+	 * @param con the connection it was online at
+	 */
+	public void goOffline(User u, ClientConnection con) {
+		if( sessions.remove(u.getUN(), con) )
+			u.setOnline(false);
+	}
+
+	/**
+	 * @param un a username
+	 * @return the connection that user is online at, or null if they are not online
+	 */
+	public ClientConnection session(String un) {
+		return sessions.get(un);
+	}
+
+	/**
+	 * @return the usernames of the users online now
+	 */
+	public ArrayList<String> onlineNames() {
+		return new ArrayList<String>(sessions.keySet());
+	}
+
+	/**
+	 * @return every known User, in no particular order. This makes a User
+	 * for everyone in the snapshot, so is slow and takes a lot of memory
+	 * with a big one; see loaded().
+	 */
+	public Collection<User> all() {
+		UserSnapshot snap = snapshot;
+		if( snap != null && fromSnapshot.get() < snap.getCount() )
+			for( int off : snap.recordOffsets() )
+				get(snap.nameAt(off));
+		return users.values();
+	}
+
+	/**
+	 * @return the Users made so far, in no particular order: everyone who
+	 * registered or was online since the server started, but not the rest of
+	 * the snapshot
+	 */
+	public Collection<User> loaded() {
+		return users.values();
+	}
+
+	/**
+	 * @return the number of known Users
+	 */
+	public int size() {
+		UserSnapshot snap = snapshot;
+		return users.size() + (snap == null ? 0 : snap.getCount() - fromSnapshot.get());
+	}
+
+	/**
+	 * @return the number of Users online
+	 */
+	public int onlineCount() {
+		return sessions.size();
+	}
+}
@@ -0,0 +1,335 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * UserSnapshot is the UserStore's snapshot file (users.snap), read by
+ * mapping it into memory rather than loading it. The file carries its own
+ * hash index, so a username is found by hashing it and probing the index
+ * in the mapped file, and a User object is only made for someone who
+ * actually logs in (see UserRegistry). Starting the server takes the same
+ * time whether it has a hundred users or ten million; the operating system
+ * pages in the parts of the file that are used.
+ *
+ * The layout, all big-endian:
+ *
+ *   header   magic "GMUS", version 2, generation (long), user count,
+ *            index size (a power of two, at least twice the count)
+ *   index    one int per slot: where a user's record starts, or 0 for an
+ *            empty slot. Open addressing: a name goes in the first empty
+ *            slot from its hash onwards.
+ *   records  name length (short), name (UTF-8), password length (short),
+ *            password, wins (int), losses (int)
+ *   CRC32    of the index and the records
+ *
+ * Checking the CRC means reading the whole file, so it is only done when
+ * the property gomoku.users.verify is true; a snapshot is synced before
+ * it is renamed into place, so it is only ever seen whole.
+ */
+public class UserSnapshot {
+
+	static final int VERSION = 2;
+	static final int HEADER = 24;
+
+	private final MappedByteBuffer buf;
+	private final long generation;
+	private final int count;
+	private final int mask;
+	private final int end;		// where the records end and the CRC starts
+
+	private UserSnapshot(MappedByteBuffer buf, long generation, int count, int slots) {
+		this.buf = buf;
+		this.generation = generation;
+		this.count = count;
+		this.mask = slots - 1;
+		this.end = buf.capacity() - 4;
+	}
+
+	/**
+	 * Maps a snapshot file
+	 * @param file the file
+	 * @return the snapshot
+	 * @throws IOException if it is not a version 2 snapshot or is cut short
+	 */
+	public static UserSnapshot map(File file) throws IOException {
+		FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		MappedByteBuffer buf;
+		try {
+			if( ch.size() > Integer.MAX_VALUE )
+				throw new IOException(file + " is too big to map");
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			ch.close();		// the mapping stays valid
+		}
+		if( buf.capacity() < HEADER + 4 || buf.getInt(0) != UserStore.SNAP_MAGIC || buf.getInt(4) != VERSION )
+			throw new IOException(file + " is not a version " + VERSION + " user snapshot");
+		long gen = buf.getLong(8);
+		int count = buf.getInt(16);
+		int slots = buf.getInt(20);
+		if( slots <= 0 || Integer.bitCount(slots) != 1 || count < 0 || count > slots
+				|| HEADER + 4L * slots + 4 > buf.capacity() )
+			throw new IOException(file + " is damaged (bad header)");
+		UserSnapshot snap = new UserSnapshot(buf, gen, count, slots);
+		if( Boolean.getBoolean("gomoku.users.verify") && !snap.verify() )
+			throw new IOException(file + " is damaged (bad CRC)");
+		return snap;
+	}
+
+	/**
+	 * @return true if the CRC matches; reads the whole file
+	 */
+	public boolean verify() {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = buf.duplicate();
+		b.position(HEADER).limit(end);
+		crc.update(b);
+		return (int) crc.getValue() == buf.getInt(end);
+	}
+
+	/**
+	 * Looks a username up in the index
+	 * @param un the username
+	 * @return where the user's record starts, or -1 if they aren't in the snapshot
+	 */
+	public int find(String un) {
+		byte[] name = un.getBytes(StandardCharsets.UTF_8);
+		int i = hash(name, 0, name.length) & mask;
+		while( true ) {
+			int off = buf.getInt(HEADER + 4 * i);
+			if( off == 0 )
+				return -1;
+			if( nameEquals(off, name) )
+				return off;
+			i = (i + 1) & mask;
+		}
+	}
+
+	private boolean nameEquals(int off, byte[] name) {
+		int len = buf.getShort(off) & 0xFFFF;
+		if( len != name.length )
+			return false;
+		for( int k = 0; k < len; k++ )
+			if( buf.get(off + 2 + k) != name[k] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Makes the User whose record starts at off
+	 * @param off a record's start, from find()
+	 * @return a new User
+	 */
+	public User load(int off) {
+		int nameLen = buf.getShort(off) & 0xFFFF;
+		String un = string(off + 2, nameLen);
+		int p = off + 2 + nameLen;
+		int passLen = buf.getShort(p) & 0xFFFF;
+		String pass = string(p + 2, passLen);
+		p += 2 + passLen;
+		return new User(un, pass, buf.getInt(p), buf.getInt(p + 4));
+	}
+
+	/**
+	 * @return the username in the record that starts at off
+	 */
+	String nameAt(int off) {
+		return string(off + 2, buf.getShort(off) & 0xFFFF);
+	}
+
+	private String string(int off, int len) {
+		byte[] b = new byte[len];
+		ByteBuffer d = buf.duplicate();
+		d.position(off);
+		d.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the length of the record that starts at off
+	 */
+	private int recordLength(int off) {
+		int nameLen = buf.getShort(off) & 0xFFFF;
+		int passLen = buf.getShort(off + 2 + nameLen) & 0xFFFF;
+		return 2 + nameLen + 2 + passLen + 8;
+	}
+
+	/**
+	 * @return the start of every record, in file order
+	 */
+	int[] recordOffsets() {
+		int[] offs = new int[count];
+		int n = 0;
+		for( int off = HEADER + 4 * (mask + 1); off < end && n < count; off += recordLength(off) )
+			offs[n++] = off;
+		return offs;
+	}
+
+	/*
+	 * Getters
+	 */
+	public int getCount() {
+		return count;
+	}
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Hash of a UTF-8 name (FNV-1a, then mixed so nearby names spread out)
+	 */
+	static int hash(byte[] b, int off, int len) {
+		int h = 0x811C9DC5;
+		for( int i = off; i < off + len; i++ )
+			h = (h ^ (b[i] & 0xFF)) * 0x01000193;
+		return h ^ (h >>> 15);
+	}
+
+	/**
+	 * A user to be written: either a record of an older snapshot, or a
+	 * User from memory already encoded
+	 */
+	private static class Entry {
+		final byte[] rec;		// the record, or null to copy from the old snapshot
+		final int oldOff;
+		final int len;
+		final int hash;
+		int newOff;
+
+		Entry(byte[] rec, int oldOff, int len, int hash) {
+			this.rec = rec;
+			this.oldOff = oldOff;
+			this.len = len;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Writes a snapshot of every user in an older snapshot and every
+	 * registered User in memory. Where both have a user, the one in memory
+	 * is written, being newer.
+	 * @param file the file to write
+	 * @param gen the new snapshot's generation
+	 * @param old the snapshot the Users in memory were loaded over, or null
+	 * @param loaded the Users in memory; anonymous ones are left out
+	 * @return the number of users written
+	 */
+	static int write(File file, long gen, UserSnapshot old, Iterable<User> loaded) throws IOException {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		if( old != null ) {
+			for( int off : old.recordOffsets() ) {
+				int nameLen = old.buf.getShort(off) & 0xFFFF;
+				byte[] name = new byte[nameLen];
+				ByteBuffer d = old.buf.duplicate();
+				d.position(off + 2);
+				d.get(name);
+				entries.add(new Entry(null, off, old.recordLength(off), hash(name, 0, nameLen)));
+			}
+		}
+		for( User u : loaded ) {
+			// anonymous, or a registration that may yet fail
+			if( u.getPass() == null || u.isUnsaved() )
+				continue;
+			byte[] rec = encode(u);
+			int nameLen = ((rec[0] & 0xFF) << 8) | (rec[1] & 0xFF);
+			entries.add(new Entry(rec, -1, rec.length, hash(rec, 2, nameLen)));
+		}
+
+		// build the index; a later entry with the same name replaces an earlier one
+		int slots = 16;
+		while( slots < 2 * entries.size() )
+			slots <<= 1;
+		Entry[] table = new Entry[slots];
+		int count = 0;
+		for( Entry e : entries ) {
+			int i = e.hash & (slots - 1);
+			while( table[i] != null && !sameName(table[i], e, old) )
+				i = (i + 1) & (slots - 1);
+			if( table[i] == null )
+				count++;
+			table[i] = e;
+		}
+
+		long off = HEADER + 4L * slots;
+		for( Entry e : table ) {
+			if( e != null ) {
+				e.newOff = (int) off;
+				off += e.len;
+			}
+		}
+		if( off + 4 > Integer.MAX_VALUE )
+			throw new IOException("too many users for one snapshot");
+
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			BufferedOutputStream bos = new BufferedOutputStream(fos, 1 << 16);
+			ByteBuffer h = ByteBuffer.allocate(HEADER);
+			h.putInt(UserStore.SNAP_MAGIC).putInt(VERSION).putLong(gen).putInt(count).putInt(slots);
+			bos.write(h.array());
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bos, crc));
+			for( Entry e : table )
+				out.writeInt(e == null ? 0 : e.newOff);
+			byte[] copy = new byte[256];
+			for( Entry e : table ) {
+				if( e == null )
+					continue;
+				if( e.rec != null ) {
+					out.write(e.rec);
+				}else {
+					if( copy.length < e.len )
+						copy = new byte[e.len];
+					ByteBuffer d = old.buf.duplicate();
+					d.position(e.oldOff);
+					d.get(copy, 0, e.len);
+					out.write(copy, 0, e.len);
+				}
+			}
+			out.flush();
+			new DataOutputStream(bos).writeInt((int) crc.getValue());
+			bos.flush();
+			fos.getChannel().force(true);
+		} finally {
+			fos.close();
+		}
+		return count;
+	}
+
+	private static byte[] encode(User u) {
+		byte[] un = u.getUN().getBytes(StandardCharsets.UTF_8);
+		byte[] pass = u.getPass().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocate(2 + un.length + 2 + pass.length + 8);
+		b.putShort((short) un.length).put(un).putShort((short) pass.length).put(pass);
+		b.putInt(u.getWins()).putInt(u.getLosses());
+		return b.array();
+	}
+
+	private static boolean sameName(Entry a, Entry b, UserSnapshot old) {
+		if( a.hash != b.hash )
+			return false;
+		byte[] na = name(a, old), nb = name(b, old);
+		return java.util.Arrays.equals(na, nb);
+	}
+
+	private static byte[] name(Entry e, UserSnapshot old) {
+		if( e.rec != null ) {
+			int len = ((e.rec[0] & 0xFF) << 8) | (e.rec[1] & 0xFF);
+			return java.util.Arrays.copyOfRange(e.rec, 2, 2 + len);
+		}
+		int len = old.buf.getShort(e.oldOff) & 0xFFFF;
+		byte[] b = new byte[len];
+		ByteBuffer d = old.buf.duplicate();
+		d.position(e.oldOff + 2);
+		d.get(b);
+		return b;
+	}
+}
@@ -0,0 +1,716 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * UserStore keeps the registered Users on disk, in place of users.txt.
+ *
+ * It is two files in one directory. users.log is an append-only log of
+ * records, one per registration and one per change to a User's wins and
+ * losses. Each record carries its length and a CRC32, and every record holds
+ * the User's whole state rather than a difference, so replaying a record
+ * twice does no harm. users.snap is a snapshot of every registered User.
+ * Once the log has grown past a few megabytes it is compacted: a new
+ * snapshot is written beside the old one, synced, and renamed over it, and
+ * the log starts again empty.
+ *
+ * The snapshot is mapped rather than read (see UserSnapshot), so starting
+ * up does not depend on how many users there are. A version 1 snapshot,
+ * which had to be read whole, is rewritten in the new format on startup.
+ *
+ * Both files carry a generation number, which goes up by one with each
+ * compaction. On startup the snapshot is read and then the log is replayed
+ * on top of it, unless the log is from an older generation (the server
+ * stopped between renaming a new snapshot and emptying the log), in which
+ * case everything in it is already in the snapshot. A record cut short or
+ * failing its CRC at the end of the log is what a crash in the middle of a
+ * write leaves behind: the log is truncated there and the server carries on.
+ *
+ * Records are written by one thread. Callers only encode a record and queue
+ * it. The thread writes whatever has queued up in one go and syncs it to
+ * disk once, so many registrations arriving together share one fsync (group
+ * commit). sync() waits until everything queued so far is on disk, and
+ * sync(n) until record n is, saying whether it was saved. A registration
+ * can instead be given a Saved, which the writer thread calls once the
+ * batch it is in is on disk, so nothing waits for the fsync. A batch that
+ * can't be written or synced is cut back off the end of the log and its
+ * records are counted as failed, not as written. A compaction leaves out a
+ * registration whose record is not on disk yet (see User.isUnsaved), so a
+ * registration that then fails doesn't come back from the snapshot.
+ *
+ * A server that finds users.txt and no store imports it and renames it
+ * users.txt.imported.
+ */
+public class UserStore {
+
+	static final int LOG_MAGIC = 0x474D554C;	// "GMUL"
+	static final int SNAP_MAGIC = 0x474D5553;	// "GMUS"
+	static final int VERSION = 1;	// of the log, and of the first snapshots
+	static final byte REGISTER = 1;
+	static final byte STATS = 2;
+
+	static final int LOG_HEADER = 16;	// magic, version, generation
+	static final int SNAP_HEADER = 20;	// magic, version, generation, count (version 1)
+	private static final int MAX_RECORD = 64 * 1024;
+	private static final long COMPACT_AT = 8L << 20;
+
+	private final File dir;
+	private final File snapFile;
+	private final File logFile;
+	private UserRegistry users;
+	private FileChannel log;
+	private FileLock fileLock;
+	private long generation;
+	private long logBytes;
+	private long snapBytes;
+	private boolean migrate;	// read a version 1 snapshot, to be rewritten
+
+	private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+	private final AtomicLong queued = new AtomicLong();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition durable = lock.newCondition();
+	private long written;	// records on disk (or given up on), guarded by lock
+	private final TreeMap<Long, Long> lost = new TreeMap<Long, Long>();	// first to last record of failed batches, guarded by lock
+	private final ConcurrentSkipListMap<Long, Saved> waiting = new ConcurrentSkipListMap<Long, Saved>();	// by record number
+	private boolean torn;	// a failed batch could not be cut off the log
+	private Thread writer;
+	private volatile boolean running;
+	private volatile boolean closed;
+
+	// metrics
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param dir the directory the store's files are in
+	 */
+	public UserStore(File dir) {
+		this.dir = dir;
+		snapFile = new File(dir, "users.snap");
+		logFile = new File(dir, "users.log");
+	}
+
+	/**
+	 * @return about how many users the store holds, for sizing a UserRegistry
+	 * before loading it
+	 */
+	public int expectedUsers() {
+		// users in a snapshot are only made when asked for; see UserRegistry
+		return (int) Math.min(logFile.length() / 24, 1 << 24);
+	}
+
+	/**
+	 * Loads every registered User into a UserRegistry and starts taking
+	 * writes. Later compactions take the Users from the same registry.
+	 * @param into the registry to fill
+	 * @throws IOException if the store can't be read, is damaged somewhere
+	 * other than the end of the log, or is in use by another server
+	 */
+	public void load(UserRegistry into) throws IOException {
+		users = into;
+		dir.mkdirs();
+		File legacy = new File(dir, "users.txt");
+		boolean importing = !snapFile.exists() && !logFile.exists() && legacy.exists();
+
+		long snapGen = 0;
+		if( snapFile.exists() )
+			snapGen = readSnapshot();
+		else if( importing )
+			importText(legacy);
+
+		log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			fileLock = log.tryLock();
+		}catch( java.nio.channels.OverlappingFileLockException e ) {
+			fileLock = null;	// held by another UserStore in this JVM
+		}
+		if( fileLock == null ) {
+			log.close();
+			throw new IOException(logFile + " is in use by another server");
+		}
+		generation = snapGen;
+		if( !replayLog(snapGen) )
+			resetLog(snapGen);
+
+		if( migrate ) {
+			compact();
+			Log.info("Rewrote the user snapshot in version " + UserSnapshot.VERSION);
+		}
+		if( importing ) {
+			compact();
+			if( !legacy.renameTo(new File(dir, "users.txt.imported")) )
+				Log.warn("Imported users.txt but could not rename it");
+			Log.info("Imported " + users.size() + " users from users.txt");
+		}
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "user-store");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				close();
+			}
+		}));
+	}
+
+	/**
+	 * Maps the snapshot for the registry to make Users from, or reads a
+	 * version 1 snapshot into it
+	 * @return the snapshot's generation
+	 */
+	private long readSnapshot() throws IOException {
+		snapBytes = snapFile.length();
+		if( snapVersion() == UserSnapshot.VERSION ) {
+			UserSnapshot snap = UserSnapshot.map(snapFile);
+			users.setSnapshot(snap);
+			return snap.getGeneration();
+		}
+		byte[] bytes = Files.readAllBytes(snapFile.toPath());
+		ByteBuffer b = ByteBuffer.wrap(bytes);
+		if( bytes.length < SNAP_HEADER + 4 || b.getInt() != SNAP_MAGIC || b.getInt() != VERSION )
+			throw new IOException(snapFile + " is not a user snapshot");
+		long gen = b.getLong();
+		int count = b.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(bytes, SNAP_HEADER, bytes.length - SNAP_HEADER - 4);
+		if( (int) crc.getValue() != b.getInt(bytes.length - 4) )
+			throw new IOException(snapFile + " is damaged (bad CRC)");
+		for( int i = 0; i < count; i++ ) {
+			if( b.get() != REGISTER )
+				throw new IOException(snapFile + " is damaged (bad record " + i + ")");
+			String un = getString(b);
+			String pass = getString(b);
+			users.add(new User(un, pass, b.getInt(), b.getInt()));
+		}
+		migrate = true;
+		return gen;
+	}
+
+	/**
+	 * @return the version in the snapshot's header
+	 */
+	private int snapVersion() throws IOException {
+		FileChannel ch = FileChannel.open(snapFile.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer h = ByteBuffer.allocate(8);
+			while( h.hasRemaining() && ch.read(h) > 0 ) {
+				// read() moves h's position on
+			}
+			return h.position() < 8 ? -1 : h.getInt(4);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Replays the log on top of what the snapshot loaded, and truncates a
+	 * torn record off its end
+	 * @return false if the log is empty or older than the snapshot, and so
+	 * needs starting again
+	 */
+	private boolean replayLog(long snapGen) throws IOException {
+		long size = log.size();
+		if( size < LOG_HEADER )
+			return false;
+		ByteBuffer b = ByteBuffer.allocate((int) size);
+		while( b.hasRemaining() && log.read(b, b.position()) > 0 ) {
+			// read() moves b's position on
+		}
+		b.flip();
+		if( b.getInt() != LOG_MAGIC || b.getInt() != VERSION )
+			throw new IOException(logFile + " is not a user log");
+		long gen = b.getLong();
+		if( gen < snapGen ) {
+			// stopped between writing a snapshot and emptying the log
+			return false;
+		}
+		generation = gen;
+
+		CRC32 crc = new CRC32();
+		int replayed = 0;
+		int pos = LOG_HEADER;
+		while( pos + 8 <= size ) {
+			int len = b.getInt(pos);
+			if( len <= 0 || len > MAX_RECORD || pos + 8 + len > size )
+				break;
+			crc.reset();
+			crc.update(b.array(), pos + 8, len);
+			if( (int) crc.getValue() != b.getInt(pos + 4) )
+				break;
+			b.position(pos + 8);
+			apply(b);
+			pos += 8 + len;
+			replayed++;
+		}
+		if( pos < size ) {
+			Log.warn("Truncating " + (size - pos) + " bytes of unfinished records off " + logFile);
+			log.truncate(pos);
+			log.force(true);
+		}
+		logBytes = pos;
+		log.position(pos);
+		if( Log.isDebugEnabled() ) Log.debug("Replayed " + replayed + " user records");
+		return true;
+	}
+
+	/**
+	 * Applies one record from the log
+	 */
+	private void apply(ByteBuffer b) throws IOException {
+		byte type = b.get();
+		String un = getString(b);
+		if( type == REGISTER ) {
+			String pass = getString(b);
+			int wins = b.getInt(), losses = b.getInt();
+			User u = users.get(un);
+			if( u == null ) {
+				users.add(new User(un, pass, wins, losses));
+			}else {
+				u.setWins(wins);
+				u.setLosses(losses);
+			}
+		}else if( type == STATS ) {
+			int wins = b.getInt(), losses = b.getInt();
+			User u = users.get(un);
+			if( u != null ) {
+				u.setWins(wins);
+				u.setLosses(losses);
+			}
+		}else {
+			throw new IOException(logFile + " has a record of unknown type " + type);
+		}
+	}
+
+	/**
+	 * Loads the three-lines-per-user users.txt of older servers
+	 */
+	private void importText(File legacy) throws FileNotFoundException {
+		Scanner fileScan = new Scanner(legacy);
+		while( fileScan.hasNextLine() ) {
+			users.add(new User(fileScan.nextLine(), fileScan.nextLine(), fileScan.nextLine()));
+		}
+		fileScan.close();
+	}
+
+	/**
+	 * Empties the log and starts it at a generation
+	 */
+	private void resetLog(long gen) throws IOException {
+		ByteBuffer h = ByteBuffer.allocate(LOG_HEADER);
+		h.putInt(LOG_MAGIC).putInt(VERSION).putLong(gen).flip();
+		log.truncate(0);
+		while( h.hasRemaining() )
+			log.write(h, h.position());
+		log.force(true);
+		log.position(LOG_HEADER);
+		logBytes = LOG_HEADER;
+		generation = gen;
+	}
+
+	/**
+	 * Told whether a record made it to disk
+	 */
+	public interface Saved {
+		/**
+		 * Called on the writer thread once the record's batch is on disk or
+		 * has failed to be written, or at once if the store is closed
+		 * @param ok true if the record was saved
+		 */
+		void saved(boolean ok);
+	}
+
+	/**
+	 * Records a new registration
+	 * @param u the new User
+	 * @return the record's number, for sync(long), or 0 if the store is
+	 * closed and it was not queued
+	 */
+	public long register(User u) {
+		return append(record(REGISTER, u), new Registered(u, null));
+	}
+
+	/**
+	 * Records a new registration without waiting for it to be saved
+	 * @param u the new User
+	 * @param done told, on the writer thread, whether it was saved. Must
+	 * not block, as the next batch waits for it.
+	 */
+	public void register(User u, Saved done) {
+		if( append(record(REGISTER, u), new Registered(u, done)) == 0 )
+			done.saved(false);
+	}
+
+	/**
+	 * Lets a registration into snapshots once it is on disk, then tells
+	 * whoever asked
+	 */
+	private static class Registered implements Saved {
+		private final User user;
+		private final Saved done;	// or null
+
+		Registered(User user, Saved done) {
+			this.user = user;
+			this.done = done;
+		}
+
+		public void saved(boolean ok) {
+			if( ok )
+				user.setUnsaved(false);
+			if( done != null )
+				done.saved(ok);
+		}
+	}
+
+	/**
+	 * Records a change to a User's wins or losses
+	 * @param u the User, as it is now
+	 */
+	public void update(User u) {
+		append(record(STATS, u), null);
+	}
+
+	private long append(byte[] rec, Saved done) {
+		// numbered in the order they are queued, which is the order they are
+		// written. Checked under the lock close() stops the store with, so
+		// nothing is queued once the writer may have gone
+		synchronized( queue ) {
+			if( !running ) {
+				Log.warn("User store is closed, a user record was not saved");
+				return 0;
+			}
+			long n = queued.get() + 1;
+			if( done != null )
+				waiting.put(n, done);
+			queue.add(rec);
+			return queued.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Encodes a record with its length and CRC in front
+	 */
+	private static byte[] record(byte type, User u) {
+		byte[] un = u.getUN().getBytes(StandardCharsets.UTF_8);
+		byte[] pass = type == REGISTER ? u.getPass().getBytes(StandardCharsets.UTF_8) : null;
+		int len = 1 + 2 + un.length + (pass == null ? 0 : 2 + pass.length) + 8;
+		ByteBuffer b = ByteBuffer.allocate(8 + len);
+		b.putInt(len).putInt(0).put(type);
+		b.putShort((short) un.length).put(un);
+		if( pass != null )
+			b.putShort((short) pass.length).put(pass);
+		b.putInt(u.getWins()).putInt(u.getLosses());
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 8, len);
+		b.putInt(4, (int) crc.getValue());
+		return b.array();
+	}
+
+	private static String getString(ByteBuffer b) {
+		int len = b.getShort() & 0xFFFF;
+		String s = new String(b.array(), b.position(), len, StandardCharsets.UTF_8);
+		b.position(b.position() + len);
+		return s;
+	}
+
+	/**
+	 * The writer thread: writes whatever has queued up, syncs once, and
+	 * compacts when the log has grown big enough
+	 */
+	private void writeLoop() {
+		ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		// records are copied into one buffer and written a buffer at a time
+		ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+		while( true ) {
+			byte[] first;
+			try {
+				first = queue.poll(100, TimeUnit.MILLISECONDS);
+			}catch( InterruptedException e ) {
+				first = null;
+			}
+			if( first == null ) {
+				if( !running && queue.isEmpty() )
+					break;
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch);
+			boolean saved = false;
+			try {
+				if( torn )
+					rollBack();
+				long total = 0;
+				buf.clear();
+				for( byte[] rec : batch ) {
+					if( rec.length > buf.remaining() )
+						writeOut(buf);
+					buf.put(rec);
+					total += rec.length;
+				}
+				writeOut(buf);
+				log.force(false);
+				logBytes += total;
+				commits.incrementAndGet();
+				records.addAndGet(batch.size());
+				saved = true;
+			}catch( IOException e ) {
+				failures.addAndGet(batch.size());
+				Log.error("Could not save " + batch.size() + " user records", e);
+				try {
+					rollBack();
+				}catch( IOException e2 ) {
+					// tried again before the next batch is written
+					torn = true;
+					Log.error("Could not cut a failed write off " + logFile, e2);
+				}
+			}
+			lock.lock();
+			try {
+				if( !saved ) {
+					// one failure after another is kept as one run
+					Map.Entry<Long, Long> last = lost.lastEntry();
+					lost.put(last != null && last.getValue() == written ? last.getKey() : written + 1, written + batch.size());
+				}
+				written += batch.size();
+				durable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			batch.clear();
+			tellSaved(saved);
+
+			if( logBytes > Math.max(COMPACT_AT, snapBytes) ) {
+				try {
+					compact();
+				}catch( IOException e ) {
+					Log.error("Could not compact the user store", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells the callers waiting on the records just written how they went
+	 * @param ok true if the batch was saved
+	 */
+	private void tellSaved(boolean ok) {
+		long done;
+		lock.lock();
+		try {
+			done = written;
+		} finally {
+			lock.unlock();
+		}
+		Map.Entry<Long, Saved> next;
+		while( (next = waiting.firstEntry()) != null && next.getKey() <= done ) {
+			if( waiting.remove(next.getKey()) == null )
+				continue;
+			try {
+				next.getValue().saved(ok);
+			}catch( RuntimeException e ) {
+				Log.error("Error telling a registration it was saved", e);
+			}
+		}
+	}
+
+	/**
+	 * Tells the callers still waiting that their records won't be saved,
+	 * once the writer thread has stopped
+	 */
+	private void failWaiting() {
+		Map.Entry<Long, Saved> next;
+		while( (next = waiting.pollFirstEntry()) != null )
+			next.getValue().saved(false);
+	}
+
+	/**
+	 * Cuts whatever part of a failed batch was written off the end of the
+	 * log, so the next batch follows the last whole record
+	 */
+	private void rollBack() throws IOException {
+		torn = true;
+		log.truncate(logBytes);
+		log.position(logBytes);
+		torn = false;
+	}
+
+	private void writeOut(ByteBuffer buf) throws IOException {
+		buf.flip();
+		while( buf.hasRemaining() )
+			log.write(buf);
+		buf.clear();
+	}
+
+	/**
+	 * Waits until every record queued before this call is on disk, or has
+	 * failed to be written
+	 */
+	public void sync() {
+		sync(queued.get());
+	}
+
+	/**
+	 * Waits until a record is on disk, along with the group commit it is in
+	 * @param n the record's number, from register()
+	 * @return true if the record was saved, false if it failed to be, was
+	 * never queued, the store stopped before writing it, or the wait was
+	 * interrupted
+	 */
+	public boolean sync(long n) {
+		if( n <= 0 )
+			return false;
+		lock.lock();
+		try {
+			while( written < n && writer != null && writer.isAlive() )
+				durable.await(100, TimeUnit.MILLISECONDS);
+			if( written < n )
+				return false;
+			Map.Entry<Long, Long> failed = lost.floorEntry(n);
+			return failed == null || failed.getValue() < n;
+		}catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every registered User to a new snapshot and empties the log.
+	 * Only called by the writer thread, or while it isn't running.
+	 *
+	 * The new snapshot is the registry's snapshot with the Users it has made
+	 * or had added written over it. The registry keeps the snapshot it has
+	 * mapped, which is still whole (a mapping outlives its file being
+	 * replaced), so nothing is reloaded.
+	 */
+	private void compact() throws IOException {
+		long start = System.nanoTime();
+		long gen = generation + 1;
+		File tmp = new File(dir, "users.snap.tmp");
+		int count = UserSnapshot.write(tmp, gen, users.getSnapshot(), users.loaded());
+		Files.move(tmp.toPath(), snapFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDir();
+		snapBytes = snapFile.length();
+		// a crash before this leaves an older log, which load() skips
+		resetLog(gen);
+		compactions.incrementAndGet();
+		if( Log.isDebugEnabled() ) Log.debug("Compacted " + count + " users in " + (System.nanoTime() - start) / 1000000L + " ms");
+	}
+
+	/**
+	 * Makes the rename of the snapshot stick, where the platform allows
+	 */
+	private void syncDir() {
+		try {
+			FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				d.force(true);
+			} finally {
+				d.close();
+			}
+		}catch( IOException e ) {
+			// not possible on every platform
+		}
+	}
+
+	/**
+	 * Writes out what is queued, compacts if there is anything in the log,
+	 * and lets go of the files. Can be called more than once.
+	 */
+	public void close() {
+		synchronized( this ) {
+			if( closed || log == null )
+				return;
+			closed = true;
+		}
+		synchronized( queue ) {
+			running = false;
+		}
+		try {
+			writer.join();
+		}catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		failWaiting();
+		try {
+			if( logBytes > LOG_HEADER )
+				compact();
+			fileLock.release();
+			log.close();
+		}catch( IOException e ) {
+			Log.error("Could not close the user store", e);
+		}
+	}
+
+	/**
+	 * Stops without writing out the queue or compacting, leaving the files 
+	 * as a crash would. For checking recovery.
+	 */
+	void crash() throws IOException {
+		synchronized( this ) {
+			closed = true;
+		}
+		synchronized( queue ) {
+			running = false;
+			queue.clear();
+		}
+		try {
+			writer.join();
+		}catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+		failWaiting();
+		fileLock.release();
+		log.close();
+	}
+
+	/*
+	 * Metrics
+	 */
+	public long getCommitCount() {
+		return commits.get();
+	}
+	public long getRecordCount() {
+		return records.get();
+	}
+	public long getCompactionCount() {
+		return compactions.get();
+	}
+	public long getLogBytes() {
+		return logBytes;
+	}
+
+	/**
+	 * @return a one line summary of the store's metrics
+	 */
+	public String stats() {
+		return "user store records=" + records.get() + " commits=" + commits.get()
+			+ " compactions=" + compactions.get() + " failed=" + failures.get()
+			+ " log=" + logBytes + "B snapshot=" + snapBytes + "B";
+	}
+}
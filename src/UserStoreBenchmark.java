@@ -0,0 +1,177 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * UserStoreBenchmark: Measures the UserStore in a scratch directory.
+ *
+ * A number of threads register users at once, then record wins and losses
+ * for random users, and the time until all of it is on disk is printed with
+ * the number of fsyncs it took, which shows how much group commit is
+ * sharing them. The store is closed and loaded again a few times from cold
+ * to time startup. Finally the end of the log is torn the way a crash in
+ * the middle of a write would leave it, and loading must drop only the
+ * torn record.
+ *
+ * Exits with status 1 if a load comes back with the wrong users.
+ *
+ * Usage: java UserStoreBenchmark [users] [threads] [updates]
+ */
+public class UserStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		final int updates = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+		File dir = Files.createTempDirectory("gomoku-store").toFile();
+		try {
+			run(dir, count, threads, updates);
+		} finally {
+			for( File f : dir.listFiles() )
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	private static void run(File dir, final int count, final int threads, final int updates) throws Exception {
+		final UserRegistry users = new UserRegistry(count);
+		final UserStore store = new UserStore(dir);
+		store.load(users);
+
+		// registrations from many threads at once
+		long start = System.nanoTime();
+		parallel(threads, new Work() {
+			public void run(int t) {
+				for( int i = t; i < count; i += threads ) {
+					User u = new User("user" + i, "pw" + i, 0, 0);
+					users.add(u);
+					store.register(u);
+				}
+			}
+		});
+		store.sync();
+		long commits = store.getCommitCount();
+		report("register", count, commits, start);
+
+		// results for random users
+		start = System.nanoTime();
+		parallel(threads, new Work() {
+			public void run(int t) {
+				Random rand = new Random(t);
+				for( int i = t; i < updates; i += threads ) {
+					User u = users.get("user" + rand.nextInt(count));
+					synchronized( u ) {
+						if( rand.nextBoolean() )
+							u.incrementWins();
+						else
+							u.incrementLosses();
+						store.update(u);
+					}
+				}
+			}
+		});
+		store.sync();
+		report("update", updates, store.getCommitCount() - commits, start);
+		System.out.println("  " + store.stats());
+
+		long wins = 0, losses = 0;
+		for( User u : users.all() ) {
+			wins += u.getWins();
+			losses += u.getLosses();
+		}
+		store.close();
+
+		// cold starts
+		long best = Long.MAX_VALUE, first = 0;
+		for( int round = 0; round < 3; round++ ) {
+			System.gc();
+			start = System.nanoTime();
+			UserStore again = new UserStore(dir);
+			UserRegistry loaded = new UserRegistry(again.expectedUsers());
+			again.load(loaded);
+			long ms = (System.nanoTime() - start) / 1000000L;
+			best = Math.min(best, ms);
+			if( round == 0 )
+				first = ms;
+			check(loaded, count, wins, losses, "cold start");
+			again.close();
+		}
+		System.out.printf("cold start: %,d users in %,d ms the first time, %,d ms at best (snapshot %,d KB)%n",
+				count, first, best, new File(dir, "users.snap").length() / 1024);
+
+		// a crash part way through appending a record
+		UserRegistry loaded = new UserRegistry(count);
+		UserStore again = new UserStore(dir);
+		again.load(loaded);
+		User u = loaded.get("user0");
+		u.incrementWins();
+		again.update(u);
+		again.sync();
+		File log = new File(dir, "users.log");
+		long good = log.length();
+		// stop the store without closing it, as a crash would, then tear the log
+		again.crash();
+		FileOutputStream torn = new FileOutputStream(log, true);
+		torn.write(new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 2, 0 });
+		torn.close();
+		loaded = new UserRegistry(count);
+		again = new UserStore(dir);
+		again.load(loaded);
+		check(loaded, count, wins + 1, losses, "recovery");
+		if( log.length() != good )
+			fail("recovery left the log at " + log.length() + " bytes, expected " + good);
+		again.close();
+		System.out.println("recovery: torn record dropped, the update before it kept");
+	}
+
+	private static void check(UserRegistry loaded, int count, long wins, long losses, String what) {
+		if( loaded.size() != count )
+			fail(what + " loaded " + loaded.size() + " users, expected " + count);
+		long w = 0, l = 0;
+		for( User u : loaded.all() ) {
+			w += u.getWins();
+			l += u.getLosses();
+		}
+		if( w != wins || l != losses )
+			fail(what + " loaded " + w + " wins and " + l + " losses, expected " + wins + " and " + losses);
+	}
+
+	private static void fail(String why) {
+		System.out.println("UserStoreBenchmark FAILED: " + why);
+		System.exit(1);
+	}
+
+	private static void report(String what, int n, long commits, long start) {
+		long nanos = System.nanoTime() - start;
+		System.out.printf("%-8s %,d records durable in %,d ms (%,.0f/s) with %,d fsyncs, %.1f records each%n",
+				what, n, nanos / 1000000L, n / (nanos / 1e9), commits, n / (double) Math.max(commits, 1));
+	}
+
+	private interface Work {
+		void run(int thread);
+	}
+
+	private static void parallel(int threads, final Work work) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(threads);
+		ArrayList<Thread> list = new ArrayList<Thread>();
+		for( int t = 0; t < threads; t++ ) {
+			final int id = t;
+			Thread th = new Thread(new Runnable() {
+				public void run() {
+					try {
+						work.run(id);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			list.add(th);
+			th.start();
+		}
+		done.await();
+	}
+}
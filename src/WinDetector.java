@@ -0,0 +1,138 @@
+/**
+ * WinDetector decides whether the most recent move made a winning line.
+ * Rather than checking every square, it only looks along the four lines
+ * (horizontal, vertical and the two diagonals) that pass through the last
+ * move, counting the run of same-coloured stones in each direction once.
+ * Nothing is allocated per check; the winning line is kept in fields that
+ * can be read with the getters after a win is found.
+ *
+ * The same detector serves both rule sets:
+ * 		freestyle - a run of winLength or more stones wins
+ * 		standard  - only a run of exactly winLength stones wins (overlines don't)
+ */
+public class WinDetector {
+
+	public static final int NONE = -1;
+	public static final int HORIZONTAL = 0;
+	public static final int VERTICAL = 1;
+	public static final int DIAGONAL = 2;		// top left to bottom right
+	public static final int ANTI_DIAGONAL = 3;	// top right to bottom left
+
+	private static final int[] DROW = { 0, 1, 1, 1 };
+	private static final int[] DCOL = { 1, 0, 1, -1 };
+
+	private final int winLength;
+	private final boolean exact;
+
+	// the last winning line found by check()
+	private int direction = NONE;
+	private int startRow, startCol, endRow, endCol;
+
+	/**
+	 * @param winLength the number of stones in a row needed to win
+	 * @param exact true if a run longer than winLength does not win
+	 */
+	public WinDetector(int winLength, boolean exact) {
+		if( winLength < 1 )
+			throw new IllegalArgumentException("winLength must be at least 1");
+		this.winLength = winLength;
+		this.exact = exact;
+	}
+
+	/**
+	 * @return a detector for freestyle Gomoku, five or more in a row wins
+	 */
+	public static WinDetector freestyle() {
+		return new WinDetector(5, false);
+	}
+
+	/**
+	 * @return a detector for standard Gomoku, exactly five in a row wins
+	 */
+	public static WinDetector standard() {
+		return new WinDetector(5, true);
+	}
+
+	/**
+	 * Checks the four lines through a move for a win.
+	 * @param board the board, with the move already on it
+	 * @param color the colour of the player who moved
+	 * @param row the row of the move
+	 * @param col the column of the move
+	 * @return the direction of the winning line (HORIZONTAL, VERTICAL,
+	 * DIAGONAL or ANTI_DIAGONAL), or NONE if the move did not win
+	 */
+	public int check(BitBoard board, int color, int row, int col) {
+		direction = NONE;
+		if( !board.has(color, row, col) )
+			return NONE;
+
+		int size = board.size();
+		// a winning overline is counted whole, so its ends are reported
+		// right; under the exact rule a side of winLength stones already
+		// makes an overline, so there is no need to count past that
+		int limit = exact ? winLength : size;
+
+		for( int d = 0; d < 4; d++ ) {
+			int dr = DROW[d], dc = DCOL[d];
+
+			int forward = 0;
+			int r = row + dr, c = col + dc;
+			while( forward < limit && r >= 0 && r < size && c >= 0 && c < size && board.has(color, r, c) ) {
+				forward++;
+				r += dr;
+				c += dc;
+			}
+
+			int back = 0;
+			r = row - dr;
+			c = col - dc;
+			while( back < limit && r >= 0 && r < size && c >= 0 && c < size && board.has(color, r, c) ) {
+				back++;
+				r -= dr;
+				c -= dc;
+			}
+
+			int run = forward + back + 1;
+			if( run == winLength || (!exact && run > winLength) ) {
+				direction = d;
+				startRow = row - back * dr;
+				startCol = col - back * dc;
+				endRow = row + forward * dr;
+				endCol = col + forward * dc;
+				return d;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Getters for the winning line found by the last call to check().
+	 * Only meaningful if that call did not return NONE.
+	 */
+	public int getDirection() {
+		return direction;
+	}
+	public int getStartRow() {
+		return startRow;
+	}
+	public int getStartCol() {
+		return startCol;
+	}
+	public int getEndRow() {
+		return endRow;
+	}
+	public int getEndCol() {
+		return endCol;
+	}
+
+	/**
+	 * Getters for the rules this detector uses
+	 */
+	public int getWinLength() {
+		return winLength;
+	}
+	public boolean isExact() {
+		return exact;
+	}
+}
@@ -0,0 +1,78 @@
+import java.util.SplittableRandom;
+
+/**
+ * Zobrist keys for hashing Gomoku positions. Every square has one random
+ * 64 bit key per colour, and the hash of a position is the XOR of the keys
+ * of every stone on it. Placing or removing a stone is a single XOR, so the
+ * hash can be kept up to date move by move instead of being recomputed.
+ *
+ * The keys come from a fixed seed, so every Gomobot and every search thread
+ * agrees on the hash of a position.
+ */
+public final class Zobrist {
+
+	private static final long SEED = 0x5DEECE66DL;
+
+	private final int size;
+	private final long[] keys;		// keys for colour 1, followed by the keys for colour 2
+	private final long sideKey;
+
+	private static Zobrist standard;
+
+	/**
+	 * @param size the number of rows (and columns) on the board
+	 */
+	public Zobrist(int size) {
+		this.size = size;
+		SplittableRandom rand = new SplittableRandom(SEED);
+		keys = new long[2 * size * size];
+		for( int i = 0; i < keys.length; i++ )
+			keys[i] = rand.nextLong();
+		sideKey = rand.nextLong();
+	}
+
+	/**
+	 * @param size the number of rows (and columns) on the board
+	 * @return a shared set of keys for that size of board
+	 */
+	public static synchronized Zobrist forSize(int size) {
+		if( standard == null || standard.size != size )
+			standard = new Zobrist(size);
+		return standard;
+	}
+
+	/**
+	 * @param color 1 or 2
+	 * @param row the row of the square
+	 * @param col the column of the square
+	 * @return the key to XOR in (or out) for a stone of that colour on that square
+	 */
+	public long key(int color, int row, int col) {
+		return keys[(color - 1) * size * size + row * size + col];
+	}
+
+	/**
+	 * @param color the colour to move
+	 * @return the key to XOR in so the same stones with a different side
+	 * to move hash differently
+	 */
+	public long side(int color) {
+		return color == 2 ? sideKey : 0L;
+	}
+
+	/**
+	 * Hashes a whole board from scratch
+	 * @param board the board, with 0 for empty and 1 or 2 for a stone
+	 * @return the XOR of the keys of every stone
+	 */
+	public long hash(int[][] board) {
+		long h = 0;
+		for( int r = 0; r < size; r++ ) {
+			for( int c = 0; c < size; c++ ) {
+				if( board[r][c] != 0 )
+					h ^= key(board[r][c], r, c);
+			}
+		}
+		return h;
+	}
+}